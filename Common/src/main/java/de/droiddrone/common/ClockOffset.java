@@ -0,0 +1,62 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.common;
+
+// Remote clock minus local clock, taken from the Ping/Pong sample with the lowest round trip time.
+public class ClockOffset {
+    private static final int samplesCount = 10;
+    private static final int maxRttMs = 2000;
+    private final long[] offsets = new long[samplesCount];
+    private final int[] rtts = new int[samplesCount];
+    private int count;
+    private int pos;
+    private long offsetMs;
+
+    public synchronized void addSample(long localSendTime, long remoteTime, long localReceiveTime){
+        int rtt = (int) (localReceiveTime - localSendTime);
+        if (rtt < 0 || rtt > maxRttMs) return;
+        offsets[pos] = remoteTime - (localSendTime + rtt / 2);
+        rtts[pos] = rtt;
+        pos = (pos + 1) % samplesCount;
+        if (count < samplesCount) count++;
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if (rtts[i] < rtts[best]) best = i;
+        }
+        offsetMs = offsets[best];
+    }
+
+    public synchronized boolean isValid(){
+        return count > 0;
+    }
+
+    public synchronized long getOffsetMs(){
+        return offsetMs;
+    }
+
+    public synchronized long toLocalTime(long remoteTime){
+        return remoteTime - offsetMs;
+    }
+
+    public synchronized void reset(){
+        count = 0;
+        pos = 0;
+        offsetMs = 0;
+    }
+}
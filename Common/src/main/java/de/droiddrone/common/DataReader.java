@@ -108,6 +108,19 @@ public class DataReader {
         return Double.longBitsToDouble(readLong());
     }
 
+    // unsigned LEB128, 7 bits per byte
+    public int readVarInt(){
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 35);
+        return value;
+    }
+
     public String readBufferAsString(){
         offset = size;
         return new String(data, StandardCharsets.US_ASCII);
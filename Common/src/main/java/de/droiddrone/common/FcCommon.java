@@ -80,6 +80,8 @@ public class FcCommon {
     public static final short DD_MAVLINK_SCALED_PRESSURE = 0x4012;
     public static final short DD_AP_VTX_POWER = 0x4013;
     public static final short DD_MAVLINK_VFR_HUD = 0x4014;
+    public static final short DD_DROPPED_FRAMES = 0x4015;
+    public static final short DD_CAMERA_FRAME_STATS = 0x4016;
 
     public static final short MAX_RSSI = 1023;
     public static final byte BF_BOXMODES_PAGE_COUNT = 2;
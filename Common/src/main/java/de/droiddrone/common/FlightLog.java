@@ -0,0 +1,177 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.common;
+
+import static de.droiddrone.common.Log.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+// Append-only binary flight log, written through memory-mapped segments of segmentSize bytes.
+// Segment: int magic, short version, byte source, byte 0, long log start time (wall clock ms),
+// long time of the first record (ms since start, -1 while empty), records, byte recordEnd.
+// Record: byte type, varint ms since the previous record, varint length, data.
+// The segment start times are the seek index, the reader finds a segment by offset = index * segmentSize.
+public class FlightLog {
+    public static final int magic = 0x44444C47;// DDLG
+    public static final short version = 1;
+    public static final int segmentSize = 1024 * 1024;
+    public static final int segmentHeaderSize = 24;
+    public static final int segmentTimeOffset = 16;
+    public static final String fileExtension = ".ddlog";
+    public static final byte sourceFlight = 1;
+    public static final byte sourceControl = 2;
+    public static final byte recordEnd = 0;
+    public static final byte recordTelemetry = 1;// short code, payload as sent to the controller
+    public static final byte recordUdpPacket = 2;// received packet as is
+    public static final byte recordRcFrame = 3;// byte channels count, short channels
+    public static final byte recordPing = 4;// int round trip ms
+    public static final byte recordBitRate = 5;// int bit/s on the drone, -1 or 1 for a change request of the controller
+    public static final byte recordFrameStats = 6;// short frame number, byte flags (frameFlag*), byte layer id
+    public static final int frameFlagKeyFrame = 1;
+    public static final int frameFlagDamaged = 2;
+    public static final int frameFlagLost = 4;
+    private static final int maxRecordHeaderSize = 11;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final byte source;
+    private final long startTime;
+    private final long startNanos;
+    private final byte[] intBuf = new byte[4];
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long lastRecordTimeMs;
+    private boolean isClosed;
+
+    private FlightLog(File file, byte source) throws IOException {
+        this.file = file;
+        this.source = source;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        segmentIndex = -1;
+        mapNextSegment();
+    }
+
+    public static FlightLog create(File dir, byte source){
+        boolean dirExists = true;
+        if (!dir.exists()) dirExists = dir.mkdirs();
+        if (!dirExists) return null;
+        String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime()) + fileExtension;
+        try {
+            return new FlightLog(new File(dir, fileName), source);
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("FlightLog create error: " + e);
+            return null;
+        }
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    private void mapNextSegment() throws IOException {
+        segmentIndex++;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) segmentIndex * segmentSize, segmentSize);
+        segment.putInt(magic);
+        segment.putShort(version);
+        segment.put(source);
+        segment.put((byte) 0);
+        segment.putLong(startTime);
+        segment.putLong(-1);
+    }
+
+    public void append(byte type, byte[] data, int offset, int length){
+        append(type, -1, data, offset, length);
+    }
+
+    public void appendTelemetry(int code, byte[] payload, int length){
+        append(recordTelemetry, code, payload, 0, length);
+    }
+
+    public synchronized void appendInt(byte type, int value){
+        intBuf[0] = (byte) (value >> 24);
+        intBuf[1] = (byte) (value >> 16);
+        intBuf[2] = (byte) (value >> 8);
+        intBuf[3] = (byte) value;
+        append(type, -1, intBuf, 0, 4);
+    }
+
+    // The type byte is written last, a record cut by a crash reads as the end of the segment.
+    private synchronized void append(byte type, int code, byte[] data, int offset, int length){
+        if (isClosed) return;
+        int dataLength = length + (code >= 0 ? 2 : 0);
+        if (dataLength + maxRecordHeaderSize + 1 > segmentSize - segmentHeaderSize) return;
+        try {
+            long timeMs = (System.nanoTime() - startNanos) / 1000000;
+            if (segment.remaining() < dataLength + maxRecordHeaderSize + 1){
+                segment.put(recordEnd);
+                mapNextSegment();
+            }
+            if (segment.position() == segmentHeaderSize){
+                segment.putLong(segmentTimeOffset, timeMs);
+                lastRecordTimeMs = timeMs;
+            }
+            int recordPosition = segment.position();
+            segment.position(recordPosition + 1);
+            putVarInt((int) Math.max(timeMs - lastRecordTimeMs, 0));
+            putVarInt(dataLength);
+            if (code >= 0) segment.putShort((short) code);
+            if (length > 0) segment.put(data, offset, length);
+            segment.put(recordPosition, type);
+            lastRecordTimeMs = Math.max(timeMs, lastRecordTimeMs);
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("FlightLog append error: " + e);
+            close();
+        }
+    }
+
+    private void putVarInt(int value){
+        while ((value & ~0x7F) != 0){
+            segment.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte) value);
+    }
+
+    public synchronized void close(){
+        if (isClosed) return;
+        isClosed = true;
+        try {
+            if (segment.remaining() > 0) segment.put(recordEnd);
+            long length = (long) segmentIndex * segmentSize + segment.position();
+            segment.force();
+            segment = null;
+            channel.truncate(length);
+            randomAccessFile.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("FlightLog close error: " + e);
+        }
+    }
+}
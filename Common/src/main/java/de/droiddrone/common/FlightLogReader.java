@@ -0,0 +1,158 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a FlightLog file record by record, also a log that was not closed.
+public class FlightLogReader implements Closeable {
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int segmentsCount;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private byte source;
+    private long startTime;
+    private long recordTimeMs;
+    private boolean isRecordPending;
+    public byte type;
+    public long timeMs;// since the log start
+    public byte[] data = new byte[2048];
+    public int length;
+
+    public FlightLogReader(File file) throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        fileSize = channel.size();
+        segmentsCount = (int) ((fileSize + FlightLog.segmentSize - 1) / FlightLog.segmentSize);
+        if (!openSegment(0)) throw new IOException("Not a flight log: " + file.getName());
+    }
+
+    public byte getSource(){
+        return source;
+    }
+
+    public long getStartTime(){
+        return startTime;
+    }
+
+    private boolean openSegment(int index) throws IOException {
+        segment = null;
+        segmentIndex = index;
+        if (index >= segmentsCount) return false;
+        long position = (long) index * FlightLog.segmentSize;
+        long size = Math.min(FlightLog.segmentSize, fileSize - position);
+        if (size < FlightLog.segmentHeaderSize) return false;
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        if (buf.getInt() != FlightLog.magic || buf.getShort() != FlightLog.version) return false;
+        source = buf.get();
+        buf.get();
+        startTime = buf.getLong();
+        recordTimeMs = buf.getLong();
+        if (recordTimeMs < 0) return false;
+        segment = buf;
+        return true;
+    }
+
+    private long getSegmentTime(int index) throws IOException {
+        long position = (long) index * FlightLog.segmentSize + FlightLog.segmentTimeOffset;
+        if (position + 8 > fileSize) return -1;
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+        return buf.getLong();
+    }
+
+    public boolean next() throws IOException {
+        if (isRecordPending){
+            isRecordPending = false;
+            return true;
+        }
+        while (segment != null){
+            if (segment.remaining() > 0){
+                byte recordType = segment.get(segment.position());
+                if (recordType != FlightLog.recordEnd){
+                    segment.get();
+                    long delta = getVarInt();
+                    long recordLength = getVarInt();
+                    if (delta >= 0 && recordLength >= 0 && recordLength <= segment.remaining()){
+                        recordTimeMs += delta;
+                        type = recordType;
+                        timeMs = recordTimeMs;
+                        length = (int) recordLength;
+                        if (data.length < length) data = new byte[length];
+                        segment.get(data, 0, length);
+                        return true;
+                    }
+                }
+            }
+            if (!openSegment(segmentIndex + 1)) return false;
+        }
+        return false;
+    }
+
+    // Positions the reader so that next() returns the first record at or after timeMs.
+    public boolean seek(long timeMs) throws IOException {
+        isRecordPending = false;
+        int low = 0;
+        int high = segmentsCount - 1;
+        int found = 0;
+        while (low <= high){
+            int middle = (low + high) >>> 1;
+            long segmentTime = getSegmentTime(middle);
+            if (segmentTime >= 0 && segmentTime <= timeMs){
+                found = middle;
+                low = middle + 1;
+            }else{
+                high = middle - 1;
+            }
+        }
+        openSegment(found);
+        while (next()){
+            if (this.timeMs >= timeMs){
+                isRecordPending = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -1 if the varint runs past the segment
+    private long getVarInt(){
+        long value = 0;
+        int shift = 0;
+        while (segment.remaining() > 0 && shift < 35){
+            byte b = segment.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+            shift += 7;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        randomAccessFile.close();
+    }
+}
@@ -23,22 +23,62 @@ public class MediaCodecBuffer{
     public final int flags;
     public final MediaCodec.BufferInfo info;
     public final byte[] data;
+    public final int size;
+    public final long timestamp;// ms
+    public final long captureTimestamp;// ms
+    private final PooledBuffer pooledBuffer;
+
+    // data may be longer than size, the buffer is shared and has to be released by every consumer
+    public MediaCodecBuffer(MediaCodec.BufferInfo info, PooledBuffer pooledBuffer, int size, long captureTimestamp){
+        this.flags = info.flags;
+        this.data = pooledBuffer.data;
+        this.size = size;
+        this.info = info;
+        this.timestamp = System.currentTimeMillis();
+        this.captureTimestamp = captureTimestamp;
+        this.pooledBuffer = pooledBuffer;
+        pooledBuffer.retain();
+    }
+
+    public MediaCodecBuffer(MediaCodec.BufferInfo info, byte[] data, long captureTimestamp){
+        this.flags = info.flags;
+        this.data = data;
+        this.size = data != null ? data.length : 0;
+        this.info = info;
+        this.timestamp = System.currentTimeMillis();
+        this.captureTimestamp = captureTimestamp;
+        this.pooledBuffer = null;
+    }
 
     public MediaCodecBuffer(MediaCodec.BufferInfo info, byte[] data){
         this.flags = info.flags;
         this.data = data;
+        this.size = data != null ? data.length : 0;
         this.info = info;
+        this.timestamp = System.currentTimeMillis();
+        this.captureTimestamp = timestamp;
+        this.pooledBuffer = null;
     }
 
-    public MediaCodecBuffer(int flags, byte[] data) {
+    public MediaCodecBuffer(int flags, byte[] data, long timestamp) {
         this.flags = flags;
         this.data = data;
+        this.size = data != null ? data.length : 0;
         this.info = null;
+        this.timestamp = timestamp;
+        this.captureTimestamp = timestamp;
+        this.pooledBuffer = null;
+    }
+
+    public MediaCodecBuffer(int flags, byte[] data) {
+        this(flags, data, System.currentTimeMillis());
     }
 
     public MediaCodecBuffer(byte[] data) {
-        this.flags = 0;
-        this.data = data;
-        this.info = null;
+        this(0, data, System.currentTimeMillis());
+    }
+
+    public void release(){
+        if (pooledBuffer != null) pooledBuffer.release();
     }
 }
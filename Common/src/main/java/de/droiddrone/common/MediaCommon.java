@@ -25,6 +25,8 @@ public class MediaCommon {
     public static final String hevcCodecMime = "video/hevc";
     public static final String avcCodecMime = "video/avc";
     public static final String audioCodecMime = "audio/mp4a-latm";
+    public static final String opusCodecMime = "audio/opus";
+    public static final String mjpegCodecMime = "video/mjpeg";
     public static final int mp4AudioConsumerId = 0;
     public static final int streamAudioConsumerId = 1;
 
@@ -53,4 +55,51 @@ public class MediaCommon {
         }
         return null;
     }
+
+    public static String getHardwareCodecName(String mimeType, boolean isEncoder)
+    {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos())
+        {
+            if (isEncoder != codecInfo.isEncoder() || !isHardwareCodec(codecInfo)) continue;
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType))
+                    return codecInfo.getName();
+            }
+        }
+        return null;
+    }
+
+    // Temporal layer of an encoded frame, read from its first slice NAL unit. Without an SVC prefix, AVC only tells
+    // whether the frame is referenced, non-reference frames are reported as layer 1.
+    public static int getTemporalLayerId(String mimeType, byte[] data, int size){
+        boolean isHevc = hevcCodecMime.equals(mimeType);
+        int zeros = 0;
+        for (int i = 0; i < size - 2; i++) {
+            int b = data[i];
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                int header = data[i + 1] & 0xFF;
+                if (isHevc) {
+                    int type = (header >> 1) & 0x3F;
+                    if (type < 32) return Math.max((data[i + 2] & 7) - 1, 0);
+                } else {
+                    int type = header & 0x1F;
+                    if (type == 14 && i + 4 < size) return (data[i + 4] >> 5) & 7;
+                    if (type == 1 || type == 5) return (header & 0x60) == 0 ? 1 : 0;
+                }
+            }
+            zeros = 0;
+        }
+        return 0;
+    }
+
+    private static boolean isHardwareCodec(MediaCodecInfo codecInfo){
+        if (Build.VERSION.SDK_INT >= 29) return codecInfo.isHardwareAccelerated();
+        String name = codecInfo.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
 }
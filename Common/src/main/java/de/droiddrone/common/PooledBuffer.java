@@ -0,0 +1,44 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledBuffer {
+    public interface Recycler {
+        void recycle(byte[] data);
+    }
+
+    public final byte[] data;
+    private final Recycler recycler;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    public PooledBuffer(byte[] data, Recycler recycler){
+        this.data = data;
+        this.recycler = recycler;
+    }
+
+    public void retain(){
+        refCount.incrementAndGet();
+    }
+
+    // The array goes back to the pool when the last holder releases it.
+    public void release(){
+        if (refCount.decrementAndGet() == 0 && recycler != null) recycler.recycle(data);
+    }
+}
@@ -25,7 +25,7 @@ import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class ReceiverBuffer {
+public class ReceiverBuffer implements PacketSource {
     private final boolean isServer;
     private final UdpSender udpSender;
     private final String controlKey, viewerKey;
@@ -39,6 +39,7 @@ public class ReceiverBuffer {
     private final ArrayList<Integer> bufferSizes = new ArrayList<>();
     private final ArrayList<Integer> pings = new ArrayList<>();
     private int pingMs;
+    private final ClockOffset remoteClockOffset = new ClockOffset();
     private int lastPacketTimer;
     private boolean isActive;
     private boolean isConnected;
@@ -117,6 +118,7 @@ public class ReceiverBuffer {
         }
     }
 
+    @Override
     public SavedPacket getNextPacket(){
         if (!isActive) return null;
         SavedPacket packet = unnumberedBuffer.poll();
@@ -190,7 +192,9 @@ public class ReceiverBuffer {
                         if (toEndPoint) {
                             return true;
                         } else {
-                            calculatePing(time);
+                            long current = System.currentTimeMillis();
+                            calculatePing(time, current);
+                            if (buffer.getRemaining() >= 8) remoteClockOffset.addSample(time, buffer.readLong(), current);
                         }
                     }
                     return false;
@@ -222,6 +226,7 @@ public class ReceiverBuffer {
         return true;
     }
 
+    @Override
     public void processTimer(){
         if (!isActive) return;
         bufferCleanup();
@@ -293,8 +298,8 @@ public class ReceiverBuffer {
         }
     }
 
-    private void calculatePing(long time){
-        int ping = (int) (System.currentTimeMillis() - time);
+    private void calculatePing(long time, long current){
+        int ping = (int) (current - time);
         if (Math.abs(ping - pingMs) > 1000) return;
         pings.add(ping);
         int avgPing = 0;
@@ -309,6 +314,10 @@ public class ReceiverBuffer {
         return pingMs;
     }
 
+    public ClockOffset getRemoteClockOffset(){
+        return remoteClockOffset;
+    }
+
     public boolean isConnected(){
         return (isActive && isConnected && lastPacketTimer > 0);
     }
@@ -322,6 +331,12 @@ public class ReceiverBuffer {
         lastRequestedPackets.clear();
     }
 
+    @Override
+    public boolean isFinished(){
+        return !isActive;
+    }
+
+    @Override
     public void close(){
         isActive = false;
         isConnected = false;
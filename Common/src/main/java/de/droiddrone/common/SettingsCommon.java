@@ -19,7 +19,7 @@ package de.droiddrone.common;
 
 public class SettingsCommon {
     // increase when the Control/Flight app is not compatible with the previous version (UDP packets changed, new added etc.)
-    public static final int versionCompatibleCode = 9;
+    public static final int versionCompatibleCode = 11;
 
     // default settings
     public static final String ip = "";
@@ -29,7 +29,7 @@ public class SettingsCommon {
     public static final boolean isViewer = false;
     public static final int viewersCount = 2;
     public static final boolean useUsbCamera = false;
-    public static final int usbCameraFrameFormat = UsbCameraFrameFormat.MJPEG;
+    public static final int usbCameraFrameFormat = UsbCameraFrameFormat.AUTO;
     public static final boolean usbCameraReset = true;
     public static final int cameraResolutionWidth = 1920;
     public static final int cameraResolutionHeight = 1080;
@@ -39,12 +39,23 @@ public class SettingsCommon {
     public static final boolean useExtraEncoder = true;
     public static final int videoRecorderCodec = VideoRecorderCodec.AVC;
     public static final int recordedVideoBitrate = 20000000;
+    public static final boolean sliceStreaming = false;
+    public static final boolean intraRefresh = false;
+    public static final boolean fragmentedRecording = true;
+    public static final int recorderSyncFragments = 1;
+    public static final int preRollSeconds = 0;
+    public static final int viewerLayerBitrate = 0;
+    public static final boolean temporalLayers = false;
     public static final boolean sendAudioStream = false;
     public static final int audioStreamBitrate = 96000;
+    public static final int audioStreamCodec = AudioStreamCodec.AAC;
     public static final boolean recordAudio = true;
     public static final int recordedAudioBitrate = 192000;
     public static final int telemetryRefreshRate = 10;
     public static final int rcRefreshRate = 25;
+    public static final boolean flightLog = true;
+    public static final boolean flightLogVideo = false;
+    public static final int replaySpeed = 0;
     public static final int serialBaudRate = 115200;
     public static final int usbSerialPortIndex = 0;
     public static final boolean useNativeSerialPort = false;
@@ -65,6 +76,7 @@ public class SettingsCommon {
     public static final boolean showPing = true;
     public static final boolean showVideoRecordButton = true;
     public static final boolean showVideoRecordIndication = true;
+    public static final boolean showVideoLatency = false;
     public static final int osdTextColor = 0xFFFFFFFF;
     public static final int vrMode = VrMode.off;
     public static final int vrFrameScale = 100;
@@ -114,10 +126,16 @@ public class SettingsCommon {
         public static final int YUV2 = 0;
         public static final int MJPEG = 1;
         public static final int H264 = 2;
+        public static final int AUTO = 3;
     }
 
     public static class VideoRecorderCodec {
         public static final int AVC = 0;
         public static final int HEVC = 1;
     }
+
+    public static class AudioStreamCodec {
+        public static final int AAC = 0;
+        public static final int OPUS = 1;
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// TelemetryData wire format, one entry per message:
+// varint code, byte refId, varint (length << 1 | 1) + payload for a full message
+// or varint (runs << 1) + runs of [varint skip, varint count, bytes] changed against the last full message.
+// Unchanged messages are not sent, every code is sent in full at least once per keyFrameIntervalMs.
+public class TelemetryDelta {
+    public static final int keyFrameIntervalMs = 1000;
+    private static final int maxRunGap = 2;// unchanged bytes merged into a run, cheaper than a new run header
+    private final HashMap<Integer, Entry> entries = new HashMap<>();
+    private volatile long keyFrameRequestTs = -1;
+    private int[] runStart = new int[16];
+    private int[] runEnd = new int[16];
+    private byte[] message = new byte[256];
+
+    private static class Entry {
+        byte[] ref;
+        byte[] last;
+        byte refId;
+        long refTs;
+    }
+
+    // events must reach the receiver every time, even if the payload is the same
+    public static boolean isEventCode(int code){
+        switch (code){
+            case FcCommon.DD_VIDEO_RECORDER_START_STOP:
+            case FcCommon.DD_MAVLINK_STATUS_TEXT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void requestKeyFrame(){
+        keyFrameRequestTs = System.currentTimeMillis();
+    }
+
+    public void reset(){
+        entries.clear();
+    }
+
+    // Returns false if the message is suppressed.
+    public boolean encode(int code, byte[] payload, int length, DataOutputStream out) throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(code);
+        if (entry == null){
+            entry = new Entry();
+            entries.put(code, entry);
+        }
+        boolean isFull = isEventCode(code) || entry.ref == null || entry.ref.length != length
+                || now - entry.refTs >= keyFrameIntervalMs || entry.refTs <= keyFrameRequestTs;
+        if (!isFull){
+            if (equals(entry.last, payload, length)) return false;
+            int runs = findRuns(entry.ref, payload, length);
+            int deltaSize = getVarIntSize(runs << 1);
+            int end = 0;
+            for (int i = 0; i < runs; i++) {
+                int count = runEnd[i] - runStart[i];
+                deltaSize += getVarIntSize(runStart[i] - end) + getVarIntSize(count) + count;
+                end = runEnd[i];
+            }
+            if (deltaSize < getVarIntSize(length << 1 | 1) + length){
+                writeVarInt(out, code & 0xFFFF);
+                out.writeByte(entry.refId);
+                writeVarInt(out, runs << 1);
+                end = 0;
+                for (int i = 0; i < runs; i++) {
+                    int count = runEnd[i] - runStart[i];
+                    writeVarInt(out, runStart[i] - end);
+                    writeVarInt(out, count);
+                    out.write(payload, runStart[i], count);
+                    end = runEnd[i];
+                }
+                System.arraycopy(payload, 0, entry.last, 0, length);
+                return true;
+            }
+        }
+        if (entry.ref == null || entry.ref.length != length){
+            entry.ref = new byte[length];
+            entry.last = new byte[length];
+        }
+        System.arraycopy(payload, 0, entry.ref, 0, length);
+        System.arraycopy(payload, 0, entry.last, 0, length);
+        entry.refId++;
+        entry.refTs = now;
+        writeVarInt(out, code & 0xFFFF);
+        out.writeByte(entry.refId);
+        writeVarInt(out, length << 1 | 1);
+        out.write(payload, 0, length);
+        return true;
+    }
+
+    // Rebuilds the messages as short code + payload. Deltas to a lost full message are skipped
+    // until the next full message of the same code.
+    public void decode(DataReader in, DataOutputStream out) throws IOException {
+        decode(in, out, false);
+    }
+
+    // writeLength adds a short payload length after the code
+    public void decode(DataReader in, DataOutputStream out, boolean writeLength) throws IOException {
+        while (in.getRemaining() > 0){
+            int code = in.readVarInt();
+            byte refId = in.readByte();
+            int header = in.readVarInt();
+            Entry entry = entries.get(code);
+            if ((header & 1) != 0){
+                int length = header >>> 1;
+                if (entry == null){
+                    entry = new Entry();
+                    entries.put(code, entry);
+                }
+                if (entry.ref == null || entry.ref.length != length) entry.ref = new byte[length];
+                if (in.read(entry.ref, 0, length) != length) return;
+                entry.refId = refId;
+                out.writeShort(code);
+                if (writeLength) out.writeShort(length);
+                out.write(entry.ref, 0, length);
+                continue;
+            }
+            int runs = header >>> 1;
+            boolean isValid = entry != null && entry.ref != null && entry.refId == refId;
+            int length = isValid ? entry.ref.length : 0;
+            if (message.length < length) message = new byte[length];
+            if (isValid) System.arraycopy(entry.ref, 0, message, 0, length);
+            int pos = 0;
+            for (int i = 0; i < runs; i++) {
+                pos += in.readVarInt();
+                int count = in.readVarInt();
+                if (message.length < pos + count) message = new byte[pos + count];
+                if (in.read(message, pos, count) != count) return;
+                if (pos + count > length) isValid = false;
+                pos += count;
+            }
+            if (!isValid) continue;
+            out.writeShort(code);
+            if (writeLength) out.writeShort(length);
+            out.write(message, 0, length);
+        }
+    }
+
+    private int findRuns(byte[] ref, byte[] payload, int length){
+        int runs = 0;
+        int i = 0;
+        while (i < length){
+            if (ref[i] == payload[i]){
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < length && i - end < maxRunGap; i++) {
+                if (ref[i] != payload[i]) end = i + 1;
+            }
+            i = end;
+            if (runs == runStart.length){
+                runStart = Arrays.copyOf(runStart, runs * 2);
+                runEnd = Arrays.copyOf(runEnd, runs * 2);
+            }
+            runStart[runs] = start;
+            runEnd[runs] = end;
+            runs++;
+        }
+        return runs;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length){
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+
+    private static int getVarIntSize(int value){
+        int size = 1;
+        while ((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -20,6 +20,14 @@ package de.droiddrone.common;
 public class UdpCommon {
     public static final int defaultPort = 6286;
     public static final int packetLength = 1100;
+    // frame fragment: packet name, frame number and offset, the first fragment adds the frame size
+    public static final int frameHeaderSize = 9;
+    public static final int sliceHeaderSize = frameHeaderSize + 2;// slice index and flags
+    public static final byte sliceFlagLast = 1;
+    public static final byte sliceFlagKeyFrame = 2;
+    public static final byte sliceFlagTemporalLayer = 4;// layer id and base frame number follow the flags
+    public static final byte sliceFlagRecovery = 8;// the referenced long-term frame number follows the flags
+    public static final int maxSlicesCount = 64;
 
     //region Packet headers
     public static final byte VideoInitialFrame = 0;
@@ -49,11 +57,24 @@ public class UdpCommon {
     public static final byte RcFrame = 24;
     public static final byte ChangeCamera = 25;
     public static final byte MavlinkRawPacket = 26;// MavlinkUdpBridge.redirectFromControlDevice mode
+    public static final byte VideoFrameTiming = 27;
+    public static final byte VideoSlice = 28;
+    public static final byte RequestKeyFrame = 29;
+    // low layer for viewers, the relay forwards it as VideoInitialFrame, VideoFrame and KeyFrame
+    public static final byte ViewerVideoInitialFrame = 30;
+    public static final byte ViewerVideoFrame = 31;
+    public static final byte ViewerKeyFrame = 32;
+    public static final byte ReceiverReport = 33;// viewer -> relay
+    // VideoFrame with the temporal layer id and the base layer frame it depends on, layers above 0 can be dropped
+    public static final byte TemporalLayerFrame = 34;
+    // VideoFrame predicted from a long-term reference frame, not a sync point for receivers without that frame
+    public static final byte RecoveryFrame = 35;
     //endregion
 
     public static boolean isPacketNumbered(byte packetName){
         switch (packetName){
             case VideoInitialFrame:
+            case ViewerVideoInitialFrame:
             case AudioInitialFrame:
             case StartVideo:
             case GetVideoConfig:
@@ -79,6 +100,7 @@ public class UdpCommon {
     public static boolean isSendPacketReceived(byte packetName){
         switch (packetName){
             case VideoInitialFrame:
+            case ViewerVideoInitialFrame:
             case AudioInitialFrame:
             case StartVideo:
             case GetVideoConfig:
@@ -102,10 +124,18 @@ public class UdpCommon {
     public static int getPacketLifeTimeMs(byte packetName){
         switch (packetName){
             case VideoFrame:
+            case ViewerVideoFrame:
+            case TemporalLayerFrame:
+            case VideoSlice:
             case AudioFrame:
             case RcFrame:
+            case VideoFrameTiming:
+            case RequestKeyFrame:
+            case ReceiverReport:
                 return 0;
             case KeyFrame:
+            case ViewerKeyFrame:
+            case RecoveryFrame:
                 return 500;
             default:
                 return 1000;
@@ -218,7 +218,8 @@ public class UdpSender {
             UdpPacketData packetData = new UdpPacketData(UdpCommon.Pong);
             packetData.daos.writeBoolean(toEndPoint);
             packetData.daos.writeLong(time);
-            if (target != -1) packetData.daos.writeByte(target);
+            packetData.daos.writeByte(target);
+            packetData.daos.writeLong(System.currentTimeMillis());
             sendPacket(packetData.getData());
         } catch (Exception e) {
             e.printStackTrace();
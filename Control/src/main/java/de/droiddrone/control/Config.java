@@ -39,10 +39,18 @@ public class Config {
     private boolean useExtraEncoder;
     private int videoRecorderCodec;
     private int recordedVideoBitrate;
+    private boolean sliceStreaming;
+    private boolean intraRefresh;
+    private boolean fragmentedRecording;
+    private int recorderSyncFragments;
+    private int preRollSeconds;
+    private int viewerLayerBitrate;
+    private boolean temporalLayers;
     private boolean invertVideoAxisX;
     private boolean invertVideoAxisY;
     private boolean sendAudioStream;
     private int audioStreamBitrate;
+    private int audioStreamCodec;
     private boolean recordAudio;
     private int recordedAudioBitrate;
     private boolean drawOsd;
@@ -55,10 +63,14 @@ public class Config {
     private boolean showPing;
     private boolean showVideoRecordButton;
     private boolean showVideoRecordIndication;
+    private boolean showVideoLatency;
     private int osdTextColor;
     private int vrOsdScale;
     private int telemetryRefreshRate;
     private int rcRefreshRate;
+    private boolean flightLog;
+    private boolean flightLogVideo;
+    private int replaySpeed;
     private int serialBaudRate;
     private int usbSerialPortIndex;
     private boolean useNativeSerialPort;
@@ -167,12 +179,23 @@ public class Config {
         useExtraEncoder = preferences.getBoolean("useExtraEncoder", SettingsCommon.useExtraEncoder);
         videoRecorderCodec = Utils.parseInt(preferences.getString("videoRecorderCodec", ""), SettingsCommon.videoRecorderCodec);
         recordedVideoBitrate = Utils.parseInt(preferences.getString("recordedVideoBitrate", ""), SettingsCommon.recordedVideoBitrate);
+        sliceStreaming = preferences.getBoolean("sliceStreaming", SettingsCommon.sliceStreaming);
+        intraRefresh = preferences.getBoolean("intraRefresh", SettingsCommon.intraRefresh);
+        fragmentedRecording = preferences.getBoolean("fragmentedRecording", SettingsCommon.fragmentedRecording);
+        recorderSyncFragments = Utils.parseInt(preferences.getString("recorderSyncFragments", ""), SettingsCommon.recorderSyncFragments);
+        preRollSeconds = Utils.parseInt(preferences.getString("preRollSeconds", ""), SettingsCommon.preRollSeconds);
+        viewerLayerBitrate = Utils.parseInt(preferences.getString("viewerLayerBitrate", ""), SettingsCommon.viewerLayerBitrate);
+        temporalLayers = preferences.getBoolean("temporalLayers", SettingsCommon.temporalLayers);
         sendAudioStream = preferences.getBoolean("sendAudioStream", SettingsCommon.sendAudioStream);
         audioStreamBitrate = Utils.parseInt(preferences.getString("audioStreamBitrate", ""), SettingsCommon.audioStreamBitrate);
+        audioStreamCodec = Utils.parseInt(preferences.getString("audioStreamCodec", ""), SettingsCommon.audioStreamCodec);
         recordAudio = preferences.getBoolean("recordAudio", SettingsCommon.recordAudio);
         recordedAudioBitrate = Utils.parseInt(preferences.getString("recordedAudioBitrate", ""), SettingsCommon.recordedAudioBitrate);
         telemetryRefreshRate = Utils.parseInt(preferences.getString("telemetryRefreshRate", ""), SettingsCommon.telemetryRefreshRate);
         rcRefreshRate = Utils.parseInt(preferences.getString("rcRefreshRate", ""), SettingsCommon.rcRefreshRate);
+        flightLog = preferences.getBoolean("flightLog", SettingsCommon.flightLog);
+        flightLogVideo = preferences.getBoolean("flightLogVideo", SettingsCommon.flightLogVideo);
+        replaySpeed = Utils.parseInt(preferences.getString("replaySpeed", ""), SettingsCommon.replaySpeed);
         serialBaudRate = Utils.parseInt(preferences.getString("serialBaudRate", ""), SettingsCommon.serialBaudRate);
         usbSerialPortIndex = Utils.parseInt(preferences.getString("usbSerialPortIndex", ""), SettingsCommon.usbSerialPortIndex);
         useNativeSerialPort = preferences.getBoolean("useNativeSerialPort", SettingsCommon.useNativeSerialPort);
@@ -206,6 +229,7 @@ public class Config {
         showPing = preferences.getBoolean("showPing", SettingsCommon.showPing);
         showVideoRecordButton = preferences.getBoolean("showVideoRecordButton", SettingsCommon.showVideoRecordButton);
         showVideoRecordIndication = preferences.getBoolean("showVideoRecordIndication", SettingsCommon.showVideoRecordIndication);
+        showVideoLatency = preferences.getBoolean("showVideoLatency", SettingsCommon.showVideoLatency);
         osdTextColor = preferences.getInt("osdTextColor", SettingsCommon.osdTextColor);
         int vrMode = Utils.parseInt(preferences.getString("vrMode", ""), SettingsCommon.vrMode);
         if (vrMode != this.vrMode) videoFrameOrientationChanged = true;
@@ -330,6 +354,34 @@ public class Config {
         return recordedVideoBitrate;
     }
 
+    public boolean isSliceStreaming() {
+        return sliceStreaming;
+    }
+
+    public boolean isIntraRefresh() {
+        return intraRefresh;
+    }
+
+    public boolean isFragmentedRecording() {
+        return fragmentedRecording;
+    }
+
+    public int getRecorderSyncFragments() {
+        return recorderSyncFragments;
+    }
+
+    public int getPreRollSeconds() {
+        return preRollSeconds;
+    }
+
+    public int getViewerLayerBitrate() {
+        return viewerLayerBitrate;
+    }
+
+    public boolean isTemporalLayers() {
+        return temporalLayers;
+    }
+
     public boolean isInvertVideoAxisX() {
         return invertVideoAxisX;
     }
@@ -346,6 +398,10 @@ public class Config {
         return audioStreamBitrate;
     }
 
+    public int getAudioStreamCodec() {
+        return audioStreamCodec;
+    }
+
     public boolean isRecordAudio() {
         return recordAudio;
     }
@@ -394,6 +450,10 @@ public class Config {
         return showVideoRecordIndication;
     }
 
+    public boolean isShowVideoLatency() {
+        return showVideoLatency;
+    }
+
     public int getOsdTextColor() {
         return osdTextColor;
     }
@@ -410,6 +470,18 @@ public class Config {
         return rcRefreshRate;
     }
 
+    public boolean isFlightLog() {
+        return flightLog;
+    }
+
+    public boolean isFlightLogVideo() {
+        return flightLogVideo;
+    }
+
+    public int getReplaySpeed() {
+        return replaySpeed;
+    }
+
     public int getSerialBaudRate() {
         return serialBaudRate;
     }
@@ -25,13 +25,20 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import de.droiddrone.common.MediaCodecBuffer;
 import de.droiddrone.common.MediaCommon;
+import de.droiddrone.common.SettingsCommon;
 
 import static de.droiddrone.common.Logcat.log;
 import static de.droiddrone.common.Utils.getNextPow2;
@@ -39,15 +46,28 @@ import static de.droiddrone.common.Utils.getNextPow2;
 public class Decoder {
     static final int BUFFER_FLAG_CODEC_CONFIG = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
     static final int BUFFER_FLAG_KEY_FRAME = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+    static final int BUFFER_FLAG_PARTIAL_FRAME = MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
+    private static final int maxVideoFrameDelayMs = 100;
+    private static final int maxAudioFrameDelayMs = 200;
+    private static final int maxOpusFrameDelayMs = 100;
+    private static final long opusSeekPreRollNs = 80000000;
+    private static final int queuePollTimeoutMs = 20;
     private MediaCodec videoDecoder, audioDecoder;
     ArrayBlockingQueue<MediaCodecBuffer> videoInputBuffer = new ArrayBlockingQueue<>(30);
     ArrayBlockingQueue<MediaCodecBuffer> audioInputBuffer = new ArrayBlockingQueue<>(30);
+    private final ArrayBlockingQueue<Integer> videoCodecInputIndexes = new ArrayBlockingQueue<>(64);
+    private final ArrayBlockingQueue<Integer> audioCodecInputIndexes = new ArrayBlockingQueue<>(64);
+    private HandlerThread videoCallbackThread, audioCallbackThread;
+    private int droppedVideoFrames, droppedAudioFrames;
+    private boolean lastQueuedPartial;
+    private volatile boolean isPartialFrameSupported;
+    private VideoLatency videoLatency;
     private boolean videoDecoderStarted = false;
     public boolean videoDecoderInitializationRunning = false;
     private boolean audioDecoderStarted = false;
     private int videoThreadId, audioThreadId;
     private final GlRenderer renderer;
-    private int audioEncoding, audioChannelCount, audioSampleRate;
+    private int audioEncoding, audioChannelCount, audioSampleRate, audioCodec;
     private AudioTrack audioTrack;
     private int skipAudioBufCount;
     private byte[] initialFrame;
@@ -62,16 +82,24 @@ public class Decoder {
         audioThreadId = 0;
     }
 
-    public void initializeAudio(int sampleRate, int channelCount, int encoding){
-        if (audioDecoderStarted && audioSampleRate == sampleRate && audioChannelCount == channelCount && audioEncoding == encoding){
+    public void setVideoLatency(VideoLatency videoLatency){
+        this.videoLatency = videoLatency;
+    }
+
+    // codecConfig: the Opus header, AAC configuration is queued as the first input buffer
+    public void initializeAudio(int sampleRate, int channelCount, int encoding, int codec, byte[] codecConfig){
+        if (audioDecoderStarted && audioSampleRate == sampleRate && audioChannelCount == channelCount && audioEncoding == encoding && audioCodec == codec){
             return;
         }
+        boolean isOpus = codec == SettingsCommon.AudioStreamCodec.OPUS;
+        String mime = isOpus ? MediaCommon.opusCodecMime : MediaCommon.audioCodecMime;
         audioThreadId++;
         audioDecoderStarted = false;
         skipAudioBufCount = 10;
         audioSampleRate = sampleRate;
         audioChannelCount = channelCount;
         audioEncoding = encoding;
+        audioCodec = codec;
         if (audioDecoder != null){
             try {
                 audioDecoder.stop();
@@ -88,9 +116,11 @@ public class Decoder {
             }
             audioTrack.release();
         }
-        String decoderName = MediaCommon.getCodecName(MediaCommon.audioCodecMime, false);
+        if (audioCallbackThread != null) audioCallbackThread.quitSafely();
+        audioCodecInputIndexes.clear();
+        String decoderName = MediaCommon.getCodecName(mime, false);
         if (decoderName == null){
-            log("No audio decoder found.");
+            log("No audio decoder found: " + mime);
             return;
         }
         log("audioDecoder name: " + decoderName);
@@ -104,17 +134,18 @@ public class Decoder {
             return;
         }
         int channelConfig = (channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO);
-        MediaFormat format  = MediaFormat.createAudioFormat(MediaCommon.audioCodecMime, sampleRate, channelCount);
+        MediaFormat format  = MediaFormat.createAudioFormat(mime, sampleRate, channelCount);
         format.setInteger(MediaFormat.KEY_PCM_ENCODING, encoding);
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        try{
-            audioDecoder.configure(format, null, null, 0);
-            audioDecoder.start();
-        }catch (Exception e){
-            log("audioDecoder configure error: " + e);
-            return;
+        if (isOpus) {
+            if (!setOpusCodecConfig(format, codecConfig)) {
+                log("Opus header not found.");
+                return;
+            }
+        } else {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         }
-        audioDecoderStarted = true;
+        audioCallbackThread = new HandlerThread("audioDecoderCallbackThread");
+        audioCallbackThread.start();
         int audioBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, encoding);
         audioBufferSize = getNextPow2(audioBufferSize) * 4;
         AudioTrack.Builder atBuilder = new AudioTrack.Builder()
@@ -135,10 +166,20 @@ public class Decoder {
             audioTrack.play();
         } catch (Exception e) {
             log("AudioTrack error: " + e);
-            audioTrack.release();
-            audioDecoderStarted = false;
+            if (audioTrack != null) audioTrack.release();
+            audioCallbackThread.quitSafely();
+            return;
+        }
+        try{
+            audioDecoder.setCallback(audioDecoderCallback, new Handler(audioCallbackThread.getLooper()));
+            audioDecoder.configure(format, null, null, 0);
+            audioDecoder.start();
+        }catch (Exception e){
+            log("audioDecoder configure error: " + e);
+            audioCallbackThread.quitSafely();
             return;
         }
+        audioDecoderStarted = true;
         Thread audioDecoderThread = new Thread(audioDecoderRunnable);
         audioDecoderThread.setDaemon(false);
         audioDecoderThread.setName("audioDecoderThread");
@@ -161,6 +202,7 @@ public class Decoder {
     public void initializeVideo(boolean isHevc, int width, int height, boolean isFrontCamera){
         videoThreadId++;
         videoDecoderStarted = false;
+        lastQueuedPartial = false;
         this.isHevc = isHevc;
         this.width = width;
         this.height = height;
@@ -196,6 +238,8 @@ public class Decoder {
             }
             videoDecoder.release();
         }
+        if (videoCallbackThread != null) videoCallbackThread.quitSafely();
+        videoCodecInputIndexes.clear();
         String type;
         if (isHevc){
             type = MediaCommon.hevcCodecMime;
@@ -221,7 +265,12 @@ public class Decoder {
         }
         MediaFormat mediaFormat = MediaFormat.createVideoFormat(type, width, height);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        isPartialFrameSupported = isPartialFrameSupported(type);
+        if (isPartialFrameSupported) mediaFormat.setFeatureEnabled(MediaCodecInfo.CodecCapabilities.FEATURE_PartialFrame, true);
+        videoCallbackThread = new HandlerThread("videoDecoderCallbackThread");
+        videoCallbackThread.start();
         try{
+            videoDecoder.setCallback(videoDecoderCallback, new Handler(videoCallbackThread.getLooper()));
             videoDecoder.configure(mediaFormat, surface, null, 0);
             videoDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
             if (Build.VERSION.SDK_INT >= 30){
@@ -232,6 +281,7 @@ public class Decoder {
             videoDecoder.start();
         }catch (Exception e){
             log("videoDecoder configure error: " + e);
+            videoCallbackThread.quitSafely();
             videoDecoderInitializationRunning = false;
             return;
         }
@@ -243,6 +293,22 @@ public class Decoder {
         videoDecoderThread.start();
     }
 
+    private boolean isPartialFrameSupported(String type){
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = videoDecoder.getCodecInfo().getCapabilitiesForType(type);
+            if (capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_PartialFrame)) return true;
+        } catch (Exception e) {
+            log("isPartialFrameSupported error: " + e);
+        }
+        log("Partial frames are not supported by the decoder, slices are joined to whole frames.");
+        return false;
+    }
+
+    // Slices may only be queued separately with BUFFER_FLAG_PARTIAL_FRAME if true.
+    public boolean isPartialFrameSupported(){
+        return isPartialFrameSupported;
+    }
+
     public boolean isVideoDecoderStarted(){
         return videoDecoderStarted;
     }
@@ -251,14 +317,79 @@ public class Decoder {
         return audioDecoderStarted;
     }
 
+    public int getAudioCodec(){
+        return audioCodec;
+    }
+
+    // The Android Opus encoder outputs the header, the codec delay and the seek pre-roll, each behind an 8 byte marker
+    // and a 64 bit length. A plain OpusHead is accepted too.
+    private static boolean setOpusCodecConfig(MediaFormat format, byte[] config){
+        if (config == null) return false;
+        ByteBuffer buf = ByteBuffer.wrap(config).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] header = null;
+        long codecDelayNs = -1;
+        long seekPreRollNs = opusSeekPreRollNs;
+        if (config.length >= 19 && startsWith(config, 0, "OpusHead")) {
+            header = config;
+        } else {
+            while (buf.remaining() >= 16) {
+                int markerPos = buf.position();
+                buf.position(markerPos + 8);
+                long length = buf.getLong();
+                if (length < 0 || length > buf.remaining()) break;
+                if (startsWith(config, markerPos, "AOPUSHDR")) {
+                    header = new byte[(int) length];
+                    buf.get(header);
+                    continue;
+                }
+                if (length == 8 && startsWith(config, markerPos, "AOPUSDLY")) {
+                    codecDelayNs = buf.getLong();
+                    continue;
+                }
+                if (length == 8 && startsWith(config, markerPos, "AOPUSPRL")) {
+                    seekPreRollNs = buf.getLong();
+                    continue;
+                }
+                buf.position(buf.position() + (int) length);
+            }
+        }
+        if (header == null || header.length < 19) return false;
+        if (codecDelayNs == -1) {
+            int preSkip = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+            codecDelayNs = preSkip * 1000000000L / 48000;
+        }
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(header));
+        format.setByteBuffer("csd-1", ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, codecDelayNs));
+        format.setByteBuffer("csd-2", ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, seekPreRollNs));
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String marker){
+        if (data.length < offset + marker.length()) return false;
+        for (int i = 0; i < marker.length(); i++) {
+            if (data[offset + i] != marker.charAt(i)) return false;
+        }
+        return true;
+    }
+
     private final Runnable audioDecoderRunnable = new Runnable() {
         public void run() {
             final int id = audioThreadId;
             while (audioDecoderStarted && id == audioThreadId) {
-                MediaCodecBuffer buf = audioInputBuffer.peek();
                 try {
-                    if (buf != null) decodeAudioData(buf);
-                    checkAudioDecoderOutput();
+                    MediaCodecBuffer buf = audioInputBuffer.poll(queuePollTimeoutMs, TimeUnit.MILLISECONDS);
+                    if (buf == null || buf.data == null) continue;
+                    int maxDelayMs = audioCodec == SettingsCommon.AudioStreamCodec.OPUS ? maxOpusFrameDelayMs : maxAudioFrameDelayMs;
+                    if (buf.flags != BUFFER_FLAG_CODEC_CONFIG && System.currentTimeMillis() - buf.timestamp > maxDelayMs){
+                        droppedAudioFrames++;
+                        continue;
+                    }
+                    Integer index = null;
+                    while (index == null && audioDecoderStarted && id == audioThreadId) {
+                        index = audioCodecInputIndexes.poll(queuePollTimeoutMs, TimeUnit.MILLISECONDS);
+                    }
+                    if (index == null) break;
+                    decodeAudioData(buf, index);
                 } catch (Exception e) {
                     log("audioDecoderRunnable error: " + e);
                 }
@@ -266,45 +397,65 @@ public class Decoder {
         }
     };
 
-    private void decodeAudioData(MediaCodecBuffer buf) {
-        if (!audioDecoderStarted || audioDecoder == null || buf.data == null) return;
-        int index = audioDecoder.dequeueInputBuffer(0);
-        if (index >= 0) {
-            ByteBuffer inputBuffer = audioDecoder.getInputBuffer(index);
-            if (inputBuffer == null) return;
-            audioInputBuffer.poll();
-            inputBuffer.put(buf.data);
-            audioDecoder.queueInputBuffer(index, 0, buf.data.length, 0, buf.flags);
-        }
+    private void decodeAudioData(MediaCodecBuffer buf, int index) {
+        if (!audioDecoderStarted || audioDecoder == null) return;
+        ByteBuffer inputBuffer = audioDecoder.getInputBuffer(index);
+        if (inputBuffer == null) return;
+        inputBuffer.put(buf.data);
+        audioDecoder.queueInputBuffer(index, 0, buf.data.length, buf.timestamp * 1000, buf.flags);
     }
 
-    private void checkAudioDecoderOutput() throws IllegalStateException {
-        if (!audioDecoderStarted || audioDecoder == null) return;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        int index = audioDecoder.dequeueOutputBuffer(info, 100);
-        if (index >= 0) {
-            if (info.size <= 0) {
-                audioDecoder.releaseOutputBuffer(index, false);
-                return;
-            }
-            ByteBuffer outputBuffer = audioDecoder.getOutputBuffer(index);
-            if (skipAudioBufCount > 0){
-                skipAudioBufCount--;
-            }else{
-                if (outputBuffer != null) audioTrack.write(outputBuffer, info.size, AudioTrack.WRITE_NON_BLOCKING);
+    private final MediaCodec.Callback audioDecoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (codec != audioDecoder) return;
+            audioCodecInputIndexes.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (codec != audioDecoder || !audioDecoderStarted) return;
+            try {
+                if (info.size > 0) {
+                    ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+                    if (skipAudioBufCount > 0) {
+                        skipAudioBufCount--;
+                    } else {
+                        if (outputBuffer != null) audioTrack.write(outputBuffer, info.size, AudioTrack.WRITE_NON_BLOCKING);
+                    }
+                }
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                log("audioDecoderCallback error: " + e);
             }
-            audioDecoder.releaseOutputBuffer(index, false);
         }
-    }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            log("audioDecoderCallback - onError: " + e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            log("audioDecoderCallback - onOutputFormatChanged");
+        }
+    };
 
     private final Runnable videoDecoderRunnable = new Runnable() {
         public void run() {
             final int id = videoThreadId;
             while (videoDecoderStarted && id == videoThreadId) {
-                MediaCodecBuffer buf = videoInputBuffer.peek();
                 try {
-                    if (buf != null) decodeVideoData(buf);
-                    checkVideoDecoderOutput();
+                    MediaCodecBuffer buf = videoInputBuffer.poll(queuePollTimeoutMs, TimeUnit.MILLISECONDS);
+                    if (buf == null) continue;
+                    buf = skipLateVideoFrames(buf);
+                    if (buf == null || buf.data == null) continue;
+                    Integer index = null;
+                    while (index == null && videoDecoderStarted && id == videoThreadId) {
+                        index = videoCodecInputIndexes.poll(queuePollTimeoutMs, TimeUnit.MILLISECONDS);
+                    }
+                    if (index == null) break;
+                    decodeVideoData(buf, index);
                 } catch (Exception e) {
                     // nothing
                 }
@@ -312,29 +463,76 @@ public class Decoder {
         }
     };
 
-    private void decodeVideoData(MediaCodecBuffer buf) {
-        if (!videoDecoderStarted || videoDecoder == null || buf.data == null) return;
-        int index = videoDecoder.dequeueInputBuffer(0);
-        if (index >= 0) {
-            ByteBuffer inputBuffer = videoDecoder.getInputBuffer(index);
-            if (inputBuffer == null) return;
-            videoInputBuffer.poll();
-            inputBuffer.put(buf.data);
-            videoDecoder.queueInputBuffer(index, 0, buf.data.length, 0, buf.flags);
+    // A late delta frame can only be dropped together with everything up to the next key frame.
+    private MediaCodecBuffer skipLateVideoFrames(MediaCodecBuffer buf){
+        if (lastQueuedPartial || isVideoSyncBuffer(buf) || System.currentTimeMillis() - buf.timestamp <= maxVideoFrameDelayMs) return buf;
+        boolean hasSyncBuffer = false;
+        for (MediaCodecBuffer b : videoInputBuffer) {
+            if (isVideoSyncBuffer(b)) {
+                hasSyncBuffer = true;
+                break;
+            }
+        }
+        if (!hasSyncBuffer) return buf;
+        while (buf != null && !isVideoSyncBuffer(buf)) {
+            if ((buf.flags & BUFFER_FLAG_PARTIAL_FRAME) == 0) {
+                droppedVideoFrames++;
+                if (videoLatency != null) videoLatency.onFrameDropped();
+            }
+            buf = videoInputBuffer.poll();
         }
+        return buf;
+    }
+
+    private boolean isVideoSyncBuffer(MediaCodecBuffer buf){
+        return (buf.flags & (BUFFER_FLAG_KEY_FRAME | BUFFER_FLAG_CODEC_CONFIG)) != 0;
     }
 
-    private void checkVideoDecoderOutput() throws IllegalStateException {
+    private void decodeVideoData(MediaCodecBuffer buf, int index) {
         if (!videoDecoderStarted || videoDecoder == null) return;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        int index = videoDecoder.dequeueOutputBuffer(info, 100);
-        if (index >= 0) {
-            if (info.size <= 0) {
-                videoDecoder.releaseOutputBuffer(index, false);
-                return;
+        ByteBuffer inputBuffer = videoDecoder.getInputBuffer(index);
+        if (inputBuffer == null) return;
+        inputBuffer.put(buf.data);
+        videoDecoder.queueInputBuffer(index, 0, buf.data.length, buf.timestamp * 1000, buf.flags);
+        lastQueuedPartial = (buf.flags & BUFFER_FLAG_PARTIAL_FRAME) != 0;
+        if (videoLatency != null && !lastQueuedPartial) videoLatency.onDecoderInput(buf.timestamp, System.currentTimeMillis());
+    }
+
+    private final MediaCodec.Callback videoDecoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (codec != videoDecoder) return;
+            videoCodecInputIndexes.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (codec != videoDecoder || !videoDecoderStarted) return;
+            try {
+                if (videoLatency != null && info.size > 0) videoLatency.onDecoderOutput(info.presentationTimeUs / 1000, System.currentTimeMillis());
+                codec.releaseOutputBuffer(index, info.size > 0);
+            } catch (IllegalStateException e) {
+                // codec stopped
             }
-            videoDecoder.releaseOutputBuffer(index, true);
         }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            log("videoDecoderCallback - onError: " + e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            log("videoDecoderCallback - onOutputFormatChanged");
+        }
+    };
+
+    public int getDroppedVideoFrames(){
+        return droppedVideoFrames;
+    }
+
+    public int getDroppedAudioFrames(){
+        return droppedAudioFrames;
     }
 
     public boolean isHevcSupported(){
@@ -367,7 +565,17 @@ public class Decoder {
                 audioTrack = null;
             }catch (Exception ignored){}
         }
+        if (videoCallbackThread != null){
+            videoCallbackThread.quitSafely();
+            videoCallbackThread = null;
+        }
+        if (audioCallbackThread != null){
+            audioCallbackThread.quitSafely();
+            audioCallbackThread = null;
+        }
         videoInputBuffer.clear();
         audioInputBuffer.clear();
+        videoCodecInputIndexes.clear();
+        audioCodecInputIndexes.clear();
     }
 }
@@ -0,0 +1,149 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.control;
+
+import static de.droiddrone.common.Logcat.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.droiddrone.common.FlightLog;
+import de.droiddrone.common.FlightLogReader;
+import de.droiddrone.common.PacketSource;
+import de.droiddrone.common.SavedPacket;
+import de.droiddrone.common.UdpCommon;
+
+// Plays back the received packets of a Control flight log in place of the ReceiverBuffer.
+// Video is replayed only if it was recorded. speedMax feeds the packets without pacing.
+public class FlightLogReplay implements PacketSource {
+    public static final int speedMax = -1;
+    private final FlightLogReader reader;
+    private final float speed;
+    private SavedPacket pendingPacket;
+    private long pendingTimeMs;
+    private long firstTimeMs = -1;
+    private long startNanos;
+    private long finishNanos;
+    private int packetsCount;
+    private long bytesCount;
+    private volatile boolean isFinished;
+
+    public FlightLogReplay(File file, float speed) throws IOException {
+        reader = new FlightLogReader(file);
+        this.speed = speed;
+        startNanos = System.nanoTime();
+        if (reader.getSource() != FlightLog.sourceControl){
+            reader.close();
+            throw new IOException("Not a Control flight log: " + file.getName());
+        }
+    }
+
+    // Newest Control log of the directory or null.
+    public static File findLastLog(File dir){
+        File[] files = dir.listFiles((d, name) -> name.endsWith(FlightLog.fileExtension));
+        if (files == null || files.length == 0) return null;
+        Arrays.sort(files);
+        for (int i = files.length - 1; i >= 0; i--) {
+            try (FlightLogReader logReader = new FlightLogReader(files[i])) {
+                if (logReader.getSource() == FlightLog.sourceControl) return files[i];
+            } catch (Exception e) {
+                // not readable, try the previous one
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public SavedPacket getNextPacket(){
+        if (isFinished) return null;
+        try {
+            if (pendingPacket == null && !readPacket()){
+                finish();
+                return null;
+            }
+            if (firstTimeMs == -1){
+                firstTimeMs = pendingTimeMs;
+                startNanos = System.nanoTime();
+            }
+            if (speed > 0){
+                long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+                if (elapsedMs < (pendingTimeMs - firstTimeMs) / speed) return null;
+            }
+            SavedPacket packet = pendingPacket;
+            pendingPacket = null;
+            packetsCount++;
+            bytesCount += packet.data.length;
+            return packet;
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("FlightLogReplay error: " + e);
+            finish();
+            return null;
+        }
+    }
+
+    private boolean readPacket() throws IOException {
+        while (reader.next()){
+            if (reader.type != FlightLog.recordUdpPacket || reader.length == 0) continue;
+            byte[] data = Arrays.copyOf(reader.data, reader.length);
+            byte packetName = data[0];
+            short packetNum = 0;
+            if (UdpCommon.isPacketNumbered(packetName)){
+                if (data.length < 3) continue;
+                packetNum = (short) (((data[1] & 0xFF) << 8) | (data[2] & 0xFF));
+            }
+            pendingPacket = new SavedPacket(packetName, packetNum, data, null, 0);
+            pendingTimeMs = reader.timeMs;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void finish(){
+        if (isFinished) return;
+        isFinished = true;
+        finishNanos = System.nanoTime();
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        log(getSummary());
+    }
+
+    @Override
+    public void processTimer(){
+    }
+
+    @Override
+    public boolean isFinished(){
+        return isFinished;
+    }
+
+    @Override
+    public void close(){
+        finish();
+    }
+
+    public String getSummary(){
+        long durationMs = Math.max((finishNanos - startNanos) / 1000000, 1);
+        return "Replay: " + packetsCount + " packets, " + bytesCount / 1024 + " KiB in " + durationMs + " ms, "
+                + packetsCount * 1000L / durationMs + " packets/s";
+    }
+}
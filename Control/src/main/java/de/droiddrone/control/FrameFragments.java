@@ -26,11 +26,13 @@ public class FrameFragments {
     public boolean isEndReceived;
     public boolean isCompleted;
     public final boolean isKeyFrame;
+    public final long timestamp;
     private final HashMap<Integer, byte[]> frames = new HashMap<>();
 
     public FrameFragments(int frameSize, boolean isKeyFrame) {
         this.frameSize = frameSize;
         this.isKeyFrame = isKeyFrame;
+        timestamp = System.currentTimeMillis();
         sizeReceived = 0;
         isStartReceived = false;
         isEndReceived = false;
@@ -0,0 +1,91 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.control;
+
+import de.droiddrone.common.UdpCommon;
+
+public class FrameSlices {
+    private static final int maxSlicesCount = UdpCommon.maxSlicesCount;
+    public final short frameNum;
+    public final boolean isKeyFrame;
+    public final int layerId;// -1 if untagged
+    public final short baseFrameNum;
+    public final short refFrameNum;// long-term reference of a recovery frame, 0 for other frames
+    public final long timestamp;
+    private final FrameFragments[] slices = new FrameFragments[maxSlicesCount];
+    private int lastSliceIndex = -1;
+    private int nextSliceIndex;
+    private int lostSlicesCount;
+
+    public FrameSlices(short frameNum, boolean isKeyFrame, int layerId, short baseFrameNum, short refFrameNum) {
+        this.frameNum = frameNum;
+        this.isKeyFrame = isKeyFrame;
+        this.layerId = layerId;
+        this.baseFrameNum = baseFrameNum;
+        this.refFrameNum = refFrameNum;
+        timestamp = System.currentTimeMillis();
+    }
+
+    public void putFragment(SliceFragment fragment){
+        int sliceIndex = fragment.sliceIndex;
+        if (sliceIndex < 0 || sliceIndex >= maxSlicesCount) return;
+        if (fragment.isLastSlice()) lastSliceIndex = sliceIndex;
+        if (slices[sliceIndex] == null) {
+            if (fragment.offset != 0) return;// slice size unknown until the first fragment
+            slices[sliceIndex] = new FrameFragments(fragment.sliceSize, isKeyFrame);
+        }
+        slices[sliceIndex].putFragment(fragment.offset, fragment.data);
+    }
+
+    // Next slice in decoding order, or null if it is not completed yet.
+    public byte[] pollCompletedSlice(){
+        if (nextSliceIndex >= maxSlicesCount || lastSliceIndex != -1 && nextSliceIndex > lastSliceIndex) return null;
+        FrameFragments slice = slices[nextSliceIndex];
+        if (slice == null || !slice.isCompleted) return null;
+        slices[nextSliceIndex] = null;
+        nextSliceIndex++;
+        return slice.getFrame();
+    }
+
+    // Used when the frame is abandoned: skips missing slices and marks them lost.
+    public byte[] pollAnySlice(){
+        int endIndex = lastSliceIndex != -1 ? lastSliceIndex : maxSlicesCount - 1;
+        while (nextSliceIndex <= endIndex) {
+            int index = nextSliceIndex;
+            FrameFragments slice = slices[index];
+            slices[index] = null;
+            nextSliceIndex++;
+            if (slice != null && slice.isCompleted) return slice.getFrame();
+            if (slice != null || lastSliceIndex != -1) lostSlicesCount++;
+        }
+        if (lastSliceIndex == -1) {
+            lastSliceIndex = maxSlicesCount - 1;
+            lostSlicesCount++;// last slice is missing
+        }
+        return null;
+    }
+
+    public boolean isAllSlicesPolled(){
+        return lastSliceIndex != -1 && nextSliceIndex > lastSliceIndex;
+    }
+
+    public int getLostSlicesCount(){
+        return lostSlicesCount;
+    }
+}
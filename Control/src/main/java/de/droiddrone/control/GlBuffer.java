@@ -29,9 +29,11 @@ public class GlBuffer {
     public final int bufferIndex;
     public final int valuesPerPoint;
     public final int attribPointer;
-    private boolean needUpdate;
-    private int updateStartPos;
-    private int updateEndPos;
+    // changed ranges in floats, uploaded separately
+    private static final int maxDirtyRanges = 8;
+    private final int[] dirtyStart = new int[maxDirtyRanges];
+    private final int[] dirtyEnd = new int[maxDirtyRanges];
+    private int dirtyCount;
 
     public GlBuffer(int bufferIndex, int sizeInBytes, int usage, int valuesPerPoint, int attribPointer) {
         this.sizeInBytes = sizeInBytes;
@@ -52,6 +54,11 @@ public class GlBuffer {
         clear();
     }
 
+    // 1 advances the attribute once per instance
+    public void setDivisor(int divisor){
+        GLES31.glVertexAttribDivisor(attribPointer, divisor);
+    }
+
     public void clear(){
         int sizeFloat = sizeInBytes / 4;
         putArray(0, new float[sizeFloat]);
@@ -60,26 +67,60 @@ public class GlBuffer {
     }
 
     public void update(boolean force){
-        if (needUpdate || force){
-            if (force){
-                updateStartPos = 0;
-                updateEndPos = sizeInBytes / 4;
-            }
-            GLES31.glBindBuffer(GLES31.GL_ARRAY_BUFFER, bufferIndex);
-            floatBuffer.position(updateStartPos);
-            GLES31.glBufferSubData(GLES31.GL_ARRAY_BUFFER, updateStartPos * 4, (updateEndPos - updateStartPos) * 4, floatBuffer);
-            updateStartPos = sizeInBytes / 4;
-            updateEndPos = 0;
-            needUpdate = false;
+        if (dirtyCount == 0 && !force) return;
+        if (force){
+            dirtyStart[0] = 0;
+            dirtyEnd[0] = sizeInBytes / 4;
+            dirtyCount = 1;
         }
+        GLES31.glBindBuffer(GLES31.GL_ARRAY_BUFFER, bufferIndex);
+        for (int i = 0; i < dirtyCount; i++) {
+            floatBuffer.position(dirtyStart[i]);
+            GLES31.glBufferSubData(GLES31.GL_ARRAY_BUFFER, dirtyStart[i] * 4, (dirtyEnd[i] - dirtyStart[i]) * 4, floatBuffer);
+        }
+        dirtyCount = 0;
     }
 
     public void putArray(int offset, float[] buf){
         floatBuffer.position(offset);
         floatBuffer.put(buf);
-        int endPos = offset + buf.length;
-        if (offset < updateStartPos) updateStartPos = offset;
-        if (endPos > updateEndPos) updateEndPos = endPos;
-        needUpdate = true;
+        markDirty(offset, offset + buf.length);
+    }
+
+    // Touching ranges are joined, without a free range the new one is joined with the closest.
+    private void markDirty(int start, int end){
+        for (int i = 0; i < dirtyCount; i++) {
+            if (start <= dirtyEnd[i] && end >= dirtyStart[i]) {
+                start = Math.min(start, dirtyStart[i]);
+                end = Math.max(end, dirtyEnd[i]);
+                removeDirtyRange(i);
+                i = -1;
+            }
+        }
+        if (dirtyCount == maxDirtyRanges) {
+            int closest = 0;
+            int minGap = Integer.MAX_VALUE;
+            for (int i = 0; i < dirtyCount; i++) {
+                int gap = start > dirtyEnd[i] ? start - dirtyEnd[i] : dirtyStart[i] - end;
+                if (gap < minGap) {
+                    minGap = gap;
+                    closest = i;
+                }
+            }
+            start = Math.min(start, dirtyStart[closest]);
+            end = Math.max(end, dirtyEnd[closest]);
+            removeDirtyRange(closest);
+            markDirty(start, end);
+            return;
+        }
+        dirtyStart[dirtyCount] = start;
+        dirtyEnd[dirtyCount] = end;
+        dirtyCount++;
+    }
+
+    private void removeDirtyRange(int index){
+        dirtyCount--;
+        dirtyStart[index] = dirtyStart[dirtyCount];
+        dirtyEnd[index] = dirtyEnd[dirtyCount];
     }
 }
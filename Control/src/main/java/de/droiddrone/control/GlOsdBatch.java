@@ -0,0 +1,129 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.control;
+
+import android.opengl.GLES31;
+
+// Text glyphs and sprites as instances of one quad, drawn with a single instanced draw call.
+// Sprites use the instances 0..maxSprites-1, the text glyphs follow them.
+public class GlOsdBatch {
+    public static final float layerText = 0;
+    public static final float layerSprites = 1;
+    public final int maxSprites;
+    public final int maxSymbols;
+    private final GlBuffer cornerBuffer;
+    private final GlBuffer corners01Buffer;
+    private final GlBuffer corners23Buffer;
+    private final GlBuffer texRectBuffer;
+    private final GlBuffer colorBuffer;
+    private final GlBuffer layerBuffer;
+    private final float[] buf4 = new float[4];
+    private final float[] buf1 = new float[1];
+    private int fontTextureId;
+    private int spritesTextureId;
+
+    // bufferIds: corner, corners01, corners23, texRect, color, layer
+    public GlOsdBatch(int[] bufferIds, int maxSprites, int maxSymbols, int cornerAttrib, int corners01Attrib,
+                      int corners23Attrib, int texRectAttrib, int colorAttrib, int layerAttrib) {
+        this.maxSprites = maxSprites;
+        this.maxSymbols = maxSymbols;
+        int instanceSize = (maxSprites + maxSymbols) * 4 * 4;// 4 values * 4 bytes
+        cornerBuffer = new GlBuffer(bufferIds[0], 4 * 4 * 4, GLES31.GL_STATIC_DRAW, 4, cornerAttrib);
+        corners01Buffer = new GlBuffer(bufferIds[1], instanceSize, GLES31.GL_DYNAMIC_DRAW, 4, corners01Attrib);
+        corners23Buffer = new GlBuffer(bufferIds[2], instanceSize, GLES31.GL_DYNAMIC_DRAW, 4, corners23Attrib);
+        texRectBuffer = new GlBuffer(bufferIds[3], instanceSize, GLES31.GL_DYNAMIC_DRAW, 4, texRectAttrib);
+        colorBuffer = new GlBuffer(bufferIds[4], instanceSize, GLES31.GL_DYNAMIC_DRAW, 4, colorAttrib);
+        layerBuffer = new GlBuffer(bufferIds[5], instanceSize / 4, GLES31.GL_DYNAMIC_DRAW, 1, layerAttrib);
+        corners01Buffer.setDivisor(1);
+        corners23Buffer.setDivisor(1);
+        texRectBuffer.setDivisor(1);
+        colorBuffer.setDivisor(1);
+        layerBuffer.setDivisor(1);
+        // triangle strip: right-bottom, left-bottom, right-top, left-top
+        cornerBuffer.putArray(0, new float[]{
+                1, 0, 0, 0,
+                0, 1, 0, 0,
+                0, 0, 1, 0,
+                0, 0, 0, 1});
+        cornerBuffer.update(false);
+        setStyle(0, maxSprites, 0, 0, 0, 0, layerSprites);
+    }
+
+    public int getTextFirstInstance(){
+        return maxSprites;
+    }
+
+    public void setTextures(int fontTextureId, int spritesTextureId){
+        this.fontTextureId = fontTextureId;
+        this.spritesTextureId = spritesTextureId;
+    }
+
+    public void setQuad(int instance, float rbX, float rbY, float lbX, float lbY, float rtX, float rtY, float ltX, float ltY){
+        buf4[0] = rbX;
+        buf4[1] = rbY;
+        buf4[2] = lbX;
+        buf4[3] = lbY;
+        corners01Buffer.putArray(instance * 4, buf4);
+        buf4[0] = rtX;
+        buf4[1] = rtY;
+        buf4[2] = ltX;
+        buf4[3] = ltY;
+        corners23Buffer.putArray(instance * 4, buf4);
+    }
+
+    public void clearQuad(int instance){
+        setQuad(instance, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    public void setTexRect(int instance, float tx0, float ty0, float tx1, float ty1){
+        buf4[0] = tx0;
+        buf4[1] = ty0;
+        buf4[2] = tx1;
+        buf4[3] = ty1;
+        texRectBuffer.putArray(instance * 4, buf4);
+    }
+
+    // The color is added to the texture color.
+    public void setStyle(int firstInstance, int count, float r, float g, float b, float a, float layer){
+        buf1[0] = layer;
+        for (int i = firstInstance; i < firstInstance + count; i++) {
+            buf4[0] = r;
+            buf4[1] = g;
+            buf4[2] = b;
+            buf4[3] = a;
+            colorBuffer.putArray(i * 4, buf4);
+            layerBuffer.putArray(i, buf1);
+        }
+    }
+
+    public void draw(int spritesCount, int textCount){
+        int instanceCount = textCount > 0 ? maxSprites + textCount : spritesCount;
+        if (instanceCount == 0) return;
+        corners01Buffer.update(false);
+        corners23Buffer.update(false);
+        texRectBuffer.update(false);
+        colorBuffer.update(false);
+        layerBuffer.update(false);
+        GLES31.glActiveTexture(GLES31.GL_TEXTURE1);
+        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, spritesTextureId);
+        GLES31.glActiveTexture(GLES31.GL_TEXTURE0);
+        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, fontTextureId);
+        GLES31.glDrawArraysInstanced(GLES31.GL_TRIANGLE_STRIP, 0, 4, instanceCount);
+    }
+}
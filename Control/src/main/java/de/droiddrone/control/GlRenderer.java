@@ -36,6 +36,7 @@ import javax.microedition.khronos.opengles.GL10;
 import static de.droiddrone.common.Logcat.log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import de.droiddrone.common.SettingsCommon;
 
@@ -51,10 +52,9 @@ public class GlRenderer implements GLSurfaceView.Renderer {
     private final MainActivity activity;
     private int vrScreenWidth, vrScreenHeight;
     private int screenWidth, screenHeight;
-    private int videoFrameShader, textShader, spritesShader;
+    private int videoFrameShader, osdShader;
     private int vfMVPMatrixHandle, vfTextureUniformHandle;
-    private int textMVPMatrixHandle, textTextureUniformHandle;
-    private int spritesMVPMatrixHandle, spritesTextureUniformHandle;
+    private int osdMVPMatrixHandle;
     private int videoFrameTexture;
     private boolean createVideoFrameTexture;
     private SurfaceTexture mSurfaceTexture;
@@ -62,10 +62,15 @@ public class GlRenderer implements GLSurfaceView.Renderer {
     private int glFrameCounter;
     private int lastFps;
     private long glFrameTimestamp;
+    private long videoFrameTimestamp;
     private Osd osd = null;
     private Udp udp = null;
+    private GlOsdBatch osdBatch;
     private GlText glText;
     private GlSprites glSprites;
+    private int osdTextCount, osdSpritesCount;
+    private static final int maxOsdDrawAttempts = 3;
+    private final TextBuilder spriteText = new TextBuilder(64);
     private GlButtons glButtons;
     private GlButtons.Button recButton;
     private float osdCanvasFactor;
@@ -172,30 +177,43 @@ public class GlRenderer implements GLSurfaceView.Renderer {
                         + "{                                                            \n"
                         + "    gl_FragColor = texture2D(u_Texture, v_TexCoordinate);    \n"
                         + "}";
-        final String textFragmentShader =
+        // One quad instance per glyph or sprite: a_Corner selects the corner, the color is added to the texture color.
+        final String osdVertexShader =
+                "uniform mat4 u_MVPMatrix;                                                                  \n"
+                        + "attribute vec4 a_Corner;                                                         \n"
+                        + "attribute vec4 a_Corners01;                                                      \n"
+                        + "attribute vec4 a_Corners23;                                                      \n"
+                        + "attribute vec4 a_TexRect;                                                        \n"
+                        + "attribute vec4 a_Color;                                                          \n"
+                        + "attribute float a_Layer;                                                         \n"
+                        + "varying vec2 v_TexCoordinate;                                                    \n"
+                        + "varying vec4 v_Color;                                                            \n"
+                        + "varying float v_Layer;                                                           \n"
+                        + "void main()                                                                      \n"
+                        + "{                                                                                \n"
+                        + "    vec2 position = a_Corners01.xy * a_Corner.x + a_Corners01.zw * a_Corner.y    \n"
+                        + "            + a_Corners23.xy * a_Corner.z + a_Corners23.zw * a_Corner.w;         \n"
+                        + "    gl_Position = u_MVPMatrix * vec4(position, 0.0, 1.0);                        \n"
+                        + "    v_TexCoordinate = vec2(mix(a_TexRect.x, a_TexRect.z, a_Corner.x + a_Corner.z),\n"
+                        + "            mix(a_TexRect.y, a_TexRect.w, a_Corner.x + a_Corner.y));             \n"
+                        + "    v_Color = a_Color;                                                           \n"
+                        + "    v_Layer = a_Layer;                                                           \n"
+                        + "}                                                                                \n";
+        final String osdFragmentShader =
                 "#ifdef GL_FRAGMENT_PRECISION_HIGH                                                  \n"
                         + "precision highp float;                                                   \n"
                         + "#else                                                                    \n"
                         + "precision mediump float;                                                 \n"
                         + "#endif                                                                   \n"
-                        + "uniform sampler2D u_Texture;	                                            \n"
-                        + "uniform vec4 u_Color;	                                                \n"
-                        + "varying vec2 v_TexCoordinate;	                                        \n"
+                        + "uniform sampler2D u_FontTexture;                                         \n"
+                        + "uniform sampler2D u_SpritesTexture;                                      \n"
+                        + "varying vec2 v_TexCoordinate;                                            \n"
+                        + "varying vec4 v_Color;                                                    \n"
+                        + "varying float v_Layer;                                                   \n"
                         + "void main()                                                              \n"
                         + "{                                                                        \n"
-                        + "    gl_FragColor = u_Color + texture2D(u_Texture, v_TexCoordinate);      \n"
-                        + "}";
-        final String spritesFragmentShader =
-                "#ifdef GL_FRAGMENT_PRECISION_HIGH                                      \n"
-                        + "precision highp float;                                       \n"
-                        + "#else                                                        \n"
-                        + "precision mediump float;                                     \n"
-                        + "#endif                                                       \n"
-                        + "uniform sampler2D u_Texture;	                                \n"
-                        + "varying vec2 v_TexCoordinate;	                            \n"
-                        + "void main()                                                  \n"
-                        + "{                                                            \n"
-                        + "    gl_FragColor = texture2D(u_Texture, v_TexCoordinate);    \n"
+                        + "    gl_FragColor = v_Color + mix(texture2D(u_FontTexture, v_TexCoordinate),\n"
+                        + "            texture2D(u_SpritesTexture, v_TexCoordinate), v_Layer);      \n"
                         + "}";
 
         int vertexShaderHandle = GLES31.glCreateShader(GLES31.GL_VERTEX_SHADER);
@@ -219,24 +237,24 @@ public class GlRenderer implements GLSurfaceView.Renderer {
             GLES31.glDeleteShader(videoFragmentShaderHandle);
         }
 
-        int textFragmentShaderHandle = GLES31.glCreateShader(GLES31.GL_FRAGMENT_SHADER);
-        GLES31.glShaderSource(textFragmentShaderHandle, textFragmentShader);
-        GLES31.glCompileShader(textFragmentShaderHandle);
-        GLES31.glGetShaderiv(textFragmentShaderHandle, GLES31.GL_COMPILE_STATUS, compileStatus, 0);
+        int osdVertexShaderHandle = GLES31.glCreateShader(GLES31.GL_VERTEX_SHADER);
+        GLES31.glShaderSource(osdVertexShaderHandle, osdVertexShader);
+        GLES31.glCompileShader(osdVertexShaderHandle);
+        GLES31.glGetShaderiv(osdVertexShaderHandle, GLES31.GL_COMPILE_STATUS, compileStatus, 0);
         if (compileStatus[0] == 0)
         {
-            log("Text fragment shader error: " + GLES31.glGetShaderInfoLog(textFragmentShaderHandle));
-            GLES31.glDeleteShader(textFragmentShaderHandle);
+            log("OSD vertex shader error: " + GLES31.glGetShaderInfoLog(osdVertexShaderHandle));
+            GLES31.glDeleteShader(osdVertexShaderHandle);
         }
 
-        int spritesFragmentShaderHandle = GLES31.glCreateShader(GLES31.GL_FRAGMENT_SHADER);
-        GLES31.glShaderSource(spritesFragmentShaderHandle, spritesFragmentShader);
-        GLES31.glCompileShader(spritesFragmentShaderHandle);
-        GLES31.glGetShaderiv(spritesFragmentShaderHandle, GLES31.GL_COMPILE_STATUS, compileStatus, 0);
+        int osdFragmentShaderHandle = GLES31.glCreateShader(GLES31.GL_FRAGMENT_SHADER);
+        GLES31.glShaderSource(osdFragmentShaderHandle, osdFragmentShader);
+        GLES31.glCompileShader(osdFragmentShaderHandle);
+        GLES31.glGetShaderiv(osdFragmentShaderHandle, GLES31.GL_COMPILE_STATUS, compileStatus, 0);
         if (compileStatus[0] == 0)
         {
-            log("Sprites fragment shader error: " + GLES31.glGetShaderInfoLog(spritesFragmentShaderHandle));
-            GLES31.glDeleteShader(spritesFragmentShaderHandle);
+            log("OSD fragment shader error: " + GLES31.glGetShaderInfoLog(osdFragmentShaderHandle));
+            GLES31.glDeleteShader(osdFragmentShaderHandle);
         }
 
         videoFrameShader = GLES31.glCreateProgram();
@@ -246,37 +264,28 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         GLES31.glBindAttribLocation(videoFrameShader, 1, "a_TexCoordinate");
         GLES31.glLinkProgram(videoFrameShader);
 
-        textShader = GLES31.glCreateProgram();
-        GLES31.glAttachShader(textShader, vertexShaderHandle);
-        GLES31.glAttachShader(textShader, textFragmentShaderHandle);
-        GLES31.glBindAttribLocation(textShader, 2, "a_Position");
-        GLES31.glBindAttribLocation(textShader, 3, "a_TexCoordinate");
-        GLES31.glLinkProgram(textShader);
-
-        spritesShader = GLES31.glCreateProgram();
-        GLES31.glAttachShader(spritesShader, vertexShaderHandle);
-        GLES31.glAttachShader(spritesShader, spritesFragmentShaderHandle);
-        GLES31.glBindAttribLocation(spritesShader, 4, "a_Position");
-        GLES31.glBindAttribLocation(spritesShader, 5, "a_TexCoordinate");
-        GLES31.glLinkProgram(spritesShader);
+        osdShader = GLES31.glCreateProgram();
+        GLES31.glAttachShader(osdShader, osdVertexShaderHandle);
+        GLES31.glAttachShader(osdShader, osdFragmentShaderHandle);
+        GLES31.glBindAttribLocation(osdShader, 2, "a_Corner");
+        GLES31.glBindAttribLocation(osdShader, 3, "a_Corners01");
+        GLES31.glBindAttribLocation(osdShader, 4, "a_Corners23");
+        GLES31.glBindAttribLocation(osdShader, 5, "a_TexRect");
+        GLES31.glBindAttribLocation(osdShader, 6, "a_Color");
+        GLES31.glBindAttribLocation(osdShader, 7, "a_Layer");
+        GLES31.glLinkProgram(osdShader);
 
         vfMVPMatrixHandle = GLES31.glGetUniformLocation(videoFrameShader, "u_MVPMatrix");
         vfTextureUniformHandle = GLES31.glGetUniformLocation(videoFrameShader, "u_Texture");
         int vfPosition = GLES31.glGetAttribLocation(videoFrameShader, "a_Position");
         int vfTexture = GLES31.glGetAttribLocation(videoFrameShader, "a_TexCoordinate");
 
-        textMVPMatrixHandle = GLES31.glGetUniformLocation(textShader, "u_MVPMatrix");
-        textTextureUniformHandle = GLES31.glGetUniformLocation(textShader, "u_Texture");
-        int textColorUniformHandle = GLES31.glGetUniformLocation(textShader, "u_Color");
-        int textPosition = GLES31.glGetAttribLocation(textShader, "a_Position");
-        int textTexture = GLES31.glGetAttribLocation(textShader, "a_TexCoordinate");
-
-        spritesMVPMatrixHandle = GLES31.glGetUniformLocation(spritesShader, "u_MVPMatrix");
-        spritesTextureUniformHandle = GLES31.glGetUniformLocation(spritesShader, "u_Texture");
-        int spritesPosition = GLES31.glGetAttribLocation(spritesShader, "a_Position");
-        int spritesTexture = GLES31.glGetAttribLocation(spritesShader, "a_TexCoordinate");
+        osdMVPMatrixHandle = GLES31.glGetUniformLocation(osdShader, "u_MVPMatrix");
+        GLES31.glUseProgram(osdShader);
+        GLES31.glUniform1i(GLES31.glGetUniformLocation(osdShader, "u_FontTexture"), 0);
+        GLES31.glUniform1i(GLES31.glGetUniformLocation(osdShader, "u_SpritesTexture"), 1);
 
-        final int bufferCount = 6;
+        final int bufferCount = 8;
         int[] buffers = new int[bufferCount];
         GLES31.glGenBuffers(bufferCount, buffers, 0);
 
@@ -284,29 +293,27 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         videoFramePositionBuffer = new GlBuffer(buffers[0], videoFrameBufferSize, GLES31.GL_STATIC_DRAW, 2, vfPosition);
         videoFrameTexCoordBuffer = new GlBuffer(buffers[1], videoFrameBufferSize, GLES31.GL_STATIC_DRAW, 2, vfTexture);
 
-        int maxSymbolsOnScreen = 400;
-        int textBufferSize = maxSymbolsOnScreen * 6 * 2 * 4;// 6 points per rectangle * 2 coords per point * 4 bytes
-        GlBuffer textPositionBuffer = new GlBuffer(buffers[2], textBufferSize, GLES31.GL_DYNAMIC_DRAW, 2, textPosition);
-        GlBuffer textTexCoordBuffer = new GlBuffer(buffers[3], textBufferSize, GLES31.GL_DYNAMIC_DRAW, 2, textTexture);
-
-        int maxSpritesOnScreen = 100;
-        int spritesBufferSize = maxSpritesOnScreen * 6 * 2 * 4;// 6 points per rectangle * 2 coords per point * 4 bytes
-        GlBuffer spritesPositionBuffer = new GlBuffer(buffers[4], spritesBufferSize, GLES31.GL_DYNAMIC_DRAW, 2, spritesPosition);
-        GlBuffer spritesTexCoordBuffer = new GlBuffer(buffers[5], spritesBufferSize, GLES31.GL_DYNAMIC_DRAW, 2, spritesTexture);
+        int maxSymbolsOnScreen = 500;
+        int maxSpritesOnScreen = 150;
+        osdBatch = new GlOsdBatch(Arrays.copyOfRange(buffers, 2, 8), maxSpritesOnScreen, maxSymbolsOnScreen,
+                GLES31.glGetAttribLocation(osdShader, "a_Corner"), GLES31.glGetAttribLocation(osdShader, "a_Corners01"),
+                GLES31.glGetAttribLocation(osdShader, "a_Corners23"), GLES31.glGetAttribLocation(osdShader, "a_TexRect"),
+                GLES31.glGetAttribLocation(osdShader, "a_Color"), GLES31.glGetAttribLocation(osdShader, "a_Layer"));
 
         try {
-            glText = new GlText(loadTextureFromResource(R.raw.font1_0), R.raw.font1, activity, textPositionBuffer, textTexCoordBuffer, textColorUniformHandle);
+            glText = new GlText(loadTextureFromResource(R.raw.font1_0), R.raw.font1, activity, osdBatch);
             glText.setOsdCanvasFactor(osdCanvasFactor);
         }catch (Exception e){
             log("Create GlFont error: " + e);
         }
         try {
-            glSprites = new GlSprites(R.raw.osd_tex, R.raw.osd_map, activity, spritesPositionBuffer, spritesTexCoordBuffer);
+            glSprites = new GlSprites(R.raw.osd_tex, R.raw.osd_map, activity, osdBatch);
             glSprites.setOsdCanvasFactor(osdCanvasFactor);
             glButtons = new GlButtons(glSprites);
         }catch (Exception e){
             log("Create GlSprites error: " + e);
         }
+        osdBatch.setTextures(glText != null ? glText.getTextureId() : 0, glSprites != null ? glSprites.getTextureId() : 0);
 
         glFrameCounter = 0;
         lastFps = 0;
@@ -653,7 +660,7 @@ public class GlRenderer implements GLSurfaceView.Renderer {
                     if (drawOsd) {
                         if (leftSidebar != null) leftSidebar.processSidebar();
                         if (glButtons != null) glButtons.prepareFrame();
-                        drawOsdFrame(true);
+                        drawOsdFrame();
                     }
                     break;
                 case SettingsCommon.VrMode.singleCamera:
@@ -662,13 +669,13 @@ public class GlRenderer implements GLSurfaceView.Renderer {
                     drawVideoFrame();
                     if (drawOsd) {
                         setLeftOsdOffset();
-                        drawOsdFrame(false);
+                        drawOsdFrame();
                     }
                     setRightVrDisplay();
                     drawVideoFrame();
                     if (drawOsd) {
                         setRightOsdOffset();
-                        drawOsdFrame(true);
+                        drawOsdFrame();
                     }
                     break;
             }
@@ -682,12 +689,28 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         recButton.setCurrentState(isRecording ? 1 : 0);
     }
 
+    // The OSD is only rebuilt when its data changed, otherwise its glyphs and sprites are kept from the last frame.
+    // A frame drawn while the telemetry was written is drawn again, after the last attempt it is redrawn next frame.
     private void prepareOsdFrame(){
-        if (osd == null) return;
-        try {
-            osd.drawItems();
-        }catch (Exception e){
-            //
+        if (osd == null || osd.isChanged()) {
+            for (int attempt = 0; attempt < maxOsdDrawAttempts; attempt++) {
+                if (glText != null) glText.clear();
+                if (glSprites != null) glSprites.clear();
+                if (osd == null) return;
+                long stamp = osd.beginRead();
+                try {
+                    osd.drawItems();
+                }catch (Exception e){
+                    //
+                }
+                if (osd.isReadValid(stamp)) break;
+                if (attempt == maxOsdDrawAttempts - 1) osd.invalidate();
+            }
+            osdTextCount = glText != null ? glText.getCount() : 0;
+            osdSpritesCount = glSprites != null ? glSprites.getCount() : 0;
+        } else {
+            if (glText != null) glText.rewind(osdTextCount);
+            if (glSprites != null) glSprites.rewind(osdSpritesCount);
         }
     }
 
@@ -766,7 +789,7 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         return glSprites;
     }
 
-    public void addSpriteWithText(float x, float y, int spriteName, String text, boolean spriteFirst, boolean addWarning){
+    public void addSpriteWithText(float x, float y, int spriteName, CharSequence text, boolean spriteFirst, boolean addWarning){
         float xOffset = 0;
         if (spriteFirst) {
             if (glSprites != null) {
@@ -777,13 +800,13 @@ public class GlRenderer implements GLSurfaceView.Renderer {
                 glSprites.addSprite(spriteName, x + xOffset, y);
                 xOffset += glSprites.getSpriteWidth(spriteName);
             }
-            text = " " + text;
-            if (glText != null) glText.addText(text, x + xOffset, y);
+            spriteText.clear().append(' ').append(text);
+            if (glText != null) glText.addText(spriteText, x + xOffset, y);
         }else{
             if (glText != null) {
-                text = text + " ";
-                glText.addText(text, x, y);
-                xOffset = glText.getLengthInPixels(text);
+                spriteText.clear().append(text).append(' ');
+                glText.addText(spriteText, x, y);
+                xOffset = glText.getLengthInPixels(spriteText);
             }
             if (glSprites != null) {
                 glSprites.addSprite(spriteName, x + xOffset, y);
@@ -795,11 +818,11 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         }
     }
 
-    public void addText(String text, float x, float y){
+    public void addText(CharSequence text, float x, float y){
         if (glText != null) glText.addText(text, x, y);
     }
 
-    public void addText(String text, float x, float y, boolean addWarning){
+    public void addText(CharSequence text, float x, float y, boolean addWarning){
         float xOffset = 0;
         if (glSprites != null) {
             if (addWarning){
@@ -810,21 +833,12 @@ public class GlRenderer implements GLSurfaceView.Renderer {
         if (glText != null) glText.addText(text, x + xOffset, y);
     }
 
-    private void drawOsdFrame(boolean clear){
-        if (glSprites != null) {
-            GLES31.glUseProgram(spritesShader);
-            GLES31.glUniformMatrix4fv(spritesMVPMatrixHandle, 1, false, mvpMatrix, 0);
-            GLES31.glUniform1i(spritesTextureUniformHandle, 0);
-            glSprites.draw();
-            if (clear) glSprites.clear();
-        }
-        if (glText != null) {
-            GLES31.glUseProgram(textShader);
-            GLES31.glUniformMatrix4fv(textMVPMatrixHandle, 1, false, mvpMatrix, 0);
-            GLES31.glUniform1i(textTextureUniformHandle, 0);
-            glText.draw();
-            if (clear) glText.clear();
-        }
+    // Sprites and text in one draw call, in VR mode both eyes share the uploaded instance buffers.
+    private void drawOsdFrame(){
+        if (osdBatch == null) return;
+        GLES31.glUseProgram(osdShader);
+        GLES31.glUniformMatrix4fv(osdMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        osdBatch.draw(glSprites != null ? glSprites.prepareDraw() : 0, glText != null ? glText.getCount() : 0);
     }
 
     private void drawVideoFrame(){
@@ -835,6 +849,11 @@ public class GlRenderer implements GLSurfaceView.Renderer {
             log("drawVideoFrame - updateTexImage error: " + e);
             return;
         }
+        long frameTimestamp = mSurfaceTexture.getTimestamp();
+        if (frameTimestamp != videoFrameTimestamp) {
+            videoFrameTimestamp = frameTimestamp;
+            if (udp != null) udp.getVideoLatency().onFrameDrawn(frameTimestamp / 1000000, System.currentTimeMillis());
+        }
         videoFramePositionBuffer.update(false);
         videoFrameTexCoordBuffer.update(false);
         GLES31.glUseProgram(videoFrameShader);
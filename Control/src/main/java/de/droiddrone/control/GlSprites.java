@@ -28,29 +28,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class GlSprites {
+    private static final int slotValues = 9;
     private final int textureId;
     private final int textureWidth;
     private final int textureHeight;
-    private final GlBuffer positionBuffer;
-    private final GlBuffer texCoordBuffer;
+    private final GlOsdBatch batch;
     private final int maxSpritesOnScreen;
     private final Sprite[] sprites;
-    private final OptimizeBuffer[] optimizeBuffers;
+    // x, y, width, height, angle, tx0, ty0, tx1, ty1 of the sprites already in the vertex buffers, NaN if unknown
+    private final float[] screenSprites;
+    private final boolean[] blankSlots;
+    private int usedSlots;
     private int spriteOnScreenIndex;
     private float screenFactor;
     private float defaultSizeFactor;
     private float osdCanvasFactor;
 
-    public GlSprites(int textureRessourceId, int mapRessourceId, MainActivity activity, GlBuffer positionBuffer, GlBuffer texCoordBuffer) throws IOException {
-        this.positionBuffer = positionBuffer;
-        this.texCoordBuffer = texCoordBuffer;
+    public GlSprites(int textureRessourceId, int mapRessourceId, MainActivity activity, GlOsdBatch batch) throws IOException {
+        this.batch = batch;
         spriteOnScreenIndex = 0;
         screenFactor = 1;
         defaultSizeFactor = 1;
-        maxSpritesOnScreen = positionBuffer.sizeInBytes / 6 / 2 / 4;
-        optimizeBuffers = new OptimizeBuffer[maxSpritesOnScreen];
+        maxSpritesOnScreen = batch.maxSprites;
+        screenSprites = new float[maxSpritesOnScreen * slotValues];
+        Arrays.fill(screenSprites, Float.NaN);
+        blankSlots = new boolean[maxSpritesOnScreen];
 
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
@@ -181,26 +186,25 @@ public class GlSprites {
         if (spriteOnScreenIndex >= maxSpritesOnScreen) return;
         width *= sizeFactor;
         height *= sizeFactor;
-        if (optimizeBuffers[spriteOnScreenIndex] != null
-                && optimizeBuffers[spriteOnScreenIndex].isEqual(x, y, width, height, angle, tx0, ty0, tx1, ty1)){
+        int slot = spriteOnScreenIndex * slotValues;
+        if (screenSprites[slot] == x && screenSprites[slot + 1] == y && screenSprites[slot + 2] == width
+                && screenSprites[slot + 3] == height && screenSprites[slot + 4] == angle && screenSprites[slot + 5] == tx0
+                && screenSprites[slot + 6] == ty0 && screenSprites[slot + 7] == tx1 && screenSprites[slot + 8] == ty1){
             spriteOnScreenIndex++;
             return;
         }
-        optimizeBuffers[spriteOnScreenIndex] = new OptimizeBuffer(x, y, width, height, angle, tx0, ty0, tx1, ty1);
-        float[] buf12 = new float[12];
+        screenSprites[slot] = x;
+        screenSprites[slot + 1] = y;
+        screenSprites[slot + 2] = width;
+        screenSprites[slot + 3] = height;
+        screenSprites[slot + 4] = angle;
+        screenSprites[slot + 5] = tx0;
+        screenSprites[slot + 6] = ty0;
+        screenSprites[slot + 7] = tx1;
+        screenSprites[slot + 8] = ty1;
+        blankSlots[spriteOnScreenIndex] = false;
         if (angle == 0) {
-            buf12[0] = x + width;
-            buf12[1] = y - height;
-            buf12[2] = x;
-            buf12[3] = buf12[1];
-            buf12[4] = buf12[0];
-            buf12[5] = y;
-            buf12[6] = buf12[2];
-            buf12[7] = buf12[3];
-            buf12[8] = buf12[4];
-            buf12[9] = buf12[5];
-            buf12[10] = buf12[2];
-            buf12[11] = buf12[5];
+            batch.setQuad(spriteOnScreenIndex, x + width, y - height, x, y - height, x + width, y, x, y);
         }else{
             float widthD2 = width / 2;
             float heightD2 = height / 2;
@@ -213,48 +217,55 @@ public class GlSprites {
             double hSin = heightD2 * sin;
             double wCos = widthD2 * cos;
             double wSin = widthD2 * sin;
-            buf12[0] = (float) (-hSin + wCos) + x;
-            buf12[1] = (float) (-hCos - wSin) + y;
-            buf12[2] = (float) (-hSin - wCos) + x;
-            buf12[3] = (float) (-hCos + wSin) + y;
-            buf12[4] = (float) (hSin + wCos) + x;
-            buf12[5] = (float) (hCos - wSin) + y;
-            buf12[6] = buf12[2];
-            buf12[7] = buf12[3];
-            buf12[8] = buf12[4];
-            buf12[9] = buf12[5];
-            buf12[10] = (float) (hSin - wCos) + x;
-            buf12[11] = (float) (hCos + wSin) + y;
+            batch.setQuad(spriteOnScreenIndex,
+                    (float) (-hSin + wCos) + x, (float) (-hCos - wSin) + y,
+                    (float) (-hSin - wCos) + x, (float) (-hCos + wSin) + y,
+                    (float) (hSin + wCos) + x, (float) (hCos - wSin) + y,
+                    (float) (hSin - wCos) + x, (float) (hCos + wSin) + y);
         }
-        positionBuffer.putArray(spriteOnScreenIndex * 12, buf12);
-        buf12[0] = tx1;
-        buf12[1] = ty1;
-        buf12[2] = tx0;
-        buf12[3] = buf12[1];
-        buf12[4] = buf12[0];
-        buf12[5] = ty0;
-        buf12[6] = buf12[2];
-        buf12[7] = buf12[1];
-        buf12[8] = buf12[0];
-        buf12[9] = buf12[5];
-        buf12[10] = buf12[2];
-        buf12[11] = buf12[5];
-        texCoordBuffer.putArray(spriteOnScreenIndex * 12, buf12);
+        batch.setTexRect(spriteOnScreenIndex, tx0, ty0, tx1, ty1);
+        if (spriteOnScreenIndex >= usedSlots) usedSlots = spriteOnScreenIndex + 1;
         spriteOnScreenIndex++;
     }
 
-    public void draw(){
-        if (spriteOnScreenIndex == 0) return;
-        positionBuffer.update(false);
-        texCoordBuffer.update(false);
-        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, textureId);
-        GLES31.glDrawArrays(GLES31.GL_TRIANGLES, 0, spriteOnScreenIndex * 6);
+    // Blanks the slots left from earlier frames, the batch draws the whole sprites range with the text.
+    public int prepareDraw(){
+        int count = spriteOnScreenIndex;
+        padTo(usedSlots);
+        spriteOnScreenIndex = count;
+        usedSlots = count;
+        return count;
+    }
+
+    public int getTextureId(){
+        return textureId;
     }
 
     public void clear(){
         spriteOnScreenIndex = 0;
     }
 
+    public int getCount(){
+        return spriteOnScreenIndex;
+    }
+
+    // Keeps the first count sprites for the next draw.
+    public void rewind(int count){
+        spriteOnScreenIndex = Math.min(count, maxSpritesOnScreen);
+    }
+
+    // Fills the slots up to index with empty sprites, so the following sprites keep their slots.
+    public void padTo(int index){
+        index = Math.min(index, maxSpritesOnScreen);
+        while (spriteOnScreenIndex < index) {
+            int slot = spriteOnScreenIndex++;
+            if (blankSlots[slot]) continue;
+            blankSlots[slot] = true;
+            Arrays.fill(screenSprites, slot * slotValues, (slot + 1) * slotValues, Float.NaN);
+            batch.clearQuad(slot);
+        }
+    }
+
     public float getSpriteWidth(int numericName){
         return getSpriteWidth(numericName, defaultSizeFactor);
     }
@@ -303,35 +314,6 @@ public class GlSprites {
         return null;
     }
 
-    private static class OptimizeBuffer{
-        public final float xCenter;
-        public final float yCenter;
-        public final float width;
-        public final float height;
-        public final float angle;
-        public final float tx0;
-        public final float ty0;
-        public final float tx1;
-        public final float ty1;
-
-        public OptimizeBuffer(float xCenter, float yCenter, float width, float height, float angle, float tx0, float ty0, float tx1, float ty1) {
-            this.xCenter = xCenter;
-            this.yCenter = yCenter;
-            this.width = width;
-            this.height = height;
-            this.angle = angle;
-            this.tx0 = tx0;
-            this.ty0 = ty0;
-            this.tx1 = tx1;
-            this.ty1 = ty1;
-        }
-
-        public boolean isEqual(float xCenter, float yCenter, float width, float height, float angle, float tx0, float ty0, float tx1, float ty1){
-            return (this.xCenter == xCenter && this.yCenter == yCenter && this.width == width && this.height == height && this.angle == angle
-                && this.tx0 == tx0 && this.ty0 == ty0 && this.tx1 == tx1 && this.ty1 == ty1);
-        }
-    }
-
     public static class Sprite{
         public final int numericName;
         public final String name;
@@ -17,7 +17,6 @@
 
 package de.droiddrone.control;
 
-import android.opengl.GLES31;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -25,34 +24,50 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+
+import static de.droiddrone.common.Utils.getNextPow2;
 
 public class GlText {
     private static final int blindCharId = 63;// ? - Symbol
+    private static final int maxDenseCharId = 0x800;
+    private static final int emptyKerningKey = -1;
+    private static final int blankSlotId = -2;
+    private static final int runCacheSize = 128;
     private final int textureId;
-    private final GlBuffer positionBuffer;
-    private final GlBuffer texCoordBuffer;
+    private final GlOsdBatch batch;
+    private final int firstInstance;
     private final int maxSymbolsOnScreen;
-    private final int colorUniformHandle;
-    private final OptimizeBuffer[] optimizeBuffers;
+    // glyphs already in the vertex buffers
+    private final int[] screenCharIds;
+    private final float[] screenCharX, screenCharY, screenCharSize;
     private Char[] chars = null;
     private Char blind = null;
-    private Kerning[] kernings = null;
+    private Char[] denseChars;
+    private int[] sparseCharIds;
+    private Char[] sparseChars;
+    // open addressing on (first << 16) | second
+    private int[] kerningKeys;
+    private int[] kerningAmounts;
+    private final GlyphRun[] runCache = new GlyphRun[runCacheSize];
     private int charOnScreenIndex;
     private int lineHeight;
     private float defaultTextSize;
-    private float colorR, colorG, colorB, colorA;
     private float screenFactor;
     private float osdCanvasFactor;
 
-    public GlText(int textureId, int xmlResourceId, MainActivity activity, GlBuffer positionBuffer, GlBuffer texCoordBuffer, int colorUniformHandle) throws XmlPullParserException, IOException, NumberFormatException {
-        this.positionBuffer = positionBuffer;
-        this.texCoordBuffer = texCoordBuffer;
+    public GlText(int textureId, int xmlResourceId, MainActivity activity, GlOsdBatch batch) throws XmlPullParserException, IOException, NumberFormatException {
+        this.batch = batch;
         this.textureId = textureId;
-        this.colorUniformHandle = colorUniformHandle;
+        firstInstance = batch.getTextFirstInstance();
         charOnScreenIndex = 0;
         screenFactor = 1;
-        maxSymbolsOnScreen = positionBuffer.sizeInBytes / 6 / 2 / 4;
-        optimizeBuffers = new OptimizeBuffer[maxSymbolsOnScreen];
+        maxSymbolsOnScreen = batch.maxSymbols;
+        screenCharIds = new int[maxSymbolsOnScreen];
+        screenCharX = new float[maxSymbolsOnScreen];
+        screenCharY = new float[maxSymbolsOnScreen];
+        screenCharSize = new float[maxSymbolsOnScreen];
+        clearCache();
         setDefaultTextSize(14);
         setColor(255, 255, 255, 255);
 
@@ -120,11 +135,15 @@ public class GlText {
                     for (int i = 0; i < parser.getAttributeCount(); i++) {
                         if ("count".equals(parser.getAttributeName(i))) {
                             int count = Integer.parseInt(parser.getAttributeValue(i));
-                            if (count > 0) kernings = new Kerning[count];
+                            if (count > 0) {
+                                kerningKeys = new int[getNextPow2(count * 2)];
+                                kerningAmounts = new int[kerningKeys.length];
+                                Arrays.fill(kerningKeys, emptyKerningKey);
+                            }
                             break;
                         }
                     }
-                } else if ("kerning".equals(name) && kernings != null && cKerning < kernings.length) {
+                } else if ("kerning".equals(name) && kerningKeys != null && cKerning < kerningKeys.length / 2) {
                     int first = 0, second = 0, amount = 0;
                     for (int i = 0; i < parser.getAttributeCount(); i++) {
                         if ("first".equals(parser.getAttributeName(i))) {
@@ -135,14 +154,59 @@ public class GlText {
                             amount = Integer.parseInt(parser.getAttributeValue(i));
                         }
                     }
-                    kernings[cKerning] = new Kerning(first, second, amount);
+                    putKerning(first, second, amount);
                     cKerning++;
                 }
                 eventType = parser.next();
             }
+            buildCharTables(cChar);
+        }
+    }
+
+    // Ids up to maxDenseCharId are looked up directly, the rest by binary search.
+    private void buildCharTables(int count){
+        if (chars == null) return;
+        int maxDenseId = -1;
+        int sparseCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (chars[i].id < maxDenseCharId) {
+                maxDenseId = Math.max(maxDenseId, chars[i].id);
+            } else {
+                sparseCount++;
+            }
+        }
+        denseChars = new Char[maxDenseId + 1];
+        sparseCharIds = new int[sparseCount];
+        sparseChars = new Char[sparseCount];
+        Char[] sorted = Arrays.copyOf(chars, count);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.id, b.id));
+        int sparseIndex = 0;
+        for (Char ch : sorted) {
+            if (ch.id < 0) continue;
+            if (ch.id < maxDenseCharId) {
+                denseChars[ch.id] = ch;
+            } else {
+                sparseCharIds[sparseIndex] = ch.id;
+                sparseChars[sparseIndex] = ch;
+                sparseIndex++;
+            }
         }
     }
 
+    private void putKerning(int first, int second, int amount){
+        int key = (first << 16) | (second & 0xFFFF);
+        int mask = kerningKeys.length - 1;
+        int index = mix(key) & mask;
+        while (kerningKeys[index] != emptyKerningKey && kerningKeys[index] != key) index = (index + 1) & mask;
+        kerningKeys[index] = key;
+        kerningAmounts[index] = amount;
+    }
+
+    private static int mix(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     public void setOsdCanvasFactor(float osdCanvasFactor){
         this.osdCanvasFactor = osdCanvasFactor;
     }
@@ -164,39 +228,25 @@ public class GlText {
     }
 
     public void setColor(int r, int g, int b, int a){// RGBA 0..255
-        colorR = r / 255f;
-        colorG = g / 255f;
-        colorB = b / 255f;
-        colorA = a / 255f - 1;
+        batch.setStyle(firstInstance, maxSymbolsOnScreen, r / 255f, g / 255f, b / 255f, a / 255f - 1, GlOsdBatch.layerText);
     }
 
-    public int getLengthInPixels(String text){
+    public int getTextureId(){
+        return textureId;
+    }
+
+    public int getLengthInPixels(CharSequence text){
         return getLengthInPixels(text, defaultTextSize);
     }
 
-    public int getLengthInPixels(String text, float size){
+    public int getLengthInPixels(CharSequence text, float size){
         if (text == null) return 0;
-        int length = text.length();
-        if (length == 0) return 0;
-        float xCurrent = 0;
-        float xMax = 0;
-        Char previous = null;
-        float sizeFactor = convertTextSize(size);
-        for (int i = 0; i < length; i++) {
-            int id = text.charAt(i);
-            if (id == 13) continue;
-            if (id == 10) {
-                if (xCurrent > xMax) xMax = xCurrent;
-                xCurrent = 0;
-                continue;
-            }
-            Char ch = getChar(id);
-            if (ch == null) continue;
-            xCurrent += (ch.xAdvance + getKerningAmount(previous, ch)) * sizeFactor;
-            previous = ch;
-        }
-        if (xCurrent > xMax) xMax = xCurrent;
-        return Math.round(xMax);
+        return getLengthInPixels(text, 0, text.length(), size);
+    }
+
+    public int getLengthInPixels(CharSequence text, int start, int end, float size){
+        if (text == null || start >= end) return 0;
+        return Math.round(getGlyphRun(text, start, end).width * convertTextSize(size));
     }
 
     public float getLineHeight(){
@@ -208,135 +258,170 @@ public class GlText {
         return lineHeight * sizeFactor;
     }
 
-    public void addText(String text, float xLeft, float y){
+    public void addText(CharSequence text, float xLeft, float y){
         addText(text, xLeft, y, defaultTextSize);
     }
 
-    public void addText(String text, float xLeft, float y, float size){
+    public void addText(CharSequence text, float xLeft, float y, float size){
         if (text == null) return;
-        int length = text.length();
-        if (length == 0) return;
-        float[] buf12 = new float[12];
-        float xCurrent = xLeft;
-        float yCurrent = y;
-        Char previous = null;
+        addText(text, 0, text.length(), xLeft, y, size);
+    }
+
+    public void addText(CharSequence text, int start, int end, float xLeft, float y, float size){
+        if (text == null || start >= end) return;
+        GlyphRun run = getGlyphRun(text, start, end);
         float sizeFactor = convertTextSize(size);
         float lineHeight = this.lineHeight * sizeFactor;
         float yOffset = lineHeight / 6;
-        for (int i = 0; i < length; i++) {
+        for (int i = 0; i < run.count; i++) {
             if (charOnScreenIndex == maxSymbolsOnScreen) return;
+            Char ch = run.glyphs[i];
+            float xCurrent = xLeft + run.x[i] * sizeFactor;
+            float yCurrent = y - run.line[i] * lineHeight;
+            int index = charOnScreenIndex;
+            charOnScreenIndex++;
+            if (screenCharIds[index] == ch.id && screenCharX[index] == xCurrent && screenCharY[index] == yCurrent
+                    && screenCharSize[index] == sizeFactor) continue;
+            screenCharIds[index] = ch.id;
+            screenCharX[index] = xCurrent;
+            screenCharY[index] = yCurrent;
+            screenCharSize[index] = sizeFactor;
+            float right = xCurrent + (ch.xOffset + ch.width) * sizeFactor;
+            float left = xCurrent + ch.xOffset * sizeFactor;
+            float bottom = yCurrent - (ch.yOffset + ch.height) * sizeFactor - yOffset;
+            float top = yCurrent - ch.yOffset * sizeFactor - yOffset;
+            batch.setQuad(firstInstance + index, right, bottom, left, bottom, right, top, left, top);
+            batch.setTexRect(firstInstance + index, ch.tx0, ch.ty0, ch.tx1, ch.ty1);
+        }
+    }
+
+    // Runs are laid out in font units, so one run serves every text size.
+    private GlyphRun getGlyphRun(CharSequence text, int start, int end){
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + text.charAt(i);
+        int index = hash & (runCacheSize - 1);
+        GlyphRun run = runCache[index];
+        if (run == null) {
+            run = new GlyphRun();
+            runCache[index] = run;
+        } else if (run.isEqual(text, start, end)) {
+            return run;
+        }
+        run.setText(text, start, end);
+        int xCurrent = 0;
+        int line = 0;
+        Char previous = null;
+        for (int i = start; i < end; i++) {
             int id = text.charAt(i);
             if (id == 13) continue;
             if (id == 10) {
-                yCurrent -= lineHeight;
-                xCurrent = xLeft;
+                if (xCurrent > run.width) run.width = xCurrent;
+                xCurrent = 0;
+                line++;
                 continue;
             }
             Char ch = getChar(id);
             if (ch == null) continue;
-            if (optimizeBuffers[charOnScreenIndex] != null && optimizeBuffers[charOnScreenIndex].isEqual(id, xCurrent, yCurrent, sizeFactor)){
-                charOnScreenIndex++;
-                xCurrent += (ch.xAdvance + getKerningAmount(previous, ch)) * sizeFactor;
-                previous = ch;
-                continue;
-            }
-            optimizeBuffers[charOnScreenIndex] = new OptimizeBuffer(id, xCurrent, yCurrent, sizeFactor);
-            buf12[0] = xCurrent + (ch.xOffset + ch.width) * sizeFactor;
-            buf12[1] = yCurrent - (ch.yOffset + ch.height) * sizeFactor - yOffset;
-            buf12[2] = xCurrent + ch.xOffset * sizeFactor;
-            buf12[3] = buf12[1];
-            buf12[4] = buf12[0];
-            buf12[5] = yCurrent - ch.yOffset * sizeFactor - yOffset;
-            buf12[6] = buf12[2];
-            buf12[7] = buf12[3];
-            buf12[8] = buf12[4];
-            buf12[9] = buf12[5];
-            buf12[10] = buf12[2];
-            buf12[11] = buf12[5];
-            xCurrent += (ch.xAdvance + getKerningAmount(previous, ch)) * sizeFactor;
+            run.addGlyph(ch, xCurrent, line);
+            xCurrent += ch.xAdvance;
+            if (previous != null) xCurrent += getKerningAmount(previous.id, ch.id);
             previous = ch;
-            positionBuffer.putArray(charOnScreenIndex * 12, buf12);
-            buf12[0] = ch.tx1;
-            buf12[1] = ch.ty1;
-            buf12[2] = ch.tx0;
-            buf12[3] = buf12[1];
-            buf12[4] = buf12[0];
-            buf12[5] = ch.ty0;
-            buf12[6] = buf12[2];
-            buf12[7] = buf12[1];
-            buf12[8] = buf12[0];
-            buf12[9] = buf12[5];
-            buf12[10] = buf12[2];
-            buf12[11] = buf12[5];
-            texCoordBuffer.putArray(charOnScreenIndex * 12, buf12);
-            charOnScreenIndex++;
         }
+        if (xCurrent > run.width) run.width = xCurrent;
+        return run;
     }
 
     public void clearCache(){
-        for (int i = 0; i < maxSymbolsOnScreen; i++) {
-            optimizeBuffers[i] = null;
-        }
-    }
-
-    public void draw(){
-        if (charOnScreenIndex == 0) return;
-        positionBuffer.update(false);
-        texCoordBuffer.update(false);
-        GLES31.glUniform4f(colorUniformHandle, colorR, colorG, colorB, colorA);
-        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, textureId);
-        GLES31.glDrawArrays(GLES31.GL_TRIANGLES, 0, charOnScreenIndex * 6);
+        Arrays.fill(screenCharIds, -1);
     }
 
     public void clear(){
         charOnScreenIndex = 0;
     }
 
-    private int getKerningAmount(Char first, Char second){
-        if (first == null || second == null || kernings == null) return 0;
-        int firstId = first.id;
-        int secondId = second.id;
-        for (Kerning kerning : kernings){
-            if (kerning.first == firstId && kerning.second == secondId) return kerning.amount;
+    public int getCount(){
+        return charOnScreenIndex;
+    }
+
+    // Keeps the first count glyphs for the next draw.
+    public void rewind(int count){
+        charOnScreenIndex = Math.min(count, maxSymbolsOnScreen);
+    }
+
+    // Fills the slots up to index with empty glyphs, so the following text keeps its slots.
+    public void padTo(int index){
+        index = Math.min(index, maxSymbolsOnScreen);
+        while (charOnScreenIndex < index) {
+            int slot = charOnScreenIndex++;
+            if (screenCharIds[slot] == blankSlotId) continue;
+            screenCharIds[slot] = blankSlotId;
+            batch.clearQuad(firstInstance + slot);
+        }
+    }
+
+    private int getKerningAmount(int first, int second){
+        if (kerningKeys == null) return 0;
+        int key = (first << 16) | (second & 0xFFFF);
+        int mask = kerningKeys.length - 1;
+        int index = mix(key) & mask;
+        while (kerningKeys[index] != emptyKerningKey) {
+            if (kerningKeys[index] == key) return kerningAmounts[index];
+            index = (index + 1) & mask;
         }
         return 0;
     }
 
     private Char getChar(int id){
-        if (chars == null) return null;
-        for (Char aChar : chars) {
-            if (aChar.id == id) return aChar;
+        if (denseChars == null) return null;
+        Char ch = null;
+        if (id < denseChars.length) {
+            ch = denseChars[id];
+        } else if (id >= maxDenseCharId) {
+            int index = Arrays.binarySearch(sparseCharIds, id);
+            if (index >= 0) ch = sparseChars[index];
         }
-        return blind;
+        return ch != null ? ch : blind;
     }
 
-    private static class OptimizeBuffer{
-        public final int id;
-        public final float x;
-        public final float y;
-        public final float size;
+    private static class GlyphRun{
+        private char[] text = new char[16];
+        private int length = -1;
+        private Char[] glyphs = new Char[16];
+        private int[] x = new int[16];
+        private int[] line = new int[16];
+        private int count;
+        private int width;
 
-        public OptimizeBuffer(int id, float x, float y, float size) {
-            this.id = id;
-            this.x = x;
-            this.y = y;
-            this.size = size;
+        private boolean isEqual(CharSequence text, int start, int end){
+            if (length != end - start) return false;
+            for (int i = 0; i < length; i++) {
+                if (this.text[i] != text.charAt(start + i)) return false;
+            }
+            return true;
         }
 
-        public boolean isEqual(int id, float x, float y, float size){
-            return (this.id == id && this.x == x && this.y == y && this.size == size);
+        private void setText(CharSequence text, int start, int end){
+            int length = end - start;
+            if (this.text.length < length) {
+                int size = getNextPow2(length);
+                this.text = new char[size];
+                glyphs = new Char[size];
+                x = new int[size];
+                line = new int[size];
+            }
+            for (int i = 0; i < length; i++) {
+                this.text[i] = text.charAt(start + i);
+            }
+            this.length = length;
+            count = 0;
+            width = 0;
         }
-    }
-
-    private static class Kerning{
-        public final int first;
-        public final int second;
-        public final int amount;
 
-        public Kerning(int first, int second, int amount) {
-            this.first = first;
-            this.second = second;
-            this.amount = amount;
+        private void addGlyph(Char ch, int x, int line){
+            glyphs[count] = ch;
+            this.x[count] = x;
+            this.line[count] = line;
+            count++;
         }
     }
 
@@ -35,6 +35,7 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -48,6 +49,7 @@ import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.FragmentManager;
 
+import de.droiddrone.common.FlightLog;
 import de.droiddrone.common.SettingsCommon;
 import de.droiddrone.common.TelephonyService;
 
@@ -68,6 +70,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     private MapData mapData;
     private HeadTracker headTracker;
     private MavlinkUdpBridge mavlinkUdpBridge;
+    private FlightLog flightLog;
     private boolean connectionThreadRunning = false;
     private TelephonyService telephonyService;
     private boolean phoneStatePermissionRequested = false;
@@ -344,6 +347,15 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             udp = new Udp(config, decoder, osd, rc, activity, mavlinkUdpBridge);
             mavlinkUdpBridge.setUdp(udp);
             Thread t1 = new Thread(() -> {
+                File flightLogDir = new File(getExternalMediaDirs()[0], "FlightLog");
+                if (config.getReplaySpeed() != 0) {
+                    startReplay(flightLogDir);
+                    return;
+                }
+                if (config.isFlightLog()) {
+                    flightLog = FlightLog.create(flightLogDir, FlightLog.sourceControl);
+                    udp.setFlightLog(flightLog);
+                }
                 if (udp.initialize()){
                     startConnectionThread();
                 }else{
@@ -355,6 +367,24 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         }
     }
 
+    private void startReplay(File flightLogDir){
+        File file = FlightLogReplay.findLastLog(flightLogDir);
+        if (file == null) {
+            log("No flight log to replay.");
+            closeAll();
+            return;
+        }
+        try {
+            log("Replay " + file.getName() + ", speed: " + config.getReplaySpeed());
+            udp.initializeReplay(new FlightLogReplay(file, config.getReplaySpeed()));
+            showGlFragment(true);
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("Replay error: " + e);
+            closeAll();
+        }
+    }
+
     public StartFragment getStartFragment(){
         return customFragmentFactory.getStartFragment();
     }
@@ -365,6 +395,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             connectionThreadRunning = true;
             while (isRunning){
                 try {
+                    if (udp.isReplay()) break;
                     if (udp.isVersionMismatch()){
                         String msg = getResources().getString(R.string.version_mismatch);
                         log(msg);
@@ -439,7 +470,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     }
 
     public boolean isConnected(){
-        return (udp != null && udp.isConnected());
+        return (udp != null && (udp.isConnected() || udp.isReplay()));
     }
 
     private void updateBatteryState(){
@@ -476,9 +507,14 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             public void run() {
                 if (isRunning && !isConnected()) startConnectionThread();
                 if (osd != null){
-                    osd.setGlFps((short) renderer.getFps());
-                    updateBatteryState();
-                    updateNetworkState();
+                    long stamp = osd.beginUpdate();
+                    try {
+                        osd.setGlFps((short) renderer.getFps());
+                        updateBatteryState();
+                        updateNetworkState();
+                    } finally {
+                        osd.endUpdate(stamp);
+                    }
                 }
                 runOnUiThread(() -> {
                     StartFragment startFragment = customFragmentFactory.getStartFragment();
@@ -587,6 +623,11 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         isRunning = false;
         if (udp != null) {
             udp.disconnect();
+            udp.setFlightLog(null);
+        }
+        if (flightLog != null) {
+            flightLog.close();
+            flightLog = null;
         }
         if (decoder != null) decoder.close();
         if (renderer != null) renderer.close();
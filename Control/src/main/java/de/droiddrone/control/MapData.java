@@ -17,23 +17,33 @@
 
 package de.droiddrone.control;
 
-import android.location.Location;
-import android.location.LocationManager;
-
 import com.google.android.gms.maps.model.LatLng;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MapData {
     private final static int positionsMinDist = 5;
+    private final static double metersPerDegree = 6371000 * Math.PI / 180;
     private LatLng homePosition;
     private LatLng dronePosition;
-    private final List<LatLng> dronePositions = new ArrayList<>();
+    private double[] trackLat = new double[1024];
+    private double[] trackLon = new double[1024];
+    private int trackSize;
+    private boolean[] keepPoints = new boolean[0];
+    private int[] simplifyStack = new int[64];
     private boolean homePositionChanged;
     private boolean dronePositionChanged;
     private boolean isArmed;
 
+    // Equirectangular approximation, accurate enough for the distances between track points.
+    public static double getDistance(double lat1, double lon1, double lat2, double lon2){
+        double x = (lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) * 0.5));
+        double y = lat2 - lat1;
+        return Math.sqrt(x * x + y * y) * metersPerDegree;
+    }
+
     public void setHomePosition(double lat, double lon){
         LatLng oldHomePosition = homePosition;
         homePosition = new LatLng(lat, lon);
@@ -58,25 +68,21 @@ public class MapData {
     public void setDronePosition(double lat, double lon, boolean isArmed){
         this.isArmed = isArmed;
         LatLng oldDronePosition = dronePosition;
+        if (oldDronePosition != null && oldDronePosition.latitude == lat && oldDronePosition.longitude == lon) return;
         dronePosition = new LatLng(lat, lon);
-        if (oldDronePosition == null){
-            dronePositionChanged = true;
-            if (isArmed) dronePositions.add(dronePosition);
-        }else{
-            if (oldDronePosition.latitude != lat || oldDronePosition.longitude != lon){
-                dronePositionChanged = true;
-                if (isArmed) {
-                    Location newLocation = new Location(LocationManager.GPS_PROVIDER);
-                    Location oldLocation = new Location(LocationManager.GPS_PROVIDER);
-                    newLocation.setLatitude(lat);
-                    newLocation.setLongitude(lon);
-                    oldLocation.setLatitude(oldDronePosition.latitude);
-                    oldLocation.setLongitude(oldDronePosition.longitude);
-                    float dist = oldLocation.distanceTo(newLocation);
-                    if (dist >= positionsMinDist) dronePositions.add(dronePosition);
-                }
-            }
+        dronePositionChanged = true;
+        if (isArmed) addTrackPoint(lat, lon);
+    }
+
+    private synchronized void addTrackPoint(double lat, double lon){
+        if (trackSize > 0 && getDistance(trackLat[trackSize - 1], trackLon[trackSize - 1], lat, lon) < positionsMinDist) return;
+        if (trackSize == trackLat.length){
+            trackLat = Arrays.copyOf(trackLat, trackSize * 2);
+            trackLon = Arrays.copyOf(trackLon, trackSize * 2);
         }
+        trackLat[trackSize] = lat;
+        trackLon[trackSize] = lon;
+        trackSize++;
     }
 
     public LatLng getDronePosition(){
@@ -88,8 +94,65 @@ public class MapData {
         return dronePositionChanged;
     }
 
-    public List<LatLng> getDronePositions(){
-        return dronePositions;
+    public synchronized int getTrackSize(){
+        return trackSize;
+    }
+
+    // Track points from..to inclusive, Douglas-Peucker simplified, points closer than toleranceM to the line are dropped.
+    public synchronized List<LatLng> getTrack(int from, int to, double toleranceM){
+        List<LatLng> points = new ArrayList<>(to - from + 1);
+        if (toleranceM <= 0 || to - from < 2){
+            for (int i = from; i <= to; i++) {
+                points.add(new LatLng(trackLat[i], trackLon[i]));
+            }
+            return points;
+        }
+        int count = to - from + 1;
+        if (keepPoints.length < count) keepPoints = new boolean[count];
+        Arrays.fill(keepPoints, 0, count, false);
+        keepPoints[0] = true;
+        keepPoints[count - 1] = true;
+        double cosLat = Math.cos(Math.toRadians(trackLat[from]));
+        int stackSize = 0;
+        simplifyStack[stackSize++] = from;
+        simplifyStack[stackSize++] = to;
+        while (stackSize > 0){
+            int end = simplifyStack[--stackSize];
+            int start = simplifyStack[--stackSize];
+            double maxDist = toleranceM;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                double dist = getSegmentDistance(i, start, end, cosLat);
+                if (dist > maxDist){
+                    maxDist = dist;
+                    index = i;
+                }
+            }
+            if (index == -1) continue;
+            keepPoints[index - from] = true;
+            if (stackSize + 4 > simplifyStack.length) simplifyStack = Arrays.copyOf(simplifyStack, simplifyStack.length * 2);
+            simplifyStack[stackSize++] = start;
+            simplifyStack[stackSize++] = index;
+            simplifyStack[stackSize++] = index;
+            simplifyStack[stackSize++] = end;
+        }
+        for (int i = 0; i < count; i++) {
+            if (keepPoints[i]) points.add(new LatLng(trackLat[from + i], trackLon[from + i]));
+        }
+        return points;
+    }
+
+    // distance in m from point p to the segment a-b, in a local flat projection
+    private double getSegmentDistance(int p, int a, int b, double cosLat){
+        double bx = (trackLon[b] - trackLon[a]) * cosLat;
+        double by = trackLat[b] - trackLat[a];
+        double px = (trackLon[p] - trackLon[a]) * cosLat;
+        double py = trackLat[p] - trackLat[a];
+        double length2 = bx * bx + by * by;
+        double t = length2 > 0 ? Math.max(0, Math.min(1, (px * bx + py * by) / length2)) : 0;
+        double dx = px - t * bx;
+        double dy = py - t * by;
+        return Math.sqrt(dx * dx + dy * dy) * metersPerDegree;
     }
 
     public boolean isArmed() {
@@ -37,22 +37,28 @@ import com.google.android.gms.maps.GoogleMapOptions;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class MapFragment extends Fragment implements OnMapReadyCallback {
     public static final int fragmentId = 5;
+    private static final int trackChunkSize = 256;
     private final MainActivity activity;
     private final MapData mapData;
     private GoogleMap googleMap;
     private Marker homeMarker;
     private Marker droneMarker;
-    private Polyline polyline;
+    private final List<Polyline> trackChunks = new ArrayList<>();
+    private Polyline trackTail;
+    private int trackChunksEnd;
+    private float trackZoom = -1;
     private int threadsId;
     private boolean setMapCamera;
 
@@ -151,16 +157,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
                                 }
                             }
                         }
-                        List<LatLng> positions = mapData.getDronePositions();
-                        if (positions.size() > 1) {
-                            if (polyline == null) {
-                                polyline = googleMap.addPolyline(new PolylineOptions()
-                                        .color(Color.BLUE)
-                                        .addAll(positions));
-                            } else {
-                                polyline.setPoints(positions);
-                            }
-                        }
+                        updateTrack();
                     });
                 } catch (Exception e) {
                     log("Map thread error: " + e);
@@ -169,6 +166,41 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         }
     };
 
+    // Finished chunks of the track are added once, simplified for the current zoom. Only the short tail is replaced each cycle.
+    private void updateTrack(){
+        int trackSize = mapData.getTrackSize();
+        if (trackSize < 2) return;
+        CameraPosition camera = googleMap.getCameraPosition();
+        float zoom = camera.zoom;
+        if (Math.abs(zoom - trackZoom) >= 1){
+            for (Polyline chunk : trackChunks) {
+                chunk.remove();
+            }
+            trackChunks.clear();
+            trackChunksEnd = 0;
+            trackZoom = zoom;
+        }
+        if (trackSize - trackChunksEnd > trackChunkSize){
+            // one screen pixel in m
+            double tolerance = 156543.03392 * Math.cos(Math.toRadians(camera.target.latitude)) / Math.pow(2, trackZoom);
+            while (trackSize - trackChunksEnd > trackChunkSize){
+                int end = trackChunksEnd + trackChunkSize;
+                trackChunks.add(googleMap.addPolyline(new PolylineOptions()
+                        .color(Color.BLUE)
+                        .addAll(mapData.getTrack(trackChunksEnd, end, tolerance))));
+                trackChunksEnd = end;
+            }
+        }
+        List<LatLng> tail = mapData.getTrack(trackChunksEnd, trackSize - 1, 0);
+        if (trackTail == null){
+            trackTail = googleMap.addPolyline(new PolylineOptions()
+                    .color(Color.BLUE)
+                    .addAll(tail));
+        }else{
+            trackTail.setPoints(tail);
+        }
+    }
+
     @Override
     public void onResume() {
         startMapThread();
@@ -19,10 +19,10 @@ package de.droiddrone.control;
 
 import androidx.annotation.NonNull;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.StampedLock;
 
 import de.droiddrone.common.DataReader;
 import de.droiddrone.common.DataWriter;
@@ -128,9 +128,7 @@ public class Osd {
     private boolean wasArmed;
     private boolean isArmed;
     private final OsdStats osdStats;
-    private final DecimalFormat format1Digit = new DecimalFormat("0.0");
-    private final DecimalFormat format2Digit = new DecimalFormat("0.00");
-    private final DecimalFormat format6Digit = new DecimalFormat("0.000000");
+    private final TextBuilder textBuilder = new TextBuilder(64);
     private final ArrayList<Integer> mahKmList = new ArrayList<>();
     private NetworkState droneNetworkState = new NetworkState();
     private NetworkState controlNetworkState = new NetworkState();
@@ -140,6 +138,20 @@ public class Osd {
     private long mavlinkBatteryFaultBitmask;
     private final List<MavlinkStatusText> mavlinkMessages = new ArrayList<>();
     private boolean setInavAndBfHomePos;
+    private VideoLatency videoLatency;
+    // Writers publish telemetry under the write lock, the GL thread reads it optimistically and redraws on a changed stamp.
+    private final StampedLock telemetryLock = new StampedLock();
+    // The OSD is rebuilt when its data changes, time based content is refreshed at least every maxRetainMs.
+    private static final int maxRetainMs = 100;
+    private volatile int dataVersion;
+    private int drawnDataVersion = -1;
+    private long lastDrawTs;
+    // glyph and sprite slots reserved by each group of one OSD layout
+    private int[] groupTextSlots = new int[32];
+    private int[] groupSpriteSlots = new int[32];
+    private int groupIndex, groupTextStart, groupSpriteStart;
+    private int drawnLayout = -1;
+    private OsdItem[] drawnItems;
 
     public Osd(GlRenderer renderer, Config config, MapData mapData) {
         this.renderer = renderer;
@@ -154,9 +166,14 @@ public class Osd {
         osdStats = new OsdStats();
     }
 
+    public void setVideoLatency(VideoLatency videoLatency){
+        this.videoLatency = videoLatency;
+    }
+
     public void initialize(FcInfo fcInfo){
         this.fcInfo = fcInfo;
         lastDataTimestamp = 0;
+        invalidate();
     }
 
     public boolean isInitialized(){
@@ -169,6 +186,7 @@ public class Osd {
         osdCanvasFactor = OsdCommon.canvasSizes.PAL_COLS / (float) cols;
         renderer.setOsdCanvasFactor(osdCanvasFactor);
         updateOsdFactor();
+        invalidate();
     }
 
     public void setScreenSize(int width, int height, int osdHeightOffset, float screenFactor){
@@ -182,6 +200,7 @@ public class Osd {
             phoneOsdHeight = 0;
         }
         updateOsdFactor();
+        invalidate();
     }
 
     private boolean isDrawPhoneOsd(){
@@ -204,12 +223,6 @@ public class Osd {
         return screenHeight - phoneOsdHeight + osdHeightOffset - posY * osdHeightFactor;
     }
 
-    private String getTimeFormatted(int timeSec) {
-        int minutes = timeSec / 60;
-        int seconds = timeSec % 60;
-        return String.format("%02d:%02d", minutes, seconds);
-    }
-
     private class OsdItemVtxChannel extends OsdItem{
 
         public OsdItemVtxChannel(OsdItem item) {
@@ -218,7 +231,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText("CH: " + vtxChannel, getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder.clear().append("CH: ").append(vtxChannel), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -230,7 +243,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.VTX_POWER, String.valueOf(vtxPower), true, false);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.VTX_POWER, textBuilder.clear().append(vtxPower), true, false);
         }
     }
 
@@ -242,7 +255,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText("THR: " + throttle + "%", getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder.clear().append("THR: ").append(throttle).append('%'), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -254,7 +267,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TEMPERATURE, coreTemperatureCelsius + " °C", true, false);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TEMPERATURE, textBuilder.clear().append(coreTemperatureCelsius).append(" °C"), true, false);
         }
     }
 
@@ -266,7 +279,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TEMPERATURE, baroTemperatureCelsius + " °C", true, false);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TEMPERATURE, textBuilder.clear().append(baroTemperatureCelsius).append(" °C"), true, false);
         }
     }
 
@@ -278,13 +291,13 @@ public class Osd {
 
         @Override
         public void draw(){
-            String value;
+            textBuilder.clear().append("mAh/km: ");
             if (mahPerKm == 0){
-                value = "-";
+                textBuilder.append('-');
             }else{
-                value = String.valueOf(mahPerKm);
+                textBuilder.append(mahPerKm);
             }
-            renderer.addText("mAh/km: " + value, getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder, getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -310,7 +323,7 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.distAlarm > 0 && distanceToHome >= osdConfig.distAlarm);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.DIST_HOME, formatDistance(distanceToHome), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.DIST_HOME, formatDistance(textBuilder.clear(), distanceToHome), true, warning);
         }
     }
 
@@ -322,15 +335,15 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TRIP_DIST, formatDistance(traveledDistance), true, false);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.TRIP_DIST, formatDistance(textBuilder.clear(), traveledDistance), true, false);
         }
     }
 
-    private String formatDistance(int distance){
+    private TextBuilder formatDistance(TextBuilder out, int distance){
         if (Math.abs(distance) > 1000){
-            return format2Digit.format(distance * 0.001f) + " km";
+            return out.appendFixed(distance * 0.001f, 2).append(" km");
         }else{
-            return distance + " m";
+            return out.append(distance).append(" m");
         }
     }
 
@@ -368,7 +381,7 @@ public class Osd {
                 glSprites.addSprite(SpritesMapping.HOME, getOsdItemScreenX(posX), getOsdItemScreenY(posY), 1.8f);
             }
             boolean warning = (osdConfig != null && osdConfig.distAlarm > 0 && distanceToHome >= osdConfig.distAlarm);
-            renderer.addText(formatDistance(distanceToHome), getOsdItemScreenX(posX) + 1 * osdWidthFactor, getOsdItemScreenY(posY), warning);
+            renderer.addText(formatDistance(textBuilder.clear(), distanceToHome), getOsdItemScreenX(posX) + 1 * osdWidthFactor, getOsdItemScreenY(posY), warning);
         }
     }
 
@@ -380,7 +393,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText("LON: " + formatLatLon(lonDeg), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(formatLatLon(textBuilder.clear().append("LON: "), lonDeg), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -392,12 +405,12 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText("LAT: " + formatLatLon(latDeg), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(formatLatLon(textBuilder.clear().append("LAT: "), latDeg), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
-    private String formatLatLon(float latLon){
-        return format6Digit.format(latLon);
+    private TextBuilder formatLatLon(TextBuilder out, float latLon){
+        return out.appendFixed(latLon, 6);
     }
 
     private class OsdItemGpsSpeed extends OsdItem{
@@ -408,7 +421,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText("GS: " + Math.round(groundSpeed) + " km/h", getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder.clear().append("GS: ").append(Math.round(groundSpeed)).append(" km/h"), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -420,7 +433,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.ON_TIME, getTimeFormatted(onTime), true, false);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.ON_TIME, textBuilder.clear().appendTime(onTime), true, false);
         }
     }
 
@@ -433,7 +446,7 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.timeAlarmSec > 0 && flyTime >= osdConfig.timeAlarmSec);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.FLY_TIME, getTimeFormatted(flyTime), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.FLY_TIME, textBuilder.clear().appendTime(flyTime), true, warning);
         }
     }
 
@@ -446,7 +459,7 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.timeAlarmSec > 0 && flyTime >= osdConfig.timeAlarmSec);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.FLY_TIME, getTimeFormatted(lastArmTime), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.FLY_TIME, textBuilder.clear().appendTime(lastArmTime), true, warning);
         }
     }
 
@@ -459,17 +472,16 @@ public class Osd {
         @Override
         public void draw(){
             int icon;
-            String timeFormatted;
             boolean warning = false;
             if (isArmed){
                 icon = SpritesMapping.FLY_TIME;
-                timeFormatted = getTimeFormatted(flyTime);
+                textBuilder.clear().appendTime(flyTime);
                 warning = (osdConfig != null && osdConfig.timeAlarmSec > 0 && flyTime >= osdConfig.timeAlarmSec);
             }else{
                 icon = SpritesMapping.ON_TIME;
-                timeFormatted = getTimeFormatted(onTime);
+                textBuilder.clear().appendTime(onTime);
             }
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, timeFormatted, true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, textBuilder, true, warning);
         }
     }
 
@@ -662,7 +674,7 @@ public class Osd {
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.altAlarm > 0 && altitude >= osdConfig.altAlarm);
             warning = warning || (osdConfig != null && osdConfig.negAltAlarm != 0 && altitude <= osdConfig.negAltAlarm);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.ALTITUDE, String.valueOf(altitude), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.ALTITUDE, textBuilder.clear().append(altitude), true, warning);
         }
     }
 
@@ -675,7 +687,7 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = numSat < osdConfig.warnNumSat;
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.GPS_SAT, String.valueOf(numSat), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.GPS_SAT, textBuilder.clear().append(numSat), true, warning);
         }
     }
 
@@ -688,8 +700,13 @@ public class Osd {
         @Override
         public void draw(){
             int ping = getPing();
-            String text = ping != -1 ? ping + " ms" : "--- ms";
-            renderer.addText(text, getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            textBuilder.clear();
+            if (ping != -1) {
+                textBuilder.append(ping);
+            } else {
+                textBuilder.append("---");
+            }
+            renderer.addText(textBuilder.append(" ms"), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -701,7 +718,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText(formatBitRate(videoBitRate), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(formatBitRate(textBuilder.clear(), videoBitRate), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -751,7 +768,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText(Math.round(yaw) + "°", getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder.clear().append(Math.round(yaw)).append('°'), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -835,7 +852,7 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText(power + " W", getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(textBuilder.clear().appendDecimal(power, 2).append(" W"), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
@@ -848,13 +865,12 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.capacityWarning > 0 && mahDrawn >= osdConfig.capacityWarning);
-            String text = mahDrawn + " mAh";
-            renderer.addText(text, getOsdItemScreenX(posX), getOsdItemScreenY(posY), warning);
+            renderer.addText(textBuilder.clear().append(mahDrawn).append(" mAh"), getOsdItemScreenX(posX), getOsdItemScreenY(posY), warning);
         }
     }
 
-    private String formatAmperage(float amperage){
-        return format2Digit.format(amperage) + " A";
+    private TextBuilder formatAmperage(TextBuilder out, float amperage){
+        return out.appendFixed(amperage, 2).append(" A");
     }
 
     private final class OsdItemCurrentDraw extends OsdItem{
@@ -865,12 +881,12 @@ public class Osd {
 
         @Override
         public void draw(){
-            renderer.addText(formatAmperage(amperage), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
+            renderer.addText(formatAmperage(textBuilder.clear(), amperage), getOsdItemScreenX(posX), getOsdItemScreenY(posY));
         }
     }
 
-    private String formatVoltage(float voltage){
-        return format2Digit.format(voltage) + "V";
+    private TextBuilder formatVoltage(TextBuilder out, float voltage){
+        return out.appendFixed(voltage, 2).append('V');
     }
 
     private int getPhoneBatteryIcon(int batteryPercentage, boolean isCharging){
@@ -913,7 +929,7 @@ public class Osd {
             int icon = getBatteryIcon(percentage);
             boolean warning = (icon == SpritesMapping.BATT_ALERT);
             warning = warning || cellVoltage < osdConfig.warnAvgCellVolt;
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(cellVoltage), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(textBuilder.clear(), cellVoltage), true, warning);
         }
     }
 
@@ -929,7 +945,7 @@ public class Osd {
             int icon = getBatteryIcon(percentage);
             boolean warning = (icon == SpritesMapping.BATT_ALERT);
             warning = warning || voltage < osdConfig.warnBatVolt;
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(voltage), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(textBuilder.clear(), voltage), true, warning);
         }
     }
 
@@ -942,7 +958,7 @@ public class Osd {
         public void draw(){
             int icon = getBatteryIcon(batteryPercentage);
             boolean warning = (icon == SpritesMapping.BATT_ALERT || voltage < osdConfig.warnBatVolt);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(voltage), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(textBuilder.clear(), voltage), true, warning);
         }
     }
 
@@ -957,7 +973,7 @@ public class Osd {
             byte cellCount = osdConfig.osdCellCount > 0 ? osdConfig.osdCellCount : batteryCellCount;
             float cellVoltage = getCellVoltage(cellCount);
             boolean warning = (icon == SpritesMapping.BATT_ALERT || cellVoltage < osdConfig.warnAvgCellVolt);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(cellVoltage), true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), icon, formatVoltage(textBuilder.clear(), cellVoltage), true, warning);
         }
     }
 
@@ -970,7 +986,7 @@ public class Osd {
         @Override
         public void draw(){
             boolean warning = (osdConfig != null && osdConfig.rssiAlarm > 0 && rssi <= osdConfig.rssiAlarm);
-            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.RSSI, rssi + "%", true, warning);
+            renderer.addSpriteWithText(getOsdItemScreenX(posX), getOsdItemScreenY(posY), SpritesMapping.RSSI, textBuilder.clear().append(rssi).append('%'), true, warning);
         }
     }
 
@@ -1032,8 +1048,8 @@ public class Osd {
         renderer.addSpriteWithText(screenWidth / 2f - (textLength + spriteWidth) / 2f, (screenHeight - phoneOsdHeight) / 2f + osdHeightOffset, spriteName, msg, true, false);
     }
 
-    private String formatBitRate(float bitRate){
-        return format1Digit.format(bitRate) + "Mbit/s";
+    private TextBuilder formatBitRate(TextBuilder out, float bitRate){
+        return out.appendFixed(bitRate, 1).append("Mbit/s");
     }
 
     private void drawPhoneOsd() {
@@ -1047,7 +1063,7 @@ public class Osd {
         float y = screenHeight + osdHeightOffset;
         float textSpace = 35 * screenFactor;
         float spriteSpace = 10 * screenFactor;
-        String text;
+        TextBuilder text = textBuilder;
 
         if (config.isShowDronePhoneBattery()) {
             int icon = getPhoneBatteryIcon(dronePhoneBatteryPercentage, dronePhoneBatteryIsCharging);
@@ -1057,7 +1073,7 @@ public class Osd {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
             }
-            text = dronePhoneBatteryPercentage + "%";
+            text.clear().append(dronePhoneBatteryPercentage).append('%');
             glText.addText(text, xOffset, y, textSize);
             xOffset += glText.getLengthInPixels(text, textSize) + textSpace / 3;
         }
@@ -1070,14 +1086,14 @@ public class Osd {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
             }
-            text = controlPhoneBatteryPercentage + "%";
+            text.clear().append(controlPhoneBatteryPercentage).append('%');
             glText.addText(text, xOffset, y, textSize);
             xOffset += glText.getLengthInPixels(text, textSize) + textSpace;
         }
 
         if (config.isShowNetworkState()) {
-            text = droneNetworkState.getNetworkName() + " " + droneNetworkState.getRssi() + "%/"
-                    + controlNetworkState.getNetworkName() + " " + controlNetworkState.getRssi() + "%";
+            text.clear().append(droneNetworkState.getNetworkName()).append(' ').append(droneNetworkState.getRssi()).append("%/")
+                    .append(controlNetworkState.getNetworkName()).append(' ').append(controlNetworkState.getRssi()).append('%');
             if (droneNetworkState.getRssi() < 40 || controlNetworkState.getRssi() < 40
                     || droneNetworkState.getNetworkType() < NetworkState.NETWORK_TYPE_LTE
                     || controlNetworkState.getNetworkType() < NetworkState.NETWORK_TYPE_LTE) {
@@ -1089,7 +1105,12 @@ public class Osd {
         }
 
         if (config.isShowCameraFps()) {
-            text = "Cam.FPS: " + (cameraFps > 0 ? cameraFps : "-");
+            text.clear().append("Cam.FPS: ");
+            if (cameraFps > 0) {
+                text.append(cameraFps);
+            } else {
+                text.append('-');
+            }
             if (cameraFps < 20) {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
@@ -1099,7 +1120,7 @@ public class Osd {
         }
 
         if (config.isShowScreenFps()) {
-            text = "Scr.FPS: " + glFps;
+            text.clear().append("Scr.FPS: ").append(glFps);
             if (glFps < 20) {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
@@ -1109,7 +1130,7 @@ public class Osd {
         }
 
         if (config.isShowVideoBitrate()) {
-            text = formatBitRate(videoBitRate);
+            formatBitRate(text.clear(), videoBitRate);
             if (videoBitRate < 1.5f) {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
@@ -1120,7 +1141,12 @@ public class Osd {
 
         if (config.isShowPing()) {
             int ping = getPing();
-            text = ping != -1 ? "Ping: " + ping + "ms" : "Ping: ---";
+            text.clear().append("Ping: ");
+            if (ping != -1) {
+                text.append(ping).append("ms");
+            } else {
+                text.append("---");
+            }
             if (ping > 300 || ping == -1) {
                 glSprites.addSprite(SpritesMapping.ALERT, xOffset, y, spriteSize);
                 xOffset += glSprites.getSpriteWidth(SpritesMapping.ALERT, spriteSize) + spriteSpace;
@@ -1129,7 +1155,7 @@ public class Osd {
         }
 
         if (isVideoRecorded && config.isShowVideoRecordIndication()){
-            text = getTimeFormatted(videoRecordingTimeSec);
+            text.clear().appendTime(videoRecordingTimeSec);
             xOffset = screenWidth - rawRecButtonOffset * screenFactor + rawPhoneOsdHeight * screenFactor + spriteSpace;
             long currentTimestamp = System.currentTimeMillis();
             if (videoRecordingBlinkTimestamp == 0) videoRecordingBlinkTimestamp = currentTimestamp;
@@ -1141,40 +1167,139 @@ public class Osd {
         }
     }
 
+    private void drawVideoLatency(){
+        GlText glText = renderer.getGlTextObject();
+        if (glText == null || videoLatency == null) return;
+        String[] lines = videoLatency.getLastReport();
+        float textSize = 8.5f / osdCanvasFactor;
+        float x = 5 * screenFactor;
+        float lineHeight = 30 * screenFactor / osdCanvasFactor;
+        float y = osdHeightOffset + lineHeight * (lines.length + 1);
+        for (String line : lines) {
+            glText.addText(line, x, y, textSize);
+            y -= lineHeight;
+        }
+    }
+
     public void drawItems(){
+        drawnDataVersion = dataVersion;
+        lastDrawTs = System.currentTimeMillis();
+        groupIndex = 0;
+        int layout;
         if (activeItems == null) {
-            drawTelemetryDataWarning(0, "Awaiting OSD initialization...");
-            if (isDrawPhoneOsd()) drawPhoneOsd();
-            return;
-        }
-        if (fcInfo != null && fcInfo.getFcVariant() == FcInfo.FC_VARIANT_ARDUPILOT){
-            if (!apOsd1Enabled){
+            layout = 0;
+        } else if (fcInfo != null && fcInfo.getFcVariant() == FcInfo.FC_VARIANT_ARDUPILOT && !apOsd1Enabled) {
+            layout = 1;
+        } else if (wasArmed && !isArmed && osdStats.lastArmTime > 5) {
+            layout = 2;
+        } else if (isTelemetryDataReceived()) {
+            layout = 3;
+        } else {
+            layout = 4;
+        }
+        setDrawnLayout(layout);
+        if (config.isShowVideoLatency()) {
+            beginGroup();
+            drawVideoLatency();
+            endGroup();
+        }
+        switch (layout){
+            case 0:
+                drawTelemetryDataWarning(0, "Awaiting OSD initialization...");
+                break;
+            case 1:
                 drawTelemetryDataWarning(0, "OSD Screen1 is disabled.");
                 return;
-            }
-        }
-        boolean drawStatistic = wasArmed && !isArmed;
-        if (drawStatistic && osdStats.lastArmTime > 5){
-            osdStats.draw();
-        }else{
-            if (isTelemetryDataReceived()) {
+            case 2:
+                beginGroup();
+                osdStats.draw();
+                endGroup();
+                return;
+            case 3:
                 for (OsdItem item : activeItems) {
                     if (item == null) continue;
+                    beginGroup();
                     try {
                         item.draw();
                     } catch (Exception e) {
                         //
                     }
+                    endGroup();
                 }
-            } else {
+                break;
+            case 4:
                 drawTelemetryDataWarning(SpritesMapping.ALERT, "No telemetry data!");
-            }
-            if (isDrawPhoneOsd()) drawPhoneOsd();
+                break;
+        }
+        if (isDrawPhoneOsd()) {
+            beginGroup();
+            drawPhoneOsd();
+            endGroup();
         }
     }
 
     private void updateLastDataTimestamp(){
         lastDataTimestamp = System.currentTimeMillis();
+        invalidate();
+    }
+
+    public void invalidate(){
+        dataVersion++;
+    }
+
+    public long beginUpdate(){
+        return telemetryLock.writeLock();
+    }
+
+    public void endUpdate(long stamp){
+        telemetryLock.unlockWrite(stamp);
+    }
+
+    public long beginRead(){
+        return telemetryLock.tryOptimisticRead();
+    }
+
+    public boolean isReadValid(long stamp){
+        return telemetryLock.validate(stamp);
+    }
+
+    public boolean isChanged(){
+        return dataVersion != drawnDataVersion || System.currentTimeMillis() - lastDrawTs >= maxRetainMs;
+    }
+
+    // A group keeps the slots of its longest text, so a shorter value doesn't move the glyphs of the following groups.
+    private void beginGroup(){
+        GlText glText = renderer.getGlTextObject();
+        GlSprites glSprites = renderer.getGlSpritesObject();
+        groupTextStart = glText != null ? glText.getCount() : 0;
+        groupSpriteStart = glSprites != null ? glSprites.getCount() : 0;
+    }
+
+    private void endGroup(){
+        if (groupIndex == groupTextSlots.length) {
+            groupTextSlots = Arrays.copyOf(groupTextSlots, groupIndex * 2);
+            groupSpriteSlots = Arrays.copyOf(groupSpriteSlots, groupIndex * 2);
+        }
+        GlText glText = renderer.getGlTextObject();
+        if (glText != null) {
+            groupTextSlots[groupIndex] = Math.max(groupTextSlots[groupIndex], glText.getCount() - groupTextStart);
+            glText.padTo(groupTextStart + groupTextSlots[groupIndex]);
+        }
+        GlSprites glSprites = renderer.getGlSpritesObject();
+        if (glSprites != null) {
+            groupSpriteSlots[groupIndex] = Math.max(groupSpriteSlots[groupIndex], glSprites.getCount() - groupSpriteStart);
+            glSprites.padTo(groupSpriteStart + groupSpriteSlots[groupIndex]);
+        }
+        groupIndex++;
+    }
+
+    private void setDrawnLayout(int layout){
+        if (layout != drawnLayout || activeItems != drawnItems) {
+            Arrays.fill(groupTextSlots, 0);
+            Arrays.fill(groupSpriteSlots, 0);
+        }
+        drawnLayout = layout;
+        drawnItems = activeItems;
     }
 
     private boolean isTelemetryDataReceived(){
@@ -1186,37 +1311,45 @@ public class Osd {
         this.flyTime = flyTime;
         this.lastArmTime = lastArmTime;
         osdStats.setTimers(onTime, flyTime, lastArmTime);
+        invalidate();
     }
 
     public void setDronePhoneBatteryState(byte dronePhoneBatteryPercentage, boolean dronePhoneBatteryIsCharging){// DD_PHONE_BATTERY_STATE
         this.dronePhoneBatteryPercentage = dronePhoneBatteryPercentage;
         this.dronePhoneBatteryIsCharging = dronePhoneBatteryIsCharging;
+        invalidate();
     }
 
     public void setControlPhoneBatteryState(byte controlPhoneBatteryPercentage, boolean controlPhoneBatteryIsCharging){
         this.controlPhoneBatteryPercentage = controlPhoneBatteryPercentage;
         this.controlPhoneBatteryIsCharging = controlPhoneBatteryIsCharging;
+        invalidate();
     }
 
     public void setDroneNetworkState(int networkType, int rssi){// DD_NETWORK_STATE
         droneNetworkState = new NetworkState(networkType, rssi);
+        invalidate();
     }
 
     public void setControlNetworkState(NetworkState networkState){
         controlNetworkState = networkState;
+        invalidate();
     }
 
     public void setCameraFps(short cameraFps){// DD_CAMERA_FPS
         this.cameraFps = cameraFps;
+        invalidate();
     }
 
     public void setGlFps(short glFps){
         this.glFps = glFps;
+        invalidate();
     }
 
     public void setVideoBitRate(float videoBitRate){// DD_VIDEO_BIT_RATE
         this.videoBitRate = videoBitRate;
         osdStats.setBitRate(videoBitRate);
+        invalidate();
     }
 
     public void setVideoRecorderState(boolean isRecording, int recordingTimeSec){// DD_VIDEO_RECORDER_STATE
@@ -1224,6 +1357,7 @@ public class Osd {
         this.videoRecordingTimeSec = recordingTimeSec;
         if (!isRecording) videoRecordingBlinkTimestamp = 0;
         renderer.setRecButtonState(isRecording);
+        invalidate();
     }
 
     public void setPing(int pingMs){
@@ -1235,6 +1369,7 @@ public class Osd {
         this.pingMs = avgPing;
         lastPingTimestamp = System.currentTimeMillis();
         osdStats.setPing(avgPing);
+        invalidate();
     }
 
     private int getPing(){
@@ -1247,7 +1382,6 @@ public class Osd {
 
     public void setStatusBetaflight(short cycleTime, short i2cErrorCount, short sensorStatus, byte currentPidProfileIndex, short averageSystemLoad,
                                     byte[] modeFlags, int armingFlags, byte configStateFlags, short coreTemperatureCelsius){//MSP_STATUS
-        updateLastDataTimestamp();
         this.cycleTime = cycleTime & 0xFFFF;
         this.i2cErrorCount = i2cErrorCount & 0xFFFF;
         this.sensorStatus.sensorAcc = ((sensorStatus & 1) == 1);
@@ -1290,10 +1424,10 @@ public class Osd {
         activeBoxModes = FcCommon.getActiveBoxesBtfl(modeFlags, boxIds);
         isArmed = isArmedBoxModes();
         if (isArmed) wasArmed = true;
+        updateLastDataTimestamp();
     }
 
     public void setStatusInav(short cycleTime, short i2cErrorCount, short sensorStatus, byte configProfile){//MSP_STATUS
-        updateLastDataTimestamp();
         this.cycleTime = cycleTime & 0xFFFF;
         this.i2cErrorCount = i2cErrorCount & 0xFFFF;
         this.sensorStatus.sensorAcc = ((sensorStatus & 1) == 1);
@@ -1306,10 +1440,10 @@ public class Osd {
         this.sensorStatus.sensorTemp = ((sensorStatus >> 7 & 1) == 1);
         this.sensorStatus.hardwareFailure = ((sensorStatus >> 15 & 1) == 1);
         this.configProfile = configProfile;
+        updateLastDataTimestamp();
     }
 
     public void setInavStatus(short cycleTime, short i2cErrorCount, short sensorStatus, short averageSystemLoad, byte profiles, int armingFlags, int[] modeFlags) {//MSP2_INAV_STATUS
-        updateLastDataTimestamp();
         this.cycleTime = cycleTime & 0xFFFF;
         this.i2cErrorCount = i2cErrorCount & 0xFFFF;
         this.sensorStatus.sensorAcc = ((sensorStatus & 1) == 1);
@@ -1355,11 +1489,11 @@ public class Osd {
         activeBoxModes = FcCommon.getActiveBoxesInav(modeFlags, boxIds);
         isArmed = isArmedBoxModes();
         if (isArmed) wasArmed = true;
+        updateLastDataTimestamp();
     }
 
     public void setInavAnalog(byte batteryInfo, short voltage, short amperage, int power, int mahDrawn,
                               int mwhDrawn, int batteryRemainingCapacity, byte batteryPercentage, short rssi){//MSP2_INAV_ANALOG
-        updateLastDataTimestamp();
         batteryWasFull = ((batteryInfo & 1) == 1);
         batteryUsesCapacityThresholds = ((batteryInfo >> 1 & 1) == 1);
         byte state = (byte) (batteryInfo >> 2 & 3);
@@ -1378,10 +1512,10 @@ public class Osd {
         osdStats.setCurrent(this.amperage);
         osdStats.setUsedMah(this.mahDrawn);
         calculateMahPerKm(this.amperage, this.groundSpeed);
+        updateLastDataTimestamp();
     }
 
     public void setVtxConfig(byte band, byte channel, byte power, byte pitMode, short frequency, byte deviceIsReady, byte lowPowerDisarm){
-        updateLastDataTimestamp();
         if (fcInfo == null) return;
         if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_INAV) {
             if (band == 1) vtxBand = "A";
@@ -1404,10 +1538,10 @@ public class Osd {
         if (lowPowerDisarm >= 0 && lowPowerDisarm < FcCommon.VtxLowerPowerDisarm.values().length){
             vtxLowPowerDisarm = FcCommon.VtxLowerPowerDisarm.values()[lowPowerDisarm];
         }
+        updateLastDataTimestamp();
     }
 
     public void setBatteryState(byte cellCount, short capacity, short mahDrawn, short amperage, byte batteryState, short voltage) {//MSP_BATTERY_STATE
-        updateLastDataTimestamp();
         this.batteryCellCount = cellCount;
         this.capacity = capacity & 0xFFFF;
         this.mahDrawn = mahDrawn & 0xFFFF;
@@ -1418,14 +1552,17 @@ public class Osd {
         osdStats.setCurrent(this.amperage);
         osdStats.setUsedMah(this.mahDrawn);
         calculateMahPerKm(this.amperage, this.groundSpeed);
+        updateLastDataTimestamp();
     }
 
     public void setAnalog(short mahDrawn, short rssi, short amperage, short voltage) {//MSP_ANALOG
-        updateLastDataTimestamp();
         this.mahDrawn = mahDrawn & 0xFFFF;
         this.rssi = Math.round(rssi / (float) FcCommon.MAX_RSSI * 100f);
         this.amperage = amperage * 0.01f;
-        if (fcInfo == null) return;
+        if (fcInfo == null) {
+            updateLastDataTimestamp();
+            return;
+        }
         if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_BETAFLIGHT && voltage != 0) {
             this.voltage = (voltage & 0xFFFF) * 0.01f;
             osdStats.setBatteryVoltage(this.voltage);
@@ -1434,25 +1571,25 @@ public class Osd {
         osdStats.setCurrent(this.amperage);
         osdStats.setUsedMah(this.mahDrawn);
         calculateMahPerKm(this.amperage, this.groundSpeed);
+        updateLastDataTimestamp();
     }
 
     public void setAttitude(short roll, short pitch, short yaw) {//MSP_ATTITUDE
-        updateLastDataTimestamp();
         this.roll = roll * 0.1f;
         this.pitch = pitch * 0.1f;
         this.yaw = yaw;
+        updateLastDataTimestamp();
     }
 
     public void setAltitude(int altitude, short altVelocity, int altBaro) {//MSP_ALTITUDE
-        updateLastDataTimestamp();
         this.altitude = Math.round(altitude / 100f);
         this.altVelocity = altVelocity / 100f;
         this.altBaro = Math.round(altBaro / 100f);
         osdStats.setAltitude(this.altitude);
+        updateLastDataTimestamp();
     }
 
     public void setRawGps(byte fixType, byte numSat, int lat, int lon, short altGps, short groundSpeed, short groundCourse, short hdop, int traveledDistance){//MSP_RAW_GPS + traveledDistance
-        updateLastDataTimestamp();
         if (fixType >= 0 && fixType < FcCommon.GpsFixTypes.values().length) this.fixType = FcCommon.GpsFixTypes.values()[fixType];
         this.numSat = numSat & 0xFF;
         latDeg = lat / 10000000f;
@@ -1465,7 +1602,10 @@ public class Osd {
         osdStats.setSpeed(this.groundSpeed);
         osdStats.setTraveledDistance(traveledDistance);
         calculateMahPerKm(this.amperage, this.groundSpeed);
-        if (lat == 0 && lon == 0) return;
+        if (lat == 0 && lon == 0) {
+            updateLastDataTimestamp();
+            return;
+        }
         mapData.setDronePosition(latDeg, lonDeg, isArmed);
         if (isArmed){
             if (setInavAndBfHomePos){
@@ -1477,24 +1617,25 @@ public class Osd {
         }else{
             setInavAndBfHomePos = true;
         }
+        updateLastDataTimestamp();
     }
 
     public void setCompGps(short distanceToHome, short directionToHome, byte gpsHeartbeat) {//MSP_COMP_GPS
-        updateLastDataTimestamp();
         this.distanceToHome = distanceToHome & 0xFFFF;
         this.directionToHome = directionToHome;
         this.gpsHeartbeat = (gpsHeartbeat > 0);
         osdStats.setHomeDistance(this.distanceToHome);
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkMode(int customMode, boolean isArmed){
-        updateLastDataTimestamp();
         mavlinkCustomMode = customMode;
         if (fcInfo != null && fcInfo.getFcVariant() == FcInfo.FC_VARIANT_PX4){
             px4CustomModeStr = getPx4Mode(customMode);
         }
         this.isArmed = isArmed;
         if (isArmed) wasArmed = true;
+        updateLastDataTimestamp();
     }
 
     private String getPx4Mode(int customMode){
@@ -1567,27 +1708,26 @@ public class Osd {
     }
 
     public void setMavlinkSystemStatus(byte batteryCellCountDetected, int voltageBattery, byte batteryRemaining){
-        updateLastDataTimestamp();
         if (batteryCellCountDetected > 0) this.batteryCellCount = batteryCellCountDetected;
         if (voltageBattery != Utils.UINT16_MAX){
             this.voltage = voltageBattery / 1000f;
             osdStats.setBatteryVoltage(this.voltage);
         }
         if (batteryRemaining > 0) this.batteryPercentage = batteryRemaining;
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkStatusText(short severity, String message){
-        updateLastDataTimestamp();
         if (message == null || message.isEmpty()) return;
         for (MavlinkStatusText item : mavlinkMessages){
             if (item.message.equals(message)) return;
         }
         if (mavlinkMessages.size() > 5) mavlinkMessages.remove(0);
         mavlinkMessages.add(new MavlinkStatusText(severity, message));
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkBatteryStatus(short currentBattery, int currentConsumed, byte batteryRemaining, long faultBitmask){
-        updateLastDataTimestamp();
         if (currentBattery > 0) {
             this.amperage = currentBattery / 100f;
             osdStats.setCurrent(this.amperage);
@@ -1599,10 +1739,10 @@ public class Osd {
         }
         if (batteryRemaining > 0) this.batteryPercentage = batteryRemaining;
         this.mavlinkBatteryFaultBitmask = faultBitmask;
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkGpsRawInt(int fixType, int vel, int satellitesVisible){
-        updateLastDataTimestamp();
         if (fixType >= 0 && fixType < FcCommon.GpsFixTypesMavlink.values().length) {
             this.fixTypeMavlink = FcCommon.GpsFixTypesMavlink.values()[fixType];
         }
@@ -1614,10 +1754,10 @@ public class Osd {
         if (satellitesVisible != Utils.UINT8_MAX){
             this.numSat = satellitesVisible;
         }
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkGlobalPositionInt(int lat, int lon, int relativeAlt, short vz, int traveledDistance, int distanceToHome, short directionToHome) {
-        updateLastDataTimestamp();
         this.latDeg = lat / 10000000f;
         this.lonDeg = lon / 10000000f;
         this.altitude = Math.round(relativeAlt / 1000f);
@@ -1627,29 +1767,32 @@ public class Osd {
         this.directionToHome = directionToHome;
         osdStats.setTraveledDistance(traveledDistance);
         osdStats.setHomeDistance(distanceToHome);
-        if (lat == 0 && lon == 0) return;
+        if (lat == 0 && lon == 0) {
+            updateLastDataTimestamp();
+            return;
+        }
         mapData.setDronePosition(latDeg, lonDeg, isArmed);
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkHomePosition(int lat, int lon){
-        updateLastDataTimestamp();
         float latDeg = lat / 10000000f;
         float lonDeg = lon / 10000000f;
         this.homeLatDeg = latDeg;
         this.homeLonDeg = lonDeg;
         mapData.setHomePosition(homeLatDeg, homeLonDeg);
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkSystemTime(long timeBootMs, long flightTime, long armingTime){
-        updateLastDataTimestamp();
         this.onTime = Math.round(timeBootMs / 1000f);
         this.flyTime = Math.round(flightTime / 1000f);
         this.lastArmTime = Math.round(armingTime / 1000f);
         osdStats.setTimers(this.onTime, this.flyTime, this.lastArmTime);
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkRcChannels(int rssi){
-        updateLastDataTimestamp();
         if (fcInfo == null) return;
         if (rssi != Utils.UINT8_MAX){
             if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_ARDUPILOT) {
@@ -1659,21 +1802,22 @@ public class Osd {
             }
             osdStats.setRssi(this.rssi);
         }
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkScaledPressure(short temperature){
-        updateLastDataTimestamp();
         this.baroTemperatureCelsius = Math.round(temperature / 100f);
+        updateLastDataTimestamp();
     }
 
     public void setArduPilotVtxPower(short vtxPower){
-        updateLastDataTimestamp();
         this.vtxPower = vtxPower;
+        updateLastDataTimestamp();
     }
 
     public void setMavlinkVfrHud(int throttle){
-        updateLastDataTimestamp();
         this.throttle = throttle;
+        updateLastDataTimestamp();
     }
 
     private void initOsdItemsArduPilot(OsdConfig osdConfig) {
@@ -2037,6 +2181,7 @@ public class Osd {
         osdConfig = new OsdConfig(videoSystem, units, rssiAlarm, capacityWarning, timeAlarm, altAlarm, distAlarm, negAltAlarm, osdItems);
         initCanvasInav(videoSystem);
         initOsdItems(osdConfig);
+        invalidate();
     }
 
     public void setOsdConfigBetaflight(byte videoSystem, byte units, byte rssiAlarm, short capacityWarning, short altAlarm, short[] osdItems, byte[] osdStatItems,
@@ -2045,6 +2190,7 @@ public class Osd {
                 osdStatItems, osdTimerItems, osdWarningsCount, enabledWarnings, osdSelectedProfile, cameraFrameWidth, cameraFrameHeight);
         initCanvasBetaflight(videoSystem);
         initOsdItems(osdConfig);
+        invalidate();
     }
 
     public void setOsdConfigArduPilot(DataReader buffer){
@@ -2068,6 +2214,7 @@ public class Osd {
         osdConfig = new OsdConfig(videoSystem, units, msgTime, rssiAlarm, warnNumSat, warnBatVolt, warnAvgCellVolt, osdCellCount, osdItems);
         initCanvasArduPilot(videoSystem);
         initOsdItemsArduPilot(osdConfig);
+        invalidate();
     }
 
     private OsdConfig getDefaultPx4OsdConfig(){
@@ -2221,6 +2368,7 @@ public class Osd {
 
     public void setBoxIds(byte[] data){
         boxIds = FcCommon.getBoxIds(data);
+        invalidate();
     }
 
     public boolean isHasBoxIds(){
@@ -2231,6 +2379,7 @@ public class Osd {
 
     public void setBoxNames(byte[] data){
         boxNames = FcCommon.getBoxNames(data);
+        invalidate();
     }
 
     public void setBatteryConfig(short minCellVoltage, short maxCellVoltage, short warningCellVoltage){// MSP_BATTERY_CONFIG
@@ -2238,6 +2387,7 @@ public class Osd {
         this.maxCellVoltage = maxCellVoltage / 100f;
         this.warningCellVoltage = warningCellVoltage / 100f;
         hasBatteryConfig = true;
+        invalidate();
     }
 
     public boolean isHasBatteryConfig(){
@@ -2343,69 +2493,69 @@ public class Osd {
             int currentColl = 0;
             float x;
             float y = screenHeight - phoneOsdHeight + osdHeightOffset - startOffset;
-            String text = null;
+            TextBuilder text = textBuilder.clear();
             for (int i = 0; i < statsCount; i++) {
                 if (!statEnabled[i]) continue;
                 x = currentColl * collWidth + startOffset;
                 switch(i){
                     case 0:
                         if (onTime == 0) break;
-                        text = "On time: " + getTimeFormatted(onTime);
+                        text.append("On time: ").appendTime(onTime);
                         break;
                     case 1:
                         if (flyTime == 0) break;
-                        text = "Fly time: " + getTimeFormatted(flyTime);
+                        text.append("Fly time: ").appendTime(flyTime);
                         break;
                     case 2:
                         if (lastArmTime == 0) break;
-                        text = "Last arm time: " + getTimeFormatted(lastArmTime);
+                        text.append("Last arm time: ").appendTime(lastArmTime);
                         break;
                     case 3:
                         if (maxSpeed == 0) break;
-                        text = "Max speed: " + Math.round(maxSpeed) + " km/h";
+                        text.append("Max speed: ").append(Math.round(maxSpeed)).append(" km/h");
                         break;
                     case 4:
                         if (maxDistance == 0) break;
-                        text = "Max distance to home: " + formatDistance(maxDistance);
+                        formatDistance(text.append("Max distance to home: "), maxDistance);
                         break;
                     case 5:
                         if (traveledDistance == 0) break;
-                        text = "Total distance: " + formatDistance(traveledDistance);
+                        formatDistance(text.append("Total distance: "), traveledDistance);
                         break;
                     case 6:
                         if (minBatteryVoltage == -1) break;
-                        text = "Min battery voltage: " + formatVoltage(minBatteryVoltage);
+                        formatVoltage(text.append("Min battery voltage: "), minBatteryVoltage);
                         break;
                     case 7:
-                        text = "End battery voltage: " + formatVoltage(endBatteryVoltage);
+                        formatVoltage(text.append("End battery voltage: "), endBatteryVoltage);
                         break;
                     case 8:
                         if (minRssi == -1) break;
-                        text = "Min RSSI: " + minRssi + "%";
+                        text.append("Min RSSI: ").append(minRssi).append('%');
                         break;
                     case 9:
                         if (maxCurrent == 0) break;
-                        text = "Max current: " + formatAmperage(maxCurrent);
+                        formatAmperage(text.append("Max current: "), maxCurrent);
                         break;
                     case 10:
                         if (usedMah == 0) break;
-                        text = "Used mAh: " + usedMah + " mAh";
+                        text.append("Used mAh: ").append(usedMah).append(" mAh");
                         break;
                     case 11:
                         if (maxAltitude == 0) break;
-                        text = "Max altitude: " + maxAltitude + " m";
+                        text.append("Max altitude: ").append(maxAltitude).append(" m");
                         break;
                     case 12:
-                        text = "Max ping: " + maxPing + " ms";
+                        text.append("Max ping: ").append(maxPing).append(" ms");
                         break;
                     case 13:
                         if (minBitRate == -1) break;
-                        text = "Min bitrate: " + formatBitRate(minBitRate);
+                        formatBitRate(text.append("Min bitrate: "), minBitRate);
                         break;
                 }
-                if (text != null){
+                if (text.length() > 0){
                     glText.addText(text, x, y, textSize);
-                    text = null;
+                    text.clear();
                     currentColl++;
                     if (currentColl == statsColls){
                         currentColl = 0;
@@ -86,11 +86,16 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         setListPreferenceSummary(mavlinkUdpBridge);
         setListPreferenceSummary(findPreference("bitrateLimit"));
         setListPreferenceSummary(findPreference("audioStreamBitrate"));
+        setListPreferenceSummary(findPreference("audioStreamCodec"));
         setListPreferenceSummary(findPreference("recordedAudioBitrate"));
         setListPreferenceSummary(findPreference("recordedVideoBitrate"));
         setListPreferenceSummary(findPreference("videoRecorderCodec"));
+        setListPreferenceSummary(findPreference("recorderSyncFragments"));
+        setListPreferenceSummary(findPreference("preRollSeconds"));
+        setListPreferenceSummary(findPreference("viewerLayerBitrate"));
         setListPreferenceSummary(findPreference("telemetryRefreshRate"));
         setListPreferenceSummary(findPreference("rcRefreshRate"));
+        setListPreferenceSummary(findPreference("replaySpeed"));
         setListPreferenceSummary(findPreference("serialBaudRate"));
         setEditTextPreferenceSummary(findPreference("nativeSerialPort"));
         SwitchPreferenceCompat useNativeSerialPort = findPreference("useNativeSerialPort");
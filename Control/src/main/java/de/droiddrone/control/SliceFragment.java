@@ -0,0 +1,77 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.control;
+
+import de.droiddrone.common.DataReader;
+import de.droiddrone.common.UdpCommon;
+
+// Header and data of one VideoSlice packet.
+public class SliceFragment {
+    public final short frameNum;
+    public final int sliceIndex;
+    public final byte sliceFlags;
+    public final int layerId;// -1 if untagged
+    public final short baseFrameNum;
+    public final short refFrameNum;// long-term reference of a recovery frame, 0 for other frames
+    public final int offset;
+    public final int sliceSize;// only sent with the first fragment of a slice
+    public final byte[] data;
+
+    private SliceFragment(short frameNum, int sliceIndex, byte sliceFlags, int layerId, short baseFrameNum, short refFrameNum,
+                          int offset, int sliceSize, byte[] data){
+        this.frameNum = frameNum;
+        this.sliceIndex = sliceIndex;
+        this.sliceFlags = sliceFlags;
+        this.layerId = layerId;
+        this.baseFrameNum = baseFrameNum;
+        this.refFrameNum = refFrameNum;
+        this.offset = offset;
+        this.sliceSize = sliceSize;
+        this.data = data;
+    }
+
+    // Reads the packet after its name, returns null if the packet is cut.
+    public static SliceFragment read(DataReader buffer){
+        short frameNum = buffer.readShort();
+        int sliceIndex = buffer.readUnsignedByteAsInt();
+        byte sliceFlags = buffer.readByte();
+        int layerId = -1;
+        short baseFrameNum = 0;
+        if ((sliceFlags & UdpCommon.sliceFlagTemporalLayer) != 0) {
+            layerId = buffer.readUnsignedByteAsInt();
+            baseFrameNum = buffer.readShort();
+        }
+        short refFrameNum = 0;
+        if ((sliceFlags & UdpCommon.sliceFlagRecovery) != 0) refFrameNum = buffer.readShort();
+        int offset = buffer.readInt();
+        int sliceSize = 0;
+        if (offset == 0) sliceSize = buffer.readInt();
+        int dataSize = buffer.getRemaining();
+        byte[] data = new byte[dataSize];
+        if (buffer.read(data, 0, dataSize) != dataSize) return null;
+        return new SliceFragment(frameNum, sliceIndex, sliceFlags, layerId, baseFrameNum, refFrameNum, offset, sliceSize, data);
+    }
+
+    public boolean isKeyFrame(){
+        return (sliceFlags & UdpCommon.sliceFlagKeyFrame) != 0;
+    }
+
+    public boolean isLastSlice(){
+        return (sliceFlags & UdpCommon.sliceFlagLast) != 0;
+    }
+}
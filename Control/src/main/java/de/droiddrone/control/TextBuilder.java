@@ -0,0 +1,133 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.control;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+// Reusable text buffer for values drawn every frame, numbers are written without temporary objects.
+public class TextBuilder implements CharSequence {
+    private static final long[] powersOf10 = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+    private char[] chars;
+    private int length;
+
+    public TextBuilder(int capacity) {
+        chars = new char[capacity];
+    }
+
+    public TextBuilder clear(){
+        length = 0;
+        return this;
+    }
+
+    public TextBuilder append(char c){
+        ensureCapacity(length + 1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public TextBuilder append(CharSequence text){
+        if (text == null) return this;
+        int textLength = text.length();
+        ensureCapacity(length + textLength);
+        for (int i = 0; i < textLength; i++) {
+            chars[length++] = text.charAt(i);
+        }
+        return this;
+    }
+
+    public TextBuilder append(long value){
+        return append(value, 1);
+    }
+
+    // Zero padded to minDigits, like %02d.
+    public TextBuilder append(long value, int minDigits){
+        if (value < 0) {
+            append('-');
+            if (value == Long.MIN_VALUE) return append("9223372036854775808");
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) digits++;
+        if (digits < minDigits) digits = minDigits;
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    // Fixed point with the given number of decimals (0..8), like DecimalFormat("0.00").
+    public TextBuilder appendFixed(float value, int decimals){
+        double absValue = Math.abs((double) value);
+        long scale = powersOf10[decimals];
+        long scaled = (long) Math.rint(absValue * scale);
+        if (value < 0 && scaled != 0) append('-');
+        append(scaled / scale);
+        if (decimals > 0) {
+            append('.');
+            append(scaled % scale, decimals);
+        }
+        return this;
+    }
+
+    // Up to maxDecimals with trailing zeros removed but at least one decimal, like Float.toString for short values.
+    public TextBuilder appendDecimal(float value, int maxDecimals){
+        appendFixed(value, maxDecimals);
+        if (maxDecimals == 0) return append(".0");
+        while (chars[length - 1] == '0' && chars[length - 2] != '.') length--;
+        return this;
+    }
+
+    // mm:ss
+    public TextBuilder appendTime(int timeSec){
+        append(timeSec / 60, 2);
+        append(':');
+        return append(timeSec % 60, 2);
+    }
+
+    private void ensureCapacity(int capacity){
+        if (capacity > chars.length) chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
@@ -17,21 +17,28 @@
 
 package de.droiddrone.control;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 
+import de.droiddrone.common.ClockOffset;
 import de.droiddrone.common.DataReader;
 import de.droiddrone.common.FcCommon;
 import de.droiddrone.common.FcInfo;
+import de.droiddrone.common.FlightLog;
 import de.droiddrone.common.Log;
 import de.droiddrone.common.MediaCodecBuffer;
+import de.droiddrone.common.PacketSource;
 import de.droiddrone.common.ReceiverBuffer;
 import de.droiddrone.common.SavedPacket;
 import de.droiddrone.common.SettingsCommon;
+import de.droiddrone.common.TelemetryDelta;
 import de.droiddrone.common.UdpCommon;
 import de.droiddrone.common.UdpPacketData;
 import de.droiddrone.common.UdpSender;
@@ -49,6 +56,10 @@ public class Udp {
     private Thread receiverThread;
     private final byte[] receiverBuf = new byte[UdpCommon.packetLength];
     private final HashMap<Short, FrameFragments> receivedFrames = new HashMap<>();
+    private FrameSlices openSlicedFrame;
+    private byte[] heldSlice;
+    private final ByteArrayOutputStream joinedSlices = new ByteArrayOutputStream();
+    private short lastSlicedFrameNum;
     private int threadsId = 0;
     private final Decoder decoder;
     private final Osd osd;
@@ -57,8 +68,16 @@ public class Udp {
     private long lastFrameReceivedTs;
     private long lastKeyFrameReceivedTs;
     private long processBitRateChangeTs;
+    private int reportFramesCount, reportLostFramesCount;
     private long wrongFramesTs;
     private long changeBitRatePauseTs;
+    private short lastCompletedFrameNum, lastIntactFrameNum, lastBaseFrameNum;
+    private boolean isKeyFrameNeeded;
+    private boolean isRecoveryFailed;
+    private final BitSet intactFrames = new BitSet(Short.MAX_VALUE + 1);// decoded intact since the last key frame
+    private long lastKeyFrameRequestTs;
+    private final int minKeyFrameRequestIntervalMs = 100;
+    private final int defaultKeyFrameRequestIntervalMs = 500;
     private UdpSender udpSender;
     private ReceiverBuffer receiverBuffer;
     private final MainActivity activity;
@@ -71,6 +90,15 @@ public class Udp {
     private int pingMs;
     private long lastPingTimestamp;
     private int cameraFps;
+    private final VideoLatency videoLatency = new VideoLatency();
+    private final ClockOffset droneClockOffset = new ClockOffset();
+    private final TelemetryDelta telemetryDelta = new TelemetryDelta();
+    private final ByteArrayOutputStream telemetryMessages = new ByteArrayOutputStream();
+    private final DataOutputStream telemetryMessagesStream = new DataOutputStream(telemetryMessages);
+    private volatile FlightLog flightLog;
+    private PacketSource packetSource;
+    private volatile boolean isReplay;
+    private final byte[] frameStatsRecord = new byte[4];
 
     public Udp(Config config, Decoder decoder, Osd osd, Rc rc, MainActivity activity, MavlinkUdpBridge mavlinkUdpBridge) {
         this.config = config;
@@ -83,6 +111,8 @@ public class Udp {
         this.rc = rc;
         this.activity = activity;
         this.mavlinkUdpBridge = mavlinkUdpBridge;
+        decoder.setVideoLatency(videoLatency);
+        osd.setVideoLatency(videoLatency);
     }
 
     public boolean initialize() {
@@ -101,6 +131,10 @@ public class Udp {
             udpSender = new UdpSender(socket);
             udpSender.connect(destIp, port);
             receiverBuffer = new ReceiverBuffer(udpSender, false, key, key);
+            packetSource = receiverBuffer;
+            droneClockOffset.reset();
+            telemetryDelta.reset();
+            videoLatency.setClockOffsets(droneClockOffset, receiverBuffer.getRemoteClockOffset());
             receiverPacket = new DatagramPacket(receiverBuf, receiverBuf.length);
             wrongFramesCount = 0;
             wrongFramesTs = System.currentTimeMillis();
@@ -133,6 +167,43 @@ public class Udp {
         }
     }
 
+    // Feeds processData from the replay instead of the socket, nothing is sent.
+    public void initializeReplay(FlightLogReplay replay){
+        packetSource = replay;
+        isReplay = true;
+        droneClockOffset.reset();
+        telemetryDelta.reset();
+        Thread bufferThread = new Thread(bufferRun);
+        bufferThread.setDaemon(false);
+        bufferThread.setName("bufferThread");
+        bufferThread.start();
+    }
+
+    public boolean isReplay(){
+        return isReplay;
+    }
+
+    public void setFlightLog(FlightLog flightLog){
+        this.flightLog = flightLog;
+    }
+
+    private static boolean isMediaPacket(byte packetName){
+        switch (packetName){
+            case UdpCommon.VideoInitialFrame:
+            case UdpCommon.VideoFrame:
+            case UdpCommon.KeyFrame:
+            case UdpCommon.TemporalLayerFrame:
+            case UdpCommon.RecoveryFrame:
+            case UdpCommon.VideoSlice:
+            case UdpCommon.VideoFrameTiming:
+            case UdpCommon.AudioInitialFrame:
+            case UdpCommon.AudioFrame:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public boolean isVideoInitialFrameReceived(){
         return videoInitialFrameReceived;
     }
@@ -167,15 +238,16 @@ public class Udp {
     private final Runnable bufferRun = new Runnable() {
         public void run() {
             final int id = threadsId;
+            final PacketSource source = packetSource;
             log("Start buffer thread - OK");
-            while (socket != null && !socket.isClosed() && id == threadsId) {
+            while (id == threadsId && !source.isFinished()) {
                 SavedPacket packet = null;
                 try {
                     do{
-                        packet = receiverBuffer.getNextPacket();
+                        packet = source.getNextPacket();
                         if (packet != null) processData(packet);
                     }while (packet != null);
-                    receiverBuffer.processTimer();
+                    source.processTimer();
                     Thread.sleep(1);
                 } catch (Exception e) {
                     int packetName = -1;
@@ -189,11 +261,13 @@ public class Udp {
     private final Runnable pingRun = new Runnable() {
         public void run() {
             final int id = threadsId;
+            int counter = 0;
             while (id == threadsId) {
                 try {
                     if (isConnected()) {
                         if (isViewer) {
                             udpSender.sendPingForViewer();
+                            if (counter++ % 2 == 0) sendReceiverReport();
                         } else {
                             udpSender.sendPing(true);
                         }
@@ -209,16 +283,30 @@ public class Udp {
     private void processData(SavedPacket packet) {
         DataReader buffer = new DataReader(packet.data, true);
         byte packetName = buffer.readByte();
+        FlightLog currentLog = flightLog;
+        if (currentLog != null && (config.isFlightLogVideo() || !isMediaPacket(packetName))) {
+            currentLog.append(FlightLog.recordUdpPacket, packet.data, 0, packet.data.length);
+        }
         if (UdpCommon.isPacketNumbered(packetName)) {
             short num = buffer.readShort();
         }
         switch (packetName) {
             case UdpCommon.VideoFrame:
             case UdpCommon.KeyFrame:
+            case UdpCommon.TemporalLayerFrame:
+            case UdpCommon.RecoveryFrame:
             {
                 if (!decoder.isVideoDecoderStarted()) break;
                 boolean isKeyFrame = (packetName == UdpCommon.KeyFrame);
                 short frameNum = buffer.readShort();
+                int layerId = -1;
+                short baseFrameNum = 0;
+                short refFrameNum = 0;
+                if (packetName == UdpCommon.RecoveryFrame) refFrameNum = buffer.readShort();
+                if (packetName == UdpCommon.TemporalLayerFrame) {
+                    layerId = buffer.readUnsignedByteAsInt();
+                    baseFrameNum = buffer.readShort();
+                }
                 int offset = buffer.readInt();
                 int frameSize = 0;
                 if (offset == 0) frameSize = buffer.readInt();
@@ -226,12 +314,15 @@ public class Udp {
                 byte[] buf = new byte[dataSize];
                 int read = buffer.read(buf, 0, dataSize);
                 if (read == dataSize) {
+                    videoLatency.onFragmentReceived(frameNum, packet.timestampCreated);
                     if (dataSize == frameSize) {
                         processBitRateChange(isKeyFrame);
+                        processFrameContinuity(frameNum, isKeyFrame, false, layerId, baseFrameNum, refFrameNum);
+                        videoLatency.onFrameCompleted(frameNum, packet.timestampCreated, System.currentTimeMillis());
                         if (isKeyFrame){
-                            decoder.videoInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_KEY_FRAME, buf));
+                            decoder.videoInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_KEY_FRAME, buf, packet.timestampCreated));
                         }else{
-                            decoder.videoInputBuffer.offer(new MediaCodecBuffer(buf));
+                            decoder.videoInputBuffer.offer(new MediaCodecBuffer(0, buf, packet.timestampCreated));
                         }
                         break;
                     }
@@ -251,10 +342,12 @@ public class Udp {
                         byte[] frameData = frame.getFrame();
                         if (frameData != null && frameData.length > 0) {
                             processBitRateChange(isKeyFrame);
+                            processFrameContinuity(frameNum, frame.isKeyFrame, !frame.isCompleted, layerId, baseFrameNum, refFrameNum);
+                            videoLatency.onFrameCompleted(frameNum, frame.timestamp, System.currentTimeMillis());
                             if (frame.isKeyFrame){
-                                decoder.videoInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_KEY_FRAME, frameData));
+                                decoder.videoInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_KEY_FRAME, frameData, frame.timestamp));
                             }else{
-                                decoder.videoInputBuffer.offer(new MediaCodecBuffer(frameData));
+                                decoder.videoInputBuffer.offer(new MediaCodecBuffer(0, frameData, frame.timestamp));
                             }
                         } else {
                             if (isKeyFrame){
@@ -288,6 +381,41 @@ public class Udp {
                 }
                 break;
             }
+            case UdpCommon.VideoSlice:
+            {
+                if (!decoder.isVideoDecoderStarted()) break;
+                SliceFragment fragment = SliceFragment.read(buffer);
+                if (fragment == null) break;
+                short frameNum = fragment.frameNum;
+                videoLatency.onFragmentReceived(frameNum, packet.timestampCreated);
+                FrameSlices frame = openSlicedFrame;
+                if (frame == null || frame.frameNum != frameNum) {
+                    if ((short) (frameNum - lastSlicedFrameNum) <= 0) break;// late fragment of a closed frame
+                    if (frame != null) closeSlicedFrame(frame);
+                    frame = new FrameSlices(frameNum, fragment.isKeyFrame(), fragment.layerId, fragment.baseFrameNum, fragment.refFrameNum);
+                    openSlicedFrame = frame;
+                    lastSlicedFrameNum = frameNum;
+                }
+                frame.putFragment(fragment);
+                byte[] slice = frame.pollCompletedSlice();
+                while (slice != null) {
+                    offerSlice(frame, slice);
+                    slice = frame.pollCompletedSlice();
+                }
+                if (frame.isAllSlicesPolled()) closeSlicedFrame(frame);
+                break;
+            }
+            case UdpCommon.VideoFrameTiming: {
+                short frameNum = buffer.readShort();
+                long captureTs = buffer.readLong();
+                int encoderOutputDelta = buffer.readInt();
+                int firstSendDelta = buffer.readInt();
+                int lastSendDelta = buffer.readInt();
+                long relayTs = 0;
+                if (buffer.getRemaining() >= 8) relayTs = buffer.readLong();
+                videoLatency.onFrameTiming(frameNum, captureTs, encoderOutputDelta, firstSendDelta, lastSendDelta, relayTs);
+                break;
+            }
             case UdpCommon.VideoInitialFrame: {
                 short width = buffer.readShort();
                 short height = buffer.readShort();
@@ -305,6 +433,12 @@ public class Udp {
                         activity.showGlFragment(true);
                         lastFrameReceivedTs = System.currentTimeMillis() + 500;
                         lastKeyFrameReceivedTs = lastFrameReceivedTs;
+                        lastCompletedFrameNum = 0;
+                        lastIntactFrameNum = 0;
+                        lastBaseFrameNum = 0;
+                        isKeyFrameNeeded = true;
+                        isRecoveryFailed = false;
+                        intactFrames.clear();
                         decoder.setVideoInitialFrame(buf);
                         Thread t1 = new Thread(() -> decoder.initializeVideo(isHevc, width, height, isFrontCamera));
                         t1.start();
@@ -318,14 +452,15 @@ public class Udp {
                 int sampleRate = buffer.readInt();
                 byte channelCount = buffer.readByte();
                 byte encoding = buffer.readByte();
+                int codec = buffer.readUnsignedByteAsInt();
                 int dataSize = buffer.getRemaining();
                 byte[] buf = new byte[dataSize];
                 int read = buffer.read(buf, 0, dataSize);
                 if (read == dataSize) {
-                    if (decoder.isAudioDecoderStarted()) break;
+                    if (decoder.isAudioDecoderStarted() && decoder.getAudioCodec() == codec) break;
                     decoder.audioInputBuffer.clear();
-                    decoder.audioInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_CODEC_CONFIG, buf));
-                    decoder.initializeAudio(sampleRate, channelCount, encoding);
+                    if (codec == SettingsCommon.AudioStreamCodec.AAC) decoder.audioInputBuffer.offer(new MediaCodecBuffer(Decoder.BUFFER_FLAG_CODEC_CONFIG, buf));
+                    decoder.initializeAudio(sampleRate, channelCount, encoding, codec, buf);
                 }
                 break;
             }
@@ -347,7 +482,12 @@ public class Udp {
                 byte apiVersionMinor = buffer.readByte();
                 byte platformType = buffer.readByte();
                 fcInfo = new FcInfo(fcVariant, fcVersionMajor, fcVersionMinor, fcVersionPatchLevel, apiProtocolVersion, apiVersionMajor, apiVersionMinor, platformType);
-                osd.initialize(fcInfo);
+                long stamp = osd.beginUpdate();
+                try {
+                    osd.initialize(fcInfo);
+                } finally {
+                    osd.endUpdate(stamp);
+                }
                 break;
             }
             case UdpCommon.TelemetryData:{
@@ -359,9 +499,20 @@ public class Udp {
                 boolean toEndPoint = buffer.readBoolean();
                 long time = buffer.readLong();
                 if (toEndPoint){
-                    int ping = (int) (System.currentTimeMillis() - time);
+                    long current = System.currentTimeMillis();
+                    int ping = (int) (current - time);
                     setPing(ping);
-                    osd.setPing(ping);
+                    if (currentLog != null) currentLog.appendInt(FlightLog.recordPing, ping);
+                    long stamp = osd.beginUpdate();
+                    try {
+                        osd.setPing(ping);
+                    } finally {
+                        osd.endUpdate(stamp);
+                    }
+                    if (buffer.getRemaining() >= 9) {
+                        buffer.readByte();// target
+                        droneClockOffset.addSample(time, buffer.readLong(), current);
+                    }
                 }
                 break;
             }
@@ -406,7 +557,7 @@ public class Udp {
         if (current - changeBitRatePauseTs > 2000) {
             if (wrongFramesCount > Math.round(getCameraFps() / 30f)
                     || current > lastFrameReceivedTs + 150
-                    || current > lastKeyFrameReceivedTs + 1500
+                    || !config.isIntraRefresh() && current > lastKeyFrameReceivedTs + 5000
                     || getPing() == -1 || getPing() > 300) {
                 wrongFramesTs = current;
                 wrongFramesCount = 0;
@@ -426,11 +577,150 @@ public class Udp {
         }
     }
 
+    // A decoder start or a broken frame asks the drone for a key frame instead of waiting for the next scheduled one.
+    // Tagged frames only need their base layer frame, gaps left by dropped enhancement layer frames are fine.
+    // A recovery frame only repairs the picture if its long-term reference was decoded intact here.
+    private void processFrameContinuity(short frameNum, boolean isKeyFrame, boolean isDamaged, int layerId, short baseFrameNum, short refFrameNum){
+        boolean isTagged = layerId >= 0 && !isKeyFrame;
+        boolean isFrameLost;
+        if (isTagged) {
+            isFrameLost = lastBaseFrameNum != 0 && baseFrameNum != lastBaseFrameNum;
+        } else {
+            isFrameLost = lastCompletedFrameNum != 0 && frameNum != lastCompletedFrameNum + 1
+                    && !(frameNum == 1 && lastCompletedFrameNum == Short.MAX_VALUE);
+        }
+        if (isViewer) countReceivedFrame(frameNum, isDamaged, isTagged && !isFrameLost);
+        FlightLog currentLog = flightLog;
+        if (currentLog != null) {
+            frameStatsRecord[0] = (byte) (frameNum >> 8);
+            frameStatsRecord[1] = (byte) frameNum;
+            frameStatsRecord[2] = (byte) ((isKeyFrame ? FlightLog.frameFlagKeyFrame : 0) | (isDamaged ? FlightLog.frameFlagDamaged : 0)
+                    | (isFrameLost ? FlightLog.frameFlagLost : 0));
+            frameStatsRecord[3] = (byte) layerId;
+            currentLog.append(FlightLog.recordFrameStats, frameStatsRecord, 0, frameStatsRecord.length);
+        }
+        if (isKeyFrame) {
+            intactFrames.clear();
+        } else {
+            clearPassedFrames(frameNum);
+        }
+        boolean isRecovered = refFrameNum != 0 && intactFrames.get(refFrameNum);
+        lastCompletedFrameNum = frameNum;
+        if (layerId <= 0) lastBaseFrameNum = frameNum;
+        if ((isKeyFrame || isRecovered) && !isDamaged) {
+            isKeyFrameNeeded = false;
+            if (isKeyFrame) isRecoveryFailed = false;
+            lastIntactFrameNum = frameNum;
+            intactFrames.set(frameNum);
+            return;
+        }
+        // the reference is missing here, the next request asks for a real key frame
+        if (refFrameNum != 0 && !isDamaged) isRecoveryFailed = true;
+        // nothing references a damaged enhancement layer frame
+        if (isFrameLost || isDamaged && layerId <= 0 || refFrameNum != 0) isKeyFrameNeeded = true;
+        if (isKeyFrameNeeded) {
+            sendRequestKeyFrame();
+        } else {
+            lastIntactFrameNum = frameNum;
+            intactFrames.set(frameNum);
+        }
+    }
+
+    // Frame numbers wrap, so every number passed since the last completed frame loses its old state.
+    private void clearPassedFrames(short frameNum){
+        int count = frameNum - lastCompletedFrameNum;
+        if (count <= 0) count += Short.MAX_VALUE;
+        if (lastCompletedFrameNum == 0 || count > 1000) {
+            intactFrames.clear();
+            return;
+        }
+        int num = lastCompletedFrameNum;
+        for (int i = 0; i < count; i++) {
+            num = num == Short.MAX_VALUE ? 1 : num + 1;
+            intactFrames.clear(num);
+        }
+    }
+
+    // Frames dropped on purpose by the relay are not counted as lost.
+    private synchronized void countReceivedFrame(short frameNum, boolean isDamaged, boolean isGapExpected){
+        int missed = 0;
+        if (lastCompletedFrameNum != 0 && !isGapExpected) {
+            missed = frameNum - lastCompletedFrameNum - 1;
+            if (missed < 0) missed += Short.MAX_VALUE;
+            if (missed > 1000) missed = 0;
+        }
+        reportFramesCount += missed + 1;
+        reportLostFramesCount += missed + (isDamaged ? 1 : 0);
+    }
+
+    // Lets the relay pick the stream layer for this viewer.
+    private synchronized void sendReceiverReport(){
+        if (udpSender == null) return;
+        try {
+            UdpPacketData packetData = new UdpPacketData(UdpCommon.ReceiverReport);
+            packetData.daos.writeShort(Math.min(reportFramesCount, Short.MAX_VALUE));
+            packetData.daos.writeShort(Math.min(reportLostFramesCount, Short.MAX_VALUE));
+            udpSender.sendPacket(packetData.getData());
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("sendReceiverReport error: " + e);
+        }
+        reportFramesCount = 0;
+        reportLostFramesCount = 0;
+    }
+
+    // The answer can't arrive earlier than one round trip plus the encoder delay, repeating sooner only adds key frames.
+    private int getKeyFrameRequestIntervalMs(){
+        int ping = getPing();
+        if (ping <= 0) return defaultKeyFrameRequestIntervalMs;
+        int frameTimeMs = 1000 / Math.max(getCameraFps(), 1);
+        return Math.max(ping + frameTimeMs * 2, minKeyFrameRequestIntervalMs);
+    }
+
     private void setPing(int pingMs){
         this.pingMs = pingMs;
         lastPingTimestamp = System.currentTimeMillis();
     }
 
+    // The last available slice is held back until it is known whether it closes the frame.
+    // Without decoder support for partial frames the slices are joined and queued when the frame is closed.
+    private void offerSlice(FrameSlices frame, byte[] slice){
+        if (!decoder.isPartialFrameSupported()) {
+            joinedSlices.write(slice, 0, slice.length);
+            return;
+        }
+        if (heldSlice != null) {
+            int flags = Decoder.BUFFER_FLAG_PARTIAL_FRAME | (frame.isKeyFrame ? Decoder.BUFFER_FLAG_KEY_FRAME : 0);
+            decoder.videoInputBuffer.offer(new MediaCodecBuffer(flags, heldSlice, frame.timestamp));
+        }
+        heldSlice = slice;
+    }
+
+    private void closeSlicedFrame(FrameSlices frame){
+        byte[] slice = frame.pollAnySlice();
+        while (slice != null) {
+            offerSlice(frame, slice);
+            slice = frame.pollAnySlice();
+        }
+        if (joinedSlices.size() > 0) {
+            heldSlice = joinedSlices.toByteArray();
+            joinedSlices.reset();
+        }
+        if (openSlicedFrame == frame) openSlicedFrame = null;
+        int lostSlices = frame.getLostSlicesCount();
+        if (lostSlices > 0) wrongFramesCount += frame.isKeyFrame ? lostSlices * 5 : lostSlices;
+        if (heldSlice == null) return;
+        if (lostSlices == 0) processBitRateChange(frame.isKeyFrame);
+        processFrameContinuity(frame.frameNum, frame.isKeyFrame, lostSlices > 0, frame.layerId, frame.baseFrameNum, frame.refFrameNum);
+        videoLatency.onFrameCompleted(frame.frameNum, frame.timestamp, System.currentTimeMillis());
+        decoder.videoInputBuffer.offer(new MediaCodecBuffer(frame.isKeyFrame ? Decoder.BUFFER_FLAG_KEY_FRAME : 0, heldSlice, frame.timestamp));
+        heldSlice = null;
+    }
+
+    public VideoLatency getVideoLatency(){
+        return videoLatency;
+    }
+
     public int getPing(){
         if (System.currentTimeMillis() - lastPingTimestamp > 2000){
             return -1;
@@ -439,7 +729,26 @@ public class Udp {
         }
     }
 
+    // All messages of one packet are published to the GL thread at once.
     private void processTelemetryData(DataReader buffer){
+        telemetryMessages.reset();
+        try {
+            telemetryDelta.decode(buffer, telemetryMessagesStream);
+        } catch (Exception e) {
+            log("processTelemetryData error: " + e);
+            e.printStackTrace();
+            return;
+        }
+        if (telemetryMessages.size() == 0) return;
+        long stamp = osd.beginUpdate();
+        try {
+            readTelemetryMessages(new DataReader(telemetryMessages.toByteArray(), true));
+        } finally {
+            osd.endUpdate(stamp);
+        }
+    }
+
+    private void readTelemetryMessages(DataReader buffer){
         while (buffer.getRemaining() > 0){
             short code = buffer.readShort();
             if (fcInfo == null && code < FcCommon.DD_TIMERS) return;
@@ -706,6 +1015,17 @@ public class Udp {
                     osd.setDroneNetworkState(networkType, rssi);
                     break;
                 }
+                case FcCommon.DD_DROPPED_FRAMES: {
+                    int videoStream = buffer.readInt();
+                    int videoRecorder = buffer.readInt();
+                    int audioStream = buffer.readInt();
+                    videoLatency.setDroneDroppedFrames(videoStream, videoRecorder, audioStream);
+                    break;
+                }
+                case FcCommon.DD_CAMERA_FRAME_STATS: {
+                    videoLatency.setCameraFrameStats(buffer);
+                    break;
+                }
                 case FcCommon.DD_AP_OSD_CONFIG: {
                     osd.setOsdConfigArduPilot(buffer);
                     break;
@@ -795,6 +1115,7 @@ public class Udp {
     }
 
     public void sendConnect(){
+        if (udpSender == null) return;
         if (isViewer){
             udpSender.sendConnect(2, key, SettingsCommon.versionCompatibleCode);
         }else{
@@ -806,7 +1127,7 @@ public class Udp {
         Thread th = new Thread(() -> {
             try {
                 UdpPacketData packetData = new UdpPacketData(UdpCommon.Disconnect);
-                udpSender.sendPacket(packetData.getData());
+                if (udpSender != null) udpSender.sendPacket(packetData.getData());
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.log("sendDisconnect error: " + e);
@@ -821,17 +1142,34 @@ public class Udp {
     }
 
     public void sendChangeBitRate(boolean increase){
-        if (isViewer) return;
+        if (isViewer || udpSender == null) return;
         try {
             UdpPacketData packetData = new UdpPacketData(UdpCommon.ChangeBitRate);
             packetData.daos.writeBoolean(increase);
             udpSender.sendPacket(packetData.getData());
+            FlightLog currentLog = flightLog;
+            if (currentLog != null) currentLog.appendInt(FlightLog.recordBitRate, increase ? 1 : -1);
         } catch (Exception e) {
             e.printStackTrace();
             log("sendChangeBitRate error: " + e);
         }
     }
 
+    private void sendRequestKeyFrame(){
+        if (udpSender == null) return;
+        long current = System.currentTimeMillis();
+        if (current - lastKeyFrameRequestTs < getKeyFrameRequestIntervalMs()) return;
+        lastKeyFrameRequestTs = current;
+        try {
+            UdpPacketData packetData = new UdpPacketData(UdpCommon.RequestKeyFrame);
+            packetData.daos.writeShort(isRecoveryFailed ? 0 : lastIntactFrameNum);
+            udpSender.sendPacket(packetData.getData());
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("sendRequestKeyFrame error: " + e);
+        }
+    }
+
     private void sendRcFrame(short[] rcChannels) {
         try {
             if (rcChannels == null || isViewer) return;
@@ -841,7 +1179,10 @@ public class Udp {
             for (short rcChannel : rcChannels) {
                 packetData.daos.writeShort(rcChannel);
             }
-            udpSender.sendPacket(packetData.getData());
+            byte[] data = packetData.getData();
+            udpSender.sendPacket(data);
+            FlightLog currentLog = flightLog;
+            if (currentLog != null) currentLog.append(FlightLog.recordRcFrame, data, 1, data.length - 1);
         } catch (Exception e) {
             e.printStackTrace();
             log("sendRcFrame error: " + e);
@@ -980,7 +1321,7 @@ public class Udp {
     }
 
     public void sendConfig() {
-        if (isViewer) return;
+        if (isViewer || udpSender == null) return;
         try {
             UdpPacketData packetData = new UdpPacketData(UdpCommon.Config);
             packetData.daos.writeShort(config.getVersionCode());
@@ -1001,14 +1342,24 @@ public class Udp {
             packetData.daos.writeBoolean(config.isUseExtraEncoder());
             packetData.daos.writeByte(config.getVideoRecorderCodec());
             packetData.daos.writeByte(config.getRecordedVideoBitrate() / 1000000);
+            packetData.daos.writeBoolean(config.isSliceStreaming());
+            packetData.daos.writeBoolean(config.isIntraRefresh());
+            packetData.daos.writeBoolean(config.isFragmentedRecording());
+            packetData.daos.writeByte(config.getRecorderSyncFragments());
+            packetData.daos.writeByte(config.getPreRollSeconds());
+            packetData.daos.writeShort(config.getViewerLayerBitrate() / 1000);
+            packetData.daos.writeBoolean(config.isTemporalLayers());
+            packetData.daos.writeBoolean(config.isShowVideoLatency());
             // audio
             packetData.daos.writeBoolean(config.isSendAudioStream());
             packetData.daos.writeShort(config.getAudioStreamBitrate() / 1000);
+            packetData.daos.writeByte(config.getAudioStreamCodec());
             packetData.daos.writeBoolean(config.isRecordAudio());
             packetData.daos.writeShort(config.getRecordedAudioBitrate() / 1000);
             // fc
             packetData.daos.writeByte(config.getTelemetryRefreshRate());
             packetData.daos.writeByte(config.getRcRefreshRate());
+            packetData.daos.writeBoolean(config.isFlightLog());
             packetData.daos.writeInt(config.getSerialBaudRate());
             packetData.daos.writeByte(config.getUsbSerialPortIndex());
             packetData.daos.writeBoolean(config.isUseNativeSerialPort());
@@ -1037,7 +1388,15 @@ public class Udp {
             udpSender = null;
         }
         if (socket != null) socket.close();
+        if (packetSource != null){
+            packetSource.close();
+            packetSource = null;
+        }
+        isReplay = false;
         receivedFrames.clear();
+        openSlicedFrame = null;
+        heldSlice = null;
+        joinedSlices.reset();
         mavlinkUdpBridge.close();
         videoInitialFrameReceived = false;
         configReceived = false;
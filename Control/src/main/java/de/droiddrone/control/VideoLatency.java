@@ -0,0 +1,269 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.control;
+
+import de.droiddrone.common.ClockOffset;
+import de.droiddrone.common.DataReader;
+
+import static de.droiddrone.common.Logcat.log;
+
+public class VideoLatency {
+    public static final int STAGE_ENCODE = 0;// capture -> encoder output
+    public static final int STAGE_SEND_QUEUE = 1;// encoder output -> first fragment sent
+    public static final int STAGE_SEND = 2;// first -> last fragment sent
+    public static final int STAGE_UPLINK = 3;// last fragment sent -> server relay
+    public static final int STAGE_NETWORK = 4;// last fragment sent -> last fragment received
+    public static final int STAGE_RECEIVE = 5;// first fragment received -> frame completed
+    public static final int STAGE_DECODE_QUEUE = 6;// frame completed -> decoder input
+    public static final int STAGE_DECODE = 7;// decoder input -> decoder output
+    public static final int STAGE_DISPLAY = 8;// decoder output -> GL draw
+    public static final int STAGE_TOTAL = 9;// capture -> GL draw
+    private static final String[] stageNames = {"Enc", "SQ", "Tx", "Up", "Net", "Rx", "DQ", "Dec", "Disp", "G2G"};
+    private static final int recordsCount = 64;
+    private static final int reportIntervalMs = 5000;
+    private final FrameRecord[] records = new FrameRecord[recordsCount];
+    private final Histogram[] histograms = new Histogram[stageNames.length];
+    private ClockOffset droneClockOffset;
+    private ClockOffset serverClockOffset;
+    private long reportTimestamp;
+    private int droppedFrames;
+    private int droneStreamDropped, droneRecorderDropped, droneAudioDropped;
+    private String cameraStats = "Cam: ---";
+    private String[] lastReport = new String[0];
+
+    public VideoLatency() {
+        for (int i = 0; i < recordsCount; i++) records[i] = new FrameRecord();
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+        reportTimestamp = System.currentTimeMillis();
+    }
+
+    public synchronized void setClockOffsets(ClockOffset droneClockOffset, ClockOffset serverClockOffset){
+        this.droneClockOffset = droneClockOffset;
+        this.serverClockOffset = serverClockOffset;
+    }
+
+    public synchronized void onFragmentReceived(short frameNum, long timestamp){
+        FrameRecord record = getRecord(frameNum);
+        if (record.firstReceiveTs == 0 || timestamp < record.firstReceiveTs) record.firstReceiveTs = timestamp;
+        if (timestamp > record.lastReceiveTs) record.lastReceiveTs = timestamp;
+    }
+
+    public synchronized void onFrameCompleted(short frameNum, long key, long timestamp){
+        FrameRecord record = getRecord(frameNum);
+        record.key = key;
+        record.completedTs = timestamp;
+    }
+
+    public synchronized void onFrameTiming(short frameNum, long captureTs, int encoderOutputDelta, int firstSendDelta,
+                                           int lastSendDelta, long relayTs){
+        FrameRecord record = getRecord(frameNum);
+        record.captureTs = captureTs;
+        record.encoderOutputTs = captureTs + encoderOutputDelta;
+        record.firstSendTs = captureTs + firstSendDelta;
+        record.lastSendTs = captureTs + lastSendDelta;
+        record.relayTs = relayTs;
+        record.hasTiming = true;
+        if (record.drawTs != 0) finish(record);
+    }
+
+    public synchronized void onDecoderInput(long key, long timestamp){
+        FrameRecord record = findRecord(key);
+        if (record != null && record.decoderInputTs == 0) record.decoderInputTs = timestamp;
+    }
+
+    public synchronized void onDecoderOutput(long key, long timestamp){
+        FrameRecord record = findRecord(key);
+        if (record != null && record.decoderOutputTs == 0) record.decoderOutputTs = timestamp;
+    }
+
+    public synchronized void onFrameDrawn(long key, long timestamp){
+        FrameRecord record = findRecord(key);
+        if (record != null && record.drawTs == 0) {
+            record.drawTs = timestamp;
+            if (record.hasTiming) finish(record);
+        }
+        if (timestamp - reportTimestamp >= reportIntervalMs) report(timestamp);
+    }
+
+    public synchronized void onFrameDropped(){
+        droppedFrames++;
+    }
+
+    public synchronized void setDroneDroppedFrames(int videoStream, int videoRecorder, int audioStream){
+        droneStreamDropped = videoStream;
+        droneRecorderDropped = videoRecorder;
+        droneAudioDropped = audioStream;
+    }
+
+    public synchronized void setCameraFrameStats(DataReader buffer){
+        int frames = buffer.readShort();
+        int meanUs = buffer.readInt();
+        int jitterUs = buffer.readInt();
+        int p50Us = buffer.readInt();
+        int p95Us = buffer.readInt();
+        int maxUs = buffer.readInt();
+        int exposureUs = buffer.readInt();
+        int maxExposureUs = buffer.readInt();
+        int rollingShutterSkewUs = buffer.readInt();
+        int skippedFrames = buffer.readShort();
+        int lostBuffers = buffer.readShort();
+        int failedCaptures = buffer.readShort();
+        int bucketsCount = buffer.readUnsignedByteAsInt();
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < bucketsCount; i++) {
+            if (i > 0) histogram.append('/');
+            histogram.append(buffer.readShort());
+        }
+        if (frames == 0) {
+            cameraStats = "Cam: ---";
+            return;
+        }
+        cameraStats = "Cam: " + formatMs(meanUs) + " ms, jit " + formatMs(jitterUs) + ", p95 " + formatMs(p95Us)
+                + ", exp " + formatMs(exposureUs) + ", skipped/lost: " + skippedFrames + "/" + lostBuffers;
+        if (skippedFrames > 0 || lostBuffers > 0 || failedCaptures > 0) {
+            log("Camera frames: " + frames + ", interval (mean/jitter/p50/p95/max ms): " + formatMs(meanUs) + "/" + formatMs(jitterUs)
+                    + "/" + formatMs(p50Us) + "/" + formatMs(p95Us) + "/" + formatMs(maxUs) + ", exposure (last/max ms): " + formatMs(exposureUs)
+                    + "/" + formatMs(maxExposureUs) + ", rs skew: " + formatMs(rollingShutterSkewUs) + " ms, skipped: " + skippedFrames
+                    + ", lost: " + lostBuffers + ", failed: " + failedCaptures + ", histogram: " + histogram);
+        }
+    }
+
+    public synchronized String[] getLastReport(){
+        return lastReport;
+    }
+
+    private FrameRecord getRecord(short frameNum){
+        FrameRecord record = records[frameNum & (recordsCount - 1)];
+        if (!record.isUsed || record.frameNum != frameNum) record.reset(frameNum);
+        return record;
+    }
+
+    private FrameRecord findRecord(long key){
+        for (FrameRecord record : records) {
+            if (record.isUsed && !record.isFinished && record.completedTs != 0 && record.key == key) return record;
+        }
+        return null;
+    }
+
+    private void finish(FrameRecord record){
+        record.isFinished = true;
+        histograms[STAGE_ENCODE].add(record.encoderOutputTs - record.captureTs);
+        histograms[STAGE_SEND_QUEUE].add(record.firstSendTs - record.encoderOutputTs);
+        histograms[STAGE_SEND].add(record.lastSendTs - record.firstSendTs);
+        histograms[STAGE_RECEIVE].add(record.completedTs - record.firstReceiveTs);
+        if (record.decoderInputTs != 0) histograms[STAGE_DECODE_QUEUE].add(record.decoderInputTs - record.completedTs);
+        if (record.decoderInputTs != 0 && record.decoderOutputTs != 0) histograms[STAGE_DECODE].add(record.decoderOutputTs - record.decoderInputTs);
+        if (record.decoderOutputTs != 0) histograms[STAGE_DISPLAY].add(record.drawTs - record.decoderOutputTs);
+        if (droneClockOffset == null || !droneClockOffset.isValid()) return;
+        long lastSendLocalTs = droneClockOffset.toLocalTime(record.lastSendTs);
+        if (record.relayTs != 0 && serverClockOffset != null && serverClockOffset.isValid()) {
+            histograms[STAGE_UPLINK].add(serverClockOffset.toLocalTime(record.relayTs) - lastSendLocalTs);
+        }
+        histograms[STAGE_NETWORK].add(record.lastReceiveTs - lastSendLocalTs);
+        histograms[STAGE_TOTAL].add(record.drawTs - droneClockOffset.toLocalTime(record.captureTs));
+    }
+
+    private void report(long timestamp){
+        reportTimestamp = timestamp;
+        Histogram total = histograms[STAGE_TOTAL];
+        StringBuilder stages = new StringBuilder();
+        StringBuilder logLine = new StringBuilder("Video latency (p50/p95/max ms):");
+        for (int i = 0; i < histograms.length; i++) {
+            Histogram h = histograms[i];
+            if (h.count == 0) continue;
+            logLine.append(' ').append(stageNames[i]).append(' ')
+                    .append(h.getPercentile(50)).append('/').append(h.getPercentile(95)).append('/').append(h.max);
+            if (i == STAGE_TOTAL) continue;
+            if (stages.length() > 0) stages.append(' ');
+            stages.append(stageNames[i]).append(' ').append(h.getPercentile(50));
+        }
+        logLine.append(", dropped: ").append(droppedFrames);
+        String droneDropped = "drone dropped (tx/rec/audio): " + droneStreamDropped + "/" + droneRecorderDropped + "/" + droneAudioDropped;
+        logLine.append(", ").append(droneDropped);
+        log(logLine.toString());
+        String g2g = total.count > 0 ? "G2G: " + total.getPercentile(50) + "/" + total.getPercentile(95) + " ms" : "G2G: ---";
+        lastReport = new String[]{g2g + ", dropped: " + droppedFrames, stages.toString(), droneDropped, cameraStats};
+        for (Histogram h : histograms) h.reset();
+        droppedFrames = 0;
+    }
+
+    private static String formatMs(int us){
+        return (us / 1000) + "." + (us % 1000 / 100);
+    }
+
+    private static final class FrameRecord {
+        short frameNum;
+        boolean isUsed;
+        boolean isFinished;
+        boolean hasTiming;
+        long key;
+        long captureTs, encoderOutputTs, firstSendTs, lastSendTs, relayTs;// remote clocks
+        long firstReceiveTs, lastReceiveTs, completedTs, decoderInputTs, decoderOutputTs, drawTs;
+
+        void reset(short frameNum){
+            this.frameNum = frameNum;
+            isUsed = true;
+            isFinished = false;
+            hasTiming = false;
+            key = 0;
+            captureTs = 0;
+            encoderOutputTs = 0;
+            firstSendTs = 0;
+            lastSendTs = 0;
+            relayTs = 0;
+            firstReceiveTs = 0;
+            lastReceiveTs = 0;
+            completedTs = 0;
+            decoderInputTs = 0;
+            decoderOutputTs = 0;
+            drawTs = 0;
+        }
+    }
+
+    private static final class Histogram {
+        static final int bucketMs = 2;
+        final int[] buckets = new int[256];
+        int count;
+        long max;
+
+        void add(long valueMs){
+            if (valueMs < 0) valueMs = 0;
+            int index = (int) Math.min(valueMs / bucketMs, buckets.length - 1);
+            buckets[index]++;
+            count++;
+            if (valueMs > max) max = valueMs;
+        }
+
+        int getPercentile(int percentile){
+            int threshold = (count * percentile + 99) / 100;
+            int sum = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                sum += buckets[i];
+                if (sum >= threshold) return i * bucketMs;
+            }
+            return (buckets.length - 1) * bucketMs;
+        }
+
+        void reset(){
+            for (int i = 0; i < buckets.length; i++) buckets[i] = 0;
+            count = 0;
+            max = 0;
+        }
+    }
+}
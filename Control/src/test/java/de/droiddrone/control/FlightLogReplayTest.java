@@ -0,0 +1,156 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.control;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.droiddrone.common.DataReader;
+import de.droiddrone.common.FlightLog;
+import de.droiddrone.common.SavedPacket;
+import de.droiddrone.common.TelemetryDelta;
+import de.droiddrone.common.UdpCommon;
+import de.droiddrone.common.UdpPacketData;
+
+public class FlightLogReplayTest {
+    private static final int telemetryCode = 101;
+
+    @Test
+    public void replaysTelemetryAndSlices() throws Exception {
+        File dir = File.createTempFile("replay", "");
+        assertTrue(dir.delete());
+        FlightLog log = FlightLog.create(dir, FlightLog.sourceControl);
+        assertNotNull(log);
+
+        byte[] payload1 = new byte[32];
+        for (int i = 0; i < payload1.length; i++) payload1[i] = (byte) i;
+        byte[] payload2 = payload1.clone();
+        payload2[5] = 55;
+        TelemetryDelta encoder = new TelemetryDelta();
+        appendPacket(log, getTelemetryPacket(encoder, payload1));
+        appendPacket(log, getTelemetryPacket(encoder, payload2));
+
+        log.appendInt(FlightLog.recordPing, 20);
+
+        byte[] slice0 = new byte[300];
+        byte[] slice1 = new byte[100];
+        for (int i = 0; i < slice0.length; i++) slice0[i] = (byte) (i * 7);
+        for (int i = 0; i < slice1.length; i++) slice1[i] = (byte) (i * 3);
+        short frameNum = 12;
+        appendPacket(log, getSlicePacket(frameNum, 0, UdpCommon.sliceFlagKeyFrame, slice0, 0, 200, slice0.length));
+        appendPacket(log, getSlicePacket(frameNum, 0, UdpCommon.sliceFlagKeyFrame, slice0, 200, 100, slice0.length));
+        appendPacket(log, getSlicePacket(frameNum, 1, (byte) (UdpCommon.sliceFlagKeyFrame | UdpCommon.sliceFlagLast),
+                slice1, 0, slice1.length, slice1.length));
+        log.close();
+
+        File file = FlightLogReplay.findLastLog(dir);
+        assertEquals(log.getFile(), file);
+        FlightLogReplay replay = new FlightLogReplay(file, FlightLogReplay.speedMax);
+        TelemetryDelta decoder = new TelemetryDelta();
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> slices = new ArrayList<>();
+        FrameSlices frame = null;
+        SavedPacket packet;
+        while ((packet = replay.getNextPacket()) != null) {
+            DataReader buffer = new DataReader(packet.data, true);
+            byte packetName = buffer.readByte();
+            if (UdpCommon.isPacketNumbered(packetName)) buffer.readShort();
+            switch (packetName) {
+                case UdpCommon.TelemetryData: {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    decoder.decode(buffer, new DataOutputStream(out));
+                    messages.add(out.toByteArray());
+                    break;
+                }
+                case UdpCommon.VideoSlice: {
+                    SliceFragment fragment = SliceFragment.read(buffer);
+                    assertNotNull(fragment);
+                    if (frame == null) {
+                        frame = new FrameSlices(fragment.frameNum, fragment.isKeyFrame(), fragment.layerId,
+                                fragment.baseFrameNum, fragment.refFrameNum);
+                    }
+                    assertEquals(frame.frameNum, fragment.frameNum);
+                    frame.putFragment(fragment);
+                    byte[] slice = frame.pollCompletedSlice();
+                    while (slice != null) {
+                        slices.add(slice);
+                        slice = frame.pollCompletedSlice();
+                    }
+                    break;
+                }
+            }
+        }
+        assertTrue(replay.isFinished());
+        assertNull(replay.getNextPacket());
+
+        assertEquals(2, messages.size());
+        assertArrayEquals(getMessage(payload1), messages.get(0));
+        assertArrayEquals(getMessage(payload2), messages.get(1));
+
+        assertNotNull(frame);
+        assertTrue(frame.isKeyFrame);
+        assertTrue(frame.isAllSlicesPolled());
+        assertEquals(2, slices.size());
+        assertArrayEquals(slice0, slices.get(0));
+        assertArrayEquals(slice1, slices.get(1));
+
+        assertTrue(file.delete());
+        assertTrue(dir.delete());
+    }
+
+    private static void appendPacket(FlightLog log, byte[] data){
+        log.append(FlightLog.recordUdpPacket, data, 0, data.length);
+    }
+
+    private static byte[] getTelemetryPacket(TelemetryDelta encoder, byte[] payload) throws Exception {
+        UdpPacketData packetData = new UdpPacketData(UdpCommon.TelemetryData);
+        assertTrue(encoder.encode(telemetryCode, payload, payload.length, packetData.daos));
+        return packetData.getData();
+    }
+
+    private static byte[] getSlicePacket(short frameNum, int sliceIndex, byte sliceFlags, byte[] slice,
+                                         int offset, int length, int sliceSize) throws Exception {
+        UdpPacketData packetData = new UdpPacketData(UdpCommon.VideoSlice);
+        packetData.daos.writeShort(frameNum);
+        packetData.daos.writeByte(sliceIndex);
+        packetData.daos.writeByte(sliceFlags);
+        packetData.daos.writeInt(offset);
+        if (offset == 0) packetData.daos.writeInt(sliceSize);
+        packetData.daos.write(slice, offset, length);
+        return packetData.getData();
+    }
+
+    private static byte[] getMessage(byte[] payload){
+        byte[] message = new byte[payload.length + 2];
+        message[0] = (byte) (telemetryCode >> 8);
+        message[1] = (byte) telemetryCode;
+        System.arraycopy(payload, 0, message, 2, payload.length);
+        return message;
+    }
+}
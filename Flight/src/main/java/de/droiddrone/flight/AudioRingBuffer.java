@@ -0,0 +1,112 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Utils.getNextPow2;
+
+import java.nio.ByteBuffer;
+
+// Single producer ring of preallocated PCM chunks, every consumer has its own read cursor.
+// The producer never waits: a consumer that falls more than one ring behind skips to the oldest chunk
+// and counts an overrun. A chunk overwritten while it was copied is discarded the same way.
+public class AudioRingBuffer {
+    private final byte[][] chunks;
+    private final int[] sizes;
+    private final long[] timestampsUs;
+    private final int mask;
+    private final Consumer[] consumers;
+    private volatile long writeSeq;
+
+    private static final class Consumer {
+        long readSeq;
+        long timestampUs;
+        volatile int overruns;
+    }
+
+    public AudioRingBuffer(int chunksCount, int chunkSize, int consumersCount){
+        int count = getNextPow2(chunksCount);
+        chunks = new byte[count][chunkSize];
+        sizes = new int[count];
+        timestampsUs = new long[count];
+        mask = count - 1;
+        consumers = new Consumer[consumersCount];
+        for (int i = 0; i < consumersCount; i++) consumers[i] = new Consumer();
+    }
+
+    public void write(ByteBuffer src, int size, long timestampUs){
+        long seq = writeSeq;
+        int index = (int) (seq & mask);
+        src.get(chunks[index], 0, size);
+        sizes[index] = size;
+        timestampsUs[index] = timestampUs;
+        writeSeq = seq + 1;
+    }
+
+    // Returns the size of the chunk copied to dst, or -1 if there is nothing to read.
+    public int read(int consumerId, ByteBuffer dst){
+        Consumer consumer = consumers[consumerId];
+        long seq = checkOverrun(consumer);
+        if (seq == writeSeq) return -1;
+        int index = (int) (seq & mask);
+        int size = sizes[index];
+        long timestampUs = timestampsUs[index];
+        int position = dst.position();
+        dst.put(chunks[index], 0, size);
+        if (writeSeq - seq >= chunks.length) {// overwritten while copying
+            dst.position(position);
+            checkOverrun(consumer);
+            return -1;
+        }
+        consumer.readSeq = seq + 1;
+        consumer.timestampUs = timestampUs;
+        return size;
+    }
+
+    public boolean hasData(int consumerId){
+        return consumers[consumerId].readSeq != writeSeq;
+    }
+
+    // capture timestamp of the last read chunk
+    public long getTimestampUs(int consumerId){
+        return consumers[consumerId].timestampUs;
+    }
+
+    public int getOverruns(int consumerId){
+        return consumers[consumerId].overruns;
+    }
+
+    // Drops the unread chunks, the next read starts with new data.
+    public void skip(int consumerId){
+        consumers[consumerId].readSeq = writeSeq;
+    }
+
+    public void reset(int consumerId){
+        Consumer consumer = consumers[consumerId];
+        consumer.readSeq = writeSeq;
+        consumer.overruns = 0;
+    }
+
+    private long checkOverrun(Consumer consumer){
+        long oldest = writeSeq - chunks.length + 1;
+        if (consumer.readSeq < oldest) {
+            consumer.overruns++;
+            consumer.readSeq = oldest;
+        }
+        return consumer.readSeq;
+    }
+}
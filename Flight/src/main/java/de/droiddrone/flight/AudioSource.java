@@ -29,7 +29,6 @@ import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import de.droiddrone.common.MediaCommon;
 
@@ -38,9 +37,12 @@ public class AudioSource {
     private static final int channelConfig = AudioFormat.CHANNEL_IN_STEREO;
     private static final int encoding = AudioFormat.ENCODING_PCM_16BIT;
     private static final int[] audioSources = {MediaRecorder.AudioSource.CAMCORDER, MediaRecorder.AudioSource.MIC, MediaRecorder.AudioSource.DEFAULT};
+    private static final int ringChunksCount = 32;
+    private static final int consumersCount = 2;
+    private static final long maxTimestampErrorUs = 20000;
     private final Context context;
-    private final ArrayBlockingQueue<byte[]> mp4Buffer = new ArrayBlockingQueue<>(30);
-    private final ArrayBlockingQueue<byte[]> streamBuffer = new ArrayBlockingQueue<>(30);
+    private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+    private AudioRingBuffer ringBuffer;
     private AudioRecord audioRecord;
     private int bytesToRead;
     private AudioFormat audioFormat;
@@ -71,6 +73,7 @@ public class AudioSource {
         bytesToRead = getNextPow2(bytesToRead) / 2;
         boolean started = startAudioRecord();
         if (!started) return false;
+        ringBuffer = new AudioRingBuffer(ringChunksCount, bytesToRead, consumersCount);
         isInitialized = true;
         setConsumer(consumerId);
         Thread audioThread = new Thread(audioThreadRunnable);
@@ -84,6 +87,9 @@ public class AudioSource {
         @Override
         public void run() {
             ByteBuffer buf = ByteBuffer.allocateDirect(bytesToRead);
+            int frameSize = audioFormat.getChannelCount() * 2;
+            long framesRead = 0;
+            long anchorUs = -1;
             while (isInitialized){
                 if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING || audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
                     try {
@@ -96,24 +102,45 @@ public class AudioSource {
                 buf.position(0);
                 int size = audioRecord.read(buf, bytesToRead, AudioRecord.READ_BLOCKING);
                 if (size <= 0) continue;
-                byte[] data = new byte[size];
-                buf.get(data, 0, size);
-                if (usedInMp4) mp4Buffer.offer(data);
-                if (usedInStream) streamBuffer.offer(data);
+                // capture time of the first frame in the chunk, from the frame position and the sample rate
+                long chunkUs = framesRead * 1000000 / sampleRate;
+                int frames = size / frameSize;
+                long measuredUs = getCaptureTimestamp(framesRead, frames);
+                if (anchorUs == -1 || Math.abs(measuredUs - (anchorUs + chunkUs)) > maxTimestampErrorUs) {
+                    anchorUs = measuredUs - chunkUs;
+                } else {
+                    anchorUs += (measuredUs - (anchorUs + chunkUs)) / 16;// slow drift correction
+                }
+                framesRead += frames;
+                ringBuffer.write(buf, size, anchorUs + chunkUs);
             }
         }
     };
 
-    public byte[] getBufferData(int consumerId){
-        if (consumerId == MediaCommon.mp4AudioConsumerId) return mp4Buffer.poll();
-        if (consumerId == MediaCommon.streamAudioConsumerId) return streamBuffer.poll();
-        return null;
+    private long getCaptureTimestamp(long framePosition, int frames){
+        if (audioRecord.getTimestamp(audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS) {
+            return System.nanoTime() / 1000 - frames * 1000000L / sampleRate;
+        }
+        return audioTimestamp.nanoTime / 1000 + (framePosition - audioTimestamp.framePosition) * 1000000 / sampleRate;
     }
 
-    public long getTimestamp(){
-        AudioTimestamp timestamp = new AudioTimestamp();
-        audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC);
-        return timestamp.nanoTime/1000;
+    public boolean hasBufferData(int consumerId){
+        return isInitialized && ringBuffer.hasData(consumerId);
+    }
+
+    // Copies the next chunk to dst, returns its size or -1.
+    public int readBufferData(int consumerId, ByteBuffer dst){
+        if (!isInitialized) return -1;
+        return ringBuffer.read(consumerId, dst);
+    }
+
+    public void skipBufferData(int consumerId){
+        if (isInitialized) ringBuffer.skip(consumerId);
+    }
+
+    // capture timestamp of the last read chunk
+    public long getTimestamp(int consumerId){
+        return ringBuffer.getTimestampUs(consumerId);
     }
 
     public AudioFormat getAudioFormat(){
@@ -150,16 +177,14 @@ public class AudioSource {
     private void setConsumer(int consumerId){
         if (consumerId == MediaCommon.mp4AudioConsumerId) usedInMp4 = true;
         if (consumerId == MediaCommon.streamAudioConsumerId) usedInStream = true;
+        ringBuffer.reset(consumerId);
     }
 
     public void stop(int consumerId){
-        if (consumerId == MediaCommon.mp4AudioConsumerId) {
-            usedInMp4 = false;
-            mp4Buffer.clear();
-        }
-        if (consumerId == MediaCommon.streamAudioConsumerId) {
-            usedInStream = false;
-            streamBuffer.clear();
+        if (consumerId == MediaCommon.mp4AudioConsumerId) usedInMp4 = false;
+        if (consumerId == MediaCommon.streamAudioConsumerId) usedInStream = false;
+        if (isInitialized && ringBuffer.getOverruns(consumerId) > 0) {
+            log("AudioSource consumer " + consumerId + " overruns: " + ringBuffer.getOverruns(consumerId));
         }
         if (!usedInMp4 && !usedInStream) close();
     }
@@ -174,8 +199,6 @@ public class AudioSource {
         }catch (Exception e){
             e.printStackTrace();
         }
-        mp4Buffer.clear();
-        streamBuffer.clear();
         audioRecord.release();
     }
 }
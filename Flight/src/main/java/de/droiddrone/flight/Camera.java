@@ -22,6 +22,7 @@ public interface Camera {
     boolean openCamera();
     int getCurrentFps();
     int getTargetFps();
+    CameraFrameStats getFrameStats();
     boolean isOpened(String cameraId);
     void startCapture();
     void stopCapture();
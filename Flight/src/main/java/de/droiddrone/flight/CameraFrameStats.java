@@ -0,0 +1,135 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import java.util.Arrays;
+
+import de.droiddrone.common.DataWriter;
+
+// Per-frame capture results aggregated between two telemetry reports. Intervals come from the sensor timestamps,
+// so they show the camera pacing without the callback delivery jitter.
+public class CameraFrameStats {
+    // upper bounds of the interval histogram buckets, the last bucket has no bound
+    public static final int[] intervalBucketsMs = {12, 18, 25, 30, 36, 45, 60, 80, 120};
+    private static final int maxIntervals = 256;
+    private final int[] intervalsUs = new int[maxIntervals];
+    private final int[] histogram = new int[intervalBucketsMs.length + 1];
+    private int intervalsCount;
+    private int framesCount;
+    private long lastSensorTimestampNs = -1;
+    private long intervalsSumUs;
+    private long intervalsSquaresSum;
+    private int maxIntervalUs;
+    private int exposureUs, maxExposureUs;
+    private int rollingShutterSkewUs;
+    private int skippedFrames;
+    private int lostBuffers;
+    private int failedCaptures;
+    private int targetIntervalUs;
+
+    public synchronized void setTargetFps(int fps){
+        targetIntervalUs = fps > 0 ? 1000000 / fps : 0;
+    }
+
+    public synchronized void reset(){
+        lastSensorTimestampNs = -1;
+        clear();
+    }
+
+    // exposureNs and rollingShutterSkewNs are -1 if not reported by the camera
+    public synchronized void onFrame(long sensorTimestampNs, long exposureNs, long rollingShutterSkewNs){
+        framesCount++;
+        if (exposureNs >= 0) {
+            exposureUs = (int) (exposureNs / 1000);
+            if (exposureUs > maxExposureUs) maxExposureUs = exposureUs;
+        }
+        if (rollingShutterSkewNs >= 0) rollingShutterSkewUs = (int) (rollingShutterSkewNs / 1000);
+        long last = lastSensorTimestampNs;
+        lastSensorTimestampNs = sensorTimestampNs;
+        if (last == -1 || sensorTimestampNs <= last) return;
+        long intervalUs = (sensorTimestampNs - last) / 1000;
+        if (intervalUs > Integer.MAX_VALUE) return;
+        int interval = (int) intervalUs;
+        if (intervalsCount < maxIntervals) intervalsUs[intervalsCount++] = interval;
+        intervalsSumUs += interval;
+        intervalsSquaresSum += (long) interval * interval;
+        if (interval > maxIntervalUs) maxIntervalUs = interval;
+        if (targetIntervalUs > 0 && interval > targetIntervalUs * 3 / 2) {
+            skippedFrames += (interval + targetIntervalUs / 2) / targetIntervalUs - 1;
+        }
+        int bucket = 0;
+        while (bucket < intervalBucketsMs.length && interval > intervalBucketsMs[bucket] * 1000) bucket++;
+        histogram[bucket]++;
+    }
+
+    // a camera frame that did not reach the encoder surface
+    public synchronized void onBufferLost(){
+        lostBuffers++;
+    }
+
+    public synchronized void onCaptureFailed(){
+        failedCaptures++;
+    }
+
+    // Writes the stats since the last call and starts a new period.
+    public synchronized void writeTo(DataWriter writer){
+        int count = Math.min(intervalsCount, maxIntervals);
+        long intervals = 0;
+        for (int c : histogram) intervals += c;
+        int meanUs = intervals > 0 ? (int) (intervalsSumUs / intervals) : 0;
+        int jitterUs = 0;
+        if (intervals > 1) {
+            double variance = (double) intervalsSquaresSum / intervals - (double) meanUs * meanUs;
+            jitterUs = (int) Math.sqrt(Math.max(variance, 0));
+        }
+        Arrays.sort(intervalsUs, 0, count);
+        writer.writeShort((short) Math.min(framesCount, Short.MAX_VALUE));
+        writer.writeInt(meanUs);
+        writer.writeInt(jitterUs);
+        writer.writeInt(getPercentile(count, 50));
+        writer.writeInt(getPercentile(count, 95));
+        writer.writeInt(maxIntervalUs);
+        writer.writeInt(exposureUs);
+        writer.writeInt(maxExposureUs);
+        writer.writeInt(rollingShutterSkewUs);
+        writer.writeShort((short) Math.min(skippedFrames, Short.MAX_VALUE));
+        writer.writeShort((short) Math.min(lostBuffers, Short.MAX_VALUE));
+        writer.writeShort((short) Math.min(failedCaptures, Short.MAX_VALUE));
+        writer.writeByte((byte) histogram.length);
+        for (int c : histogram) writer.writeShort((short) Math.min(c, Short.MAX_VALUE));
+        clear();
+    }
+
+    private int getPercentile(int count, int percentile){
+        if (count == 0) return 0;
+        return intervalsUs[Math.min(count - 1, count * percentile / 100)];
+    }
+
+    private void clear(){
+        intervalsCount = 0;
+        framesCount = 0;
+        intervalsSumUs = 0;
+        intervalsSquaresSum = 0;
+        maxIntervalUs = 0;
+        maxExposureUs = 0;
+        skippedFrames = 0;
+        lostBuffers = 0;
+        failedCaptures = 0;
+        Arrays.fill(histogram, 0);
+    }
+}
@@ -38,11 +38,21 @@ public class Config {
     private boolean useExtraEncoder;
     private int videoRecorderCodec;
     private int recordedVideoBitrate;
+    private boolean sliceStreaming;
+    private boolean intraRefresh;
+    private boolean fragmentedRecording;
+    private int recorderSyncFragments;
+    private int preRollSeconds;
+    private int viewerLayerBitrate;
+    private boolean temporalLayers;
+    private boolean videoFrameTiming;
     private boolean sendAudioStream;
     private int audioStreamBitrate;
+    private int audioStreamCodec;
     private boolean recordAudio;
     private int recordedAudioBitrate;
     private int telemetryRefreshRate;
+    private boolean flightLog;
     private int rcRefreshRate;
     private int serialBaudRate;
     private int usbSerialPortIndex;
@@ -224,6 +234,38 @@ public class Config {
         return recordedVideoBitrate;
     }
 
+    public boolean isSliceStreaming() {
+        return sliceStreaming;
+    }
+
+    public boolean isIntraRefresh() {
+        return intraRefresh;
+    }
+
+    public boolean isFragmentedRecording() {
+        return fragmentedRecording;
+    }
+
+    public int getRecorderSyncFragments() {
+        return recorderSyncFragments;
+    }
+
+    public int getPreRollSeconds() {
+        return preRollSeconds;
+    }
+
+    public int getViewerLayerBitrate() {
+        return viewerLayerBitrate;
+    }
+
+    public boolean isTemporalLayers() {
+        return temporalLayers;
+    }
+
+    public boolean isVideoFrameTiming() {
+        return videoFrameTiming;
+    }
+
     public boolean isSendAudioStream() {
         return sendAudioStream;
     }
@@ -232,6 +274,10 @@ public class Config {
         return audioStreamBitrate;
     }
 
+    public int getAudioStreamCodec() {
+        return audioStreamCodec;
+    }
+
     public boolean isRecordAudio() {
         return recordAudio;
     }
@@ -248,6 +294,10 @@ public class Config {
         return rcRefreshRate;
     }
 
+    public boolean isFlightLog() {
+        return flightLog;
+    }
+
     public int getSerialBaudRate() {
         return serialBaudRate;
     }
@@ -351,6 +401,28 @@ public class Config {
                 recorderConfigChanged = true;
             }
             this.recordedVideoBitrate = recordedVideoBitrate;
+            boolean sliceStreaming = buffer.readBoolean();
+            if (sliceStreaming != this.sliceStreaming) cameraConfigChanged = true;
+            this.sliceStreaming = sliceStreaming;
+            boolean intraRefresh = buffer.readBoolean();
+            if (intraRefresh != this.intraRefresh) cameraConfigChanged = true;
+            this.intraRefresh = intraRefresh;
+            boolean fragmentedRecording = buffer.readBoolean();
+            if (fragmentedRecording != this.fragmentedRecording) recorderConfigChanged = true;
+            this.fragmentedRecording = fragmentedRecording;
+            int recorderSyncFragments = buffer.readUnsignedByteAsInt();
+            if (recorderSyncFragments != this.recorderSyncFragments) recorderConfigChanged = true;
+            this.recorderSyncFragments = recorderSyncFragments;
+            int preRollSeconds = buffer.readUnsignedByteAsInt();
+            if (preRollSeconds != this.preRollSeconds) cameraConfigChanged = true;
+            this.preRollSeconds = preRollSeconds;
+            int viewerLayerBitrate = buffer.readShort() * 1000;
+            if (viewerLayerBitrate != this.viewerLayerBitrate) cameraConfigChanged = true;
+            this.viewerLayerBitrate = viewerLayerBitrate;
+            boolean temporalLayers = buffer.readBoolean();
+            if (temporalLayers != this.temporalLayers) cameraConfigChanged = true;
+            this.temporalLayers = temporalLayers;
+            videoFrameTiming = buffer.readBoolean();
             // audio
             boolean sendAudioStream = buffer.readBoolean();
             if (sendAudioStream != this.sendAudioStream) audioStreamConfigChanged = true;
@@ -358,6 +430,9 @@ public class Config {
             int audioStreamBitrate = buffer.readShort() * 1000;
             if (audioStreamBitrate != this.audioStreamBitrate) audioStreamConfigChanged = true;
             this.audioStreamBitrate = audioStreamBitrate;
+            int audioStreamCodec = buffer.readUnsignedByteAsInt();
+            if (audioStreamCodec != this.audioStreamCodec) audioStreamConfigChanged = true;
+            this.audioStreamCodec = audioStreamCodec;
             boolean recordAudio = buffer.readBoolean();
             if (recordAudio != this.recordAudio) recorderConfigChanged = true;
             this.recordAudio = recordAudio;
@@ -371,6 +446,7 @@ public class Config {
             int rcRefreshRate = buffer.readUnsignedByteAsInt();
             if (rcRefreshRate != this.rcRefreshRate) rcConfigChanged = true;
             this.rcRefreshRate = rcRefreshRate;
+            flightLog = buffer.readBoolean();
             int serialBaudRate = buffer.readInt();
             int usbSerialPortIndex = buffer.readByte();
             boolean useNativeSerialPort = buffer.readBoolean();
@@ -436,12 +512,22 @@ public class Config {
         useExtraEncoder = preferences.getBoolean("useExtraEncoder", SettingsCommon.useExtraEncoder);
         videoRecorderCodec = preferences.getInt("videoRecorderCodec", SettingsCommon.videoRecorderCodec);
         recordedVideoBitrate = preferences.getInt("recordedVideoBitrate", SettingsCommon.recordedVideoBitrate);
+        sliceStreaming = preferences.getBoolean("sliceStreaming", SettingsCommon.sliceStreaming);
+        intraRefresh = preferences.getBoolean("intraRefresh", SettingsCommon.intraRefresh);
+        fragmentedRecording = preferences.getBoolean("fragmentedRecording", SettingsCommon.fragmentedRecording);
+        recorderSyncFragments = preferences.getInt("recorderSyncFragments", SettingsCommon.recorderSyncFragments);
+        preRollSeconds = preferences.getInt("preRollSeconds", SettingsCommon.preRollSeconds);
+        viewerLayerBitrate = preferences.getInt("viewerLayerBitrate", SettingsCommon.viewerLayerBitrate);
+        temporalLayers = preferences.getBoolean("temporalLayers", SettingsCommon.temporalLayers);
+        videoFrameTiming = preferences.getBoolean("videoFrameTiming", SettingsCommon.showVideoLatency);
         sendAudioStream = preferences.getBoolean("sendAudioStream", SettingsCommon.sendAudioStream);
         audioStreamBitrate = preferences.getInt("audioStreamBitrate", SettingsCommon.audioStreamBitrate);
+        audioStreamCodec = preferences.getInt("audioStreamCodec", SettingsCommon.audioStreamCodec);
         recordAudio = preferences.getBoolean("recordAudio", SettingsCommon.recordAudio);
         recordedAudioBitrate = preferences.getInt("recordedAudioBitrate", SettingsCommon.recordedAudioBitrate);
         telemetryRefreshRate = preferences.getInt("telemetryRefreshRate", SettingsCommon.telemetryRefreshRate);
         rcRefreshRate = preferences.getInt("rcRefreshRate", SettingsCommon.rcRefreshRate);
+        flightLog = preferences.getBoolean("flightLog", SettingsCommon.flightLog);
         serialBaudRate = preferences.getInt("serialBaudRate", SettingsCommon.serialBaudRate);
         usbSerialPortIndex = preferences.getInt("usbSerialPortIndex", SettingsCommon.usbSerialPortIndex);
         useNativeSerialPort = preferences.getBoolean("useNativeSerialPort", SettingsCommon.useNativeSerialPort);
@@ -494,12 +580,22 @@ public class Config {
         editor.putBoolean("useExtraEncoder", useExtraEncoder);
         editor.putInt("videoRecorderCodec", videoRecorderCodec);
         editor.putInt("recordedVideoBitrate", recordedVideoBitrate);
+        editor.putBoolean("sliceStreaming", sliceStreaming);
+        editor.putBoolean("intraRefresh", intraRefresh);
+        editor.putBoolean("fragmentedRecording", fragmentedRecording);
+        editor.putInt("recorderSyncFragments", recorderSyncFragments);
+        editor.putInt("preRollSeconds", preRollSeconds);
+        editor.putInt("viewerLayerBitrate", viewerLayerBitrate);
+        editor.putBoolean("temporalLayers", temporalLayers);
+        editor.putBoolean("videoFrameTiming", videoFrameTiming);
         editor.putBoolean("sendAudioStream", sendAudioStream);
         editor.putInt("audioStreamBitrate", audioStreamBitrate);
+        editor.putInt("audioStreamCodec", audioStreamCodec);
         editor.putBoolean("recordAudio", recordAudio);
         editor.putInt("recordedAudioBitrate", recordedAudioBitrate);
         editor.putInt("telemetryRefreshRate", telemetryRefreshRate);
         editor.putInt("rcRefreshRate", rcRefreshRate);
+        editor.putBoolean("flightLog", flightLog);
         editor.putInt("serialBaudRate", serialBaudRate);
         editor.putInt("usbSerialPortIndex", usbSerialPortIndex);
         editor.putBoolean("useNativeSerialPort", useNativeSerialPort);
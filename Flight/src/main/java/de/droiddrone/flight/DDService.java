@@ -31,10 +31,12 @@ import android.os.IBinder;
 
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import de.droiddrone.common.FcInfo;
+import de.droiddrone.common.FlightLog;
 import de.droiddrone.common.MediaCommon;
 import de.droiddrone.common.FcCommon;
 import de.droiddrone.common.SettingsCommon;
@@ -57,6 +59,7 @@ public class DDService extends Service {
     private Mavlink mavlink;
     private PhoneTelemetry phoneTelemetry;
     private MavlinkUdpBridge mavlinkUdpBridge;
+    private FlightLog flightLog;
     private int connectionMode;
 
 
@@ -175,6 +178,7 @@ public class DDService extends Service {
                 }else{
                     if (connectionMode == SettingsCommon.ConnectionMode.overServer) udp.sendConnect();
                 }
+                updateFlightLog();
                 serialPortStatus = serial.getStatus();
                 if (serialPortStatus == Serial.STATUS_SERIAL_PORT_ERROR){
                     if (serial != null && (msp != null && mavlink != null)) {
@@ -195,6 +199,19 @@ public class DDService extends Service {
         mainTimer.schedule(tt, 1000, 1000);
     }
 
+    // one log per connected session, the setting can change with every received config
+    private void updateFlightLog(){
+        boolean enabled = isConnected && MainActivity.config.isFlightLog();
+        if (enabled && flightLog == null){
+            flightLog = FlightLog.create(new File(getExternalMediaDirs()[0], "FlightLog"), FlightLog.sourceFlight);
+            udp.setFlightLog(flightLog);
+        }else if (!enabled && flightLog != null){
+            udp.setFlightLog(null);
+            flightLog.close();
+            flightLog = null;
+        }
+    }
+
     private void closeAll() {
         isRunning = false;
         try {
@@ -210,6 +227,11 @@ public class DDService extends Service {
         if (serial != null) serial.close();
         if (udp != null){
             udp.disconnect();
+            udp.setFlightLog(null);
+        }
+        if (flightLog != null){
+            flightLog.close();
+            flightLog = null;
         }
         if (streamEncoder != null) streamEncoder.close();
         if (mp4Recorder != null) mp4Recorder.close();
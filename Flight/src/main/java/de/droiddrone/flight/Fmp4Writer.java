@@ -0,0 +1,628 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+// Fragmented MP4 (ISO BMFF) writer: ftyp + moov go to the file at start and every fragment (moof + mdat)
+// is complete on its own, so a recording stays playable up to the last written fragment.
+// Plain Java only, the Android side is FragmentedMp4Muxer.
+public class Fmp4Writer {
+    public static final int CODEC_AVC = 0;
+    public static final int CODEC_HEVC = 1;
+    private static final int videoTimescale = 90000;
+    private static final int sampleFlagsSync = 0x02000000;
+    private static final int sampleFlagsNonSync = 0x01010000;
+    private final RecorderFileWriter fileWriter;
+    private final long fragmentDurationUs;
+    private final int syncFragments;
+    private final ArrayList<Track> tracks = new ArrayList<>();
+    private boolean isStarted;
+    private int sequenceNumber;
+    private int fragmentsSinceSync;
+    private int droppedFragments;
+    private long fragmentStartUs = -1;
+
+    private static final class Track {
+        final int id;
+        final boolean isVideo;
+        final int codec;
+        final int timescale;
+        final byte[] sampleEntry;
+        byte[] data = new byte[256 * 1024];
+        int dataSize;
+        int[] sizes = new int[64];
+        long[] times = new long[64];
+        boolean[] syncs = new boolean[64];
+        int count;
+        long lastTime = -1;
+        long lastDuration;
+        int dataOffsetPosition;
+
+        Track(int id, boolean isVideo, int codec, int timescale, byte[] sampleEntry, long defaultDuration){
+            this.id = id;
+            this.isVideo = isVideo;
+            this.codec = codec;
+            this.timescale = timescale;
+            this.sampleEntry = sampleEntry;
+            this.lastDuration = defaultDuration;
+        }
+
+        void ensureDataCapacity(int size){
+            if (data.length >= size) return;
+            byte[] newData = new byte[Math.max(size, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, dataSize);
+            data = newData;
+        }
+
+        void ensureSamplesCapacity(){
+            if (count < sizes.length) return;
+            int newLength = sizes.length * 2;
+            int[] newSizes = new int[newLength];
+            long[] newTimes = new long[newLength];
+            boolean[] newSyncs = new boolean[newLength];
+            System.arraycopy(sizes, 0, newSizes, 0, count);
+            System.arraycopy(times, 0, newTimes, 0, count);
+            System.arraycopy(syncs, 0, newSyncs, 0, count);
+            sizes = newSizes;
+            times = newTimes;
+            syncs = newSyncs;
+        }
+    }
+
+    public Fmp4Writer(RecorderFileWriter fileWriter, long fragmentDurationUs, int syncFragments){
+        this.fileWriter = fileWriter;
+        this.fragmentDurationUs = fragmentDurationUs;
+        this.syncFragments = Math.max(syncFragments, 1);
+    }
+
+    // parameterSets: VPS/SPS/PPS in Annex B format, as in the csd buffers of the encoder
+    public synchronized int addVideoTrack(int codec, int width, int height, byte[] parameterSets){
+        if (isStarted) return -1;
+        ArrayList<byte[]> vps = new ArrayList<>();
+        ArrayList<byte[]> sps = new ArrayList<>();
+        ArrayList<byte[]> pps = new ArrayList<>();
+        int pos = findStartCode(parameterSets, 0, parameterSets.length);
+        while (pos != -1) {
+            int start = pos + 3;
+            int next = findStartCode(parameterSets, start, parameterSets.length);
+            int end = trimTrailingZeros(parameterSets, start, next == -1 ? parameterSets.length : next);
+            if (end > start) {
+                byte[] nal = new byte[end - start];
+                System.arraycopy(parameterSets, start, nal, 0, nal.length);
+                int type = getNalType(codec, nal[0]);
+                if (isVps(codec, type)) vps.add(nal);
+                if (isSps(codec, type)) sps.add(nal);
+                if (isPps(codec, type)) pps.add(nal);
+            }
+            pos = next;
+        }
+        if (sps.isEmpty() || pps.isEmpty() || codec == CODEC_HEVC && vps.isEmpty()) return -1;
+        ByteBuffer b = ByteBuffer.allocate(256 + getTotalLength(vps) + getTotalLength(sps) + getTotalLength(pps) + 8 * (vps.size() + sps.size() + pps.size()));
+        int entry = startBox(b, codec == CODEC_HEVC ? "hvc1" : "avc1");
+        b.put(new byte[6]);
+        b.putShort((short) 1);// data_reference_index
+        b.put(new byte[16]);
+        b.putShort((short) width);
+        b.putShort((short) height);
+        b.putInt(0x00480000);
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort((short) 1);// frame_count
+        b.put(new byte[32]);
+        b.putShort((short) 0x0018);
+        b.putShort((short) -1);
+        if (codec == CODEC_HEVC) {
+            putHvcC(b, vps, sps, pps);
+        } else {
+            putAvcC(b, sps, pps);
+        }
+        endBox(b, entry);
+        tracks.add(new Track(tracks.size() + 1, true, codec, videoTimescale, toArray(b), videoTimescale / 30));
+        return tracks.size() - 1;
+    }
+
+    // audioSpecificConfig: csd-0 of the AAC encoder
+    public synchronized int addAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig){
+        if (isStarted) return -1;
+        ByteBuffer b = ByteBuffer.allocate(128 + audioSpecificConfig.length);
+        int entry = startBox(b, "mp4a");
+        b.put(new byte[6]);
+        b.putShort((short) 1);// data_reference_index
+        b.put(new byte[8]);
+        b.putShort((short) channelCount);
+        b.putShort((short) 16);
+        b.putInt(0);
+        b.putInt(sampleRate << 16);
+        int esds = startFullBox(b, "esds", 0, 0);
+        int decoderSpecificInfoLength = 2 + audioSpecificConfig.length;
+        int decoderConfigLength = 2 + 13 + decoderSpecificInfoLength;
+        b.put((byte) 0x03);// ES_Descriptor
+        b.put((byte) (3 + decoderConfigLength + 3));
+        b.putShort((short) 0);
+        b.put((byte) 0);
+        b.put((byte) 0x04);// DecoderConfigDescriptor
+        b.put((byte) (decoderConfigLength - 2));
+        b.put((byte) 0x40);// AAC
+        b.put((byte) 0x15);// audio stream
+        b.put(new byte[3]);
+        b.putInt(0);
+        b.putInt(0);
+        b.put((byte) 0x05);// DecoderSpecificInfo
+        b.put((byte) audioSpecificConfig.length);
+        b.put(audioSpecificConfig);
+        b.put((byte) 0x06);// SLConfigDescriptor
+        b.put((byte) 1);
+        b.put((byte) 0x02);
+        endBox(b, esds);
+        endBox(b, entry);
+        tracks.add(new Track(tracks.size() + 1, false, 0, sampleRate, toArray(b), 1024));
+        return tracks.size() - 1;
+    }
+
+    // Writes the initialization segment.
+    public synchronized boolean start(){
+        if (isStarted || tracks.isEmpty()) return false;
+        int size = 1024;
+        for (Track track : tracks) size += 512 + track.sampleEntry.length;
+        RecorderFileWriter.Block block = fileWriter.acquireBlock(size);
+        if (block == null) return false;
+        ByteBuffer b = block.getBuffer();
+        int ftyp = startBox(b, "ftyp");
+        putType(b, "isom");
+        b.putInt(0x200);
+        putType(b, "isom");
+        putType(b, "iso6");
+        putType(b, "iso2");
+        putType(b, "mp41");
+        endBox(b, ftyp);
+        int moov = startBox(b, "moov");
+        int mvhd = startFullBox(b, "mvhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(1000);
+        b.putInt(0);
+        b.putInt(0x00010000);
+        b.putShort((short) 0x0100);
+        b.put(new byte[10]);
+        putMatrix(b);
+        b.put(new byte[24]);
+        b.putInt(tracks.size() + 1);
+        endBox(b, mvhd);
+        for (Track track : tracks) putTrak(b, track);
+        int mvex = startBox(b, "mvex");
+        for (Track track : tracks) {
+            int trex = startFullBox(b, "trex", 0, 0);
+            b.putInt(track.id);
+            b.putInt(1);
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(0);
+            endBox(b, trex);
+        }
+        endBox(b, mvex);
+        endBox(b, moov);
+        fileWriter.submit(block, true);
+        isStarted = true;
+        return true;
+    }
+
+    // data: Annex B NAL units for video, raw AAC frames for audio
+    public synchronized void writeSample(int trackIndex, byte[] data, int offset, int size, long ptsUs, boolean isSync){
+        if (!isStarted || trackIndex < 0 || trackIndex >= tracks.size() || size <= 0) return;
+        Track track = tracks.get(trackIndex);
+        if (fragmentStartUs == -1) fragmentStartUs = ptsUs;
+        if (track.isVideo && track.count > 0) {
+            long fragmentUs = ptsUs - fragmentStartUs;
+            // without key frames (intra refresh) fragments are cut anyway
+            if (isSync && fragmentUs >= fragmentDurationUs || fragmentUs >= fragmentDurationUs * 3) {
+                flushFragment(track, ptsUs);
+                fragmentStartUs = ptsUs;
+            }
+        }
+        int sampleSize;
+        if (track.isVideo) {
+            track.ensureDataCapacity(track.dataSize + size + size / 4 + 8);
+            sampleSize = appendNalUnits(track, data, offset, size);
+        } else {
+            track.ensureDataCapacity(track.dataSize + size);
+            System.arraycopy(data, offset, track.data, track.dataSize, size);
+            track.dataSize += size;
+            sampleSize = size;
+        }
+        if (sampleSize == 0) return;
+        long time = Math.max(ptsUs, 0) * track.timescale / 1000000;
+        if (time <= track.lastTime) time = track.lastTime + 1;
+        track.ensureSamplesCapacity();
+        track.sizes[track.count] = sampleSize;
+        track.times[track.count] = time;
+        track.syncs[track.count] = isSync || !track.isVideo;
+        track.count++;
+        track.lastTime = time;
+    }
+
+    public synchronized void close(){
+        if (isStarted) flushFragment(null, 0);
+        isStarted = false;
+        fileWriter.close();
+    }
+
+    public int getDroppedFragments(){
+        return droppedFragments;
+    }
+
+    // nextTrack: the track whose next sample starts the new fragment, its time gives the last duration
+    private void flushFragment(Track nextTrack, long nextPtsUs){
+        int moofSize = 64;
+        int dataSize = 0;
+        int samplesCount = 0;
+        for (Track track : tracks) {
+            moofSize += 128 + track.count * 12;
+            dataSize += track.dataSize;
+            samplesCount += track.count;
+        }
+        if (samplesCount == 0) return;
+        sequenceNumber++;
+        RecorderFileWriter.Block block = fileWriter.acquireBlock(moofSize + 8 + dataSize);
+        if (block == null) {
+            droppedFragments++;
+            for (Track track : tracks) resetSamples(track, track == nextTrack ? nextPtsUs : -1);
+            return;
+        }
+        ByteBuffer b = block.getBuffer();
+        int moof = startBox(b, "moof");
+        int mfhd = startFullBox(b, "mfhd", 0, 0);
+        b.putInt(sequenceNumber);
+        endBox(b, mfhd);
+        for (Track track : tracks) {
+            if (track.count == 0) continue;
+            int traf = startBox(b, "traf");
+            int tfhd = startFullBox(b, "tfhd", 0, 0x020000);// default-base-is-moof
+            b.putInt(track.id);
+            endBox(b, tfhd);
+            int tfdt = startFullBox(b, "tfdt", 1, 0);
+            b.putLong(track.times[0]);
+            endBox(b, tfdt);
+            int trun = startFullBox(b, "trun", 0, 0x000701);// data offset, duration, size, flags
+            b.putInt(track.count);
+            track.dataOffsetPosition = b.position();
+            b.putInt(0);
+            for (int i = 0; i < track.count; i++) {
+                long duration;
+                if (i < track.count - 1) {
+                    duration = track.times[i + 1] - track.times[i];
+                } else if (track == nextTrack) {
+                    duration = Math.max(nextPtsUs, 0) * track.timescale / 1000000 - track.times[i];
+                } else {
+                    duration = track.lastDuration;
+                }
+                if (duration <= 0) duration = track.lastDuration;
+                track.lastDuration = duration;
+                b.putInt((int) duration);
+                b.putInt(track.sizes[i]);
+                b.putInt(track.syncs[i] ? sampleFlagsSync : sampleFlagsNonSync);
+            }
+            endBox(b, trun);
+            endBox(b, traf);
+        }
+        endBox(b, moof);
+        int dataOffset = b.position() - moof + 8;
+        for (Track track : tracks) {
+            if (track.count == 0) continue;
+            b.putInt(track.dataOffsetPosition, dataOffset);
+            dataOffset += track.dataSize;
+        }
+        b.putInt(8 + dataSize);
+        putType(b, "mdat");
+        for (Track track : tracks) {
+            b.put(track.data, 0, track.dataSize);
+            resetSamples(track, -1);
+        }
+        fragmentsSinceSync++;
+        boolean sync = fragmentsSinceSync >= syncFragments;
+        if (sync) fragmentsSinceSync = 0;
+        fileWriter.submit(block, sync);
+    }
+
+    private void resetSamples(Track track, long nextPtsUs){
+        if (nextPtsUs != -1 && track.count > 0) {
+            long duration = Math.max(nextPtsUs, 0) * track.timescale / 1000000 - track.times[track.count - 1];
+            if (duration > 0) track.lastDuration = duration;
+        }
+        track.count = 0;
+        track.dataSize = 0;
+    }
+
+    // Converts Annex B to 4 byte length prefixes, parameter sets are only kept in the sample entry.
+    private int appendNalUnits(Track track, byte[] data, int offset, int size){
+        int end = offset + size;
+        int startSize = track.dataSize;
+        int pos = findStartCode(data, offset, end);
+        if (pos == -1) {
+            appendNalUnit(track, data, offset, end);
+            return track.dataSize - startSize;
+        }
+        while (pos != -1) {
+            int start = pos + 3;
+            int next = findStartCode(data, start, end);
+            int nalEnd = trimTrailingZeros(data, start, next == -1 ? end : next);
+            if (nalEnd > start) {
+                int type = getNalType(track.codec, data[start]);
+                if (!isVps(track.codec, type) && !isSps(track.codec, type) && !isPps(track.codec, type)) {
+                    appendNalUnit(track, data, start, nalEnd);
+                }
+            }
+            pos = next;
+        }
+        return track.dataSize - startSize;
+    }
+
+    private static void appendNalUnit(Track track, byte[] data, int start, int end){
+        int length = end - start;
+        byte[] d = track.data;
+        int p = track.dataSize;
+        d[p] = (byte) (length >> 24);
+        d[p + 1] = (byte) (length >> 16);
+        d[p + 2] = (byte) (length >> 8);
+        d[p + 3] = (byte) length;
+        System.arraycopy(data, start, d, p + 4, length);
+        track.dataSize = p + 4 + length;
+    }
+
+    private static int findStartCode(byte[] data, int from, int end){
+        for (int i = from; i + 2 < end; i++) {
+            if (data[i + 2] > 1) {
+                i += 2;
+                continue;
+            }
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) return i;
+        }
+        return -1;
+    }
+
+    private static int trimTrailingZeros(byte[] data, int start, int end){
+        while (end > start && data[end - 1] == 0) end--;
+        return end;
+    }
+
+    private static int getNalType(int codec, byte header){
+        if (codec == CODEC_HEVC) return (header >> 1) & 0x3F;
+        return header & 0x1F;
+    }
+
+    private static boolean isVps(int codec, int type){
+        return codec == CODEC_HEVC && type == 32;
+    }
+
+    private static boolean isSps(int codec, int type){
+        return codec == CODEC_HEVC ? type == 33 : type == 7;
+    }
+
+    private static boolean isPps(int codec, int type){
+        return codec == CODEC_HEVC ? type == 34 : type == 8;
+    }
+
+    private static void putAvcC(ByteBuffer b, ArrayList<byte[]> sps, ArrayList<byte[]> pps){
+        byte[] firstSps = sps.get(0);
+        int avcC = startBox(b, "avcC");
+        b.put((byte) 1);
+        b.put(firstSps[1]);// profile
+        b.put(firstSps[2]);// compatibility
+        b.put(firstSps[3]);// level
+        b.put((byte) 0xFF);// 4 byte lengths
+        b.put((byte) (0xE0 | sps.size()));
+        for (byte[] nal : sps) {
+            b.putShort((short) nal.length);
+            b.put(nal);
+        }
+        b.put((byte) pps.size());
+        for (byte[] nal : pps) {
+            b.putShort((short) nal.length);
+            b.put(nal);
+        }
+        int profile = firstSps[1] & 0xFF;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144) {
+            b.put((byte) 0xFD);// 4:2:0
+            b.put((byte) 0xF8);// 8 bit luma
+            b.put((byte) 0xF8);// 8 bit chroma
+            b.put((byte) 0);
+        }
+        endBox(b, avcC);
+    }
+
+    private static void putHvcC(ByteBuffer b, ArrayList<byte[]> vps, ArrayList<byte[]> sps, ArrayList<byte[]> pps){
+        // general profile, tier and level follow the SPS header byte-aligned
+        byte[] rbsp = removeEmulationPrevention(sps.get(0), 16);
+        int hvcC = startBox(b, "hvcC");
+        b.put((byte) 1);
+        if (rbsp.length >= 15) {
+            b.put(rbsp, 3, 12);
+        } else {
+            b.put(new byte[12]);
+        }
+        b.putShort((short) 0xF000);// min_spatial_segmentation_idc
+        b.put((byte) 0xFC);// parallelismType
+        b.put((byte) 0xFD);// 4:2:0
+        b.put((byte) 0xF8);// 8 bit luma
+        b.put((byte) 0xF8);// 8 bit chroma
+        b.putShort((short) 0);// avgFrameRate
+        // sps_max_sub_layers_minus1 and sps_temporal_id_nesting_flag follow the VPS id
+        int temporalLayers = rbsp.length >= 3 ? ((rbsp[2] >> 1) & 0x07) + 1 : 1;
+        boolean isTemporalIdNested = rbsp.length < 3 || (rbsp[2] & 0x01) != 0;
+        b.put((byte) (temporalLayers << 3 | (isTemporalIdNested ? 0x04 : 0) | 0x03));// 4 byte lengths
+        b.put((byte) 3);
+        putHvcCArray(b, 32, vps);
+        putHvcCArray(b, 33, sps);
+        putHvcCArray(b, 34, pps);
+        endBox(b, hvcC);
+    }
+
+    private static void putHvcCArray(ByteBuffer b, int type, ArrayList<byte[]> nals){
+        b.put((byte) (0x80 | type));
+        b.putShort((short) nals.size());
+        for (byte[] nal : nals) {
+            b.putShort((short) nal.length);
+            b.put(nal);
+        }
+    }
+
+    private static byte[] removeEmulationPrevention(byte[] nal, int maxLength){
+        byte[] rbsp = new byte[Math.min(nal.length, maxLength)];
+        int length = 0;
+        int zeros = 0;
+        for (int i = 0; i < nal.length && length < rbsp.length; i++) {
+            if (zeros >= 2 && nal[i] == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = nal[i] == 0 ? zeros + 1 : 0;
+            rbsp[length++] = nal[i];
+        }
+        if (length == rbsp.length) return rbsp;
+        byte[] result = new byte[length];
+        System.arraycopy(rbsp, 0, result, 0, length);
+        return result;
+    }
+
+    private static void putTrak(ByteBuffer b, Track track){
+        int trak = startBox(b, "trak");
+        int tkhd = startFullBox(b, "tkhd", 0, 3);// enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.id);
+        b.putInt(0);
+        b.putInt(0);
+        b.put(new byte[8]);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) (track.isVideo ? 0 : 0x0100));
+        b.putShort((short) 0);
+        putMatrix(b);
+        if (track.isVideo) {
+            // width and height from the sample entry
+            b.putInt((ByteBuffer.wrap(track.sampleEntry, 32, 2).getShort() & 0xFFFF) << 16);
+            b.putInt((ByteBuffer.wrap(track.sampleEntry, 34, 2).getShort() & 0xFFFF) << 16);
+        } else {
+            b.putInt(0);
+            b.putInt(0);
+        }
+        endBox(b, tkhd);
+        int mdia = startBox(b, "mdia");
+        int mdhd = startFullBox(b, "mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.timescale);
+        b.putInt(0);
+        b.putShort((short) 0x55C4);// und
+        b.putShort((short) 0);
+        endBox(b, mdhd);
+        int hdlr = startFullBox(b, "hdlr", 0, 0);
+        b.putInt(0);
+        putType(b, track.isVideo ? "vide" : "soun");
+        b.put(new byte[12]);
+        b.put((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII));
+        b.put((byte) 0);
+        endBox(b, hdlr);
+        int minf = startBox(b, "minf");
+        if (track.isVideo) {
+            int vmhd = startFullBox(b, "vmhd", 0, 1);
+            b.put(new byte[8]);
+            endBox(b, vmhd);
+        } else {
+            int smhd = startFullBox(b, "smhd", 0, 0);
+            b.putInt(0);
+            endBox(b, smhd);
+        }
+        int dinf = startBox(b, "dinf");
+        int dref = startFullBox(b, "dref", 0, 0);
+        b.putInt(1);
+        int url = startFullBox(b, "url ", 0, 1);// media in the same file
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+        int stbl = startBox(b, "stbl");
+        int stsd = startFullBox(b, "stsd", 0, 0);
+        b.putInt(1);
+        b.put(track.sampleEntry);
+        endBox(b, stsd);
+        int stts = startFullBox(b, "stts", 0, 0);
+        b.putInt(0);
+        endBox(b, stts);
+        int stsc = startFullBox(b, "stsc", 0, 0);
+        b.putInt(0);
+        endBox(b, stsc);
+        int stsz = startFullBox(b, "stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, stsz);
+        int stco = startFullBox(b, "stco", 0, 0);
+        b.putInt(0);
+        endBox(b, stco);
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+    }
+
+    private static void putMatrix(ByteBuffer b){
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x40000000);
+    }
+
+    private static int startBox(ByteBuffer b, String type){
+        int position = b.position();
+        b.putInt(0);
+        putType(b, type);
+        return position;
+    }
+
+    private static int startFullBox(ByteBuffer b, String type, int version, int flags){
+        int position = startBox(b, type);
+        b.putInt((version << 24) | flags);
+        return position;
+    }
+
+    private static void endBox(ByteBuffer b, int position){
+        b.putInt(position, b.position() - position);
+    }
+
+    private static void putType(ByteBuffer b, String type){
+        for (int i = 0; i < 4; i++) b.put((byte) type.charAt(i));
+    }
+
+    private static int getTotalLength(ArrayList<byte[]> nals){
+        int length = 0;
+        for (byte[] nal : nals) length += nal.length;
+        return length;
+    }
+
+    private static byte[] toArray(ByteBuffer b){
+        byte[] array = new byte[b.position()];
+        System.arraycopy(b.array(), 0, array, 0, array.length);
+        return array;
+    }
+}
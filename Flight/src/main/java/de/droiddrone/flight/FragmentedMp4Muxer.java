@@ -0,0 +1,113 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Logcat.log;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.droiddrone.common.MediaCommon;
+
+public class FragmentedMp4Muxer implements RecorderMuxer {
+    private final RecorderFileWriter fileWriter;
+    private final Fmp4Writer writer;
+    private byte[] sampleBuffer = new byte[64 * 1024];
+
+    public FragmentedMp4Muxer(File file, long fragmentDurationUs, int syncFragments) throws IOException {
+        fileWriter = new RecorderFileWriter(file);
+        writer = new Fmp4Writer(fileWriter, fragmentDurationUs, syncFragments);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime == null) return -1;
+        if (mime.equals(MediaCommon.audioCodecMime)) {
+            byte[] asc = getCsd(format, "csd-0");
+            if (asc == null) return -1;
+            return writer.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), asc);
+        }
+        int codec;
+        if (mime.equals(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+            codec = Fmp4Writer.CODEC_AVC;
+        } else if (mime.equals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+            codec = Fmp4Writer.CODEC_HEVC;
+        } else {
+            log("FragmentedMp4Muxer unsupported format: " + mime);
+            return -1;
+        }
+        byte[] csd0 = getCsd(format, "csd-0");
+        if (csd0 == null) return -1;
+        byte[] csd1 = getCsd(format, "csd-1");
+        byte[] parameterSets = csd0;
+        if (csd1 != null) {
+            parameterSets = new byte[csd0.length + csd1.length];
+            System.arraycopy(csd0, 0, parameterSets, 0, csd0.length);
+            System.arraycopy(csd1, 0, parameterSets, csd0.length, csd1.length);
+        }
+        int trackIndex = writer.addVideoTrack(codec, format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT), parameterSets);
+        if (trackIndex == -1) log("FragmentedMp4Muxer no parameter sets in the video format");
+        return trackIndex;
+    }
+
+    @Override
+    public void start() {
+        if (!writer.start()) log("FragmentedMp4Muxer start error: " + fileWriter.getError());
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size <= 0) return;
+        boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (buffer.hasArray()) {
+            writer.writeSample(trackIndex, buffer.array(), buffer.arrayOffset() + info.offset, info.size, info.presentationTimeUs, isSync);
+            return;
+        }
+        if (sampleBuffer.length < info.size) sampleBuffer = new byte[info.size];
+        buffer.position(info.offset);
+        buffer.get(sampleBuffer, 0, info.size);
+        writer.writeSample(trackIndex, sampleBuffer, 0, info.size, info.presentationTimeUs, isSync);
+    }
+
+    @Override
+    public void stop() {
+        writer.close();
+        if (writer.getDroppedFragments() > 0) log("FragmentedMp4Muxer dropped fragments: " + writer.getDroppedFragments());
+        if (fileWriter.getError() != null) log("FragmentedMp4Muxer write error: " + fileWriter.getError());
+    }
+
+    @Override
+    public void release() {
+
+    }
+
+    private static byte[] getCsd(MediaFormat format, String name) {
+        ByteBuffer csd = format.getByteBuffer(name);
+        if (csd == null) return null;
+        csd = csd.duplicate();
+        csd.rewind();
+        byte[] data = new byte[csd.remaining()];
+        csd.get(data);
+        return data;
+    }
+}
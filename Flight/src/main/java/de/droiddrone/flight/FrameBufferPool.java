@@ -0,0 +1,62 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import de.droiddrone.common.PooledBuffer;
+
+// Power of two sized arrays for encoded frames, returned by the last consumer through PooledBuffer.release().
+public class FrameBufferPool implements PooledBuffer.Recycler {
+    private static final int minBufferSizeBits = 12;// 4 KiB
+    private static final int maxBufferSizeBits = 22;// 4 MiB
+    private static final int buffersPerSize = 8;
+    private final ArrayList<ArrayBlockingQueue<byte[]>> buffers = new ArrayList<>();
+
+    public FrameBufferPool(){
+        for (int i = minBufferSizeBits; i <= maxBufferSizeBits; i++) {
+            buffers.add(new ArrayBlockingQueue<>(buffersPerSize));
+        }
+    }
+
+    public PooledBuffer acquire(int size){
+        int index = getIndex(size);
+        if (index == -1) return new PooledBuffer(new byte[size], null);
+        byte[] data = buffers.get(index).poll();
+        if (data == null) data = new byte[1 << (index + minBufferSizeBits)];
+        return new PooledBuffer(data, this);
+    }
+
+    @Override
+    public void recycle(byte[] data){
+        int index = getIndex(data.length);
+        if (index == -1 || data.length != 1 << (index + minBufferSizeBits)) return;
+        buffers.get(index).offer(data);
+    }
+
+    public void clear(){
+        for (ArrayBlockingQueue<byte[]> queue : buffers) queue.clear();
+    }
+
+    private int getIndex(int size){
+        if (size > 1 << maxBufferSizeBits) return -1;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(bits, minBufferSizeBits) - minBufferSizeBits;
+    }
+}
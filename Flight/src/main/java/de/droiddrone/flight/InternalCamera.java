@@ -32,6 +32,7 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodec;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -62,7 +63,9 @@ public class InternalCamera implements Camera{
     private int cameraFrameCounter;
     private int lastFps;
     private long cameraFrameTimestamp;
-    private Surface streamEncoderSurface, recorderSurface;
+    private Surface streamEncoderSurface, recorderSurface, viewerSurface;
+    private Size viewerLayerSize;
+    private boolean isViewerLayerFailed;
     private final Context context;
     private final Config config;
     private StreamEncoder streamEncoder;
@@ -72,6 +75,7 @@ public class InternalCamera implements Camera{
     private CaptureRequest.Builder mCaptureRequest;
     private CameraCaptureSession mCameraCaptureSession;
     private boolean isStarted;
+    private final CameraFrameStats frameStats = new CameraFrameStats();
 
     public InternalCamera(Context context, Config config) {
         this.context = context;
@@ -86,6 +90,7 @@ public class InternalCamera implements Camera{
         targetResolution = new Size(config.getCameraResolutionWidth(), config.getCameraResolutionHeight());
         targetFrameRange = new Range<>(config.getCameraFpsMin(), config.getCameraFpsMax());
         frameRate = targetFrameRange;
+        isViewerLayerFailed = false;
 
         cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         String[] cameraIdList;
@@ -165,8 +170,12 @@ public class InternalCamera implements Camera{
             this.recorderSurface = recorderSurface;
             targets.add(recorderSurface);
         }
+        viewerSurface = null;
+        if (!highFps && !isViewerLayerFailed) viewerSurface = streamEncoder.viewerEncoder.initialize(viewerLayerSize, frameRate.getUpper());
         try {
             List<OutputConfiguration> outputConfigurations = new ArrayList<>();
+            // the viewer layer has its own size, so it can't share the stream
+            if (viewerSurface != null) outputConfigurations.add(new OutputConfiguration(viewerSurface));
             if (Build.VERSION.SDK_INT >= 28) {
                 OutputConfiguration outputConfig = null;
                 for (Surface target : targets) {
@@ -244,11 +253,15 @@ public class InternalCamera implements Camera{
             mCameraCaptureSession = cameraCaptureSession;
             configureCamera(captureRequest);
             captureRequest.addTarget(streamEncoderSurface);
+            if (recorderSurface != null && mp4Recorder.isPreRollCapture()) captureRequest.addTarget(recorderSurface);
+            if (viewerSurface != null) captureRequest.addTarget(viewerSurface);
             try{
                 cameraCaptureSession.setRepeatingRequest(captureRequest.build(), captureCallback, new Handler(handlerThread.getLooper()));
                 cameraFrameCounter = 0;
                 lastFps = 0;
                 cameraFrameTimestamp = System.currentTimeMillis();
+                frameStats.setTargetFps(frameRate.getUpper());
+                frameStats.reset();
             }catch (Exception e){
                 log("Camera - setRepeatingRequest error: "+ e);
             }
@@ -257,6 +270,12 @@ public class InternalCamera implements Camera{
         @Override
         public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession){
             log("CameraCaptureSession - onConfigureFailed");
+            if (viewerSurface != null) {
+                log("Restarting the camera session without the viewer layer.");
+                isViewerLayerFailed = true;
+                streamEncoder.viewerEncoder.close();
+                startPreview();
+            }
         }
     };
 
@@ -366,9 +385,24 @@ public class InternalCamera implements Camera{
         log("Min FPS: "+frameRate.getLower()+", Max FPS: "+frameRate.getUpper());
         cameraResolution = new Size(width, height);
         log("cameraResolution - Width: " + cameraResolution.getWidth() + ", Height: " + cameraResolution.getHeight());
+        viewerLayerSize = getViewerLayerSize(configurationMap);
         return true;
     }
 
+    // The largest encoder size with the camera aspect ratio at no more than half of the camera width.
+    private Size getViewerLayerSize(StreamConfigurationMap configurationMap){
+        if (configurationMap == null) return null;
+        Size[] sizes = configurationMap.getOutputSizes(MediaCodec.class);
+        if (sizes == null) return null;
+        Size viewerSize = null;
+        for (Size size : sizes) {
+            if (size.getWidth() > cameraResolution.getWidth() / 2) continue;
+            if (size.getWidth() * cameraResolution.getHeight() != size.getHeight() * cameraResolution.getWidth()) continue;
+            if (viewerSize == null || size.getWidth() > viewerSize.getWidth()) viewerSize = size;
+        }
+        return viewerSize;
+    }
+
     private void configureCamera(CaptureRequest.Builder captureRequest){
         captureRequest.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
         captureRequest.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
@@ -409,6 +443,11 @@ public class InternalCamera implements Camera{
         return frameRate.getUpper();
     }
 
+    @Override
+    public CameraFrameStats getFrameStats(){
+        return frameStats;
+    }
+
     @Override
     public int getWidth(){
         return cameraResolution.getWidth();
@@ -440,12 +479,18 @@ public class InternalCamera implements Camera{
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result){
             super.onCaptureCompleted(session, request, result);
             cameraFrameCounter++;
+            Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sensorTimestamp == null) return;
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Long rollingShutterSkew = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+            frameStats.onFrame(sensorTimestamp, exposureTime == null ? -1 : exposureTime, rollingShutterSkew == null ? -1 : rollingShutterSkew);
         }
 
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure){
             super.onCaptureFailed(session, request, failure);
             log("onCaptureFailed. Reason: "+failure.getReason());
+            frameStats.onCaptureFailed();
         }
 
         @Override
@@ -461,6 +506,7 @@ public class InternalCamera implements Camera{
         @Override
         public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber){
             super.onCaptureBufferLost(session, request, target, frameNumber);
+            if (target == streamEncoderSurface) frameStats.onBufferLost();
         }
     };
 
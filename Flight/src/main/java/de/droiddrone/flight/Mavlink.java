@@ -63,7 +63,7 @@ import de.droiddrone.common.Utils;
 public class Mavlink {
     private final Serial serial;
     private final Config config;
-    public final ArrayBlockingQueue<TelemetryData> telemetryOutputBuffer = new ArrayBlockingQueue<>(30);
+    public final TelemetrySlots telemetryOutputBuffer = new TelemetrySlots();
     private final ArrayBlockingQueue<byte[]> serialRawData = new ArrayBlockingQueue<>(30);
     private final int componentId = 1;
     private final short targetComponent = 1;
@@ -0,0 +1,147 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Utils.getNextPow2;
+
+import android.media.MediaCodec;
+
+import de.droiddrone.common.MediaCodecBuffer;
+
+// Bounded single producer / single consumer ring. Only the producer moves the tail and only the consumer moves the head,
+// overflow is resolved by the consumer skipping everything before dropUntilSeq. Dropped buffers are released here,
+// polled ones by the consumer. The producer side is synchronized only so clear() from another thread can't interleave with offer().
+public class MediaBufferQueue {
+    private final MediaCodecBuffer[] ring;
+    private final int mask;
+    private final int maxSize;
+    private final boolean isVideo;
+    private volatile long head, tail;
+    private volatile long dropUntilSeq, clearUntilSeq;
+    private volatile int producerDroppedFrames, consumerDroppedFrames;
+    // producer state
+    private long lastSyncSeq = -1;
+    private boolean lastOfferedPartial;
+    private boolean waitForSyncFrame;
+    // consumer state
+    private boolean lastPolledPartial;
+
+    public MediaBufferQueue(int maxSize, boolean isVideo){
+        this.maxSize = maxSize;
+        this.isVideo = isVideo;
+        ring = new MediaCodecBuffer[getNextPow2(maxSize * 2)];
+        mask = ring.length - 1;
+    }
+
+    public synchronized boolean offer(MediaCodecBuffer buf){
+        boolean isConfig = (buf.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean isFrameStart = !lastOfferedPartial;
+        lastOfferedPartial = (buf.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+        boolean isSync = !isConfig && isFrameStart && (!isVideo || (buf.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        if (waitForSyncFrame && !isConfig) {
+            if (!isSync) {
+                if (!lastOfferedPartial) producerDroppedFrames++;
+                buf.release();
+                return false;
+            }
+            waitForSyncFrame = false;
+        }
+        long t = tail;
+        if (t - head >= ring.length) {// consumer stalled
+            if (!lastOfferedPartial) producerDroppedFrames++;
+            if (isVideo || lastOfferedPartial) waitForSyncFrame = true;
+            buf.release();
+            return false;
+        }
+        // the limit is checked on frame starts only, the rest of an accepted frame always follows it
+        if (!isConfig && isFrameStart && t - Math.max(head, dropUntilSeq) >= maxSize && !applyDropPolicy(t, isSync)) {
+            if (!lastOfferedPartial) producerDroppedFrames++;
+            waitForSyncFrame = true;
+            buf.release();
+            return false;
+        }
+        ring[(int) (t & mask)] = buf;
+        if (isSync) lastSyncSeq = t;
+        tail = t + 1;
+        return true;
+    }
+
+    // Video is flushed back to the newest key frame, a delta frame without its references is useless.
+    // Returns false if the new frame has to be dropped instead.
+    private boolean applyDropPolicy(long seq, boolean isSync){
+        if (!isVideo) {
+            dropUntilSeq = seq + 1 - maxSize;
+            return true;
+        }
+        if (isSync) {
+            dropUntilSeq = seq;
+            return true;
+        }
+        if (lastSyncSeq >= head && lastSyncSeq > dropUntilSeq) {
+            dropUntilSeq = lastSyncSeq;
+            return true;
+        }
+        return false;
+    }
+
+    public MediaCodecBuffer poll(){
+        while (true) {
+            long h = head;
+            if (h == tail) return null;
+            int index = (int) (h & mask);
+            MediaCodecBuffer buf = ring[index];
+            ring[index] = null;
+            head = h + 1;
+            boolean isPartial = (buf.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+            boolean isConfig = (buf.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (h < clearUntilSeq) {
+                lastPolledPartial = false;
+                buf.release();
+                continue;
+            }
+            // a frame already started by the consumer is finished, otherwise it would be cut
+            if (h < dropUntilSeq && !isConfig && !lastPolledPartial) {
+                if (!isPartial) consumerDroppedFrames++;
+                buf.release();
+                continue;
+            }
+            lastPolledPartial = isPartial;
+            return buf;
+        }
+    }
+
+    public int size(){
+        return (int) (tail - head);
+    }
+
+    public boolean isWaitingForSyncFrame(){
+        return waitForSyncFrame;
+    }
+
+    public int getDroppedFrames(){
+        return producerDroppedFrames + consumerDroppedFrames;
+    }
+
+    // Queued buffers are skipped by the consumer.
+    public synchronized void clear(){
+        clearUntilSeq = tail;
+        lastSyncSeq = -1;
+        lastOfferedPartial = false;
+        waitForSyncFrame = false;
+    }
+}
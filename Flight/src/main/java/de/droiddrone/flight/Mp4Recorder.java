@@ -29,6 +29,7 @@ import android.media.MediaMuxer;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
@@ -40,15 +41,17 @@ import java.util.Calendar;
 
 import de.droiddrone.common.MediaCodecBuffer;
 import de.droiddrone.common.MediaCommon;
+import de.droiddrone.common.PooledBuffer;
 
 public class Mp4Recorder {
+    private static final long fragmentDurationUs = 1000000;
     private final CameraManager cameraManager;
     private final Context context;
     private final AudioSource audioSource;
     private final Config config;
     private MediaCodec videoEncoder, audioEncoder;
     private Surface surface;
-    private MediaMuxer muxer;
+    private RecorderMuxer muxer;
     private int videoBitRate;
     private int videoTrackIndex = -1, audioTrackIndex = -1;
     private boolean isRecording = false;
@@ -60,6 +63,12 @@ public class Mp4Recorder {
     private long videoStartTimestamp = -1;
     private long audioStartTimestamp = -1;
     private StreamEncoder streamEncoder;
+    private final PreRollBuffer preRollBuffer = new PreRollBuffer();
+    private final FrameBufferPool framePool = new FrameBufferPool();
+    private boolean preRollPending;
+    private long audioOffsetUs;
+    private long lastAudioInputUs = -1;
+    private int audioInputIndex = -1;
 
     public Mp4Recorder(CameraManager cameraManager, Context context, AudioSource audioSource, Config config) {
         this.cameraManager = cameraManager;
@@ -77,6 +86,10 @@ public class Mp4Recorder {
         audioTrackIndex = -1;
         videoStartTimestamp = -1;
         audioStartTimestamp = -1;
+        audioOffsetUs = 0;
+        lastAudioInputUs = -1;
+        preRollBuffer.clear();
+        preRollBuffer.setMaxDuration(0);
         if (!config.isUseExtraEncoder()) {
             this.surface = null;
             isInitialized = true;
@@ -107,6 +120,7 @@ public class Mp4Recorder {
             return null;
         }
         this.surface = surface;
+        preRollBuffer.setMaxDuration(config.getPreRollSeconds() * 1000000L);
         try {
             videoEncoder.start();
         } catch (Exception e) {
@@ -127,6 +141,7 @@ public class Mp4Recorder {
         if (encoderName == null) return;
         try {
             audioEncoder = MediaCodec.createByCodecName(encoderName);
+            audioInputIndex = -1;
         } catch (Exception e) {
             log("startAudioEncoder error: " + e);
             return;
@@ -156,8 +171,7 @@ public class Mp4Recorder {
             audioEncoderThread.setPriority(Thread.NORM_PRIORITY);
             while (isAudioRecording) {
                 try {
-                    byte[] buf = audioSource.getBufferData(MediaCommon.mp4AudioConsumerId);
-                    if (buf != null) offerEncoder(buf);
+                    offerEncoder();
                     checkEncoderOutput();
                 } catch (Exception e) {
                     log("audioEncoderRunnable error: " + e);
@@ -166,17 +180,27 @@ public class Mp4Recorder {
         }
     };
 
-    private void offerEncoder(byte[] buf) {
-        if (audioEncoder == null || !isRecording || videoStartTimestamp == -1) return;
-        int index = audioEncoder.dequeueInputBuffer(0);
-        if (index >= 0) {
-            ByteBuffer inputBuffer = audioEncoder.getInputBuffer(index);
-            if (inputBuffer == null) return;
-            inputBuffer.put(buf);
-            long timeUs = audioSource.getTimestamp();
-            if (audioStartTimestamp == -1) audioStartTimestamp = timeUs;
-            audioEncoder.queueInputBuffer(index, 0, buf.length, timeUs - audioStartTimestamp, 0);
+    private void offerEncoder() {
+        if (audioEncoder == null || !isRecording || videoStartTimestamp == -1) {
+            audioSource.skipBufferData(MediaCommon.mp4AudioConsumerId);
+            return;
         }
+        if (!audioSource.hasBufferData(MediaCommon.mp4AudioConsumerId)) return;
+        if (audioInputIndex < 0) audioInputIndex = audioEncoder.dequeueInputBuffer(0);
+        if (audioInputIndex < 0) return;
+        ByteBuffer inputBuffer = audioEncoder.getInputBuffer(audioInputIndex);
+        if (inputBuffer == null) return;
+        inputBuffer.clear();
+        int size = Math.max(audioSource.readBufferData(MediaCommon.mp4AudioConsumerId, inputBuffer), 0);
+        long timeUs = audioSource.getTimestamp(MediaCommon.mp4AudioConsumerId);
+        // empty and out of order chunks are dropped, the input buffer is kept for the next one
+        if (size == 0) return;
+        if (audioStartTimestamp == -1) audioStartTimestamp = timeUs;
+        long ptsUs = timeUs - audioStartTimestamp + audioOffsetUs;
+        if (ptsUs <= lastAudioInputUs) return;
+        audioEncoder.queueInputBuffer(audioInputIndex, 0, size, ptsUs, 0);
+        audioInputIndex = -1;
+        lastAudioInputUs = ptsUs;
     }
 
     private void checkEncoderOutput() throws IllegalStateException {
@@ -208,6 +232,11 @@ public class Mp4Recorder {
         return startRecordingTimestamp;
     }
 
+    // The extra encoder keeps getting camera frames while not recording.
+    public boolean isPreRollCapture(){
+        return surface != null && preRollBuffer.isEnabled();
+    }
+
     private boolean isStoragePermissionGranted() {
         if (Build.VERSION.SDK_INT <= 28) {
             return context.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
@@ -225,7 +254,8 @@ public class Mp4Recorder {
         if (!isInitialized || !isStoragePermissionGranted()) return;
         this.streamEncoder = streamEncoder;
         if (streamEncoder == null){
-            cameraManager.getCamera().startCapture();
+            preRollPending = true;
+            if (!isPreRollCapture()) cameraManager.getCamera().startCapture();
         }else{
             streamEncoder.setWriteToRecorder(true);
             Thread streamEncoderThread = new Thread(streamEncoderThreadRun);
@@ -242,7 +272,11 @@ public class Mp4Recorder {
         try {
             boolean created = file.createNewFile();
             if (!created) return;
-            muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (config.isFragmentedRecording()) {
+                muxer = new FragmentedMp4Muxer(file, fragmentDurationUs, config.getRecorderSyncFragments());
+            } else {
+                muxer = new MediaMuxerWrapper(new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+            }
             if (withAudio) {
                 if (audioSource.initialize(MediaCommon.mp4AudioConsumerId)) startAudioEncoder();
             }
@@ -262,6 +296,39 @@ public class Mp4Recorder {
         }
     }
 
+    static class MediaMuxerWrapper implements RecorderMuxer {
+        private final MediaMuxer muxer;
+
+        public MediaMuxerWrapper(MediaMuxer muxer) {
+            this.muxer = muxer;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return muxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            muxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            muxer.writeSampleData(trackIndex, buffer, info);
+        }
+
+        @Override
+        public void stop() {
+            muxer.stop();
+        }
+
+        @Override
+        public void release() {
+            muxer.release();
+        }
+    }
+
     static class SingleMediaScanner implements MediaScannerConnection.MediaScannerConnectionClient {
         private final MediaScannerConnection mMs;
         private final File mFile;
@@ -291,17 +358,20 @@ public class Mp4Recorder {
         if (!isRecording) return;
         log("stopRecording");
         if (streamEncoder == null){
-            camera.stopCapture();
+            if (!isPreRollCapture()) camera.stopCapture();
         }else{
             streamEncoder.setWriteToRecorder(false);
         }
         isRecording = false;
+        preRollPending = false;
         muxerStarted = false;
         startRecordingTimestamp = 0;
         videoTrackIndex = -1;
         audioTrackIndex = -1;
         videoStartTimestamp = -1;
         audioStartTimestamp = -1;
+        audioOffsetUs = 0;
+        lastAudioInputUs = -1;
         try {
             muxer.stop();
         }catch (Exception e){
@@ -326,24 +396,24 @@ public class Mp4Recorder {
 
     private final Runnable streamEncoderThreadRun = new Runnable() {
         public void run() {
+            // the info of a shared buffer is also used by the sender, so the muxer gets its own copy
+            MediaCodec.BufferInfo sampleInfo = new MediaCodec.BufferInfo();
+            boolean preRollWritten = false;
             while (streamEncoder != null && streamEncoder.isWriteToRecorder()) {
+                MediaCodecBuffer buf = null;
                 try {
-                    MediaCodecBuffer buf = streamEncoder.videoRecorderOutputBuffer.poll();
+                    buf = streamEncoder.videoRecorderOutputBuffer.poll();
                     if (buf == null || !isRecording || buf.info == null) continue;
-                    if (videoTrackIndex == -1){
-                        videoTrackIndex = muxer.addTrack(streamEncoder.getOutputFormat());
-                        checkMuxerStart();
-                    }
-                    if (videoStartTimestamp == -1 && buf.info.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME && muxerStarted) videoStartTimestamp = buf.info.presentationTimeUs;
-                    if (muxerStarted && videoStartTimestamp != -1) {
-                        buf.info.presentationTimeUs = buf.info.presentationTimeUs - videoStartTimestamp;
-                        ByteBuffer outputByteBuffer = ByteBuffer.allocateDirect(buf.data.length);
-                        outputByteBuffer.put(buf.data);
-                        outputByteBuffer.position(0);
-                        muxer.writeSampleData(videoTrackIndex, outputByteBuffer, buf.info);
+                    if (!preRollWritten) {
+                        preRollWritten = true;
+                        writePreRoll(streamEncoder.preRollBuffer, streamEncoder.getOutputFormat(), sampleInfo);
                     }
+                    sampleInfo.set(0, buf.size, buf.info.presentationTimeUs, buf.info.flags);
+                    writeVideoSample(streamEncoder.getOutputFormat(), ByteBuffer.wrap(buf.data, 0, buf.size), sampleInfo);
                 } catch (Exception e) {
                     // do nothing
+                } finally {
+                    if (buf != null) buf.release();
                 }
             }
         }
@@ -361,20 +431,18 @@ public class Mp4Recorder {
                 ByteBuffer outputByteBuffer = codec.getOutputBuffer(index);
                 if (isRecording){
                     try {
-                        if (videoTrackIndex == -1){
-                            videoTrackIndex = muxer.addTrack(videoEncoder.getOutputFormat());
-                            checkMuxerStart();
-                        }
-                        if (videoStartTimestamp == -1 && info.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME && muxerStarted) videoStartTimestamp = info.presentationTimeUs;
-                        if (muxerStarted && videoStartTimestamp != -1) {
-                            info.presentationTimeUs = info.presentationTimeUs - videoStartTimestamp;
-                            if (outputByteBuffer != null) muxer.writeSampleData(videoTrackIndex, outputByteBuffer, info);
+                        if (preRollPending){
+                            preRollPending = false;
+                            writePreRoll(preRollBuffer, videoEncoder.getOutputFormat(), new MediaCodec.BufferInfo());
                         }
+                        if (outputByteBuffer != null) writeVideoSample(videoEncoder.getOutputFormat(), outputByteBuffer, info);
                     }catch (Exception e){
                         log("Mp4Encoder buffer error: " + e);
                         e.printStackTrace();
                         stopRecording();
                     }
+                }else if (preRollBuffer.isEnabled() && outputByteBuffer != null && info.size > 0){
+                    addToPreRoll(outputByteBuffer, info);
                 }
                 codec.releaseOutputBuffer(index, false);
             }catch (Exception e){
@@ -393,6 +461,47 @@ public class Mp4Recorder {
         }
     };
 
+    private void writeVideoSample(MediaFormat format, ByteBuffer data, MediaCodec.BufferInfo info){
+        if (videoTrackIndex == -1){
+            videoTrackIndex = muxer.addTrack(format);
+            checkMuxerStart();
+        }
+        if (videoStartTimestamp == -1 && info.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME && muxerStarted) videoStartTimestamp = info.presentationTimeUs;
+        if (muxerStarted && videoStartTimestamp != -1) {
+            info.presentationTimeUs = info.presentationTimeUs - videoStartTimestamp;
+            muxer.writeSampleData(videoTrackIndex, data, info);
+        }
+    }
+
+    // The pre-roll is written first, audio only starts now and is shifted by its duration.
+    private void writePreRoll(PreRollBuffer preRoll, MediaFormat format, MediaCodec.BufferInfo sampleInfo){
+        audioOffsetUs = preRoll.getDurationUs();
+        MediaCodecBuffer buf;
+        while ((buf = preRoll.poll()) != null) {
+            try {
+                sampleInfo.set(0, buf.size, buf.info.presentationTimeUs, buf.info.flags);
+                writeVideoSample(format, ByteBuffer.wrap(buf.data, 0, buf.size), sampleInfo);
+            } finally {
+                buf.release();
+            }
+        }
+    }
+
+    private void addToPreRoll(ByteBuffer outputByteBuffer, MediaCodec.BufferInfo info){
+        PooledBuffer buf = framePool.acquire(info.size);
+        outputByteBuffer.position(info.offset);
+        outputByteBuffer.get(buf.data, 0, info.size);
+        MediaCodec.BufferInfo frameInfo = new MediaCodec.BufferInfo();
+        frameInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+        preRollBuffer.add(new MediaCodecBuffer(frameInfo, buf, info.size, System.currentTimeMillis()));
+        buf.release();
+        if (preRollBuffer.needsSyncFrame()) {
+            Bundle param = new Bundle();
+            param.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            videoEncoder.setParameters(param);
+        }
+    }
+
     private MediaFormat getEncoderFormat(){
         MediaFormat mediaFormat = MediaFormat.createVideoFormat(config.getVideoRecorderCodecMime(), cameraManager.getCamera().getWidth(), cameraManager.getCamera().getHeight());
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitRate);
@@ -423,5 +532,8 @@ public class Mp4Recorder {
             }
         }
         if (surface != null) surface.release();
+        surface = null;
+        preRollBuffer.clear();
+        framePool.clear();
     }
 }
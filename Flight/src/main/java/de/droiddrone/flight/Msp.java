@@ -47,7 +47,7 @@ public class Msp {
     private static final byte MSP_V2_MIN_REQUEST_SIZE = MSP_V2_HEADER_SIZE + MSP_CRC_SIZE;
     private final Serial serial;
     private final Config config;
-    public final ArrayBlockingQueue<TelemetryData> telemetryOutputBuffer = new ArrayBlockingQueue<>(30);
+    public final TelemetrySlots telemetryOutputBuffer = new TelemetrySlots();
     private final ArrayBlockingQueue<byte[]> serialRawData = new ArrayBlockingQueue<>(30);
     private int fcVariant;
     private int apiProtocolVersion;
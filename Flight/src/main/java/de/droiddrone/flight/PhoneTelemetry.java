@@ -21,7 +21,6 @@ import static de.droiddrone.common.Logcat.log;
 
 import android.content.Context;
 import android.os.BatteryManager;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import de.droiddrone.common.DataWriter;
 import de.droiddrone.common.FcCommon;
@@ -34,7 +33,7 @@ public class PhoneTelemetry {
     private final StreamEncoder streamEncoder;
     private final CameraManager cameraManager;
     private final Mp4Recorder mp4Recorder;
-    public final ArrayBlockingQueue<TelemetryData> telemetryOutputBuffer = new ArrayBlockingQueue<>(10);
+    public final TelemetrySlots telemetryOutputBuffer = new TelemetrySlots();
     private int threadsId;
     private BatteryManager batteryManager;
     private TelephonyService telephonyService;
@@ -69,8 +68,10 @@ public class PhoneTelemetry {
             while (id == threadsId) {
                 try {
                     sendCameraFps();
+                    sendCameraFrameStats();
                     sendVideoBitRate();
                     sendRecorderState();
+                    sendDroppedFrames();
                     sendBatteryState();
                     sendNetworkState();
                     Thread.sleep(timerDelayMs);
@@ -109,12 +110,28 @@ public class PhoneTelemetry {
         telemetryOutputBuffer.offer(new TelemetryData(FcCommon.DD_VIDEO_BIT_RATE, writer.getData()));
     }
 
+    private void sendDroppedFrames() {
+        DataWriter writer = new DataWriter(false);
+        writer.writeInt(streamEncoder.videoStreamOutputBuffer.getDroppedFrames());
+        writer.writeInt(streamEncoder.videoRecorderOutputBuffer.getDroppedFrames());
+        writer.writeInt(streamEncoder.audioOutputBuffer.getDroppedFrames());
+        telemetryOutputBuffer.offer(new TelemetryData(FcCommon.DD_DROPPED_FRAMES, writer.getData()));
+    }
+
     private void sendCameraFps() {
         DataWriter writer = new DataWriter(false);
         writer.writeShort((short) cameraManager.getCamera().getCurrentFps());
         telemetryOutputBuffer.offer(new TelemetryData(FcCommon.DD_CAMERA_FPS, writer.getData()));
     }
 
+    private void sendCameraFrameStats() {
+        CameraFrameStats frameStats = cameraManager.getCamera().getFrameStats();
+        if (frameStats == null) return;
+        DataWriter writer = new DataWriter(false);
+        frameStats.writeTo(writer);
+        telemetryOutputBuffer.offer(new TelemetryData(FcCommon.DD_CAMERA_FRAME_STATS, writer.getData()));
+    }
+
     private void sendBatteryState() {
         if (batteryManager == null) return;
         int batteryLevel = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
@@ -0,0 +1,119 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import android.media.MediaCodec;
+
+import java.util.ArrayDeque;
+
+import de.droiddrone.common.MediaCodecBuffer;
+
+// Keeps the last seconds of encoded whole frames while not recording. The buffer always starts with a key frame
+// and is trimmed by whole GOPs, so it holds at least maxDurationUs once a second GOP has arrived.
+public class PreRollBuffer {
+    private static final int maxBytes = 64 * 1024 * 1024;
+    private final ArrayDeque<MediaCodecBuffer> frames = new ArrayDeque<>();
+    private final ArrayDeque<MediaCodecBuffer> keyFrames = new ArrayDeque<>();
+    private volatile long maxDurationUs;
+    private int bytes;// pooled capacity held, not the frame sizes
+    private boolean syncFrameRequested;
+
+    public void setMaxDuration(long maxDurationUs){
+        this.maxDurationUs = maxDurationUs;
+        if (maxDurationUs <= 0) clear();
+    }
+
+    public boolean isEnabled(){
+        return maxDurationUs > 0;
+    }
+
+    public synchronized void add(MediaCodecBuffer frame){
+        boolean isKey = (frame.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (!isEnabled() || frame.info == null || (frame.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+                || frames.isEmpty() && !isKey) {
+            frame.release();
+            return;
+        }
+        frames.add(frame);
+        bytes += frame.data.length;
+        if (isKey) {
+            keyFrames.add(frame);
+            syncFrameRequested = false;
+        }
+        long newestUs = frame.info.presentationTimeUs;
+        while (keyFrames.size() > 1) {
+            MediaCodecBuffer nextGop = getSecondKeyFrame();
+            if (newestUs - nextGop.info.presentationTimeUs < maxDurationUs && bytes <= maxBytes) break;
+            removeFirstGop();
+        }
+        if (bytes > maxBytes) clear();
+    }
+
+    // Long GOPs are cut by a key frame request once the newest GOP covers the whole duration.
+    public synchronized boolean needsSyncFrame(){
+        if (syncFrameRequested) return false;
+        MediaCodecBuffer lastKeyFrame = keyFrames.peekLast();
+        MediaCodecBuffer newest = frames.peekLast();
+        if (lastKeyFrame == null || newest == null
+                || newest.info.presentationTimeUs - lastKeyFrame.info.presentationTimeUs >= maxDurationUs) {
+            syncFrameRequested = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized MediaCodecBuffer poll(){
+        MediaCodecBuffer frame = frames.poll();
+        if (frame == null) return null;
+        bytes -= frame.data.length;
+        if (keyFrames.peekFirst() == frame) keyFrames.poll();
+        return frame;
+    }
+
+    public synchronized long getDurationUs(){
+        MediaCodecBuffer first = frames.peekFirst();
+        MediaCodecBuffer last = frames.peekLast();
+        if (first == null || last == null) return 0;
+        return last.info.presentationTimeUs - first.info.presentationTimeUs;
+    }
+
+    public synchronized void clear(){
+        MediaCodecBuffer frame;
+        while ((frame = frames.poll()) != null) frame.release();
+        keyFrames.clear();
+        bytes = 0;
+        syncFrameRequested = false;
+    }
+
+    private MediaCodecBuffer getSecondKeyFrame(){
+        MediaCodecBuffer first = keyFrames.poll();
+        MediaCodecBuffer second = keyFrames.peekFirst();
+        keyFrames.addFirst(first);
+        return second;
+    }
+
+    private void removeFirstGop(){
+        keyFrames.poll();
+        MediaCodecBuffer nextKeyFrame = keyFrames.peekFirst();
+        while (frames.peekFirst() != nextKeyFrame) {
+            MediaCodecBuffer frame = frames.poll();
+            bytes -= frame.data.length;
+            frame.release();
+        }
+    }
+}
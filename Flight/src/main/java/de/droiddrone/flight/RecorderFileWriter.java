@@ -0,0 +1,143 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Utils.getNextPow2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Writes preallocated blocks to a file on its own thread, so a slow SD card never blocks the encoders.
+// If all blocks are still waiting for the card, acquireBlock() returns null and the caller drops its data.
+// Plain Java only, errors are kept for the caller instead of being logged.
+public class RecorderFileWriter {
+    private static final int blocksCount = 4;
+    private static final int initialBlockSize = 2 * 1024 * 1024;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ArrayBlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(blocksCount);
+    private final ArrayBlockingQueue<Block> filledBlocks = new ArrayBlockingQueue<>(blocksCount);
+    private final Thread ioThread;
+    private volatile boolean isClosing;
+    private volatile IOException error;
+    private long writtenBytes;
+    private int blockSize = initialBlockSize;
+
+    public static final class Block {
+        private ByteBuffer buffer;
+        private boolean sync;
+
+        private Block(int size){
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        public ByteBuffer getBuffer(){
+            return buffer;
+        }
+
+        private void ensureCapacity(int size){
+            if (buffer.capacity() >= size) return;
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    public RecorderFileWriter(File outputFile) throws IOException {
+        file = new RandomAccessFile(outputFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        for (int i = 0; i < blocksCount; i++) freeBlocks.offer(new Block(initialBlockSize));
+        ioThread = new Thread(ioRun);
+        ioThread.setDaemon(false);
+        ioThread.setName("recorderIoThread");
+        ioThread.start();
+    }
+
+    public Block acquireBlock(int size){
+        if (isClosing || error != null) return null;
+        Block block = freeBlocks.poll();
+        if (block == null) return null;
+        // the blocks grow together in power of two steps, not with every larger fragment
+        if (size > blockSize) blockSize = getNextPow2(size);
+        block.ensureCapacity(blockSize);
+        block.buffer.clear();
+        return block;
+    }
+
+    // sync: force the data to the storage after writing the block
+    public void submit(Block block, boolean sync){
+        block.buffer.flip();
+        block.sync = sync;
+        filledBlocks.offer(block);
+    }
+
+    public IOException getError(){
+        return error;
+    }
+
+    public long getWrittenBytes(){
+        return writtenBytes;
+    }
+
+    private final Runnable ioRun = new Runnable() {
+        public void run() {
+            while (true) {
+                try {
+                    Block block = filledBlocks.poll(50, TimeUnit.MILLISECONDS);
+                    if (block == null) {
+                        if (isClosing) break;
+                        continue;
+                    }
+                    if (error == null) {
+                        while (block.buffer.hasRemaining()) writtenBytes += channel.write(block.buffer);
+                        if (block.sync) channel.force(false);
+                    }
+                    freeBlocks.offer(block);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+    };
+
+    // Writes the queued blocks and closes the file.
+    public void close(){
+        isClosing = true;
+        try {
+            ioThread.join(5000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+    }
+}
@@ -23,14 +23,18 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
 import de.droiddrone.common.MediaCodecBuffer;
 import de.droiddrone.common.MediaCommon;
+import de.droiddrone.common.PooledBuffer;
+import de.droiddrone.common.SettingsCommon;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 
 import static de.droiddrone.common.Logcat.log;
 
@@ -43,10 +47,14 @@ public class StreamEncoder {
     private String codecType = MediaCommon.hevcCodecMime;
     private MediaCodec videoEncoder, audioEncoder;
     private final int maxOutputBufferSize = 30;
-    public final ConcurrentLinkedQueue<MediaCodecBuffer> videoStreamOutputBuffer = new ConcurrentLinkedQueue<>();
-    public final ConcurrentLinkedQueue<MediaCodecBuffer> videoRecorderOutputBuffer = new ConcurrentLinkedQueue<>();
-    public final ConcurrentLinkedQueue<MediaCodecBuffer> audioOutputBuffer = new ConcurrentLinkedQueue<>();
+    public final MediaBufferQueue videoStreamOutputBuffer = new MediaBufferQueue(maxOutputBufferSize, true);
+    public final MediaBufferQueue videoRecorderOutputBuffer = new MediaBufferQueue(maxOutputBufferSize, true);
+    public final MediaBufferQueue audioOutputBuffer = new MediaBufferQueue(maxOutputBufferSize, false);
+    public final PreRollBuffer preRollBuffer = new PreRollBuffer();
+    public final ViewerEncoder viewerEncoder;
     private int audioBitRate;
+    private int audioStreamCodec;
+    private boolean isOpusAudio;
     private long bitRateCounter = 0;
     private long bitRateTimestamp = 0;
     private float lastBitRateMbs = 0;
@@ -54,18 +62,51 @@ public class StreamEncoder {
     private boolean lockIncreaseBitrate = false;
     private long lockIncreaseBitrateTs;
     private boolean encoderBitrateChange = false;
+    // a P frame predicted from a long-term reference, only receivers that hold the reference can decode it
+    public static final int BUFFER_FLAG_LTR_RECOVERY = 0x10000;
+    private volatile boolean keyFrameRequested = false;
+    private volatile long lastKeyFrameRequestTs;
+    private boolean isIntraRefresh;
+    // every second frame is a non-reference enhancement layer frame
+    private static final String temporalLayeringSchema = "android.generic.2";
+    private boolean isTemporalLayering;
+    private final int minKeyFrameRequestIntervalMs = 100;
+    // Long-term reference frames, only exposed by some vendors through their extension keys.
+    private static final String ltrCountKey = "vendor.qti-ext-enc-ltr-count.num-ltr-frames";
+    private static final String ltrMarkKey = "vendor.qti-ext-enc-ltr.mark-frame";
+    private static final String ltrUseKey = "vendor.qti-ext-enc-ltr.use-frame";
+    private static final int ltrCount = 2;
+    private final int ltrMarkIntervalMs = 500;
+    private volatile boolean isLtrSupported;
+    private final long[] ltrPts = new long[ltrCount];
+    private final short[] ltrFrameNums = new short[ltrCount];
+    private int nextLtrIndex;
+    private int ltrMarkIndex = -1;
+    private volatile int ltrUseIndex = -1;
+    private volatile short ltrUseFrameNum;
+    private long ltrMarkRequestTs, lastLtrMarkTs, recoveryRequestTs;
+    private short recoveryRefFrameNum;
+    private volatile short recoveryFrameRefNum;
+    private volatile long recoveryFramePts = -1;
     private boolean sendFrames = false;
     private boolean writeToRecorder;
     private boolean isAudioSending;
     private boolean isVideoEncoderInitialized;
     private int audioThreadId;
+    private int audioInputIndex = -1;
+    private long lastAudioInputUs = -1;
     private long lastBitrateReduceTs;
     private Surface surface;
+    private final FrameBufferPool framePool = new FrameBufferPool();
+    private final ByteArrayOutputStream recorderPartialFrame = new ByteArrayOutputStream();
+    private int recorderPartialFlags;
+    private volatile UvcFrameLatencyProbe frameLatencyProbe;
 
     public StreamEncoder(CameraManager cameraManager, AudioSource audioSource, Config config){
         this.cameraManager = cameraManager;
         this.audioSource = audioSource;
         this.config = config;
+        viewerEncoder = new ViewerEncoder(config);
         writeToRecorder = false;
         isAudioSending = false;
         isVideoEncoderInitialized = false;
@@ -99,10 +140,15 @@ public class StreamEncoder {
         }
         videoStreamOutputBuffer.clear();
         videoRecorderOutputBuffer.clear();
+        preRollBuffer.clear();
+        preRollBuffer.setMaxDuration(config.isUseExtraEncoder() ? 0 : config.getPreRollSeconds() * 1000000L);
         videoEncoder.setCallback(encoderCallback);
         try {
             MediaFormat mediaFormat = getEncoderFormat();
             videoEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (isTemporalLayering && !videoEncoder.getOutputFormat().containsKey(MediaFormat.KEY_TEMPORAL_LAYERING)) {
+                log("Temporal layering is not confirmed by the encoder, frames are tagged from the bitstream.");
+            }
         } catch (Exception e) {
             log("StreamEncoder configure error: " + e);
             e.printStackTrace();
@@ -152,22 +198,28 @@ public class StreamEncoder {
         if (!audioSource.initialize(MediaCommon.streamAudioConsumerId)){
             return;
         }
+        audioStreamCodec = config.getAudioStreamCodec();
+        isOpusAudio = audioStreamCodec == SettingsCommon.AudioStreamCodec.OPUS && MediaCommon.getCodecName(MediaCommon.opusCodecMime, true) != null;
+        if (audioStreamCodec == SettingsCommon.AudioStreamCodec.OPUS && !isOpusAudio) log("No Opus encoder found, using AAC.");
+        String mime = isOpusAudio ? MediaCommon.opusCodecMime : MediaCommon.audioCodecMime;
 
-        String encoderName = MediaCommon.getCodecName(MediaCommon.audioCodecMime, true);
+        String encoderName = MediaCommon.getCodecName(mime, true);
         log("startAudioEncoder: " + encoderName);
         if (encoderName == null) return;
         try {
             audioEncoder = MediaCodec.createByCodecName(encoderName);
+            audioInputIndex = -1;
+            lastAudioInputUs = -1;
         } catch (Exception e) {
             log("startAudioEncoder error: " + e);
             return;
         }
         try {
-            MediaFormat format  = MediaFormat.createAudioFormat(MediaCommon.audioCodecMime, audioSource.getAudioFormat().getSampleRate(), audioSource.getAudioFormat().getChannelCount());
+            MediaFormat format  = MediaFormat.createAudioFormat(mime, audioSource.getAudioFormat().getSampleRate(), audioSource.getAudioFormat().getChannelCount());
             format.setInteger(MediaFormat.KEY_BIT_RATE, audioBitRate);
             format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, audioSource.getBufferSize());
             format.setInteger(MediaFormat.KEY_PCM_ENCODING, audioSource.getAudioFormat().getEncoding());
-            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            if (!isOpusAudio) format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
             audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             audioEncoder.start();
         } catch (Exception e) {
@@ -198,13 +250,25 @@ public class StreamEncoder {
         return audioSource.getAudioFormat();
     }
 
+    public int getAudioStreamCodec(){
+        return audioStreamCodec;
+    }
+
+    public boolean isOpusAudio(){
+        return isOpusAudio;
+    }
+
     private final Runnable audioStreamRunnable = new Runnable() {
         public void run() {
             final int id = audioThreadId;
             while (isAudioSending && id == audioThreadId) {
                 try {
-                    byte[] buf = audioSource.getBufferData(MediaCommon.streamAudioConsumerId);
-                    if (buf != null && getTargetBitRate() >= 2000000) offerAudioEncoder(buf);
+                    // Opus packets are small enough for any video bitrate
+                    if (isOpusAudio || getTargetBitRate() >= 2000000) {
+                        offerAudioEncoder();
+                    } else {
+                        audioSource.skipBufferData(MediaCommon.streamAudioConsumerId);
+                    }
                     checkAudioEncoderOutput();
                 } catch (Exception e) {
                     log("audioStreamRunnable error: " + e);
@@ -213,16 +277,21 @@ public class StreamEncoder {
         }
     };
 
-    private void offerAudioEncoder(byte[] buf) {
-        if (audioEncoder == null) return;
-        int index = audioEncoder.dequeueInputBuffer(0);
-        if (index >= 0) {
-            ByteBuffer inputBuffer = audioEncoder.getInputBuffer(index);
-            if (inputBuffer == null) return;
-            inputBuffer.put(buf);
-            long timeUs = audioSource.getTimestamp();
-            audioEncoder.queueInputBuffer(index, 0, buf.length, timeUs, 0);
-        }
+    // Unread chunks stay in the ring until the encoder has a free input buffer.
+    private void offerAudioEncoder() {
+        if (audioEncoder == null || !audioSource.hasBufferData(MediaCommon.streamAudioConsumerId)) return;
+        if (audioInputIndex < 0) audioInputIndex = audioEncoder.dequeueInputBuffer(0);
+        if (audioInputIndex < 0) return;
+        ByteBuffer inputBuffer = audioEncoder.getInputBuffer(audioInputIndex);
+        if (inputBuffer == null) return;
+        inputBuffer.clear();
+        int size = audioSource.readBufferData(MediaCommon.streamAudioConsumerId, inputBuffer);
+        long timeUs = audioSource.getTimestamp(MediaCommon.streamAudioConsumerId);
+        // empty and out of order chunks are dropped, the input buffer is kept for the next one
+        if (size <= 0 || timeUs <= lastAudioInputUs) return;
+        audioEncoder.queueInputBuffer(audioInputIndex, 0, size, timeUs, 0);
+        audioInputIndex = -1;
+        lastAudioInputUs = timeUs;
     }
 
     private void checkAudioEncoderOutput() throws IllegalStateException {
@@ -240,7 +309,6 @@ public class StreamEncoder {
                 outputBuffer.get(buf);
                 if (sendFrames || info.flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
                     audioOutputBuffer.offer(new MediaCodecBuffer(info, buf));
-                    if (audioOutputBuffer.size() > maxOutputBufferSize) audioOutputBuffer.remove();
                 }
             }
             audioEncoder.releaseOutputBuffer(index, false);
@@ -314,6 +382,143 @@ public class StreamEncoder {
 
     public void setWriteToRecorder(boolean writeToRecorder){
         this.writeToRecorder = writeToRecorder;
+        if (!writeToRecorder) preRollBuffer.clear();
+        if (writeToRecorder && isIntraRefresh) requestKeyFrame();// the muxer starts on a key frame
+    }
+
+    public void requestKeyFrame(){
+        requestKeyFrame((short) 0);
+    }
+
+    public void setFrameLatencyProbe(UvcFrameLatencyProbe frameLatencyProbe){
+        this.frameLatencyProbe = frameLatencyProbe;
+    }
+
+    // Recovers from the newest long-term reference the receiver is known to have, or with a key frame.
+    public void requestKeyFrame(short lastReceivedFrameNum){
+        long current = System.currentTimeMillis();
+        if (current - lastKeyFrameRequestTs < minKeyFrameRequestIntervalMs) return;
+        lastKeyFrameRequestTs = current;
+        synchronized (ltrFrameNums) {
+            int ltrIndex = getReceivedLtrIndex(lastReceivedFrameNum);
+            if (ltrIndex != -1) {
+                ltrUseFrameNum = ltrFrameNums[ltrIndex];
+                ltrUseIndex = ltrIndex;
+            } else {
+                keyFrameRequested = true;
+            }
+        }
+    }
+
+    private int getReceivedLtrIndex(short lastReceivedFrameNum){
+        if (!isLtrSupported || lastReceivedFrameNum == 0) return -1;
+        int index = -1;
+        int minAge = Integer.MAX_VALUE;
+        for (int i = 0; i < ltrCount; i++) {
+            if (ltrFrameNums[i] == 0) continue;
+            int age = lastReceivedFrameNum - ltrFrameNums[i];
+            if (age < 0) age += Short.MAX_VALUE;
+            if (age > Short.MAX_VALUE / 2) continue;// not received yet
+            if (age < minAge) {
+                minAge = age;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    public void onFrameSent(MediaCodecBuffer frame, int frameNum){
+        if (!isLtrSupported || frame.info == null) return;
+        synchronized (ltrFrameNums) {
+            for (int i = 0; i < ltrCount; i++) {
+                if (ltrPts[i] == frame.info.presentationTimeUs) ltrFrameNums[i] = (short) frameNum;
+            }
+        }
+    }
+
+    // Frame number of the long-term reference the recovery frame is predicted from, 0 for other frames.
+    public short getRecoveryRefFrameNum(MediaCodecBuffer frame){
+        if ((frame.flags & BUFFER_FLAG_LTR_RECOVERY) == 0 || frame.info == null) return 0;
+        if (frame.info.presentationTimeUs != recoveryFramePts) return 0;
+        return recoveryFrameRefNum;
+    }
+
+    private void clearLtr(int index){
+        synchronized (ltrFrameNums) {
+            ltrPts[index] = -1;
+            ltrFrameNums[index] = 0;
+        }
+    }
+
+    private void resetLtr(){
+        for (int i = 0; i < ltrCount; i++) {
+            clearLtr(i);
+        }
+        ltrMarkIndex = -1;
+        ltrUseIndex = -1;
+        ltrMarkRequestTs = 0;
+        recoveryRequestTs = 0;
+        recoveryFramePts = -1;
+    }
+
+    // Parameters apply to the next frames queued by the camera, so the marked frame is the first one captured after the request.
+    private MediaCodec.BufferInfo processLtrOutput(MediaCodec.BufferInfo info, long captureTs){
+        if (!isLtrSupported || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return info;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            for (int i = 0; i < ltrCount; i++) {
+                if (i != ltrMarkIndex) clearLtr(i);
+            }
+        }
+        if (ltrMarkRequestTs != 0 && captureTs >= ltrMarkRequestTs) {
+            synchronized (ltrFrameNums) {
+                ltrPts[ltrMarkIndex] = info.presentationTimeUs;
+            }
+            ltrMarkRequestTs = 0;
+            ltrMarkIndex = -1;
+        }
+        if (recoveryRequestTs != 0 && captureTs >= recoveryRequestTs) {
+            recoveryRequestTs = 0;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) return info;
+            recoveryFrameRefNum = recoveryRefFrameNum;
+            recoveryFramePts = info.presentationTimeUs;
+            MediaCodec.BufferInfo recoveryInfo = new MediaCodec.BufferInfo();
+            recoveryInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags | BUFFER_FLAG_LTR_RECOVERY);
+            return recoveryInfo;
+        }
+        return info;
+    }
+
+    private void processLtrRequests(){
+        if (!isLtrSupported) return;
+        long current = System.currentTimeMillis();
+        int useIndex = ltrUseIndex;
+        if (useIndex != -1) {
+            recoveryRefFrameNum = ltrUseFrameNum;
+            Bundle param = new Bundle();
+            param.putInt(ltrUseKey, useIndex);
+            videoEncoder.setParameters(param);
+            ltrUseIndex = -1;
+            recoveryRequestTs = current;
+            return;
+        }
+        if (ltrMarkRequestTs != 0 || current - lastLtrMarkTs < ltrMarkIntervalMs) return;
+        int index = nextLtrIndex;
+        nextLtrIndex = (nextLtrIndex + 1) % ltrCount;
+        clearLtr(index);
+        Bundle param = new Bundle();
+        param.putInt(ltrMarkKey, index);
+        videoEncoder.setParameters(param);
+        ltrMarkIndex = index;
+        ltrMarkRequestTs = current;
+        lastLtrMarkTs = current;
+    }
+
+    public boolean isIntraRefresh(){
+        return isIntraRefresh;
+    }
+
+    public boolean isTemporalLayering(){
+        return isTemporalLayering;
     }
 
     public boolean isWriteToRecorder(){
@@ -333,27 +538,45 @@ public class StreamEncoder {
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            byte[] buf = new byte[info.size];
+            UvcFrameLatencyProbe probe = frameLatencyProbe;
+            if (probe != null && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) probe.onEncodedFrame(info.presentationTimeUs);
+            // one copy out of the codec, shared by the sender and the recorder
+            PooledBuffer buf;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                buf = new PooledBuffer(new byte[info.size], null);
+            } else {
+                buf = framePool.acquire(info.size);
+            }
             bitRateCounter += info.size;
             try {
                 ByteBuffer outputByteBuffer = codec.getOutputBuffer(index);
                 if (outputByteBuffer == null){
                     codec.releaseOutputBuffer(index, false);
+                    buf.release();
                     return;
                 }
-                outputByteBuffer.get(buf);
+                outputByteBuffer.get(buf.data, 0, info.size);
                 codec.releaseOutputBuffer(index, false);
             }catch (Exception e){
                 e.printStackTrace();
             }
+            long captureTs = getCaptureTimestamp(info.presentationTimeUs);
+            MediaCodec.BufferInfo streamInfo = processLtrOutput(info, captureTs);
             if (sendFrames || info.flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
-                videoStreamOutputBuffer.offer(new MediaCodecBuffer(info, buf));
-                if (videoStreamOutputBuffer.size() > maxOutputBufferSize) videoStreamOutputBuffer.remove();
+                videoStreamOutputBuffer.offer(new MediaCodecBuffer(streamInfo, buf, info.size, captureTs));
+                if (videoStreamOutputBuffer.isWaitingForSyncFrame()) requestKeyFrame();
             }
             if (writeToRecorder) {
-                videoRecorderOutputBuffer.offer(new MediaCodecBuffer(info, buf));
-                if (videoRecorderOutputBuffer.size() > maxOutputBufferSize) videoRecorderOutputBuffer.remove();
+                MediaCodecBuffer recorderFrame = assembleRecorderFrame(info, buf);
+                if (recorderFrame != null) videoRecorderOutputBuffer.offer(recorderFrame);
+                if (videoRecorderOutputBuffer.isWaitingForSyncFrame()) requestKeyFrame();
+            } else if (preRollBuffer.isEnabled() && !isIntraRefresh) {
+                // with intra refresh the GOPs never end, so the recording starts at a requested key frame instead
+                MediaCodecBuffer preRollFrame = assembleRecorderFrame(info, buf);
+                if (preRollFrame != null) preRollBuffer.add(preRollFrame);
+                if (preRollBuffer.needsSyncFrame()) requestKeyFrame();
             }
+            buf.release();
             if (encoderBitrateChange){
                 log("Encoder bitrate change: " + baseBitRates[bitRateIndex]);
                 encoderBitrateChange = false;
@@ -361,6 +584,13 @@ public class StreamEncoder {
                 param.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, baseBitRates[bitRateIndex]);
                 videoEncoder.setParameters(param);
             }
+            if (keyFrameRequested){
+                keyFrameRequested = false;
+                Bundle param = new Bundle();
+                param.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                videoEncoder.setParameters(param);
+            }
+            processLtrRequests();
         }
 
         @Override
@@ -374,15 +604,80 @@ public class StreamEncoder {
         }
     };
 
+    // The muxer needs whole frames, so partial encoder outputs are joined first.
+    private MediaCodecBuffer assembleRecorderFrame(MediaCodec.BufferInfo info, PooledBuffer buf){
+        boolean isPartial = (info.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+        if (!isPartial && recorderPartialFrame.size() == 0) return new MediaCodecBuffer(info, buf, info.size, getCaptureTimestamp(info.presentationTimeUs));
+        recorderPartialFrame.write(buf.data, 0, info.size);
+        recorderPartialFlags |= info.flags;
+        if (isPartial) return null;
+        byte[] frame = recorderPartialFrame.toByteArray();
+        int flags = recorderPartialFlags & ~MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
+        recorderPartialFrame.reset();
+        recorderPartialFlags = 0;
+        MediaCodec.BufferInfo frameInfo = new MediaCodec.BufferInfo();
+        frameInfo.set(0, frame.length, info.presentationTimeUs, flags);
+        return new MediaCodecBuffer(frameInfo, frame);
+    }
+
+    // Camera surface timestamps use the monotonic or the boot time base, depending on the camera.
+    private long getCaptureTimestamp(long presentationTimeUs){
+        long current = System.currentTimeMillis();
+        long ageUs = System.nanoTime() / 1000 - presentationTimeUs;
+        if (ageUs < 0 || ageUs > 1000000) ageUs = SystemClock.elapsedRealtimeNanos() / 1000 - presentationTimeUs;
+        if (ageUs < 0 || ageUs > 1000000) return current;
+        return current - ageUs / 1000;
+    }
+
     private MediaFormat getEncoderFormat(){
         MediaFormat mediaFormat = MediaFormat.createVideoFormat(codecType, cameraManager.getCamera().getWidth(), cameraManager.getCamera().getHeight());
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, baseBitRates[bitRateIndex]);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, cameraManager.getCamera().getTargetFps());
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        mediaFormat.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 0.5f);
+        isIntraRefresh = config.isIntraRefresh() && isIntraRefreshSupported();
+        if (isIntraRefresh) {
+            // key frames are only produced on request, the picture is refreshed over one second
+            mediaFormat.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, cameraManager.getCamera().getTargetFps());
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3600);
+        } else {
+            // lost frames are recovered by key frame requests from the controller
+            mediaFormat.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 2);
+        }
+        isTemporalLayering = config.isTemporalLayers();
+        if (isTemporalLayering) mediaFormat.setString(MediaFormat.KEY_TEMPORAL_LAYERING, temporalLayeringSchema);
+        resetLtr();
+        // a marked frame could be a dropped enhancement layer frame
+        isLtrSupported = !isTemporalLayering && isLtrSupported();
+        if (isLtrSupported) mediaFormat.setInteger(ltrCountKey, ltrCount);
+        if (config.isSliceStreaming()) {
+            mediaFormat.setInteger(MediaFormat.KEY_PRIORITY, 0);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) mediaFormat.setInteger(MediaFormat.KEY_LATENCY, 1);
+        }
         return mediaFormat;
     }
 
+    private boolean isIntraRefreshSupported(){
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = videoEncoder.getCodecInfo().getCapabilitiesForType(codecType);
+            if (capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) return true;
+        } catch (Exception e) {
+            log("isIntraRefreshSupported error: " + e);
+        }
+        log("Intra refresh is not supported by the encoder, using periodic key frames.");
+        return false;
+    }
+
+    private boolean isLtrSupported(){
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return false;
+        try {
+            List<String> parameters = videoEncoder.getSupportedVendorParameters();
+            return parameters.contains(ltrMarkKey) && parameters.contains(ltrUseKey);
+        } catch (Exception e) {
+            log("isLtrSupported error: " + e);
+            return false;
+        }
+    }
+
     public void startSendFrames(){
         sendFrames = true;
     }
@@ -392,6 +687,8 @@ public class StreamEncoder {
         audioThreadId++;
         isVideoEncoderInitialized = false;
         surface = null;
+        recorderPartialFrame.reset();
+        recorderPartialFlags = 0;
         if (videoEncoder != null){
             try {
                 videoEncoder.stop();
@@ -413,5 +710,8 @@ public class StreamEncoder {
         videoStreamOutputBuffer.clear();
         videoRecorderOutputBuffer.clear();
         audioOutputBuffer.clear();
+        preRollBuffer.clear();
+        framePool.clear();
+        viewerEncoder.close();
     }
 }
@@ -0,0 +1,118 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.flight;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import de.droiddrone.common.FcCommon;
+import de.droiddrone.common.TelemetryData;
+import de.droiddrone.common.TelemetryDelta;
+
+import static de.droiddrone.common.Logcat.log;
+
+// Latest value per telemetry code: a new value replaces the unsent one instead of queuing behind it.
+// Dirty codes are drained by priority, events keep their own FIFO and are never coalesced.
+public class TelemetrySlots {
+    private static final int priorityLevels = 4;
+    private static final int maxSlots = 64;// per priority level, one bit of the dirty bitmap each
+    private final int[][] codes = new int[priorityLevels][maxSlots];
+    private final TelemetryData[][] values = new TelemetryData[priorityLevels][maxSlots];
+    private final int[] slotsCount = new int[priorityLevels];
+    private final long[] dirty = new long[priorityLevels];
+    private final ArrayBlockingQueue<TelemetryData> events = new ArrayBlockingQueue<>(10);
+
+    private static int getPriority(int code){
+        switch (code){
+            case FcCommon.MSP_ATTITUDE:
+            case FcCommon.DD_MAVLINK_ATTITUDE:
+                return 0;
+            case FcCommon.MSP_ALTITUDE:
+            case FcCommon.MSP_ANALOG:
+            case FcCommon.MSP_RAW_GPS:
+            case FcCommon.MSP_COMP_GPS:
+            case FcCommon.MSP_STATUS:
+            case FcCommon.MSP_BATTERY_STATE:
+            case FcCommon.MSP2_INAV_STATUS:
+            case FcCommon.MSP2_INAV_ANALOG:
+            case FcCommon.DD_MAVLINK_MODE:
+            case FcCommon.DD_MAVLINK_SYS_STATUS:
+            case FcCommon.DD_MAVLINK_BATTERY_STATUS:
+            case FcCommon.DD_MAVLINK_GPS_RAW_INT:
+            case FcCommon.DD_MAVLINK_GLOBAL_POSITION_INT:
+            case FcCommon.DD_MAVLINK_VFR_HUD:
+            case FcCommon.DD_MAVLINK_RC_CHANNELS:
+                return 1;
+            case FcCommon.MSP_BOXIDS:
+            case FcCommon.MSP_BOXNAMES:
+            case FcCommon.MSP_BATTERY_CONFIG:
+            case FcCommon.MSP_OSD_CANVAS:
+            case FcCommon.MSP_OSD_CONFIG:
+            case FcCommon.MSP_VTX_CONFIG:
+            case FcCommon.DD_AP_OSD_CONFIG:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    public synchronized boolean offer(TelemetryData data){
+        if (TelemetryDelta.isEventCode(data.code)) return events.offer(data);
+        int priority = getPriority(data.code);
+        int[] levelCodes = codes[priority];
+        int count = slotsCount[priority];
+        int slot = 0;
+        while (slot < count && levelCodes[slot] != data.code) slot++;
+        if (slot == count){
+            if (count == maxSlots){
+                log("TelemetrySlots: no free slot, code: " + data.code);
+                return false;
+            }
+            levelCodes[slot] = data.code;
+            slotsCount[priority]++;
+        }
+        values[priority][slot] = data;
+        dirty[priority] |= 1L << slot;
+        return true;
+    }
+
+    public synchronized TelemetryData poll(){
+        TelemetryData event = events.poll();
+        if (event != null) return event;
+        for (int priority = 0; priority < priorityLevels; priority++) {
+            long bits = dirty[priority];
+            if (bits == 0) continue;
+            int slot = Long.numberOfTrailingZeros(bits);
+            dirty[priority] = bits & ~(1L << slot);
+            TelemetryData data = values[priority][slot];
+            values[priority][slot] = null;
+            return data;
+        }
+        return null;
+    }
+
+    public synchronized void clear(){
+        events.clear();
+        for (int priority = 0; priority < priorityLevels; priority++) {
+            dirty[priority] = 0;
+            for (int i = 0; i < slotsCount[priority]; i++) {
+                values[priority][i] = null;
+            }
+        }
+    }
+}
@@ -18,7 +18,11 @@
 package de.droiddrone.flight;
 
 import android.media.MediaCodec;
+import android.util.Size;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -27,6 +31,7 @@ import java.net.UnknownHostException;
 import de.droiddrone.common.DataReader;
 import de.droiddrone.common.FcCommon;
 import de.droiddrone.common.FcInfo;
+import de.droiddrone.common.FlightLog;
 import de.droiddrone.common.Log;
 import de.droiddrone.common.MediaCodecBuffer;
 import de.droiddrone.common.MediaCommon;
@@ -34,6 +39,7 @@ import de.droiddrone.common.ReceiverBuffer;
 import de.droiddrone.common.SavedPacket;
 import de.droiddrone.common.SettingsCommon;
 import de.droiddrone.common.TelemetryData;
+import de.droiddrone.common.TelemetryDelta;
 import de.droiddrone.common.UdpCommon;
 import de.droiddrone.common.UdpPacketData;
 import de.droiddrone.common.UdpSender;
@@ -59,8 +65,24 @@ public class Udp {
     private InetAddress destIp;
     private DatagramPacket receiverPacket;
     private int videoFrameNum = 0;
+    private int sliceIndex = 0;
+    private boolean isSlicedKeyFrame;
+    private short slicedRefFrameNum;
+    private int slicedLayerId = -1;
+    private int slicedBaseFrameNum;
+    private int temporalBaseFrameNum;
+    private boolean isShedSlicedFrame;
+    private long slicedFrameFirstSendTs;
+    private final ByteArrayOutputStream sliceTail = new ByteArrayOutputStream();
+    private final TelemetryDelta telemetryDelta = new TelemetryDelta();
+    private final ByteArrayOutputStream telemetryPayload = new ByteArrayOutputStream();
+    private final DataOutputStream telemetryPayloadStream = new DataOutputStream(telemetryPayload);
+    private volatile FlightLog flightLog;
     private Thread receiverThread;
     private byte[] videoInitialFrame = null;
+    private byte[] viewerInitialFrame = null;
+    private int viewerFrameNum = 0;
+    private volatile boolean isVideoFrameSending;
     private byte[] audioInitialFrame = null;
     private int videoSenderThreadId, audioSenderThreadId, udpThreadsId;
     private UdpSender udpSender;
@@ -143,6 +165,10 @@ public class Udp {
         udpSender.sendConnect(0, key, SettingsCommon.versionCompatibleCode);
     }
 
+    public void setFlightLog(FlightLog flightLog){
+        this.flightLog = flightLog;
+    }
+
     public void disconnect(){
         Thread th = new Thread(() -> {
             try {
@@ -233,6 +259,12 @@ public class Udp {
         streamEncoder.setDefaultHevc(isHevc);
         mp4Recorder.close();
         videoFrameNum = 0;
+        viewerFrameNum = 0;
+        viewerInitialFrame = null;
+        sliceIndex = 0;
+        sliceTail.reset();
+        temporalBaseFrameNum = 0;
+        isShedSlicedFrame = false;
         if (cameraManager.getCamera().isOpened(config.getCameraId())) {
             cameraManager.getCamera().startPreview();
         }else{
@@ -247,6 +279,12 @@ public class Udp {
         videoSenderThread.setDaemon(false);
         videoSenderThread.setName("videoSenderThread");
         videoSenderThread.start();
+        if (streamEncoder.viewerEncoder.isEnabled()) {
+            Thread viewerSenderThread = new Thread(viewerSenderRun);
+            viewerSenderThread.setDaemon(false);
+            viewerSenderThread.setName("viewerSenderThread");
+            viewerSenderThread.start();
+        }
         isVideoStarting = false;
     }
 
@@ -267,7 +305,7 @@ public class Udp {
         if (isAudioStarting) return;
         isAudioStarting = true;
         if (streamEncoder.isAudioSending()){
-            if (streamEncoder.getAudioBitRate() == config.getAudioStreamBitrate()) {
+            if (streamEncoder.getAudioBitRate() == config.getAudioStreamBitrate() && streamEncoder.getAudioStreamCodec() == config.getAudioStreamCodec()) {
                 sendAudioInitialFrame(audioInitialFrame);
                 isAudioStarting = false;
                 return;
@@ -314,6 +352,7 @@ public class Udp {
             case UdpCommon.GetVideoConfig:
             {
                 sendVideoInitialFrame(null);
+                sendViewerInitialFrame(null);
                 if (config.isSendAudioStream()) sendAudioInitialFrame(null);
                 break;
             }
@@ -321,6 +360,19 @@ public class Udp {
             {
                 boolean increase = buffer.readBoolean();
                 streamEncoder.changeBitRate(increase);
+                FlightLog currentLog = flightLog;
+                if (currentLog != null) currentLog.appendInt(FlightLog.recordBitRate, streamEncoder.getTargetBitRate());
+                break;
+            }
+            case UdpCommon.RequestKeyFrame:
+            {
+                short lastReceivedFrameNum = buffer.readShort();
+                boolean isViewerLayer = buffer.getRemaining() > 0 && buffer.readBoolean();
+                if (isViewerLayer) {
+                    streamEncoder.viewerEncoder.requestKeyFrame();
+                } else {
+                    streamEncoder.requestKeyFrame(lastReceivedFrameNum);
+                }
                 break;
             }
             case UdpCommon.Ping:
@@ -334,6 +386,8 @@ public class Udp {
             }
             case UdpCommon.FcInfo:
             {
+                // a new client, resend the full telemetry state
+                telemetryDelta.requestKeyFrame();
                 if (msp.isInitialized()){
                     sendFcInfo(msp.getFcInfo());
                 }else if (mavlink.isInitialized()){
@@ -400,9 +454,12 @@ public class Udp {
             }
             case UdpCommon.RcFrame:
             {
+                int offset = buffer.getOffset();
                 byte channelsCount = buffer.readByte();
                 if (channelsCount < 4 || channelsCount > FcCommon.MAX_SUPPORTED_RC_CHANNEL_COUNT) break;
                 if (channelsCount * 2 != buffer.getRemaining()) break;
+                FlightLog currentLog = flightLog;
+                if (currentLog != null) currentLog.append(FlightLog.recordRcFrame, packet.data, offset, packet.data.length - offset);
                 short[] rcChannels = new short[channelsCount];
                 for (int i = 0; i < channelsCount; i++) {
                     rcChannels[i] = buffer.readShort();
@@ -575,17 +632,41 @@ public class Udp {
                 try {
                     MediaCodecBuffer buf = streamEncoder.videoStreamOutputBuffer.poll();
                     if (buf == null) continue;
+                    if (isShedSlicedFrame) {
+                        isShedSlicedFrame = (buf.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+                        buf.release();
+                        continue;
+                    }
+                    int layerId = getTemporalLayerId(buf);
+                    if (layerId > 0 && isSenderBehind(buf)) {
+                        isShedSlicedFrame = (buf.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+                        buf.release();
+                        continue;
+                    }
+                    isVideoFrameSending = true;
+                    if ((buf.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0 || sliceIndex > 0){
+                        if (sliceIndex == 0) slicedLayerId = layerId;
+                        sendVideoSlice(buf);
+                        buf.release();
+                        isVideoFrameSending = sliceIndex > 0;
+                        continue;
+                    }
                     switch (buf.flags){
                         case MediaCodec.BUFFER_FLAG_CODEC_CONFIG:
                             sendVideoInitialFrame(buf.data);
                             break;
                         case MediaCodec.BUFFER_FLAG_KEY_FRAME:
-                            sendKeyFrame(buf.data);
+                            sendKeyFrame(buf);
+                            break;
+                        case StreamEncoder.BUFFER_FLAG_LTR_RECOVERY:
+                            sendVideoFrame(buf, -1, streamEncoder.getRecoveryRefFrameNum(buf));
                             break;
                         default:
-                            sendVideoFrame(buf.data);
+                            sendVideoFrame(buf, layerId, (short) 0);
                             break;
                     }
+                    buf.release();
+                    isVideoFrameSending = false;
                     if (streamEncoder.videoStreamOutputBuffer.size() > Math.round(5 * cameraManager.getCamera().getCurrentFps() / 30f)){
                         streamEncoder.changeBitRate(false);
                     }
@@ -596,6 +677,58 @@ public class Udp {
         }
     };
 
+    // The viewer layer only uses the gaps of the pilot stream.
+    private final Runnable viewerSenderRun = new Runnable() {
+        public void run() {
+            final int id = videoSenderThreadId;
+            log("Viewer layer sender thread is running");
+            while (id == videoSenderThreadId) {
+                try {
+                    if (isPilotStreamBusy()) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    MediaCodecBuffer buf = streamEncoder.viewerEncoder.outputBuffer.poll();
+                    if (buf == null) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    switch (buf.flags){
+                        case MediaCodec.BUFFER_FLAG_CODEC_CONFIG:
+                            sendViewerInitialFrame(buf.data);
+                            break;
+                        case MediaCodec.BUFFER_FLAG_KEY_FRAME:
+                            sendViewerFrame(buf, UdpCommon.ViewerKeyFrame, id);
+                            break;
+                        default:
+                            sendViewerFrame(buf, UdpCommon.ViewerVideoFrame, id);
+                            break;
+                    }
+                    buf.release();
+                } catch (Exception e) {
+                    log("Viewer layer sender error: " + e);
+                }
+            }
+        }
+    };
+
+    // -1 for untagged streams and for the following slices of a frame
+    private int getTemporalLayerId(MediaCodecBuffer buf){
+        if (!streamEncoder.isTemporalLayering() || sliceIndex > 0) return -1;
+        if ((buf.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodec.BUFFER_FLAG_KEY_FRAME)) != 0) return 0;
+        return MediaCommon.getTemporalLayerId(streamEncoder.getCurrentCodecType(), buf.data, buf.size);
+    }
+
+    // Enhancement layer frames are not referenced by other frames, they are dropped first when the link can't keep up.
+    private boolean isSenderBehind(MediaCodecBuffer buf){
+        int frameTimeMs = 1000 / Math.max(cameraManager.getCamera().getCurrentFps(), 1);
+        return System.currentTimeMillis() - buf.timestamp > frameTimeMs;
+    }
+
+    private boolean isPilotStreamBusy(){
+        return isVideoFrameSending || streamEncoder.videoStreamOutputBuffer.size() > 0;
+    }
+
     private final Runnable audioSenderRun = new Runnable() {
         public void run() {
             final int id = audioSenderThreadId;
@@ -628,23 +761,14 @@ public class Udp {
             do{
                 if (msp.isInitialized()) {
                     buf = msp.telemetryOutputBuffer.poll();
-                    if (buf != null) {
-                        sendData = true;
-                        fillTelemetryPacketData(buf, packetData);
-                    }
+                    if (buf != null && addTelemetryMessage(buf, packetData)) sendData = true;
                 }
                 if (mavlink.isInitialized()) {
                     buf = mavlink.telemetryOutputBuffer.poll();
-                    if (buf != null) {
-                        sendData = true;
-                        fillTelemetryPacketData(buf, packetData);
-                    }
+                    if (buf != null && addTelemetryMessage(buf, packetData)) sendData = true;
                 }
                 buf = phoneTelemetry.telemetryOutputBuffer.poll();
-                if (buf != null){
-                    sendData = true;
-                    fillTelemetryPacketData(buf, packetData);
-                }
+                if (buf != null && addTelemetryMessage(buf, packetData)) sendData = true;
             }while (buf != null);
             if (sendData) udpSender.sendPacket(packetData.getData());
         } catch (Exception e) {
@@ -652,42 +776,50 @@ public class Udp {
         }
     }
 
-    private void fillTelemetryPacketData(TelemetryData buf, UdpPacketData packetData){
+    private boolean addTelemetryMessage(TelemetryData buf, UdpPacketData packetData) throws IOException {
+        telemetryPayload.reset();
+        if (!fillTelemetryPayload(buf, telemetryPayloadStream)) return false;
+        byte[] payload = telemetryPayload.toByteArray();
+        FlightLog currentLog = flightLog;
+        if (currentLog != null) currentLog.appendTelemetry(buf.code, payload, payload.length);
+        return telemetryDelta.encode(buf.code, payload, payload.length, packetData.daos);
+    }
+
+    private boolean fillTelemetryPayload(TelemetryData buf, DataOutputStream daos){
         FcInfo fcInfo = msp.getFcInfo();
         try {
-            if (fcInfo == null && buf.code < FcCommon.DD_TIMERS) return;
-            packetData.daos.writeShort(buf.code);
+            if (fcInfo == null && buf.code < FcCommon.DD_TIMERS) return false;
             DataReader buffer = new DataReader(buf.data, false);
             switch (buf.code){
                 case FcCommon.MSP_ATTITUDE: {
-                    packetData.daos.writeShort(buffer.readShort());//roll
-                    packetData.daos.writeShort(buffer.readShort());//pitch
-                    packetData.daos.writeShort(buffer.readShort());//yaw
+                    daos.writeShort(buffer.readShort());//roll
+                    daos.writeShort(buffer.readShort());//pitch
+                    daos.writeShort(buffer.readShort());//yaw
                     break;
                 }
                 case FcCommon.MSP_ALTITUDE: {
-                    packetData.daos.writeInt(buffer.readInt());//altitude
-                    packetData.daos.writeShort(buffer.readShort());//altVelocity
+                    daos.writeInt(buffer.readInt());//altitude
+                    daos.writeShort(buffer.readShort());//altVelocity
                     if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_INAV){
-                        packetData.daos.writeInt(buffer.readInt());//altBaro
+                        daos.writeInt(buffer.readInt());//altBaro
                     }
                     break;
                 }
                 case FcCommon.MSP_ANALOG: {
                     buffer.readByte();//legacyVoltage
-                    packetData.daos.writeShort(buffer.readShort());//mahDrawn
-                    packetData.daos.writeShort(buffer.readShort());//rssi
-                    packetData.daos.writeShort(buffer.readShort());//amperage
+                    daos.writeShort(buffer.readShort());//mahDrawn
+                    daos.writeShort(buffer.readShort());//rssi
+                    daos.writeShort(buffer.readShort());//amperage
                     if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_BETAFLIGHT) {
-                        packetData.daos.writeShort(buffer.readShort());//voltage
+                        daos.writeShort(buffer.readShort());//voltage
                     }
                     break;
                 }
                 case FcCommon.MSP_BOXIDS:
                 case FcCommon.MSP_BOXNAMES: {
                     byte[] data = buffer.getData();
-                    packetData.daos.writeShort(data.length);
-                    packetData.daos.write(data, 0, data.length);
+                    daos.writeShort(data.length);
+                    daos.write(data, 0, data.length);
                     break;
                 }
                 case FcCommon.MSP_BATTERY_CONFIG: {
@@ -697,9 +829,9 @@ public class Udp {
                             buffer.readByte();//voltageSource
                             buffer.readByte();//configCells
                             buffer.readShort();//cellDetect
-                            packetData.daos.writeShort(buffer.readShort());//minCellVoltage
-                            packetData.daos.writeShort(buffer.readShort());//maxCellVoltage
-                            packetData.daos.writeShort(buffer.readShort());//warningCellVoltage
+                            daos.writeShort(buffer.readShort());//minCellVoltage
+                            daos.writeShort(buffer.readShort());//maxCellVoltage
+                            daos.writeShort(buffer.readShort());//warningCellVoltage
                             buffer.readShort();//currentOffset
                             buffer.readShort();//currentScale
                             buffer.readInt();//batteryCapacity
@@ -715,73 +847,73 @@ public class Udp {
                             buffer.readShort();//batteryCapacity
                             buffer.readByte();//voltageMeterSource
                             buffer.readByte();//currentMeterSource
-                            packetData.daos.writeShort(buffer.readShort());//minCellVoltage
-                            packetData.daos.writeShort(buffer.readShort());//maxCellVoltage
-                            packetData.daos.writeShort(buffer.readShort());//warningCellVoltage
+                            daos.writeShort(buffer.readShort());//minCellVoltage
+                            daos.writeShort(buffer.readShort());//maxCellVoltage
+                            daos.writeShort(buffer.readShort());//warningCellVoltage
                             break;
                         }
                     }
                     break;
                 }
                 case FcCommon.MSP_OSD_CONFIG: {
-                    packetData.daos.writeShort(SettingsCommon.versionCompatibleCode);
+                    daos.writeShort(SettingsCommon.versionCompatibleCode);
                     switch (fcInfo.getFcVariant()){
                         case FcInfo.FC_VARIANT_INAV:{
                             byte driver = buffer.readByte();
-                            packetData.daos.writeByte(driver);
+                            daos.writeByte(driver);
                             if (driver == 0) break;
-                            packetData.daos.writeByte(buffer.readByte());//videoSystem
-                            packetData.daos.writeByte(buffer.readByte());//units
-                            packetData.daos.writeByte(buffer.readByte());//rssiAlarm
-                            packetData.daos.writeShort(buffer.readShort());//capacityWarning
-                            packetData.daos.writeShort(buffer.readShort());//timeAlarm
-                            packetData.daos.writeShort(buffer.readShort());//altAlarm
-                            packetData.daos.writeShort(buffer.readShort());//distAlarm
-                            packetData.daos.writeShort(buffer.readShort());//negAltAlarm
+                            daos.writeByte(buffer.readByte());//videoSystem
+                            daos.writeByte(buffer.readByte());//units
+                            daos.writeByte(buffer.readByte());//rssiAlarm
+                            daos.writeShort(buffer.readShort());//capacityWarning
+                            daos.writeShort(buffer.readShort());//timeAlarm
+                            daos.writeShort(buffer.readShort());//altAlarm
+                            daos.writeShort(buffer.readShort());//distAlarm
+                            daos.writeShort(buffer.readShort());//negAltAlarm
                             int osdItemCount = buffer.getRemaining() / 2;
-                            packetData.daos.writeShort(osdItemCount);
+                            daos.writeShort(osdItemCount);
                             if (osdItemCount == 0) break;
                             for (int i = 0; i < osdItemCount; i++) {
-                                packetData.daos.writeShort(buffer.readShort());//osdItem
+                                daos.writeShort(buffer.readShort());//osdItem
                             }
                             break;
                         }
                         case FcInfo.FC_VARIANT_BETAFLIGHT:{
                             buffer.readByte();//osdFlags
-                            packetData.daos.writeByte(buffer.readByte());//videoSystem
-                            packetData.daos.writeByte(buffer.readByte());//units
-                            packetData.daos.writeByte(buffer.readByte());//rssiAlarm
-                            packetData.daos.writeShort(buffer.readShort());//capacityWarning
+                            daos.writeByte(buffer.readByte());//videoSystem
+                            daos.writeByte(buffer.readByte());//units
+                            daos.writeByte(buffer.readByte());//rssiAlarm
+                            daos.writeShort(buffer.readShort());//capacityWarning
                             buffer.readByte();//unused
                             int osdItemCount = buffer.readUnsignedByteAsInt();
-                            packetData.daos.writeShort(buffer.readShort());//altAlarm
-                            packetData.daos.writeShort(osdItemCount);
+                            daos.writeShort(buffer.readShort());//altAlarm
+                            daos.writeShort(osdItemCount);
                             if (osdItemCount <= 0) break;
                             for (int i = 0; i < osdItemCount; i++) {
-                                packetData.daos.writeShort(buffer.readShort());//osdItem
+                                daos.writeShort(buffer.readShort());//osdItem
                             }
                             int osdStatCount = buffer.readUnsignedByteAsInt();
-                            packetData.daos.writeByte(osdStatCount);
+                            daos.writeByte(osdStatCount);
                             if (osdStatCount > 0){
                                 for (int i = 0; i < osdStatCount; i++) {
-                                    packetData.daos.writeByte(buffer.readByte());//osdStat
+                                    daos.writeByte(buffer.readByte());//osdStat
                                 }
                             }
                             int osdTimerCount = buffer.readUnsignedByteAsInt();
-                            packetData.daos.writeByte(osdTimerCount);
+                            daos.writeByte(osdTimerCount);
                             if (osdTimerCount > 0){
                                 for (int i = 0; i < osdTimerCount; i++) {
-                                    packetData.daos.writeShort(buffer.readShort());//osdTimer
+                                    daos.writeShort(buffer.readShort());//osdTimer
                                 }
                             }
                             buffer.readShort();//legacyWarnings
-                            packetData.daos.writeByte(buffer.readByte());//osdWarningsCount
-                            packetData.daos.writeInt(buffer.readInt());//enabledWarnings
+                            daos.writeByte(buffer.readByte());//osdWarningsCount
+                            daos.writeInt(buffer.readInt());//enabledWarnings
                             buffer.readByte();//osdProfileCount
-                            packetData.daos.writeByte(buffer.readByte());//osdSelectedProfile
+                            daos.writeByte(buffer.readByte());//osdSelectedProfile
                             buffer.readByte();//overlayRadioMode
-                            packetData.daos.writeByte(buffer.readByte());//cameraFrameWidth
-                            packetData.daos.writeByte(buffer.readByte());//cameraFrameHeight
+                            daos.writeByte(buffer.readByte());//cameraFrameWidth
+                            daos.writeByte(buffer.readByte());//cameraFrameHeight
                             if (buffer.getRemaining() >= 2) { // 1.46
                                 buffer.readShort();//linkQualityAlarm
                             }
@@ -795,45 +927,45 @@ public class Udp {
                 }
                 case FcCommon.MSP_VTX_CONFIG: {
                     int vtxDevice = buffer.readUnsignedByteAsInt();
-                    packetData.daos.writeShort(vtxDevice);
+                    daos.writeShort(vtxDevice);
                     if (vtxDevice == FcCommon.VTXDEV_UNKNOWN) break;
-                    packetData.daos.writeByte(buffer.readByte());//band
-                    packetData.daos.writeByte(buffer.readByte());//channel
-                    packetData.daos.writeByte(buffer.readByte());//power
-                    packetData.daos.writeByte(buffer.readByte());//pitMode
-                    if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_BETAFLIGHT) packetData.daos.writeShort(buffer.readShort());//frequency
-                    packetData.daos.writeByte(buffer.readByte());//deviceIsReady
-                    packetData.daos.writeByte(buffer.readByte());//lowPowerDisarm
+                    daos.writeByte(buffer.readByte());//band
+                    daos.writeByte(buffer.readByte());//channel
+                    daos.writeByte(buffer.readByte());//power
+                    daos.writeByte(buffer.readByte());//pitMode
+                    if (fcInfo.getFcVariant() == FcInfo.FC_VARIANT_BETAFLIGHT) daos.writeShort(buffer.readShort());//frequency
+                    daos.writeByte(buffer.readByte());//deviceIsReady
+                    daos.writeByte(buffer.readByte());//lowPowerDisarm
                     break;
                 }
                 case FcCommon.MSP_BATTERY_STATE: {
-                    packetData.daos.writeByte(buffer.readByte());//cellCount
-                    packetData.daos.writeShort(buffer.readShort());//capacity
+                    daos.writeByte(buffer.readByte());//cellCount
+                    daos.writeShort(buffer.readShort());//capacity
                     buffer.readByte();//legacyVoltage
-                    packetData.daos.writeShort(buffer.readShort());//mahDrawn
-                    packetData.daos.writeShort(buffer.readShort());//amperage
-                    packetData.daos.writeByte(buffer.readByte());//batteryState
-                    packetData.daos.writeShort(buffer.readShort());//voltage
+                    daos.writeShort(buffer.readShort());//mahDrawn
+                    daos.writeShort(buffer.readShort());//amperage
+                    daos.writeByte(buffer.readByte());//batteryState
+                    daos.writeShort(buffer.readShort());//voltage
                     break;
                 }
                 case FcCommon.MSP_STATUS: {
-                    packetData.daos.writeShort(buffer.readShort());//cycleTime
-                    packetData.daos.writeShort(buffer.readShort());//i2cErrorCount
-                    packetData.daos.writeShort(buffer.readShort());//sensorStatus
+                    daos.writeShort(buffer.readShort());//cycleTime
+                    daos.writeShort(buffer.readShort());//i2cErrorCount
+                    daos.writeShort(buffer.readShort());//sensorStatus
                     switch (fcInfo.getFcVariant()){
                         case FcInfo.FC_VARIANT_INAV:{
                             buffer.readInt();//legacyModeFlags
-                            packetData.daos.writeByte(buffer.readByte());//configProfile
+                            daos.writeByte(buffer.readByte());//configProfile
                             break;
                         }
                         case FcInfo.FC_VARIANT_BETAFLIGHT:{
                             int firstModeFlag = buffer.readInt();
-                            packetData.daos.writeByte(buffer.readByte());//currentPidProfileIndex
-                            packetData.daos.writeShort(buffer.readShort());//averageSystemLoad
+                            daos.writeByte(buffer.readByte());//currentPidProfileIndex
+                            daos.writeShort(buffer.readShort());//averageSystemLoad
                             buffer.readShort();//unused
                             byte[] modeFlags;
                             int modeFlagsSize = buffer.readByte()+4;
-                            packetData.daos.writeByte(modeFlagsSize);
+                            daos.writeByte(modeFlagsSize);
                             if (modeFlagsSize > 0) {
                                 modeFlags = new byte[modeFlagsSize];
                                 modeFlags[0] = (byte) (firstModeFlag & 0xFF);
@@ -844,83 +976,83 @@ public class Udp {
                                     modeFlags[i] = buffer.readByte();
                                 }
                                 for (int i = 0; i < modeFlagsSize; i++) {
-                                    packetData.daos.writeByte(modeFlags[i]);
+                                    daos.writeByte(modeFlags[i]);
                                 }
                             }
                             buffer.readByte();//armingFlagsCount
-                            packetData.daos.writeInt(buffer.readInt());//armingFlags
-                            packetData.daos.writeByte(buffer.readByte());//configStateFlags
+                            daos.writeInt(buffer.readInt());//armingFlags
+                            daos.writeByte(buffer.readByte());//configStateFlags
                             short coreTemperatureCelsius = 0;
                             if (buffer.getRemaining() >= 2) { // 1.46
                                 coreTemperatureCelsius = buffer.readShort();
                             }
-                            packetData.daos.writeShort(coreTemperatureCelsius);
+                            daos.writeShort(coreTemperatureCelsius);
                             break;
                         }
                     }
                     break;
                 }
                 case FcCommon.MSP_COMP_GPS: {
-                    packetData.daos.writeShort(buffer.readShort());//distanceToHome
-                    packetData.daos.writeShort(buffer.readShort());//directionToHome
-                    packetData.daos.writeByte(buffer.readByte());//gpsHeartbeat
+                    daos.writeShort(buffer.readShort());//distanceToHome
+                    daos.writeShort(buffer.readShort());//directionToHome
+                    daos.writeByte(buffer.readByte());//gpsHeartbeat
                     break;
                 }
                 case FcCommon.MSP_OSD_CANVAS: {
-                    packetData.daos.writeByte(buffer.readByte());//cols
-                    packetData.daos.writeByte(buffer.readByte());//rows
+                    daos.writeByte(buffer.readByte());//cols
+                    daos.writeByte(buffer.readByte());//rows
                     break;
                 }
                 case FcCommon.MSP2_INAV_STATUS: {
-                    packetData.daos.writeShort(buffer.readShort());//cycleTime
-                    packetData.daos.writeShort(buffer.readShort());//i2cErrorCount
-                    packetData.daos.writeShort(buffer.readShort());//sensorStatus
-                    packetData.daos.writeShort(buffer.readShort());//averageSystemLoad
-                    packetData.daos.writeByte(buffer.readByte());//profiles
-                    packetData.daos.writeInt(buffer.readInt());//armingFlags
+                    daos.writeShort(buffer.readShort());//cycleTime
+                    daos.writeShort(buffer.readShort());//i2cErrorCount
+                    daos.writeShort(buffer.readShort());//sensorStatus
+                    daos.writeShort(buffer.readShort());//averageSystemLoad
+                    daos.writeByte(buffer.readByte());//profiles
+                    daos.writeInt(buffer.readInt());//armingFlags
                     int modeFlagsSize = (int)Math.ceil((buffer.getRemaining() - 1) / 4.0);
-                    packetData.daos.writeByte(modeFlagsSize);
+                    daos.writeByte(modeFlagsSize);
                     if (modeFlagsSize > 0) {
                         for (int i = 0; i < modeFlagsSize; i++) {
-                            packetData.daos.writeInt(buffer.readInt());//modeFlags
+                            daos.writeInt(buffer.readInt());//modeFlags
                         }
                     }
                     break;
                 }
                 case FcCommon.MSP2_INAV_ANALOG: {
-                    packetData.daos.writeByte(buffer.readByte());//batteryInfo
-                    packetData.daos.writeShort(buffer.readShort());//voltage
-                    packetData.daos.writeShort(buffer.readShort());//amperage
-                    packetData.daos.writeInt(buffer.readInt());//power
-                    packetData.daos.writeInt(buffer.readInt());//mahDrawn
-                    packetData.daos.writeInt(buffer.readInt());//mwhDrawn
-                    packetData.daos.writeInt(buffer.readInt());//batteryRemainingCapacity
-                    packetData.daos.writeByte(buffer.readByte());//batteryPercentage
-                    packetData.daos.writeShort(buffer.readShort());//rssi
+                    daos.writeByte(buffer.readByte());//batteryInfo
+                    daos.writeShort(buffer.readShort());//voltage
+                    daos.writeShort(buffer.readShort());//amperage
+                    daos.writeInt(buffer.readInt());//power
+                    daos.writeInt(buffer.readInt());//mahDrawn
+                    daos.writeInt(buffer.readInt());//mwhDrawn
+                    daos.writeInt(buffer.readInt());//batteryRemainingCapacity
+                    daos.writeByte(buffer.readByte());//batteryPercentage
+                    daos.writeShort(buffer.readShort());//rssi
                     break;
                 }
                 case FcCommon.DD_TIMERS: {
-                    packetData.daos.writeInt(buffer.readInt());//onTime
-                    packetData.daos.writeInt(buffer.readInt());//flyTime
-                    packetData.daos.writeInt(buffer.readInt());//lastArmTime
+                    daos.writeInt(buffer.readInt());//onTime
+                    daos.writeInt(buffer.readInt());//flyTime
+                    daos.writeInt(buffer.readInt());//lastArmTime
                     break;
                 }
                 case FcCommon.DD_PHONE_BATTERY_STATE: {
-                    packetData.daos.writeByte(buffer.readByte());//batteryLevel
-                    packetData.daos.writeBoolean(buffer.readBoolean());//isCharging
+                    daos.writeByte(buffer.readByte());//batteryLevel
+                    daos.writeBoolean(buffer.readBoolean());//isCharging
                     break;
                 }
                 case FcCommon.DD_CAMERA_FPS: {
-                    packetData.daos.writeShort(buffer.readShort());//cameraFps
+                    daos.writeShort(buffer.readShort());//cameraFps
                     break;
                 }
                 case FcCommon.DD_VIDEO_BIT_RATE: {
-                    packetData.daos.writeFloat(buffer.readFloat());//videoBitRate
+                    daos.writeFloat(buffer.readFloat());//videoBitRate
                     break;
                 }
                 case FcCommon.DD_VIDEO_RECORDER_STATE: {
-                    packetData.daos.writeBoolean(buffer.readBoolean());//isRecording
-                    packetData.daos.writeInt(buffer.readInt());//recordingTimeSec
+                    daos.writeBoolean(buffer.readBoolean());//isRecording
+                    daos.writeInt(buffer.readInt());//recordingTimeSec
                     break;
                 }
                 case FcCommon.DD_VIDEO_RECORDER_START_STOP: {
@@ -928,8 +1060,14 @@ public class Udp {
                     break;
                 }
                 case FcCommon.DD_NETWORK_STATE: {
-                    packetData.daos.writeByte(buffer.readByte());//networkType
-                    packetData.daos.writeByte(buffer.readByte());//rssi
+                    daos.writeByte(buffer.readByte());//networkType
+                    daos.writeByte(buffer.readByte());//rssi
+                    break;
+                }
+                case FcCommon.DD_DROPPED_FRAMES: {
+                    daos.writeInt(buffer.readInt());//videoStream
+                    daos.writeInt(buffer.readInt());//videoRecorder
+                    daos.writeInt(buffer.readInt());//audioStream
                     break;
                 }
                 // already Big Endian encoded, can be written as a whole array
@@ -948,13 +1086,15 @@ public class Udp {
                 case FcCommon.DD_AP_VTX_POWER:
                 case FcCommon.DD_MAVLINK_VFR_HUD:
                 case FcCommon.DD_MAVLINK_ATTITUDE: {
-                    packetData.daos.write(buffer.getData());
+                    daos.write(buffer.getData());
                     break;
                 }
             }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
-            log("fillTelemetryPacketData error: " + e + ", Code: " + buf.code);
+            log("fillTelemetryPayload error: " + e + ", Code: " + buf.code);
+            return false;
         }
     }
 
@@ -997,20 +1137,87 @@ public class Udp {
         }
     }
 
-    private void sendKeyFrame(byte[] buf) {
+    private void sendViewerInitialFrame(byte[] buf) {
+        if (viewerInitialFrame == null && (buf == null || buf.length == 0)) return;
+        if (buf == null) {
+            buf = viewerInitialFrame;
+        } else {
+            viewerInitialFrame = buf;
+        }
+        Size size = streamEncoder.viewerEncoder.getSize();
+        if (size == null) return;
+        try {
+            UdpPacketData packetData = new UdpPacketData(UdpCommon.ViewerVideoInitialFrame);
+            packetData.daos.writeShort(size.getWidth());
+            packetData.daos.writeShort(size.getHeight());
+            packetData.daos.writeBoolean(false);
+            packetData.daos.writeBoolean(cameraManager.getCamera().isFrontFacing());
+            packetData.daos.write(buf, 0, buf.length);
+            udpSender.sendPacket(packetData.getData());
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("sendViewerInitialFrame error: " + e);
+        }
+    }
+
+    // Same fragment layout as VideoFrame and KeyFrame, with its own frame numbers.
+    private void sendViewerFrame(MediaCodecBuffer frame, byte packetName, int threadId) throws InterruptedException {
+        if (socket == null || socket.isClosed()) return;
+        if (viewerFrameNum == Short.MAX_VALUE) viewerFrameNum = 0;
+        viewerFrameNum++;
+        byte[] buf = frame.data;
+        int size = frame.size;
+        int offset = 0;
+        while (offset < size && udpSender != null && threadId == videoSenderThreadId) {
+            while (isPilotStreamBusy() && threadId == videoSenderThreadId) Thread.sleep(1);
+            try {
+                synchronized (udpSync) {
+                    UdpPacketData packetData = new UdpPacketData(packetName);
+                    packetData.daos.writeShort(viewerFrameNum);
+                    packetData.daos.writeInt(offset);
+                    int headerSize = UdpCommon.frameHeaderSize;
+                    if (offset == 0) {
+                        packetData.daos.writeInt(size);
+                        headerSize += 4;
+                    }
+                    int dataSize = UdpCommon.packetLength - headerSize;
+                    if (size - offset <= dataSize) {
+                        packetData.daos.write(buf, offset, size - offset);
+                        offset = size;
+                    } else {
+                        packetData.daos.write(buf, offset, dataSize);
+                        offset += dataSize;
+                    }
+                    udpSender.sendPacket(packetData.getData());
+                    udpSync.wait(0, 200000);
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                e.printStackTrace();
+                log("sendViewerFrame error: " + e);
+            }
+        }
+    }
+
+    private void sendKeyFrame(MediaCodecBuffer frame) {
         if (socket == null || socket.isClosed()) return;
         if (videoFrameNum == Short.MAX_VALUE) videoFrameNum = 0;
         videoFrameNum++;
-        int size = buf.length;
+        temporalBaseFrameNum = videoFrameNum;
+        streamEncoder.onFrameSent(frame, videoFrameNum);
+        byte[] buf = frame.data;
+        int size = frame.size;
         int offset = 0;
         long start = System.nanoTime();
+        long firstSendTs = System.currentTimeMillis();
         while (offset < size && udpSender != null) {
             try {
                 synchronized (udpSync) {
                     UdpPacketData packetData = new UdpPacketData(UdpCommon.KeyFrame);
                     packetData.daos.writeShort(videoFrameNum);
                     packetData.daos.writeInt(offset);
-                    int headerSize = 9;
+                    int headerSize = UdpCommon.frameHeaderSize;
                     if (offset == 0) {
                         packetData.daos.writeInt(size);
                         headerSize += 4;
@@ -1032,6 +1239,7 @@ public class Udp {
             }
         }
         long timeMs = (System.nanoTime() - start) / 1000000;
+        sendVideoFrameTiming(frame, firstSendTs, System.currentTimeMillis());
         processFrameSendTime(timeMs);
     }
 
@@ -1053,19 +1261,36 @@ public class Udp {
         }
     }
 
-    private void sendVideoFrame(byte[] buf) {
+    // layerId -1 sends an untagged VideoFrame, refFrameNum a RecoveryFrame
+    private void sendVideoFrame(MediaCodecBuffer frame, int layerId, short refFrameNum) {
         if (socket == null || socket.isClosed()) return;
         if (videoFrameNum == Short.MAX_VALUE) videoFrameNum = 0;
         videoFrameNum++;
-        int size = buf.length;
+        int baseFrameNum = temporalBaseFrameNum;
+        if (layerId == 0) temporalBaseFrameNum = videoFrameNum;
+        streamEncoder.onFrameSent(frame, videoFrameNum);
+        byte[] buf = frame.data;
+        int size = frame.size;
         int offset = 0;
+        long firstSendTs = System.currentTimeMillis();
         while (offset < size && udpSender != null) {
             try {
                 synchronized (udpSync) {
-                    UdpPacketData packetData = new UdpPacketData(UdpCommon.VideoFrame);
+                    byte packetName = UdpCommon.VideoFrame;
+                    if (layerId >= 0) packetName = UdpCommon.TemporalLayerFrame;
+                    if (refFrameNum != 0) packetName = UdpCommon.RecoveryFrame;
+                    UdpPacketData packetData = new UdpPacketData(packetName);
                     packetData.daos.writeShort(videoFrameNum);
+                    int headerSize = UdpCommon.frameHeaderSize;
+                    if (refFrameNum != 0) {
+                        packetData.daos.writeShort(refFrameNum);
+                        headerSize += 2;
+                    } else if (layerId >= 0) {
+                        packetData.daos.writeByte(layerId);
+                        packetData.daos.writeShort(baseFrameNum);
+                        headerSize += 3;
+                    }
                     packetData.daos.writeInt(offset);
-                    int headerSize = 9;
                     if (offset == 0) {
                         packetData.daos.writeInt(size);
                         headerSize += 4;
@@ -1086,6 +1311,101 @@ public class Udp {
                 log("sendVideoFrame error: " + e);
             }
         }
+        sendVideoFrameTiming(frame, firstSendTs, System.currentTimeMillis());
+    }
+
+    private void sendVideoSlice(MediaCodecBuffer slice) {
+        if (socket == null || socket.isClosed()) return;
+        boolean isLastSlice = (slice.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) == 0;
+        if (sliceIndex == 0) {
+            if (videoFrameNum == Short.MAX_VALUE) videoFrameNum = 0;
+            videoFrameNum++;
+            streamEncoder.onFrameSent(slice, videoFrameNum);
+            isSlicedKeyFrame = (slice.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            slicedRefFrameNum = streamEncoder.getRecoveryRefFrameNum(slice);
+            slicedBaseFrameNum = temporalBaseFrameNum;
+            if (slicedLayerId == 0) temporalBaseFrameNum = videoFrameNum;
+            slicedFrameFirstSendTs = System.currentTimeMillis();
+        }
+        byte[] buf = slice.data;
+        int size = slice.size;
+        // The receiver tracks a limited number of slices, the tail of a long frame goes into the last one.
+        if (sliceIndex == UdpCommon.maxSlicesCount - 1 && !isLastSlice) {
+            sliceTail.write(buf, 0, size);
+            return;
+        }
+        if (sliceTail.size() > 0) {
+            sliceTail.write(buf, 0, size);
+            buf = sliceTail.toByteArray();
+            size = buf.length;
+            sliceTail.reset();
+        }
+        byte sliceFlags = 0;
+        if (isLastSlice) sliceFlags |= UdpCommon.sliceFlagLast;
+        if (isSlicedKeyFrame) sliceFlags |= UdpCommon.sliceFlagKeyFrame;
+        if (slicedLayerId >= 0) sliceFlags |= UdpCommon.sliceFlagTemporalLayer;
+        if (slicedRefFrameNum != 0) sliceFlags |= UdpCommon.sliceFlagRecovery;
+        int offset = 0;
+        while (offset < size && udpSender != null) {
+            try {
+                synchronized (udpSync) {
+                    UdpPacketData packetData = new UdpPacketData(UdpCommon.VideoSlice);
+                    packetData.daos.writeShort(videoFrameNum);
+                    packetData.daos.writeByte(sliceIndex);
+                    packetData.daos.writeByte(sliceFlags);
+                    int headerSize = UdpCommon.sliceHeaderSize;
+                    if (slicedLayerId >= 0) {
+                        packetData.daos.writeByte(slicedLayerId);
+                        packetData.daos.writeShort(slicedBaseFrameNum);
+                        headerSize += 3;
+                    }
+                    if (slicedRefFrameNum != 0) {
+                        packetData.daos.writeShort(slicedRefFrameNum);
+                        headerSize += 2;
+                    }
+                    packetData.daos.writeInt(offset);
+                    if (offset == 0) {
+                        packetData.daos.writeInt(size);
+                        headerSize += 4;
+                    }
+                    int dataSize = UdpCommon.packetLength - headerSize;
+                    if (size - offset <= dataSize) {
+                        packetData.daos.write(buf, offset, size - offset);
+                        offset = size;
+                    } else {
+                        packetData.daos.write(buf, offset, dataSize);
+                        offset += dataSize;
+                    }
+                    udpSender.sendPacket(packetData.getData());
+                    udpSync.wait(0, 200000);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                log("sendVideoSlice error: " + e);
+            }
+        }
+        if (isLastSlice) {
+            sliceIndex = 0;
+            sendVideoFrameTiming(slice, slicedFrameFirstSendTs, System.currentTimeMillis());
+        } else {
+            sliceIndex++;
+        }
+    }
+
+    private void sendVideoFrameTiming(MediaCodecBuffer frame, long firstSendTs, long lastSendTs) {
+        if (!config.isVideoFrameTiming()) return;
+        try {
+            UdpPacketData packetData = new UdpPacketData(UdpCommon.VideoFrameTiming);
+            packetData.daos.writeShort(videoFrameNum);
+            packetData.daos.writeLong(frame.captureTimestamp);
+            packetData.daos.writeInt((int) (frame.timestamp - frame.captureTimestamp));
+            packetData.daos.writeInt((int) (firstSendTs - frame.captureTimestamp));
+            packetData.daos.writeInt((int) (lastSendTs - frame.captureTimestamp));
+            udpSender.sendPacket(packetData.getData());
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("sendVideoFrameTiming error: " + e);
+        }
     }
 
     private void sendAudioInitialFrame(byte[] buf) {
@@ -1100,6 +1420,7 @@ public class Udp {
             packetData.daos.writeInt(streamEncoder.getAudioFormat().getSampleRate());
             packetData.daos.writeByte(streamEncoder.getAudioFormat().getChannelCount());
             packetData.daos.writeByte(streamEncoder.getAudioFormat().getEncoding());
+            packetData.daos.writeByte(streamEncoder.isOpusAudio() ? SettingsCommon.AudioStreamCodec.OPUS : SettingsCommon.AudioStreamCodec.AAC);
             packetData.daos.write(buf, 0, buf.length);
             udpSender.sendPacket(packetData.getData());
         } catch (Exception e) {
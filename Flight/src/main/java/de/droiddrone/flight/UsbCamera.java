@@ -28,15 +28,28 @@ import android.view.Surface;
 
 import androidx.core.app.ActivityCompat;
 
+import com.serenegiant.libuvccamera.IFrameCallback;
 import com.serenegiant.libuvccamera.LibUVCCameraUSBMonitor;
 import com.serenegiant.libuvccamera.UVCCamera;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import de.droiddrone.common.SettingsCommon;
 
 public class UsbCamera implements Camera {
     private final int usbDeviceClass = 239;
     private final int usbDeviceSubClass = 2;
     private final int[] excludeVendorIds = {11388/*Quectel LTE Module*/};
+    private static final int probeWarmupMs = 1000;
+    private static final int probeDurationMs = 2000;
+    private static final int[] probeFrameFormats = {SettingsCommon.UsbCameraFrameFormat.MJPEG, SettingsCommon.UsbCameraFrameFormat.YUV2};
+    // frame formats selected by the latency probe, per camera and mode
+    private static final Map<String, Integer> autoFrameFormats = new HashMap<>();
+    // latencies in probeFrameFormats order, -1 while not probed
+    private static final Map<String, long[]> probedLatenciesUs = new HashMap<>();
     private final Context context;
     private final Config config;
     private final Object mSync = new Object();
@@ -51,6 +64,13 @@ public class UsbCamera implements Camera {
     private int currentFps;
     private long currentFpsTs;
     private UsbDevice usbDevice;
+    private Surface streamEncoderSurface;
+    private final CameraFrameStats frameStats = new CameraFrameStats();
+    private final UvcMjpegDecoder mjpegDecoder = new UvcMjpegDecoder(frameStats, this::useNativePreview);
+    private final UvcFrameLatencyProbe latencyProbe = new UvcFrameLatencyProbe();
+    private boolean isMjpegDecoderDisabled;
+    private int frameFormat;
+    private int probeThreadsId;
 
     public UsbCamera(Context context, Config config){
         this.context = context;
@@ -62,6 +82,8 @@ public class UsbCamera implements Camera {
         if (usbMonitor != null || uvcCamera != null) close();
         this.streamEncoder = streamEncoder;
         this.mp4Recorder = mp4Recorder;
+        streamEncoder.setFrameLatencyProbe(latencyProbe);
+        isMjpegDecoderDisabled = false;
         targetResolution = new Size(config.getCameraResolutionWidth(), config.getCameraResolutionHeight());
         targetFrameRange = new Range<>(config.getCameraFpsMin(), config.getCameraFpsMax());
         usbMonitor = new LibUVCCameraUSBMonitor(context, onDeviceConnectListener);
@@ -97,6 +119,9 @@ public class UsbCamera implements Camera {
                 if (uvcCamera != null && device != null) {
                     if (device.equals(uvcCamera.getDevice())) {
                         isOpened = false;
+                        probeThreadsId++;
+                        mjpegDecoder.stop();
+                        latencyProbe.stop();
                         uvcCamera.destroy();
                         uvcCamera = null;
                     }
@@ -110,6 +135,9 @@ public class UsbCamera implements Camera {
                 if (uvcCamera != null && device != null) {
                     if (device.equals(uvcCamera.getDevice())){
                         isOpened = false;
+                        probeThreadsId++;
+                        mjpegDecoder.stop();
+                        latencyProbe.stop();
                         uvcCamera.close();
                     }
                 }
@@ -192,19 +220,22 @@ public class UsbCamera implements Camera {
             log("openCamera. SupportedSizes:" + uvcCamera.getSupportedSize());
 
             int frameFormat = config.getUsbCameraFrameFormat();
+            boolean isAutoFormat = frameFormat == SettingsCommon.UsbCameraFrameFormat.AUTO;
+            boolean isProbeRequired = false;
+            if (isAutoFormat) {
+                Integer selectedFormat = autoFrameFormats.get(getAutoFormatKey());
+                isProbeRequired = selectedFormat == null;
+                frameFormat = isProbeRequired ? getNextProbeFormat() : selectedFormat;
+            }
 
-            try {
-                uvcCamera.setPreviewSize(
-                        targetResolution.getWidth(),
-                        targetResolution.getHeight(),
-                        UVCCamera.DEFAULT_CAMERA_ANGLE,
-                        targetFrameRange.getLower(),
-                        targetFrameRange.getUpper(),
-                        frameFormat);
-            } catch (final IllegalArgumentException e) {
+            int fallbackFormat = frameFormat == SettingsCommon.UsbCameraFrameFormat.YUV2 ? SettingsCommon.UsbCameraFrameFormat.MJPEG : SettingsCommon.UsbCameraFrameFormat.YUV2;
+            if (!setPreviewSize(frameFormat) && !(isAutoFormat && setPreviewSize(fallbackFormat))) {
                 uvcCamera.destroy();
                 return false;
             }
+            if (isProbeRequired && this.frameFormat != frameFormat) setProbedLatency(frameFormat, Long.MAX_VALUE);
+            latencyProbe.stop();
+            if (isProbeRequired) latencyProbe.start();
 
             Surface streamEncoderSurface = null;
             if (streamEncoder.isVideoEncoderInitialized()){
@@ -219,10 +250,12 @@ public class UsbCamera implements Camera {
             }
 
             recorderSurface = mp4Recorder.initialize();
-            uvcCamera.setPreviewDisplay(streamEncoderSurface);
+            this.streamEncoderSurface = streamEncoderSurface;
             isOpened = true;
-            uvcCamera.startPreview();
+            startPreviewOutput();
             uvcCamera.updateCameraParams();
+            if (mp4Recorder.isPreRollCapture()) startCapture();
+            if (isProbeRequired) startFormatProbe();
             if (config.isUsbCameraReset()) {
                 uvcCamera.resetBrightness();
                 uvcCamera.resetContrast();
@@ -240,6 +273,160 @@ public class UsbCamera implements Camera {
         }
     }
 
+    private String getAutoFormatKey(){
+        return usbDevice.getVendorId() + ":" + usbDevice.getProductId() + ":" + targetResolution + ":" + targetFrameRange;
+    }
+
+    private boolean setPreviewSize(int frameFormat){
+        try {
+            uvcCamera.setPreviewSize(
+                    targetResolution.getWidth(),
+                    targetResolution.getHeight(),
+                    UVCCamera.DEFAULT_CAMERA_ANGLE,
+                    targetFrameRange.getLower(),
+                    targetFrameRange.getUpper(),
+                    frameFormat);
+        } catch (final IllegalArgumentException e) {
+            log("USB camera setPreviewSize error: " + e);
+            return false;
+        }
+        this.frameFormat = frameFormat;
+        return true;
+    }
+
+    // MJPEG frames go through the hardware decoder if there is one, other formats are converted by the native preview.
+    private void startPreviewOutput(){
+        IFrameCallback frameCallback = null;
+        if (frameFormat == SettingsCommon.UsbCameraFrameFormat.MJPEG && !isMjpegDecoderDisabled && UvcMjpegDecoder.isSupported()
+                && mjpegDecoder.start(targetResolution.getWidth(), targetResolution.getHeight(), streamEncoderSurface)) {
+            frameCallback = mjpegDecoder;
+        } else {
+            uvcCamera.setPreviewDisplay(streamEncoderSurface);
+        }
+        latencyProbe.setNextCallback(frameCallback);
+        if (latencyProbe.isRunning()) frameCallback = latencyProbe;
+        if (frameCallback != null) uvcCamera.setFrameCallback(frameCallback, UVCCamera.PIXEL_FORMAT_RAW);
+        uvcCamera.startPreview();
+    }
+
+    private void stopPreviewOutput(){
+        uvcCamera.stopCapture();
+        uvcCamera.setFrameCallback(null, 0);
+        uvcCamera.stopPreview();
+        uvcCamera.setPreviewDisplay(null);
+        mjpegDecoder.logStats();
+        mjpegDecoder.stop();
+    }
+
+    private boolean restartPreview(int frameFormat){
+        synchronized (mSync) {
+            if (uvcCamera == null || !isOpened) return false;
+            stopPreviewOutput();
+            if (!setPreviewSize(frameFormat)) return false;
+            startPreviewOutput();
+            if (mp4Recorder.isRecording() || mp4Recorder.isPreRollCapture()) uvcCamera.startCapture(recorderSurface);
+            return true;
+        }
+    }
+
+    private void useNativePreview(){
+        synchronized (mSync) {
+            if (isMjpegDecoderDisabled) return;
+            isMjpegDecoderDisabled = true;
+        }
+        restartPreview(frameFormat);
+    }
+
+    private void startFormatProbe(){
+        probeThreadsId++;
+        Thread formatProbeThread = new Thread(formatProbeRun);
+        formatProbeThread.setDaemon(false);
+        formatProbeThread.setName("usbCameraFormatProbeThread");
+        formatProbeThread.start();
+    }
+
+    // Measures the running frame format once per camera start, the other formats are probed at the next starts,
+    // so the format never changes while streaming. The estimated latency is the frame interval, which bounds
+    // the USB transfer time of a frame, plus the time from the frame arrival to the encoder output.
+    private final Runnable formatProbeRun = new Runnable() {
+        public void run() {
+            final int id = probeThreadsId;
+            try {
+                Thread.sleep(probeWarmupMs);
+                long latencyUs = measureLatencyUs(id);
+                synchronized (mSync) {
+                    if (id != probeThreadsId || usbDevice == null) return;
+                    log("USB camera format " + frameFormat + " estimated latency: " + (latencyUs == Long.MAX_VALUE ? "---" : latencyUs + " us"));
+                    setProbedLatency(frameFormat, latencyUs);
+                    if (latencyProbe.isRunning()) {
+                        latencyProbe.stop();
+                        IFrameCallback frameCallback = latencyProbe.getNextCallback();
+                        if (uvcCamera != null) uvcCamera.setFrameCallback(frameCallback, frameCallback == null ? 0 : UVCCamera.PIXEL_FORMAT_RAW);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log("USB camera format probe interrupted: " + e);
+            } catch (Exception e) {
+                log("USB camera format probe error: " + e);
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private long measureLatencyUs(int id) throws InterruptedException {
+        synchronized (mSync) {
+            if (uvcCamera == null) return Long.MAX_VALUE;
+            uvcCamera.getCurrentFps();
+            mjpegDecoder.resetStats();
+            latencyProbe.resetStats();
+        }
+        Thread.sleep(probeDurationMs);
+        synchronized (mSync) {
+            if (id != probeThreadsId || uvcCamera == null) return Long.MAX_VALUE;
+            int fps = uvcCamera.getCurrentFps();
+            if (fps <= 0) return Long.MAX_VALUE;
+            if (mjpegDecoder.isRunning()) mjpegDecoder.logStats();
+            latencyProbe.logStats();
+            int frameLatencyUs = latencyProbe.getMeanLatencyUs();
+            if (frameLatencyUs < 0) return Long.MAX_VALUE;
+            return 1000000 / fps + frameLatencyUs;
+        }
+    }
+
+    private long[] getProbedLatencies(){
+        String key = getAutoFormatKey();
+        long[] latencies = probedLatenciesUs.get(key);
+        if (latencies == null) {
+            latencies = new long[probeFrameFormats.length];
+            Arrays.fill(latencies, -1);
+            probedLatenciesUs.put(key, latencies);
+        }
+        return latencies;
+    }
+
+    private int getNextProbeFormat(){
+        long[] latencies = getProbedLatencies();
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i] == -1) return probeFrameFormats[i];
+        }
+        return probeFrameFormats[0];
+    }
+
+    // Selects the format with the lowest latency once all formats are probed.
+    private void setProbedLatency(int format, long latencyUs){
+        long[] latencies = getProbedLatencies();
+        int best = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            if (probeFrameFormats[i] == format) latencies[i] = latencyUs;
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i] == -1) return;
+            if (latencies[i] < latencies[best]) best = i;
+        }
+        autoFrameFormats.put(getAutoFormatKey(), probeFrameFormats[best]);
+        log("USB camera auto frame format: " + probeFrameFormats[best] + ", used from the next camera start");
+    }
+
     @Override
     public int getCurrentFps(){
         long now = System.currentTimeMillis();
@@ -258,6 +445,11 @@ public class UsbCamera implements Camera {
         return targetFrameRange.getUpper();
     }
 
+    @Override
+    public CameraFrameStats getFrameStats(){
+        return frameStats;
+    }
+
     @Override
     public int getWidth(){
         if (uvcCamera != null && uvcCamera.isRunning()) return uvcCamera.getFrameWidth();
@@ -290,7 +482,11 @@ public class UsbCamera implements Camera {
     @Override
     public void close(){
         isOpened = false;
+        probeThreadsId++;
         synchronized (mSync) {
+            mjpegDecoder.logStats();
+            mjpegDecoder.stop();
+            latencyProbe.stop();
             if (usbMonitor != null) {
                 usbMonitor.unregister();
                 usbMonitor.destroy();
@@ -0,0 +1,121 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Logcat.log;
+
+import com.serenegiant.libuvccamera.IFrameCallback;
+
+import java.nio.ByteBuffer;
+
+// Measures the time from the UVC frame arrival to the encoded frame, the same way for every frame format.
+// Only the arrival time is taken on the UVC frame thread, the frame is passed on untouched.
+// An encoded frame belongs to the newest arrival not later than its input timestamp: the MJPEG decoder keeps
+// the arrival time, the native preview stamps the frame when it is queued to the encoder surface.
+public class UvcFrameLatencyProbe implements IFrameCallback {
+    private final long[] arrivalsUs = new long[16];
+    private int arrivalsHead, arrivalsCount;
+    private volatile IFrameCallback nextCallback;
+    private volatile boolean isRunning;
+    private long lastEncodedUs = -1;
+    private int measuredFrames;
+    private long latencySumUs;
+    private int maxLatencyUs;
+
+    public synchronized void start(){
+        arrivalsHead = 0;
+        arrivalsCount = 0;
+        lastEncodedUs = -1;
+        resetStats();
+        isRunning = true;
+    }
+
+    public void stop(){
+        isRunning = false;
+    }
+
+    public boolean isRunning(){
+        return isRunning;
+    }
+
+    // The frames are passed on to the callback, null if the native preview draws them.
+    public void setNextCallback(IFrameCallback nextCallback){
+        this.nextCallback = nextCallback;
+    }
+
+    public IFrameCallback getNextCallback(){
+        return nextCallback;
+    }
+
+    // Called from the UVC frame thread.
+    @Override
+    public void onFrame(ByteBuffer frame){
+        if (isRunning) {
+            long arrivalUs = System.nanoTime() / 1000;
+            synchronized (this) {
+                arrivalsUs[(arrivalsHead + arrivalsCount) % arrivalsUs.length] = arrivalUs;
+                if (arrivalsCount < arrivalsUs.length) {
+                    arrivalsCount++;
+                } else {
+                    arrivalsHead = (arrivalsHead + 1) % arrivalsUs.length;
+                }
+            }
+        }
+        IFrameCallback callback = nextCallback;
+        if (callback != null) callback.onFrame(frame);
+    }
+
+    // Called by the stream encoder for every output buffer, parts of one frame share the timestamp.
+    public void onEncodedFrame(long presentationTimeUs){
+        if (!isRunning) return;
+        long nowUs = System.nanoTime() / 1000;
+        synchronized (this) {
+            if (presentationTimeUs == lastEncodedUs) return;
+            lastEncodedUs = presentationTimeUs;
+            if (presentationTimeUs > nowUs || nowUs - presentationTimeUs > 1000000) return;// other time base
+            long arrivalUs = -1;
+            while (arrivalsCount > 0 && arrivalsUs[arrivalsHead] <= presentationTimeUs) {
+                arrivalUs = arrivalsUs[arrivalsHead];
+                arrivalsHead = (arrivalsHead + 1) % arrivalsUs.length;
+                arrivalsCount--;
+            }
+            if (arrivalUs == -1) return;
+            int latencyUs = (int) (nowUs - arrivalUs);
+            measuredFrames++;
+            latencySumUs += latencyUs;
+            if (latencyUs > maxLatencyUs) maxLatencyUs = latencyUs;
+        }
+    }
+
+    public synchronized int getMeanLatencyUs(){
+        if (measuredFrames == 0) return -1;
+        return (int) (latencySumUs / measuredFrames);
+    }
+
+    public synchronized void logStats(){
+        if (measuredFrames == 0) return;
+        log("UVC frame to encoder output: measured " + measuredFrames
+                + ", latency (mean/max us): " + latencySumUs / measuredFrames + "/" + maxLatencyUs);
+    }
+
+    public synchronized void resetStats(){
+        measuredFrames = 0;
+        latencySumUs = 0;
+        maxLatencyUs = 0;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Logcat.log;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import com.serenegiant.libuvccamera.IFrameCallback;
+
+import java.nio.ByteBuffer;
+
+import de.droiddrone.common.MediaCommon;
+
+// Decodes the compressed UVC MJPEG frames with the hardware decoder straight into the stream encoder surface.
+// Decoder input timestamps are the frame arrival times, so they become the capture timestamps of the encoder.
+public class UvcMjpegDecoder implements IFrameCallback {
+    private final CameraFrameStats frameStats;
+    private final Runnable onUnsupportedFrame;
+    private final Object decoderSync = new Object();
+    private final int[] freeInputs = new int[32];
+    private int freeInputsHead, freeInputsCount;
+    private MediaCodec decoder;
+    private HandlerThread handlerThread;
+    private boolean isRunning;
+    private boolean isUnsupported;
+    private int receivedFrames, droppedFrames, decodedFrames;
+    private long copyTimeSumUs, latencySumUs;
+    private int maxCopyTimeUs, maxLatencyUs;
+
+    public UvcMjpegDecoder(CameraFrameStats frameStats, Runnable onUnsupportedFrame){
+        this.frameStats = frameStats;
+        this.onUnsupportedFrame = onUnsupportedFrame;
+    }
+
+    public static boolean isSupported(){
+        return MediaCommon.getHardwareCodecName(MediaCommon.mjpegCodecMime, false) != null;
+    }
+
+    public boolean start(int width, int height, Surface outputSurface){
+        stop();
+        String decoderName = MediaCommon.getHardwareCodecName(MediaCommon.mjpegCodecMime, false);
+        if (decoderName == null) return false;
+        synchronized (decoderSync) {
+            try {
+                handlerThread = new HandlerThread("MjpegDecoderThread");
+                handlerThread.start();
+                decoder = MediaCodec.createByCodecName(decoderName);
+                decoder.setCallback(decoderCallback, new Handler(handlerThread.getLooper()));
+                MediaFormat format = MediaFormat.createVideoFormat(MediaCommon.mjpegCodecMime, width, height);
+                format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+                if (Build.VERSION.SDK_INT >= 30) format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                decoder.configure(format, outputSurface, null, 0);
+                decoder.start();
+            } catch (Exception e) {
+                log("MJPEG decoder start error: " + e);
+                e.printStackTrace();
+                releaseDecoder(decoder, handlerThread);
+                decoder = null;
+                handlerThread = null;
+                return false;
+            }
+            freeInputsHead = 0;
+            freeInputsCount = 0;
+            isUnsupported = false;
+            isRunning = true;
+            resetStats();
+        }
+        frameStats.reset();
+        log("MJPEG decoder started: " + decoderName);
+        return true;
+    }
+
+    public void stop(){
+        MediaCodec decoder;
+        HandlerThread handlerThread;
+        synchronized (decoderSync) {
+            isRunning = false;
+            decoder = this.decoder;
+            handlerThread = this.handlerThread;
+            this.decoder = null;
+            this.handlerThread = null;
+        }
+        releaseDecoder(decoder, handlerThread);
+    }
+
+    public boolean isRunning(){
+        synchronized (decoderSync) {
+            return isRunning;
+        }
+    }
+
+    // Called from the UVC frame thread with the compressed frame.
+    @Override
+    public void onFrame(ByteBuffer frame){
+        long startNs = System.nanoTime();
+        synchronized (decoderSync) {
+            if (!isRunning) return;
+            receivedFrames++;
+            frameStats.onFrame(startNs, -1, -1);
+            int size = frame.remaining();
+            int position = frame.position();
+            if (size < 2 || frame.get(position) != (byte) 0xFF || frame.get(position + 1) != (byte) 0xD8) {
+                if (!isUnsupported) {
+                    isUnsupported = true;
+                    log("MJPEG decoder: the camera does not deliver JPEG frames.");
+                    new Thread(onUnsupportedFrame).start();
+                }
+                return;
+            }
+            if (freeInputsCount == 0) {
+                droppedFrames++;
+                frameStats.onBufferLost();
+                return;
+            }
+            int index = freeInputs[freeInputsHead];
+            freeInputsHead = (freeInputsHead + 1) % freeInputs.length;
+            freeInputsCount--;
+            try {
+                ByteBuffer input = decoder.getInputBuffer(index);
+                if (input == null || input.capacity() < size) {
+                    decoder.queueInputBuffer(index, 0, 0, startNs / 1000, 0);
+                    droppedFrames++;
+                    return;
+                }
+                input.clear();
+                input.put(frame);
+                decoder.queueInputBuffer(index, 0, size, startNs / 1000, 0);
+            } catch (Exception e) {
+                log("MJPEG decoder input error: " + e);
+                droppedFrames++;
+                return;
+            }
+            int copyTimeUs = (int) ((System.nanoTime() - startNs) / 1000);
+            copyTimeSumUs += copyTimeUs;
+            if (copyTimeUs > maxCopyTimeUs) maxCopyTimeUs = copyTimeUs;
+        }
+    }
+
+    // Mean time from the frame arrival to the decoded frame on the encoder surface.
+    public int getMeanLatencyUs(){
+        synchronized (decoderSync) {
+            if (decodedFrames == 0) return -1;
+            return (int) (latencySumUs / decodedFrames);
+        }
+    }
+
+    public void logStats(){
+        synchronized (decoderSync) {
+            if (receivedFrames == 0) return;
+            int queuedFrames = Math.max(receivedFrames - droppedFrames, 1);
+            log("MJPEG decoder: received " + receivedFrames + ", decoded " + decodedFrames + ", dropped " + droppedFrames
+                    + ", copy (mean/max us): " + copyTimeSumUs / queuedFrames + "/" + maxCopyTimeUs
+                    + ", latency (mean/max us): " + latencySumUs / Math.max(decodedFrames, 1) + "/" + maxLatencyUs);
+        }
+    }
+
+    public void resetStats(){
+        synchronized (decoderSync) {
+            receivedFrames = 0;
+            droppedFrames = 0;
+            decodedFrames = 0;
+            copyTimeSumUs = 0;
+            latencySumUs = 0;
+            maxCopyTimeUs = 0;
+            maxLatencyUs = 0;
+        }
+    }
+
+    private static void releaseDecoder(MediaCodec decoder, HandlerThread handlerThread){
+        if (decoder != null) {
+            try {
+                decoder.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            decoder.release();
+        }
+        if (handlerThread != null) handlerThread.quitSafely();
+    }
+
+    private final MediaCodec.Callback decoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            synchronized (decoderSync) {
+                if (codec != decoder || freeInputsCount == freeInputs.length) return;
+                freeInputs[(freeInputsHead + freeInputsCount) % freeInputs.length] = index;
+                freeInputsCount++;
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            synchronized (decoderSync) {
+                if (codec != decoder) return;
+                try {
+                    codec.releaseOutputBuffer(index, info.size > 0);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+                if (info.size == 0) return;
+                int latencyUs = (int) (System.nanoTime() / 1000 - info.presentationTimeUs);
+                decodedFrames++;
+                latencySumUs += latencyUs;
+                if (latencyUs > maxLatencyUs) maxLatencyUs = latencyUs;
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            log("MJPEG decoder - onError: " + e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            log("MJPEG decoder - onOutputFormatChanged: " + format);
+        }
+    };
+}
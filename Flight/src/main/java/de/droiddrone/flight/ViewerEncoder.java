@@ -0,0 +1,169 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.flight;
+
+import static de.droiddrone.common.Logcat.log;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+import de.droiddrone.common.MediaCodecBuffer;
+import de.droiddrone.common.MediaCommon;
+import de.droiddrone.common.PooledBuffer;
+import de.droiddrone.common.SettingsCommon;
+
+// Low resolution, fixed bitrate layer for viewers, encoded from its own camera stream.
+// The relay switches each viewer between this layer and the pilot stream, so the pilot stream never adapts to viewers.
+public class ViewerEncoder {
+    private final Config config;
+    private final int maxOutputBufferSize = 10;
+    public final MediaBufferQueue outputBuffer = new MediaBufferQueue(maxOutputBufferSize, true);
+    private final FrameBufferPool framePool = new FrameBufferPool();
+    private final int minKeyFrameRequestIntervalMs = 300;
+    private MediaCodec encoder;
+    private Size size;
+    private volatile boolean keyFrameRequested;
+    private volatile long lastKeyFrameRequestTs;
+
+    public ViewerEncoder(Config config){
+        this.config = config;
+    }
+
+    public boolean isEnabled(){
+        return config.getViewerLayerBitrate() > 0 && config.getConnectionMode() == SettingsCommon.ConnectionMode.overServer;
+    }
+
+    public Surface initialize(Size size, int fps){
+        close();
+        if (!isEnabled() || size == null) return null;
+        String encoderName = MediaCommon.getCodecName(MediaCommon.avcCodecMime, true);
+        if (encoderName == null) return null;
+        Surface surface;
+        try {
+            encoder = MediaCodec.createByCodecName(encoderName);
+            encoder.setCallback(encoderCallback);
+            MediaFormat format = MediaFormat.createVideoFormat(MediaCommon.avcCodecMime, size.getWidth(), size.getHeight());
+            format.setInteger(MediaFormat.KEY_BIT_RATE, config.getViewerLayerBitrate());
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 2);
+            format.setInteger(MediaFormat.KEY_PRIORITY, 1);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+        } catch (Exception e) {
+            log("ViewerEncoder initialize error: " + e);
+            e.printStackTrace();
+            close();
+            return null;
+        }
+        this.size = size;
+        outputBuffer.clear();
+        log("Viewer layer encoder started: " + size.getWidth() + "x" + size.getHeight() + ", " + config.getViewerLayerBitrate() + " bit/s");
+        return surface;
+    }
+
+    public Size getSize(){
+        return size;
+    }
+
+    public boolean isStarted(){
+        return encoder != null;
+    }
+
+    public void requestKeyFrame(){
+        long current = System.currentTimeMillis();
+        if (current - lastKeyFrameRequestTs < minKeyFrameRequestIntervalMs) return;
+        lastKeyFrameRequestTs = current;
+        keyFrameRequested = true;
+    }
+
+    private final MediaCodec.Callback encoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            PooledBuffer buf;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                buf = new PooledBuffer(new byte[info.size], null);
+            } else {
+                buf = framePool.acquire(info.size);
+            }
+            try {
+                ByteBuffer outputByteBuffer = codec.getOutputBuffer(index);
+                if (outputByteBuffer != null) outputByteBuffer.get(buf.data, 0, info.size);
+                codec.releaseOutputBuffer(index, false);
+                if (outputByteBuffer == null) {
+                    buf.release();
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                buf.release();
+                return;
+            }
+            outputBuffer.offer(new MediaCodecBuffer(info, buf, info.size, System.currentTimeMillis()));
+            if (outputBuffer.isWaitingForSyncFrame()) requestKeyFrame();
+            if (keyFrameRequested) {
+                keyFrameRequested = false;
+                Bundle param = new Bundle();
+                param.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                try {
+                    codec.setParameters(param);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            log("ViewerEncoder - onError: " + e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+
+        }
+    };
+
+    public void close(){
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            encoder.release();
+            encoder = null;
+        }
+        size = null;
+        outputBuffer.clear();
+        framePool.clear();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.flight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+public class Fmp4WriterTest {
+    private static final byte[] avcParameterSets = {0, 0, 0, 1, 0x67, 0x64, 0, 0x1F, (byte) 0xAC, 0x34, (byte) 0xC8,
+            0, 0, 0, 1, 0x68, (byte) 0xEE, 0x3C, (byte) 0x80};
+    // SPS with sps_max_sub_layers_minus1 = 1 and sps_temporal_id_nesting_flag = 1
+    private static final byte[] hevcParameterSets = {0, 0, 0, 1, 0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF,
+            0, 0, 0, 1, 0x42, 0x01, 0x03, 0x01, 0x60, 0, 0, 0, (byte) 0x90, 0, 0, 0, 0, 0, 0x5D, (byte) 0xA0, 0x02,
+            0, 0, 0, 1, 0x44, 0x01, (byte) 0xC1, 0x72};
+    private static final int fps = 25;
+
+    @Test
+    public void fragmentsAreComplete() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        file.deleteOnExit();
+        Fmp4Writer writer = new Fmp4Writer(new RecorderFileWriter(file), 1000000, 1);
+        int track = writer.addVideoTrack(Fmp4Writer.CODEC_AVC, 1280, 720, avcParameterSets);
+        assertEquals(0, track);
+        assertTrue(writer.start());
+        int framesCount = 3 * fps;
+        int[] frameSizes = new int[framesCount];
+        for (int i = 0; i < framesCount; i++) {
+            boolean isSync = i % fps == 0;
+            byte[] frame = getFrame(isSync, 100 + i * 7);
+            // parameter sets in key frames stay in the sample entry only
+            frameSizes[i] = 4 + 100 + i * 7;
+            writer.writeSample(track, frame, 0, frame.length, i * 1000000L / fps, isSync);
+        }
+        writer.close();
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        ArrayList<Integer> boxes = getBoxes(data, 0, data.length);
+        assertEquals("ftyp", getType(data, boxes.get(0)));
+        assertEquals("moov", getType(data, boxes.get(1)));
+        assertEquals(2 + 3 * 2, boxes.size());
+        int end = 0;
+        for (int box : boxes) {
+            assertEquals(end, box);
+            end += getSize(data, box);
+        }
+        assertEquals(data.length, end);
+
+        int moov = boxes.get(1);
+        int trak = findBox(data, moov, "trak");
+        int stsd = findBox(data, findBox(data, findBox(data, findBox(data, trak, "mdia"), "minf"), "stbl"), "stsd");
+        int avc1 = stsd + 16;
+        assertEquals("avc1", getType(data, avc1));
+        assertNotEquals(-1, findBox(data, avc1, 86, "avcC"));
+
+        int frameIndex = 0;
+        for (int i = 0; i < 3; i++) {
+            int moof = boxes.get(2 + i * 2);
+            int mdat = boxes.get(3 + i * 2);
+            assertEquals("moof", getType(data, moof));
+            assertEquals("mdat", getType(data, mdat));
+            assertEquals(i + 1, ByteBuffer.wrap(data).getInt(findBox(data, moof, "mfhd") + 12));
+            int traf = findBox(data, moof, "traf");
+            int tfdt = findBox(data, traf, "tfdt");
+            assertEquals(frameIndex * 90000L / fps, ByteBuffer.wrap(data).getLong(tfdt + 12));
+            int trun = findBox(data, traf, "trun");
+            ByteBuffer b = ByteBuffer.wrap(data);
+            int samplesCount = b.getInt(trun + 12);
+            assertEquals(fps, samplesCount);
+            assertEquals(mdat + 8, moof + b.getInt(trun + 16));
+            int samplesSize = 0;
+            for (int s = 0; s < samplesCount; s++) {
+                int entry = trun + 20 + s * 12;
+                assertEquals(90000 / fps, b.getInt(entry));
+                assertEquals(frameSizes[frameIndex], b.getInt(entry + 4));
+                boolean isSync = b.getInt(entry + 8) == 0x02000000;
+                assertEquals(frameIndex % fps == 0, isSync);
+                samplesSize += b.getInt(entry + 4);
+                frameIndex++;
+            }
+            assertEquals(getSize(data, mdat) - 8, samplesSize);
+            // first sample is length prefixed, not Annex B
+            assertEquals(frameSizes[frameIndex - samplesCount] - 4, b.getInt(mdat + 8));
+        }
+        assertEquals(framesCount, frameIndex);
+    }
+
+    @Test
+    public void hevcTemporalLayersFromSps() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        file.deleteOnExit();
+        Fmp4Writer writer = new Fmp4Writer(new RecorderFileWriter(file), 1000000, 1);
+        int track = writer.addVideoTrack(Fmp4Writer.CODEC_HEVC, 1920, 1080, hevcParameterSets);
+        assertTrue(writer.start());
+        writer.close();
+        assertEquals(0, track);
+        byte[] data = Files.readAllBytes(file.toPath());
+        int moov = getBoxes(data, 0, data.length).get(1);
+        int stsd = findBox(data, findBox(data, findBox(data, findBox(data, findBox(data, moov, "trak"), "mdia"), "minf"), "stbl"), "stsd");
+        int hvc1 = stsd + 16;
+        assertEquals("hvc1", getType(data, hvc1));
+        int hvcC = findBox(data, hvc1, 86, "hvcC");
+        assertNotEquals(-1, hvcC);
+        int layersByte = data[hvcC + 8 + 21] & 0xFF;
+        assertEquals(2, (layersByte >> 3) & 0x07);
+        assertEquals(0x04, layersByte & 0x04);
+        assertEquals(3, layersByte & 0x03);
+        assertEquals(3, data[hvcC + 8 + 22]);// VPS, SPS and PPS arrays
+    }
+
+    @Test
+    public void fragmentLargerThanBlock() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        file.deleteOnExit();
+        Fmp4Writer writer = new Fmp4Writer(new RecorderFileWriter(file), 1000000, 1);
+        int track = writer.addVideoTrack(Fmp4Writer.CODEC_AVC, 1280, 720, avcParameterSets);
+        assertTrue(writer.start());
+        int nalSize = 3 * 1024 * 1024;
+        for (int i = 0; i < 3; i++) {
+            byte[] frame = getFrame(true, nalSize);
+            writer.writeSample(track, frame, 0, frame.length, i * 1000000L, true);
+        }
+        writer.close();
+        byte[] data = Files.readAllBytes(file.toPath());
+        ArrayList<Integer> boxes = getBoxes(data, 0, data.length);
+        assertEquals(2 + 3 * 2, boxes.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(8 + 4 + nalSize, getSize(data, boxes.get(3 + i * 2)));
+        }
+    }
+
+    private static byte[] getFrame(boolean isSync, int nalSize){
+        byte[] nal = new byte[nalSize];
+        nal[0] = (byte) (isSync ? 0x65 : 0x41);
+        for (int i = 1; i < nalSize; i++) nal[i] = (byte) (i % 251 + 1);
+        int prefixSize = isSync ? avcParameterSets.length : 0;
+        byte[] frame = new byte[prefixSize + 4 + nalSize];
+        if (isSync) System.arraycopy(avcParameterSets, 0, frame, 0, prefixSize);
+        frame[prefixSize + 3] = 1;
+        System.arraycopy(nal, 0, frame, prefixSize + 4, nalSize);
+        return frame;
+    }
+
+    private static ArrayList<Integer> getBoxes(byte[] data, int start, int end){
+        ArrayList<Integer> boxes = new ArrayList<>();
+        int position = start;
+        while (position + 8 <= end) {
+            int size = getSize(data, position);
+            assertTrue(size >= 8 && position + size <= end);
+            boxes.add(position);
+            position += size;
+        }
+        assertEquals(end, position);
+        return boxes;
+    }
+
+    // child boxes start after the 8 byte header of the parent
+    private static int findBox(byte[] data, int parent, String type){
+        return findBox(data, parent, 8, type);
+    }
+
+    private static int findBox(byte[] data, int parent, int headerSize, String type){
+        for (int box : getBoxes(data, parent + headerSize, parent + getSize(data, parent))) {
+            if (getType(data, box).equals(type)) return box;
+        }
+        return -1;
+    }
+
+    private static int getSize(byte[] data, int box){
+        return ByteBuffer.wrap(data).getInt(box);
+    }
+
+    private static String getType(byte[] data, int box){
+        return new String(data, box + 4, 4);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package de.droiddrone.server;
+
+import static de.droiddrone.common.Log.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import de.droiddrone.common.DataReader;
+import de.droiddrone.common.FcCommon;
+import de.droiddrone.common.FlightLog;
+import de.droiddrone.common.FlightLogReader;
+import de.droiddrone.common.TelemetryDelta;
+import de.droiddrone.common.UdpCommon;
+
+// Exports a flight log of the Flight or Control app.
+// csv: one row per record. bbcsv: blackbox_decode CSV layout, one row per RC frame.
+public class FlightLogExport {
+	private final HashMap<Integer, String> codeNames = new HashMap<>();
+	private final TelemetryDelta telemetryDelta = new TelemetryDelta();
+	private final ByteArrayOutputStream telemetryMessages = new ByteArrayOutputStream();
+	private final DataOutputStream telemetryMessagesStream = new DataOutputStream(telemetryMessages);
+	private final PrintWriter out;
+	private final boolean isBlackbox;
+	private final short[] attitude = new short[3];
+	private int loopIteration;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			log("Usage: FlightLogExport <log" + FlightLog.fileExtension + "> [csv|bbcsv] [output file]");
+			return;
+		}
+		File input = new File(args[0]);
+		String format = args.length > 1 ? args[1].toLowerCase() : "csv";
+		if (!format.equals("csv") && !format.equals("bbcsv")) {
+			log("Unknown format: " + format);
+			return;
+		}
+		File output = new File(args.length > 2 ? args[2] : input.getPath() + "." + format.replace("bb", "bb."));
+		try (FlightLogReader reader = new FlightLogReader(input);
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+			int rows = new FlightLogExport(out, format.equals("bbcsv")).export(reader);
+			log("Exported " + rows + " rows to " + output.getPath());
+		} catch (Exception e) {
+			log("Export error: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	private FlightLogExport(PrintWriter out, boolean isBlackbox) {
+		this.out = out;
+		this.isBlackbox = isBlackbox;
+		for (Field field : FcCommon.class.getFields()) {
+			if (field.getType() != short.class || !Modifier.isStatic(field.getModifiers())) continue;
+			String name = field.getName();
+			if (!name.startsWith("MSP") && !name.startsWith("DD_")) continue;
+			try {
+				codeNames.put(field.getShort(null) & 0xFFFF, name);
+			} catch (IllegalAccessException e) {
+				// skip
+			}
+		}
+	}
+
+	private int export(FlightLogReader reader) throws Exception {
+		if (isBlackbox) {
+			out.println("loopIteration,time (us),rcCommand[0],rcCommand[1],rcCommand[2],rcCommand[3],attitude[0],attitude[1],attitude[2]");
+		} else {
+			out.println("# source: " + (reader.getSource() == FlightLog.sourceFlight ? "flight" : "control") + ", start: " + reader.getStartTime());
+			out.println("time_ms,record,code,values");
+		}
+		int rows = 0;
+		while (reader.next()) {
+			DataReader buffer = new DataReader(reader.data, true);
+			switch (reader.type) {
+				case FlightLog.recordTelemetry:
+					if (reader.length < 2) break;
+					rows += writeTelemetry(reader.timeMs, buffer.readShort() & 0xFFFF, buffer, reader.length - 2);
+					break;
+				case FlightLog.recordUdpPacket: {
+					byte packetName = buffer.readByte();
+					if (packetName == UdpCommon.TelemetryData) {
+						telemetryMessages.reset();
+						telemetryDelta.decode(new DataReader(copy(reader.data, 1, reader.length - 1), true), telemetryMessagesStream, true);
+						DataReader messages = new DataReader(telemetryMessages.toByteArray(), true);
+						while (messages.getRemaining() >= 4) {
+							int code = messages.readShort() & 0xFFFF;
+							int length = messages.readShort() & 0xFFFF;
+							rows += writeTelemetry(reader.timeMs, code, messages, length);
+						}
+					} else if (!isBlackbox) {
+						writeRow(reader.timeMs, "udp", String.valueOf(packetName), String.valueOf(reader.length));
+						rows++;
+					}
+					break;
+				}
+				case FlightLog.recordRcFrame: {
+					int count = buffer.readUnsignedByteAsInt();
+					short[] channels = new short[count];
+					for (int i = 0; i < count && i * 2 + 3 <= reader.length; i++) {
+						channels[i] = buffer.readShort();
+					}
+					if (isBlackbox) {
+						if (count < 4) break;
+						// channels are AETR, rcCommand is roll, pitch, yaw, throttle
+						out.println(loopIteration++ + "," + reader.timeMs * 1000 + "," + (channels[0] - 1500) + "," + (channels[1] - 1500)
+								+ "," + (channels[3] - 1500) + "," + channels[2] + "," + attitude[0] + "," + attitude[1] + "," + attitude[2] * 10);
+					} else {
+						StringBuilder values = new StringBuilder();
+						for (short channel : channels) {
+							if (values.length() > 0) values.append(' ');
+							values.append(channel);
+						}
+						writeRow(reader.timeMs, "rc", "", values.toString());
+					}
+					rows++;
+					break;
+				}
+				case FlightLog.recordPing:
+				case FlightLog.recordBitRate: {
+					if (isBlackbox || reader.length < 4) break;
+					writeRow(reader.timeMs, reader.type == FlightLog.recordPing ? "ping" : "bitrate", "", String.valueOf(buffer.readInt()));
+					rows++;
+					break;
+				}
+				case FlightLog.recordFrameStats: {
+					if (isBlackbox || reader.length < 4) break;
+					int frameNum = buffer.readShort();
+					int flags = buffer.readUnsignedByteAsInt();
+					int layerId = buffer.readByte();
+					writeRow(reader.timeMs, "frame", "", frameNum + " " + flags + " " + layerId);
+					rows++;
+					break;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private int writeTelemetry(long timeMs, int code, DataReader buffer, int length) {
+		int offset = buffer.getOffset();
+		if ((code == FcCommon.MSP_ATTITUDE || code == FcCommon.DD_MAVLINK_ATTITUDE) && length >= 6) {
+			attitude[0] = buffer.readShort();
+			attitude[1] = buffer.readShort();
+			attitude[2] = buffer.readShort();
+		}
+		skip(buffer, offset + length);
+		if (isBlackbox) return 0;
+		String name = codeNames.get(code);
+		writeRow(timeMs, "telemetry", name != null ? name : String.valueOf(code), toHex(buffer.getData(), offset, length));
+		return 1;
+	}
+
+	private static void skip(DataReader buffer, int offset) {
+		while (buffer.getOffset() < offset && buffer.getRemaining() > 0) buffer.readByte();
+	}
+
+	private void writeRow(long timeMs, String record, String code, String values) {
+		out.println(timeMs + "," + record + "," + code + "," + values);
+	}
+
+	private static byte[] copy(byte[] data, int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+	private static String toHex(byte[] data, int offset, int length) {
+		StringBuilder sb = new StringBuilder(length * 2);
+		for (int i = offset; i < offset + length; i++) {
+			sb.append(Character.forDigit((data[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(data[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
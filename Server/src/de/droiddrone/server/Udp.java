@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static de.droiddrone.common.Log.*;
 
@@ -42,6 +44,13 @@ public class Udp {
 	private int[] clientVersions;
 	private int clientsCount;
 	private boolean connected = false;
+	private ViewerLayer[] viewerLayers;
+	private byte[] mainInitialFrame, lowInitialFrame;
+	private long lowLayerPacketTs;
+	private long mainKeyFrameRequestTs;
+	private long viewerConfigRequestTs;
+	private static final int lowLayerTimeoutMs = 3000;
+	private static final int minMainKeyFrameRequestIntervalMs = 10000;
     
 	public Udp(Config config) {
 		receiverBuf = new byte[UdpCommon.packetLength];
@@ -61,6 +70,7 @@ public class Udp {
             senders = new UdpSender[clientsCount];
             receiverBuffers = new ReceiverBuffer[clientsCount];
             clientVersions = new int[clientsCount];
+            viewerLayers = new ViewerLayer[clientsCount];
             receiverThread = new Thread(receiverRun);
             receiverThread.setDaemon(false);
             receiverThread.setName("receiverThread");
@@ -134,6 +144,8 @@ public class Udp {
                         		clientVersions[viewerId] = version;
                         		connected = true;
                         		clientId = viewerId;
+                        		// new viewers start on the low layer, their video config request is answered for both layers
+                        		viewerLayers[viewerId] = new ViewerLayer(isLowLayerAvailable() ? ViewerLayer.LOW : ViewerLayer.MAIN, System.currentTimeMillis());
                         		timeLog("Viewer " + (viewerId - 1) + " is connected. IP: " + ip + ", port: " + port);
                         		break;
                         	}
@@ -190,6 +202,10 @@ public class Udp {
 	private void processData(SavedPacket packet, int clientId) {
 		switch (packet.packetName) {
 			case UdpCommon.StartVideo:
+				if (clientId != 1) break;
+				viewerConfigRequestTs = 0;
+				if (senders[0] != null) senders[0].sendPacket(packet.data);
+				break;
 			case UdpCommon.ChangeBitRate:
 			case UdpCommon.StartStopRecording:
 			case UdpCommon.Config:
@@ -200,6 +216,9 @@ public class Udp {
 				if (senders[0] != null) senders[0].sendPacket(packet.data);
 				break;
 			case UdpCommon.GetVideoConfig:
+				viewerConfigRequestTs = clientId > 1 ? System.currentTimeMillis() : 0;
+				if (senders[0] != null) senders[0].sendPacket(packet.data);
+				break;
 			case UdpCommon.OsdConfig:
 			case UdpCommon.BatteryConfig:
 			case UdpCommon.BoxIds:
@@ -207,6 +226,43 @@ public class Udp {
 				// send to drone
 				if (senders[0] != null) senders[0].sendPacket(packet.data);
 				break;
+			case UdpCommon.RequestKeyFrame:
+				if (clientId == 0) break;
+				if (clientId > 1) {
+					// viewers never reach the pilot stream directly
+					if (viewerLayers[clientId] != null && isLowLayerAvailable()) {
+						processViewerKeyFrameRequest(clientId, packet.data);
+					} else {
+						requestMainKeyFrame();
+					}
+					break;
+				}
+				if (senders[0] != null) senders[0].sendPacket(packet.data);
+				break;
+			case UdpCommon.ReceiverReport:
+			{
+				if (clientId < 2 || viewerLayers[clientId] == null) break;
+				DataReader buffer = new DataReader(packet.data, true);
+				buffer.readByte();
+				short frames = buffer.readShort();
+				short lostFrames = buffer.readShort();
+				viewerLayers[clientId].onReport(frames, lostFrames);
+				updateViewerLayer(clientId);
+				break;
+			}
+			case UdpCommon.VideoInitialFrame:
+			case UdpCommon.VideoFrame:
+			case UdpCommon.KeyFrame:
+			case UdpCommon.TemporalLayerFrame:
+			case UdpCommon.RecoveryFrame:
+			case UdpCommon.VideoSlice:
+			case UdpCommon.ViewerVideoInitialFrame:
+			case UdpCommon.ViewerVideoFrame:
+			case UdpCommon.ViewerKeyFrame:
+				// from drone only
+				if (clientId != 0) break;
+				relayVideo(packet.data);
+				break;
 			case UdpCommon.ConfigReceived:
 				// send to controller only
 				if (clientId != 0) break;
@@ -220,9 +276,9 @@ public class Udp {
 				if (clientId >= 1 && senders[0] != null) senders[0].sendPacket(packet.data);
 			break;
 			case UdpCommon.Pong:
-				if (packet.data.length > 10) {
+				if (packet.data.length > 10 && packet.data[10] >= 0) {
 					byte target = packet.data[10];
-					if (target >= 0 && target < clientsCount && senders[target] != null) {
+					if (target < clientsCount && senders[target] != null) {
 						senders[target].sendPacket(packet.data);
 					}
 					break;
@@ -240,6 +296,17 @@ public class Udp {
 				if (clientId == 0 && senders[1] != null) senders[1].sendPacket(packet.data);
 				if (clientId == 1 && senders[0] != null) senders[0].sendPacket(packet.data);
 			break;
+			case UdpCommon.VideoFrameTiming:
+				// from drone only, append relay timestamp
+				if (clientId != 0) break;
+				byte[] data = Arrays.copyOf(packet.data, packet.data.length + 8);
+				ByteBuffer.wrap(data, packet.data.length, 8).putLong(System.currentTimeMillis());
+				for (int i = 1; i < clientsCount; i++) {
+					if (senders[i] == null || !senders[i].isActive()) continue;
+					if (viewerLayers[i] != null && viewerLayers[i].getLayer() != ViewerLayer.MAIN) continue;
+					senders[i].sendPacket(data);
+				}
+				break;
 			default:
 				for (int i = 0; i < clientsCount; i++) {
 					if (i == clientId || senders[i] == null || !senders[i].isActive()) continue;
@@ -248,12 +315,163 @@ public class Udp {
 		}
 	}
 	
+	// The pilot always gets the main layer, each viewer gets the layer it is switched to.
+	private void relayVideo(byte[] data) {
+		byte packetName = data[0];
+		boolean isLowLayer = isLowLayerPacket(packetName);
+		boolean isInitialFrame = packetName == UdpCommon.VideoInitialFrame || packetName == UdpCommon.ViewerVideoInitialFrame;
+		long timestamp = System.currentTimeMillis();
+		if (isLowLayer) lowLayerPacketTs = timestamp;
+		// the answer to a viewer config request would restart the pilot decoder
+		boolean isRepeatedForViewer = packetName == UdpCommon.VideoInitialFrame && timestamp - viewerConfigRequestTs < 1000
+				&& isSameInitialFrame(data, mainInitialFrame);
+		if (packetName == UdpCommon.VideoInitialFrame) mainInitialFrame = Arrays.copyOf(data, data.length);
+		if (packetName == UdpCommon.ViewerVideoInitialFrame) lowInitialFrame = Arrays.copyOf(data, data.length);
+		boolean isKeyFrameStart = isKeyFrameStart(data);
+		boolean isEnhancementLayer = getTemporalLayerId(data) > 0;
+		short frameNum = data.length >= 3 ? ByteBuffer.wrap(data).getShort(1) : 0;
+		for (int i = 1; i < clientsCount; i++) {
+			if (senders[i] == null || !senders[i].isActive()) continue;
+			ViewerLayer viewerLayer = viewerLayers[i];
+			if (viewerLayer == null) {
+				if (!isLowLayer && !(i == 1 && isRepeatedForViewer)) senders[i].sendPacket(data);
+				continue;
+			}
+			if (isLowLayer != (viewerLayer.getLayer() == ViewerLayer.LOW)) continue;
+			if (!isInitialFrame && !viewerLayer.acceptFrame(isKeyFrameStart)) continue;
+			if (isEnhancementLayer && !viewerLayer.acceptEnhancementFrame(frameNum)) continue;
+			sendVideoPacket(i, data);
+		}
+	}
+
+	// Low layer packets are renamed to their main layer counterparts, numbered packets get their own copy per client.
+	private void sendVideoPacket(int clientId, byte[] data) {
+		byte packetName = data[0];
+		if (isLowLayerPacket(packetName) || UdpCommon.isPacketNumbered(packetName)) {
+			data = Arrays.copyOf(data, data.length);
+			data[0] = getMainLayerPacketName(packetName);
+		}
+		senders[clientId].sendPacket(data);
+	}
+
+	private void switchViewerLayer(int clientId, int layer) {
+		ViewerLayer viewerLayer = viewerLayers[clientId];
+		viewerLayer.setLayer(layer, System.currentTimeMillis());
+		byte[] initialFrame = layer == ViewerLayer.LOW ? lowInitialFrame : mainInitialFrame;
+		if (initialFrame != null && senders[clientId] != null) sendVideoPacket(clientId, initialFrame);
+		if (layer == ViewerLayer.LOW) {
+			requestKeyFrame(true);
+		} else {
+			requestMainKeyFrame();
+		}
+		timeLog("Viewer " + (clientId - 1) + " stream layer: " + (layer == ViewerLayer.LOW ? "low" : "main"));
+	}
+
+	private void updateViewerLayer(int clientId) {
+		ViewerLayer viewerLayer = viewerLayers[clientId];
+		int rttMs = receiverBuffers[clientId] != null ? receiverBuffers[clientId].getCurrentPingMs() : -1;
+		boolean wasShedding = viewerLayer.isShedding();
+		int layer = viewerLayer.getNextLayer(rttMs, System.currentTimeMillis());
+		if (viewerLayer.isShedding() != wasShedding) {
+			timeLog("Viewer " + (clientId - 1) + " enhancement layer frames: " + (wasShedding ? "forwarded" : "dropped"));
+		}
+		// enhancement frames are shed on the main layer too, the layer is only switched when a low layer is sent
+		if (!isLowLayerAvailable()) {
+			if (viewerLayer.getLayer() != ViewerLayer.MAIN) switchViewerLayer(clientId, ViewerLayer.MAIN);
+		} else if (layer != -1) {
+			switchViewerLayer(clientId, layer);
+		}
+	}
+
+	// A viewer losing main layer frames moves to the low layer instead of asking the pilot stream for key frames.
+	private void processViewerKeyFrameRequest(int clientId, byte[] data) {
+		ViewerLayer viewerLayer = viewerLayers[clientId];
+		if (viewerLayer.getLayer() == ViewerLayer.LOW) {
+			requestKeyFrame(true);
+		} else if (viewerLayer.isWaitingForKeyFrame()) {
+			requestMainKeyFrame();
+		} else {
+			switchViewerLayer(clientId, ViewerLayer.LOW);
+		}
+	}
+
+	private void requestMainKeyFrame() {
+		long timestamp = System.currentTimeMillis();
+		if (timestamp - mainKeyFrameRequestTs < minMainKeyFrameRequestIntervalMs) return;
+		mainKeyFrameRequestTs = timestamp;
+		requestKeyFrame(false);
+	}
+
+	private void requestKeyFrame(boolean isLowLayer) {
+		if (senders[0] == null) return;
+		ByteBuffer data = ByteBuffer.allocate(4);
+		data.put(UdpCommon.RequestKeyFrame);
+		data.putShort((short) 0);
+		data.put((byte) (isLowLayer ? 1 : 0));
+		senders[0].sendPacket(data.array());
+	}
+
+	private boolean isLowLayerAvailable() {
+		return lowInitialFrame != null && System.currentTimeMillis() - lowLayerPacketTs < lowLayerTimeoutMs;
+	}
+
+	// compared without the packet number
+	private static boolean isSameInitialFrame(byte[] data, byte[] initialFrame) {
+		if (initialFrame == null || data.length != initialFrame.length || data.length < 3) return false;
+		return Arrays.equals(Arrays.copyOfRange(data, 3, data.length), Arrays.copyOfRange(initialFrame, 3, initialFrame.length));
+	}
+
+	private static boolean isLowLayerPacket(byte packetName) {
+		return packetName == UdpCommon.ViewerVideoInitialFrame || packetName == UdpCommon.ViewerVideoFrame
+				|| packetName == UdpCommon.ViewerKeyFrame;
+	}
+
+	private static byte getMainLayerPacketName(byte packetName) {
+		switch (packetName) {
+			case UdpCommon.ViewerVideoInitialFrame:
+				return UdpCommon.VideoInitialFrame;
+			case UdpCommon.ViewerVideoFrame:
+				return UdpCommon.VideoFrame;
+			case UdpCommon.ViewerKeyFrame:
+				return UdpCommon.KeyFrame;
+			default:
+				return packetName;
+		}
+	}
+
+	private static boolean isKeyFrameStart(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		switch (data[0]) {
+			case UdpCommon.KeyFrame:
+			case UdpCommon.ViewerKeyFrame:
+				return data.length >= 7 && buffer.getInt(3) == 0;
+			case UdpCommon.VideoSlice:
+				int offsetIndex = (data.length >= 5 && (data[4] & UdpCommon.sliceFlagTemporalLayer) != 0) ? 8 : 5;
+				return data.length >= offsetIndex + 4 && data[3] == 0 && (data[4] & UdpCommon.sliceFlagKeyFrame) != 0 && buffer.getInt(offsetIndex) == 0;
+			default:
+				return false;
+		}
+	}
+
+	// -1 for untagged packets
+	private static int getTemporalLayerId(byte[] data) {
+		switch (data[0]) {
+			case UdpCommon.TemporalLayerFrame:
+				return data.length >= 4 ? data[3] & 0xFF : -1;
+			case UdpCommon.VideoSlice:
+				return data.length >= 6 && (data[4] & UdpCommon.sliceFlagTemporalLayer) != 0 ? data[5] & 0xFF : -1;
+			default:
+				return -1;
+		}
+	}
+
 	private void disconnectClient(int clientId) {
 		if (senders[clientId] != null) senders[clientId].close();
 		if (receiverBuffers[clientId] != null) receiverBuffers[clientId].close();
 		senders[clientId] = null;
 		receiverBuffers[clientId] = null;
 		clientVersions[clientId] = 0;
+		viewerLayers[clientId] = null;
 		if (clientId == 0) timeLog("Drone is disconnected.");
 		if (clientId == 1) timeLog("Controller is disconnected.");
 		if (clientId > 1) timeLog("Viewer " + (clientId - 1) + " is disconnected.");
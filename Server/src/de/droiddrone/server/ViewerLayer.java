@@ -0,0 +1,121 @@
+/*
+ *  This file is part of DroidDrone.
+ *
+ *  DroidDrone is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  DroidDrone is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with DroidDrone.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.droiddrone.server;
+
+// Stream layer of one viewer, chosen from its own frame loss and round trip time.
+public class ViewerLayer {
+	public static final int MAIN = 0;
+	public static final int LOW = 1;
+	private static final float maxLossRatio = 0.05f;
+	private static final float upgradeLossRatio = 0.01f;
+	private static final int maxRttMs = 300;
+	private static final int upgradeRttMs = 150;
+	private static final int minLayerTimeMs = 2000;
+	private static final int upgradeDelayMs = 10000;
+	// enhancement layer frames are shed first, before the layer is switched
+	private static final float shedLossRatio = 0.02f;
+	private static final int shedRttMs = 200;
+	private static final int shedRecoveryMs = 5000;
+	private int layer;
+	private boolean isWaitingForKeyFrame;
+	private float lossRatio;
+	private long layerChangeTs;
+	private long goodSinceTs;
+	private boolean isShedding;
+	private long shedGoodSinceTs;
+	private short decidedFrameNum;
+	private boolean isFrameShed;
+
+	public ViewerLayer(int layer, long timestamp) {
+		this.layer = layer;
+		layerChangeTs = timestamp;
+	}
+
+	public int getLayer() {
+		return layer;
+	}
+
+	public boolean isWaitingForKeyFrame() {
+		return isWaitingForKeyFrame;
+	}
+
+	public boolean isShedding() {
+		return isShedding;
+	}
+
+	public void onReport(int frames, int lostFrames) {
+		if (frames <= 0) return;
+		float ratio = Math.min((float) lostFrames / frames, 1f);
+		lossRatio = lossRatio * 0.5f + ratio * 0.5f;
+	}
+
+	// Returns the layer the viewer should move to, or -1 to stay.
+	public int getNextLayer(int rttMs, long timestamp) {
+		updateShedding(rttMs, timestamp);
+		boolean isGood = lossRatio < upgradeLossRatio && rttMs > 0 && rttMs < upgradeRttMs;
+		if (!isGood) {
+			goodSinceTs = 0;
+		} else if (goodSinceTs == 0) {
+			goodSinceTs = timestamp;
+		}
+		if (layer == MAIN) {
+			boolean isBad = lossRatio > maxLossRatio || rttMs > maxRttMs;
+			if (isBad && timestamp - layerChangeTs >= minLayerTimeMs) return LOW;
+		} else {
+			if (goodSinceTs != 0 && timestamp - goodSinceTs >= upgradeDelayMs && timestamp - layerChangeTs >= upgradeDelayMs) return MAIN;
+		}
+		return -1;
+	}
+
+	private void updateShedding(int rttMs, long timestamp) {
+		if (lossRatio > shedLossRatio || rttMs > shedRttMs) {
+			isShedding = true;
+			shedGoodSinceTs = 0;
+		} else if (isShedding) {
+			if (shedGoodSinceTs == 0) shedGoodSinceTs = timestamp;
+			if (timestamp - shedGoodSinceTs >= shedRecoveryMs) isShedding = false;
+		}
+	}
+
+	public void setLayer(int layer, long timestamp) {
+		this.layer = layer;
+		layerChangeTs = timestamp;
+		goodSinceTs = 0;
+		lossRatio = 0;
+		isWaitingForKeyFrame = true;
+		isShedding = false;
+	}
+
+	// After a layer change, frames are forwarded from the next key frame on.
+	public boolean acceptFrame(boolean isKeyFrameStart) {
+		if (isWaitingForKeyFrame) {
+			if (!isKeyFrameStart) return false;
+			isWaitingForKeyFrame = false;
+		}
+		return true;
+	}
+
+	// Decided once per frame, so a frame is never cut in the middle.
+	public boolean acceptEnhancementFrame(short frameNum) {
+		if (frameNum != decidedFrameNum) {
+			decidedFrameNum = frameNum;
+			isFrameShed = isShedding;
+		}
+		return !isFrameShed;
+	}
+}